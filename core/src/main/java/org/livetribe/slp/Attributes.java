@@ -15,12 +15,21 @@
  */
 package org.livetribe.slp;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.regex.Pattern;
+
+import org.livetribe.slp.util.Interner;
 
 
 /**
@@ -63,7 +72,9 @@ public class Attributes implements Iterable<String>
     private static final char ESCAPE = '\\';
     private static final String OPAQUE_PREFIX = ESCAPE + "FF";
 
-    public static final Attributes NONE = new Attributes();
+    private static final Interner<Attributes> interner = new Interner<Attributes>();
+
+    public static final Attributes NONE = new Attributes().intern();
 
     /**
      * Creates an <code>Attributes</code> object parsing the given escaped attributes string.
@@ -126,6 +137,10 @@ public class Attributes implements Iterable<String>
      * Maps the tag to the corrispondent value
      */
     private final Map<Tag, Value> attributes = new HashMap<Tag, Value>();
+    /**
+     * The escaped attribute list string, computed lazily since attributes cannot change once created
+     */
+    private volatile String string;
 
     private Attributes()
     {
@@ -211,7 +226,7 @@ public class Attributes implements Iterable<String>
      */
     public static byte[] opaqueToBytes(String opaqueString)
     {
-        if (!opaqueString.startsWith(OPAQUE_PREFIX))
+        if (!isOpaque(opaqueString, 0))
             throw new ServiceLocationException("Opaque strings must begin with " + OPAQUE_PREFIX, SLPError.PARSE_ERROR);
         if (opaqueString.length() % 3 != 0)
             throw new ServiceLocationException("Opaque strings must be of the form: [\\<HEX><HEX>]+", SLPError.PARSE_ERROR);
@@ -224,14 +239,21 @@ public class Attributes implements Iterable<String>
             if (opaqueString.charAt(index) != ESCAPE)
                 throw new ServiceLocationException("Invalid escape sequence at index " + index + " of " + opaqueString, SLPError.PARSE_ERROR);
             ++index;
-            String hexString = opaqueString.substring(index, index + 2);
-            result[position] = (byte)(Integer.parseInt(hexString, 16) & 0xFF);
+            result[position] = (byte)((hexDigit(opaqueString, index) << 4) + hexDigit(opaqueString, index + 1));
             ++position;
             index += 2;
         }
         return result;
     }
 
+    /**
+     * @return whether the given string has the opaque prefix \FF, in any case, at the given index
+     */
+    private static boolean isOpaque(String string, int index)
+    {
+        return string.regionMatches(true, index, OPAQUE_PREFIX, 0, OPAQUE_PREFIX.length());
+    }
+
     /**
      * Returns an opaque string containing the escaped sequence of the given bytes,
      * including the initial opaque prefix \FF.
@@ -390,77 +412,154 @@ public class Attributes implements Iterable<String>
         return unescape(escapedValue, Value.reservedChars);
     }
 
+    /**
+     * Normalizes the given unescaped string value for comparisons, as required by RFC 2608, 6.4:
+     * white spaces are removed and characters are case folded.
+     * <br />
+     * For example, the string value <code>My Documents</code> will be normalized into the string
+     * <code>mydocuments</code>.
+     * <br />
+     * String values of {@link Value}s are normalized once when they are created, see
+     * {@link Value#getNormalizedStringValue(int)}.
+     *
+     * @param unescapedValue the value string to normalize
+     * @return the normalized value string
+     */
+    public static String normalizeValue(String unescapedValue)
+    {
+        int length = unescapedValue.length();
+        StringBuilder result = null;
+        for (int i = 0; i < length; ++i)
+        {
+            char ch = unescapedValue.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(ch));
+            boolean whitespace = isWhitespace(ch);
+            if (result == null)
+            {
+                if (folded == ch && !whitespace) continue;
+                result = new StringBuilder(length).append(unescapedValue, 0, i);
+            }
+            if (!whitespace) result.append(folded);
+        }
+        return result == null ? unescapedValue : result.toString();
+    }
+
+    private static boolean isWhitespace(char ch)
+    {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * Parses the given escaped attribute list in a single pass, without splitting it into intermediate strings.
+     * Presence tags are applied after the valued attributes, so that a presence tag overrides a valued
+     * attribute with the same tag.
+     */
     private static Attributes parseAttributeList(String escapedAttributeList) throws ServiceLocationException
     {
         Attributes result = new Attributes();
 
-        StringBuilder tagList = new StringBuilder();
-        int start = 0;
-        while (start < escapedAttributeList.length())
+        List<Tag> presenceTags = null;
+        int length = escapedAttributeList.length();
+        int tagsStart = 0;
+        int index = 0;
+        while (index < length)
         {
-            int open = escapedAttributeList.indexOf('(', start);
-            if (open < 0)
+            if (escapedAttributeList.charAt(index) == '(')
             {
-                String remaining = escapedAttributeList.substring(start);
-                tagList.append(remaining);
-                start += remaining.length();
+                presenceTags = parseTags(escapedAttributeList, tagsStart, index, false, presenceTags);
+                int close = escapedAttributeList.indexOf(')', index);
+                if (close < 0)
+                    throw new ServiceLocationException("Missing ')' in attribute list " + escapedAttributeList, SLPError.PARSE_ERROR);
+                parseAttribute(result, escapedAttributeList, index + 1, close);
+                index = close + 1;
+                tagsStart = index;
             }
             else
             {
-                int close = escapedAttributeList.indexOf(')', open);
-                if (close < 0)
-                    throw new ServiceLocationException("Missing ')' in attribute list " + escapedAttributeList, SLPError.PARSE_ERROR);
-                tagList.append(escapedAttributeList.substring(start, open));
-                String attributeString = escapedAttributeList.substring(open, close + 1);
-                Attribute attribute = parseAttribute(attributeString, escapedAttributeList);
-                if (attribute != null) result.attributes.put(attribute.tag, attribute.value);
-                start = close + 1;
+                ++index;
             }
         }
+        presenceTags = parseTags(escapedAttributeList, tagsStart, length, false, presenceTags);
 
-        // Only tags, no pairs
-        parseTagList(result, tagList.toString(), false);
+        if (presenceTags != null)
+        {
+            for (Tag tag : presenceTags) result.attributes.put(tag, Value.PRESENCE_VALUE);
+        }
 
         return result;
     }
 
-    private static Attribute parseAttribute(String attribute, String attributeList) throws ServiceLocationException
+    /**
+     * Parses the attribute enclosed in parenthesis between the given indexes (exclusive of the parenthesis).
+     */
+    private static void parseAttribute(Attributes attributes, String attributeList, int start, int end) throws ServiceLocationException
     {
-        attribute = attribute.trim();
-        if (attribute.length() == 0) return null;
-        if (!attribute.startsWith("("))
-            throw new ServiceLocationException("Could not parse attributes " + attributeList + ", missing parenthesis around attribute " + attribute, SLPError.PARSE_ERROR);
-
-        int closeParenthesis = attribute.indexOf(')');
-        String pair = attribute.substring(1, closeParenthesis);
-
-        int equals = pair.indexOf('=');
-        if (equals < 0)
-            throw new ServiceLocationException("Could not parse attributes " + attributeList + ", missing '=' in " + attribute, SLPError.PARSE_ERROR);
+        int equals = attributeList.indexOf('=', start);
+        if (equals < 0 || equals >= end)
+            throw new ServiceLocationException("Could not parse attributes " + attributeList + ", missing '=' in " + attributeList.substring(start - 1, end + 1), SLPError.PARSE_ERROR);
 
-        String escapedTag = pair.substring(0, equals).trim();
-        Tag tag = Tag.from(escapedTag, false);
+        int tagStart = skipWhitespace(attributeList, start, equals);
+        int tagEnd = trimWhitespace(attributeList, tagStart, equals);
+        Tag tag = Tag.from(attributeList, tagStart, tagEnd, false);
 
-        String valueString = pair.substring(equals + 1).trim();
-        Value value = Value.from(valueString);
-        return new Attribute(tag, value);
+        int valueStart = skipWhitespace(attributeList, equals + 1, end);
+        int valueEnd = trimWhitespace(attributeList, valueStart, end);
+        attributes.attributes.put(tag, Value.parse(attributeList, valueStart, valueEnd));
     }
 
     private static Attributes parseTagList(String escapedTagList) throws ServiceLocationException
     {
         Attributes result = new Attributes();
-        parseTagList(result, escapedTagList, true);
+        List<Tag> tags = parseTags(escapedTagList, 0, escapedTagList.length(), true, null);
+        if (tags != null)
+        {
+            for (Tag tag : tags) result.attributes.put(tag, Value.PRESENCE_VALUE);
+        }
         return result;
     }
 
-    private static void parseTagList(Attributes attributes, String tagList, boolean allowGlobbing)
+    /**
+     * Parses the comma separated tags between the given indexes, adding them to the given list
+     * (which is lazily created if null).
+     */
+    private static List<Tag> parseTags(String tagList, int start, int end, boolean allowGlobbing, List<Tag> tags)
     {
-        String[] tags = tagList.split(",");
-        for (String tag : tags)
+        int tagStart = start;
+        for (int index = start; index <= end; ++index)
         {
-            tag = tag.trim();
-            if (tag.length() > 0) attributes.attributes.put(Tag.from(tag, allowGlobbing), Value.from(null));
+            if (index == end || tagList.charAt(index) == ',')
+            {
+                int from = skipWhitespace(tagList, tagStart, index);
+                int to = trimWhitespace(tagList, from, index);
+                if (from < to)
+                {
+                    if (tags == null) tags = new ArrayList<Tag>();
+                    tags.add(Tag.from(tagList, from, to, allowGlobbing));
+                }
+                tagStart = index + 1;
+            }
         }
+        return tags;
+    }
+
+    private static int skipWhitespace(String string, int start, int end)
+    {
+        while (start < end && string.charAt(start) <= ' ') ++start;
+        return start;
+    }
+
+    private static int trimWhitespace(String string, int start, int end)
+    {
+        while (end > start && string.charAt(end - 1) <= ' ') --end;
+        return end;
+    }
+
+    private static int hexDigit(String string, int index) throws ServiceLocationException
+    {
+        int digit = index < string.length() ? Character.digit(string.charAt(index), 16) : -1;
+        if (digit < 0)
+            throw new ServiceLocationException("Invalid escape sequence at index " + index + " of " + string, SLPError.PARSE_ERROR);
+        return digit;
     }
 
     public boolean equals(Object obj)
@@ -478,6 +577,18 @@ public class Attributes implements Iterable<String>
         return asString().hashCode();
     }
 
+    /**
+     * Returns the canonical instance of this <code>Attributes</code>: attributes that are equal
+     * return the same instance, and can therefore be compared by identity.
+     *
+     * @return the canonical instance of this <code>Attributes</code>
+     * @see String#intern()
+     */
+    public Attributes intern()
+    {
+        return interner.intern(this);
+    }
+
     /**
      * Returns a string representation of this <code>Attributes</code> object, that can be passed to
      * {@link #from(String)} to be parsed.
@@ -485,6 +596,13 @@ public class Attributes implements Iterable<String>
      * @return the escaped attribute list string
      */
     public String asString()
+    {
+        String result = string;
+        if (result == null) string = result = buildString();
+        return result;
+    }
+
+    private String buildString()
     {
         TreeMap<Tag, Value> orderedAttributes = new TreeMap<Tag, Value>(attributes);
         StringBuilder result = new StringBuilder();
@@ -500,24 +618,13 @@ public class Attributes implements Iterable<String>
             else
             {
                 result.append("(").append(tag.tag).append("=");
-                if (value.multiValued)
-                {
-                    Object[] values = value.getValues();
-                    for (int i = 0; i < values.length; ++i)
-                    {
-                        if (i > 0) result.append(",");
-                        if (value.isOpaqueType())
-                            result.append(bytesToOpaque((byte[])values[i]));
-                        else
-                            result.append(escapeValue(String.valueOf(values[i])));
-                    }
-                }
-                else
+                for (int i = 0; i < value.getSize(); ++i)
                 {
+                    if (i > 0) result.append(",");
                     if (value.isOpaqueType())
-                        result.append(bytesToOpaque((byte[])value.getValue()));
+                        result.append(bytesToOpaque(value.getOpaqueValue(i)));
                     else
-                        result.append(escapeValue(String.valueOf(value.getValue())));
+                        result.append(escapeValue(value.valueAsString(i)));
                 }
                 result.append(")");
             }
@@ -650,6 +757,235 @@ public class Attributes implements Iterable<String>
         return result;
     }
 
+    /**
+     * An aggregate of many <code>Attributes</code> objects, such as the attributes of all the services of a
+     * service type.
+     * <br />
+     * The aggregate keeps, for each tag, the distinct values with the number of <code>Attributes</code> objects that
+     * contain them, so that <code>Attributes</code> objects can be added and removed incrementally, without
+     * merging again all the <code>Attributes</code> objects.
+     * Differently from {@link Attributes#merge(Attributes)}, the aggregated values of a tag do not contain duplicates.
+     * <br />
+     * Aggregates are not thread safe.
+     */
+    public static class Aggregate
+    {
+        private final Map<Tag, Counts> counts = new HashMap<Tag, Counts>();
+
+        /**
+         * @param attributes the attributes to add to this aggregate, may be null
+         */
+        public void add(Attributes attributes)
+        {
+            update(attributes, 1);
+        }
+
+        /**
+         * @param attributes the attributes, previously added, to remove from this aggregate, may be null
+         */
+        public void remove(Attributes attributes)
+        {
+            update(attributes, -1);
+        }
+
+        private void update(Attributes attributes, int delta)
+        {
+            if (attributes == null) return;
+            for (Map.Entry<Tag, Value> entry : attributes.attributes.entrySet())
+            {
+                Tag tag = entry.getKey();
+                Counts tagCounts = counts.get(tag);
+                if (tagCounts == null)
+                {
+                    if (delta < 0) continue;
+                    tagCounts = new Counts();
+                    counts.put(tag, tagCounts);
+                }
+                tagCounts.update(entry.getValue(), delta);
+                if (tagCounts.isEmpty()) counts.remove(tag);
+            }
+        }
+
+        /**
+         * @return true if this aggregate contains no attributes
+         */
+        public boolean isEmpty()
+        {
+            return counts.isEmpty();
+        }
+
+        /**
+         * @param tags the tags to retain, possibly containing the globbing character '*',
+         *             or null or empty to retain all tags
+         * @return the aggregated attributes
+         * @see #aggregate(Collection, Attributes)
+         */
+        public Attributes asAttributes(Attributes tags)
+        {
+            return aggregate(Collections.singletonList(this), tags);
+        }
+
+        /**
+         * Combines the given aggregates into a new <code>Attributes</code> object, whose values are the distinct
+         * values of each tag.
+         * <br />
+         * Values of a tag with different types are combined as in {@link Attributes#merge(Attributes)}:
+         * presence values are overridden by other values, integers and booleans mixed with other values become strings,
+         * and opaque values are not combined (only the most recently added one is kept) unless they are the only values.
+         * <br />
+         * The cost of this method depends on the number of distinct tags and values, not on the number of
+         * <code>Attributes</code> objects that have been aggregated.
+         *
+         * @param aggregates the aggregates to combine
+         * @param tags       the tags to retain, possibly containing the globbing character '*',
+         *                   or null or empty to retain all tags
+         * @return the combined attributes
+         */
+        public static Attributes aggregate(Collection<Aggregate> aggregates, Attributes tags)
+        {
+            Map<Tag, Counts> combined = new HashMap<Tag, Counts>();
+            for (Aggregate aggregate : aggregates)
+            {
+                if (tags == null || tags.isEmpty())
+                {
+                    for (Map.Entry<Tag, Counts> entry : aggregate.counts.entrySet())
+                        combine(combined, entry.getKey(), entry.getValue());
+                }
+                else
+                {
+                    for (Tag tagToRetain : tags.attributes.keySet())
+                    {
+                        if (tagToRetain.tag.indexOf(STAR) < 0)
+                        {
+                            Counts tagCounts = aggregate.counts.get(tagToRetain);
+                            if (tagCounts != null) combine(combined, tagToRetain, tagCounts);
+                        }
+                        else
+                        {
+                            for (Map.Entry<Tag, Counts> entry : aggregate.counts.entrySet())
+                            {
+                                if (tagToRetain.matches(entry.getKey()))
+                                    combine(combined, entry.getKey(), entry.getValue());
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (combined.isEmpty()) return NONE;
+            Attributes result = new Attributes();
+            for (Map.Entry<Tag, Counts> entry : combined.entrySet())
+                result.attributes.put(entry.getKey(), entry.getValue().toValue());
+            return result;
+        }
+
+        private static void combine(Map<Tag, Counts> combined, Tag tag, Counts tagCounts)
+        {
+            Counts result = combined.get(tag);
+            if (result == null)
+            {
+                result = new Counts();
+                combined.put(tag, result);
+            }
+            result.presence += tagCounts.presence;
+            for (Map.Entry<Object, int[]> entry : tagCounts.values.entrySet())
+            {
+                int[] count = result.values.get(entry.getKey());
+                if (count == null)
+                {
+                    count = new int[1];
+                    result.values.put(entry.getKey(), count);
+                }
+                count[0] += entry.getValue()[0];
+            }
+        }
+
+        /**
+         * The reference counts of the values of a tag; values are keyed by Integer, Boolean, String or,
+         * for opaque values, by a ByteBuffer wrapping the bytes.
+         */
+        private static class Counts
+        {
+            private final Map<Object, int[]> values = new LinkedHashMap<Object, int[]>();
+            private int presence;
+
+            private void update(Value value, int delta)
+            {
+                if (value.isPresenceType())
+                {
+                    presence += delta;
+                    return;
+                }
+                for (int i = 0; i < value.getSize(); ++i)
+                {
+                    Object key = value.isOpaqueType() ? ByteBuffer.wrap(value.getOpaqueValue(i)) : value.valueAt(i);
+                    int[] count = values.get(key);
+                    if (count == null)
+                    {
+                        if (delta < 0) continue;
+                        count = new int[1];
+                        values.put(key, count);
+                    }
+                    count[0] += delta;
+                    if (count[0] <= 0) values.remove(key);
+                }
+            }
+
+            private boolean isEmpty()
+            {
+                return presence <= 0 && values.isEmpty();
+            }
+
+            private Value toValue()
+            {
+                int integers = 0;
+                int booleans = 0;
+                int opaques = 0;
+                for (Object key : values.keySet())
+                {
+                    if (key instanceof Integer) ++integers;
+                    else if (key instanceof Boolean) ++booleans;
+                    else if (key instanceof ByteBuffer) ++opaques;
+                }
+
+                int size = values.size() - opaques;
+                if (size == 0)
+                {
+                    if (opaques == 0) return Value.PRESENCE_VALUE;
+                    byte[] last = null;
+                    for (Object key : values.keySet()) last = ((ByteBuffer)key).array();
+                    return new Value(new byte[][]{last}, Value.OPAQUE, 1, false);
+                }
+
+                if (integers == size)
+                {
+                    int[] result = new int[size];
+                    int index = 0;
+                    for (Object key : values.keySet())
+                        if (key instanceof Integer) result[index++] = (Integer)key;
+                    return new Value(result, Value.INTEGER, size, size > 1);
+                }
+                else if (booleans == size)
+                {
+                    boolean[] result = new boolean[size];
+                    int index = 0;
+                    for (Object key : values.keySet())
+                        if (key instanceof Boolean) result[index++] = (Boolean)key;
+                    return new Value(result, Value.BOOLEAN, size, size > 1);
+                }
+                else
+                {
+                    // Different keys may have the same string form, for example 1 and "1"
+                    Set<String> strings = new LinkedHashSet<String>();
+                    for (Object key : values.keySet())
+                        if (!(key instanceof ByteBuffer)) strings.add(String.valueOf(key));
+                    String[] result = strings.toArray(new String[strings.size()]);
+                    return new Value(result, Value.STRING, result.length, result.length > 1);
+                }
+            }
+        }
+    }
+
     private static class Tag implements Comparable<Tag>
     {
         private static final char[] reservedChars = new char[128];
@@ -678,6 +1014,21 @@ public class Attributes implements Iterable<String>
             return new Tag(escapedTagString);
         }
 
+        private static Tag from(String string, int start, int end, boolean allowGlobbing)
+        {
+            if (start == end)
+                throw new ServiceLocationException("Escaped string could not be the empty string", SLPError.PARSE_ERROR);
+            for (int i = start; i < end; ++i)
+            {
+                char ch = string.charAt(i);
+                if (ch == ESCAPE) continue;
+                if (ch == STAR && allowGlobbing) continue;
+                if (ch < reservedChars.length && reservedChars[ch] == ch)
+                    throw new ServiceLocationException("Illegal character '" + ch + "' in " + string.substring(start, end), SLPError.PARSE_ERROR);
+            }
+            return new Tag(string.substring(start, end));
+        }
+
         private final String tag;
 
         private Tag(String tag)
@@ -723,6 +1074,11 @@ public class Attributes implements Iterable<String>
      * Represent the attribute value within the {@link Attributes} class.
      * A <code>Value</code> encapsulates the attribute value(s) and type.
      * The values are unescaped, so for example opaque strings are stored as byte[].
+     * <br />
+     * Values are stored in arrays specialized for their type (<code>int[]</code> for integers,
+     * <code>boolean[]</code> for booleans, <code>byte[][]</code> for opaques and <code>String[]</code>
+     * for strings), so that they can be accessed via the indexed accessors (for example
+     * {@link #getIntegerValue(int)}) without boxing.
      */
     public static class Value
     {
@@ -741,113 +1097,188 @@ public class Attributes implements Iterable<String>
             reservedChars['~'] = '~';
         }
 
-        private static final Value NULL_VALUE = new Value(null, 0);
-
         private static final int STRING = 1;
         private static final int INTEGER = 2;
         private static final int BOOLEAN = 3;
         private static final int OPAQUE = 4;
         private static final int PRESENCE = 5;
 
-        private final Object value;
-        private final int type;
-        private final boolean multiValued;
+        private static final Value NULL_VALUE = new Value(null, 0, 0, false);
+        private static final Value PRESENCE_VALUE = new Value(null, PRESENCE, 0, false);
+        private static final Value TRUE_VALUE = new Value(new boolean[]{true}, BOOLEAN, 1, false);
+        private static final Value FALSE_VALUE = new Value(new boolean[]{false}, BOOLEAN, 1, false);
 
         private static Value from(String valueString)
         {
-            if (valueString == null) return new Value(valueString, PRESENCE);
-            if (valueString.indexOf(',') >= 0)
-                return fromStringArray(valueString.split(","));
-            else
-                return fromString(valueString);
+            if (valueString == null) return PRESENCE_VALUE;
+            return parse(valueString, 0, valueString.length());
         }
 
-        private static Value fromStringArray(String[] strings)
+        /**
+         * Parses the escaped value(s) between the given indexes, classifying each value while scanning it.
+         */
+        private static Value parse(String string, int start, int end)
         {
-            Value[] attributeValues = new Value[strings.length];
-            boolean homogeneous = true;
-            boolean opaquePresent = false;
-            for (int i = 0; i < attributeValues.length; ++i)
+            int comma = string.indexOf(',', start);
+            if (comma < 0 || comma >= end) return parseSingle(string, start, end);
+
+            // Trailing empty values are discarded, as String.split() does
+            while (end > start && string.charAt(end - 1) == ',') --end;
+            if (end == start)
+                throw new ServiceLocationException("Invalid attribute value " + string, SLPError.PARSE_ERROR);
+
+            int count = 1;
+            for (int i = comma; i < end; ++i)
             {
-                attributeValues[i] = fromString(strings[i]);
-                homogeneous &= attributeValues[0].getType() == attributeValues[i].getType();
-                if (attributeValues[i].isOpaqueType()) opaquePresent = true;
+                if (string.charAt(i) == ',') ++count;
             }
 
-            if (homogeneous)
+            Value[] singles = new Value[count];
+            boolean homogeneous = true;
+            boolean opaquePresent = false;
+            int valueStart = start;
+            int position = 0;
+            for (int i = comma; i <= end; ++i)
             {
-                Object[] values = new Object[attributeValues.length];
-                for (int i = 0; i < attributeValues.length; ++i)
+                if (i == end || string.charAt(i) == ',')
                 {
-                    Value value = attributeValues[i];
-                    values[i] = value.getValue();
+                    Value value = parseSingle(string, valueStart, i);
+                    homogeneous &= position == 0 || singles[0].type == value.type;
+                    if (value.isOpaqueType()) opaquePresent = true;
+                    singles[position++] = value;
+                    valueStart = i + 1;
                 }
-                return new Value(values, attributeValues[0].getType());
             }
-            else
-            {
-                // It's not homogeneous, and there is one opaque value: RFC 2608, 5.0 says it's illegal.
-                if (opaquePresent)
-                    throw new ServiceLocationException("Attribute values must be homogeneous: considering values to be strings, but one value is opaque: " + Arrays.asList(attributeValues), SLPError.PARSE_ERROR);
 
-                // Not homogeneus, convert everything to string
-                Object[] values = new Object[attributeValues.length];
-                for (int i = 0; i < attributeValues.length; ++i)
-                {
-                    Value value = attributeValues[i];
-                    values[i] = String.valueOf(value.getValue());
-                }
-                return new Value(values, Value.STRING);
+            // It's not homogeneous, and there is one opaque value: RFC 2608, 5.0 says it's illegal.
+            if (!homogeneous && opaquePresent)
+                throw new ServiceLocationException("Attribute values must be homogeneous: considering values to be strings, but one value is opaque: " + string.substring(start, end), SLPError.PARSE_ERROR);
+
+            // Not homogeneus, convert everything to string
+            int type = homogeneous ? singles[0].type : STRING;
+            switch (type)
+            {
+                case INTEGER:
+                    int[] integers = new int[count];
+                    for (int i = 0; i < count; ++i) integers[i] = singles[i].getIntegerValue(0);
+                    return new Value(integers, INTEGER, count, true);
+                case BOOLEAN:
+                    boolean[] booleans = new boolean[count];
+                    for (int i = 0; i < count; ++i) booleans[i] = singles[i].getBooleanValue(0);
+                    return new Value(booleans, BOOLEAN, count, true);
+                case OPAQUE:
+                    byte[][] opaques = new byte[count][];
+                    for (int i = 0; i < count; ++i) opaques[i] = singles[i].getOpaqueValue(0);
+                    return new Value(opaques, OPAQUE, count, true);
+                default:
+                    String[] strings = new String[count];
+                    for (int i = 0; i < count; ++i) strings[i] = singles[i].valueAsString(0);
+                    return new Value(strings, STRING, count, true);
             }
         }
 
-        private static Value fromString(String value)
+        private static Value parseSingle(String string, int start, int end)
         {
+            int length = end - start;
+
             // Is it opaque ?
-            if (isOpaque(value)) return new Value(opaqueToBytes(value), Value.OPAQUE);
+            if (isOpaque(string, start))
+                return new Value(new byte[][]{opaqueToBytes(string.substring(start, end))}, OPAQUE, 1, false);
 
             // Is it a boolean ?
-            if (isBoolean(value)) return new Value(Boolean.valueOf(value), Value.BOOLEAN);
-
-            try
+            if (length == 4 && string.regionMatches(true, start, "true", 0, 4)) return TRUE_VALUE;
+            if (length == 5 && string.regionMatches(true, start, "false", 0, 5)) return FALSE_VALUE;
+
+            // Is it a number ?
+            int index = start;
+            boolean negative = index < end && string.charAt(index) == '-';
+            if (negative) ++index;
+            if (index < end)
             {
-                // Is it a number ?
-                if (isInteger(value)) return new Value(Integer.valueOf(value), Value.INTEGER);
-            }
-            catch (NumberFormatException x)
-            {
-                // Ignore it, and return it as a string
+                long number = 0;
+                while (index < end)
+                {
+                    char ch = string.charAt(index);
+                    if (ch < '0' || ch > '9') break;
+                    number = number * 10 + (ch - '0');
+                    // Too big to be an integer, will be a string
+                    if (number > (long)Integer.MAX_VALUE + 1) break;
+                    ++index;
+                }
+                if (index == end)
+                {
+                    if (negative) number = -number;
+                    if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE)
+                        return new Value(new int[]{(int)number}, INTEGER, 1, false);
+                }
             }
 
             // Then it's a string
-            return new Value(unescapeValue(value), Value.STRING);
+            return new Value(new String[]{unescapeValue(string, start, end)}, STRING, 1, false);
         }
 
-        private static boolean isBoolean(String value)
+        /**
+         * Checks and unescapes in a single pass the escaped value between the given indexes.
+         */
+        private static String unescapeValue(String string, int start, int end)
         {
-            return "true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value);
-        }
+            start = skipWhitespace(string, start, end);
+            end = trimWhitespace(string, start, end);
+            if (start == end)
+                throw new ServiceLocationException("Escaped string could not be the empty string", SLPError.PARSE_ERROR);
 
-        private static boolean isInteger(String value)
-        {
-            return Pattern.matches("-?[0-9]+", value);
+            StringBuilder result = null;
+            for (int i = start; i < end; ++i)
+            {
+                char ch = string.charAt(i);
+                if (ch == ESCAPE)
+                {
+                    if (result == null) result = new StringBuilder(end - start).append(string, start, i);
+                    int code = (hexDigit(string, i + 1) << 4) + hexDigit(string, i + 2);
+                    if (code >= reservedChars.length || reservedChars[code] != code)
+                        throw new ServiceLocationException("Unknown escaped character " + string.substring(i, i + 3) + " at position " + (i - start + 1) + " of " + string.substring(start, end), SLPError.PARSE_ERROR);
+                    result.append((char)code);
+                    i += 2;
+                }
+                else if (ch < reservedChars.length && reservedChars[ch] == ch)
+                {
+                    throw new ServiceLocationException("Illegal character '" + ch + "' in " + string.substring(start, end), SLPError.PARSE_ERROR);
+                }
+                else if (result != null)
+                {
+                    result.append(ch);
+                }
+            }
+            return result == null ? string.substring(start, end) : result.toString();
         }
 
-        private static boolean isOpaque(String value)
-        {
-            return value.startsWith(OPAQUE_PREFIX);
-        }
+        /**
+         * The values, stored in an array whose component type depends on the type of this value:
+         * <code>int[]</code>, <code>boolean[]</code>, <code>byte[][]</code> or <code>String[]</code>.
+         */
+        private final Object values;
+        /**
+         * The normalized string values, computed once at creation; null if this value is not of type string.
+         */
+        private final String[] normalizedValues;
+        private final int type;
+        private final int size;
+        private final boolean multiValued;
 
-        private Value(Object value, int type)
+        private Value(Object values, int type, int size, boolean multiValued)
         {
-            this.value = value;
+            this.values = values;
             this.type = type;
-            this.multiValued = value instanceof Object[];
+            this.size = size;
+            this.multiValued = multiValued;
+            this.normalizedValues = type == STRING ? normalize((String[])values) : null;
         }
 
-        private int getType()
+        private static String[] normalize(String[] strings)
         {
-            return type;
+            String[] result = new String[strings.length];
+            for (int i = 0; i < strings.length; ++i) result[i] = normalizeValue(strings[i]);
+            return result;
         }
 
         /**
@@ -899,15 +1330,78 @@ public class Attributes implements Iterable<String>
             return type == PRESENCE;
         }
 
+        /**
+         * @return the number of values of this entry, or 0 if this value represents only the presence of a tag.
+         */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @param index the index of the value
+         * @return the integer value at the given index, without boxing it
+         * @throws ClassCastException if this value is not of type integer
+         * @see #isIntegerType()
+         */
+        public int getIntegerValue(int index)
+        {
+            return ((int[])values)[index];
+        }
+
+        /**
+         * @param index the index of the value
+         * @return the boolean value at the given index, without boxing it
+         * @throws ClassCastException if this value is not of type boolean
+         * @see #isBooleanType()
+         */
+        public boolean getBooleanValue(int index)
+        {
+            return ((boolean[])values)[index];
+        }
+
+        /**
+         * @param index the index of the value
+         * @return the opaque value at the given index
+         * @throws ClassCastException if this value is not of type opaque
+         * @see #isOpaqueType()
+         */
+        public byte[] getOpaqueValue(int index)
+        {
+            return ((byte[][])values)[index];
+        }
+
+        /**
+         * @param index the index of the value
+         * @return the string value at the given index
+         * @throws ClassCastException if this value is not of type string
+         * @see #isStringType()
+         */
+        public String getStringValue(int index)
+        {
+            return ((String[])values)[index];
+        }
+
+        /**
+         * @param index the index of the value
+         * @return the string value at the given index, normalized for comparisons
+         * @throws NullPointerException if this value is not of type string
+         * @see #isStringType()
+         * @see Attributes#normalizeValue(String)
+         */
+        public String getNormalizedStringValue(int index)
+        {
+            return normalizedValues[index];
+        }
+
         /**
          * @return the value of this <code>Value</code> object (in case it is single valued), or the first value of this entry
          *         (in case it is multivalued).
          */
         public Object getValue()
         {
-            if (isPresenceType()) return null;
-            if (multiValued) return ((Object[])value)[0];
-            return value;
+            if (size == 0) return null;
+            return valueAt(0);
         }
 
         /**
@@ -916,67 +1410,103 @@ public class Attributes implements Iterable<String>
          */
         public Object[] getValues()
         {
-            if (isPresenceType()) return null;
-            if (multiValued) return (Object[])value;
-            return new Object[]{value};
+            if (size == 0) return null;
+            Object[] result = new Object[size];
+            for (int i = 0; i < size; ++i) result[i] = valueAt(i);
+            return result;
+        }
+
+        private Object valueAt(int index)
+        {
+            switch (type)
+            {
+                case INTEGER:
+                    return getIntegerValue(index);
+                case BOOLEAN:
+                    return getBooleanValue(index);
+                case OPAQUE:
+                    return getOpaqueValue(index);
+                default:
+                    return getStringValue(index);
+            }
+        }
+
+        private String valueAsString(int index)
+        {
+            switch (type)
+            {
+                case INTEGER:
+                    return String.valueOf(getIntegerValue(index));
+                case BOOLEAN:
+                    return String.valueOf(getBooleanValue(index));
+                case OPAQUE:
+                    return String.valueOf(getOpaqueValue(index));
+                default:
+                    return getStringValue(index);
+            }
         }
 
         private Value merge(Value that)
         {
             if (isPresenceType())
             {
-                if (that.isPresenceType())
-                    return new Value(null, PRESENCE);
-                else
-                    return new Value(that.value, that.type);
+                return that;
             }
             else if (isBooleanType())
             {
                 if (that.isPresenceType() || that.isOpaqueType())
-                    return new Value(value, type);
+                    return this;
                 else if (that.isBooleanType())
-                    return new Value(coalesceArrays(getValues(), that.getValues(), false), BOOLEAN);
+                    return new Value(coalesceBooleans(that), BOOLEAN, size + that.size, true);
                 else
-                    return new Value(coalesceArrays(getValues(), that.getValues(), true), STRING);
+                    return new Value(coalesceStrings(that), STRING, size + that.size, true);
             }
             else if (isIntegerType())
             {
                 if (that.isPresenceType() || that.isOpaqueType())
-                    return new Value(value, type);
+                    return this;
                 else if (that.isIntegerType())
-                    return new Value(coalesceArrays(getValues(), that.getValues(), false), INTEGER);
+                    return new Value(coalesceIntegers(that), INTEGER, size + that.size, true);
                 else
-                    return new Value(coalesceArrays(getValues(), that.getValues(), true), STRING);
+                    return new Value(coalesceStrings(that), STRING, size + that.size, true);
             }
             else if (isOpaqueType())
             {
                 if (that.isPresenceType())
-                    return new Value(value, type);
+                    return this;
                 else
-                    return new Value(that.value, that.type);
+                    return that;
             }
             else
             {
                 if (that.isPresenceType() || that.isOpaqueType())
-                    return new Value(value, type);
+                    return this;
                 else
-                    return new Value(coalesceArrays(getValues(), that.getValues(), true), STRING);
+                    return new Value(coalesceStrings(that), STRING, size + that.size, true);
             }
         }
 
-        private Object[] coalesceArrays(Object[] values1, Object[] values2, boolean convertToString)
+        private int[] coalesceIntegers(Value that)
         {
-            Object[] result = new Object[values1.length + values2.length];
-            for (int i = 0; i < values1.length; i++)
-            {
-                Object value1 = values1[i];
-                result[i] = convertToString ? String.valueOf(value1) : value1;
-            }
-            for (int i = 0; i < values2.length; ++i)
-            {
-                Object value2 = values2[i];
-                result[values1.length + i] = convertToString ? String.valueOf(value2) : value2;
-            }
+            int[] result = new int[size + that.size];
+            System.arraycopy(values, 0, result, 0, size);
+            System.arraycopy(that.values, 0, result, size, that.size);
+            return result;
+        }
+
+        private boolean[] coalesceBooleans(Value that)
+        {
+            boolean[] result = new boolean[size + that.size];
+            System.arraycopy(values, 0, result, 0, size);
+            System.arraycopy(that.values, 0, result, size, that.size);
+            return result;
+        }
+
+        private String[] coalesceStrings(Value that)
+        {
+            String[] result = new String[size + that.size];
+            for (int i = 0; i < size; ++i) result[i] = valueAsString(i);
+            for (int i = 0; i < that.size; ++i) result[size + i] = that.valueAsString(i);
             return result;
         }
 
@@ -987,13 +1517,18 @@ public class Attributes implements Iterable<String>
             final Value that = (Value)obj;
             if (type != that.type) return false;
             if (multiValued != that.multiValued) return false;
-            if (multiValued)
+            switch (type)
             {
-                return Arrays.equals((Object[])value, (Object[])that.value);
-            }
-            else
-            {
-                return value == null ? that.value == null : value.equals(that.value);
+                case INTEGER:
+                    return Arrays.equals((int[])values, (int[])that.values);
+                case BOOLEAN:
+                    return Arrays.equals((boolean[])values, (boolean[])that.values);
+                case OPAQUE:
+                    return Arrays.deepEquals((byte[][])values, (byte[][])that.values);
+                case STRING:
+                    return Arrays.equals((String[])values, (String[])that.values);
+                default:
+                    return true;
             }
         }
 
@@ -1001,27 +1536,19 @@ public class Attributes implements Iterable<String>
         {
             int result = type;
             result = 29 * result + (multiValued ? 1 : 0);
-            if (multiValued)
-            {
-                result = 29 * result + Arrays.hashCode((Object[])value);
-            }
-            else
+            switch (type)
             {
-                result = 29 * result + (value == null ? 0 : value.hashCode());
+                case INTEGER:
+                    return 29 * result + Arrays.hashCode((int[])values);
+                case BOOLEAN:
+                    return 29 * result + Arrays.hashCode((boolean[])values);
+                case OPAQUE:
+                    return 29 * result + Arrays.deepHashCode((byte[][])values);
+                case STRING:
+                    return 29 * result + Arrays.hashCode((String[])values);
+                default:
+                    return result;
             }
-            return result;
-        }
-    }
-
-    private static class Attribute
-    {
-        private final Tag tag;
-        private final Value value;
-
-        private Attribute(Tag tag, Value value)
-        {
-            this.tag = tag;
-            this.value = value;
         }
     }
 }
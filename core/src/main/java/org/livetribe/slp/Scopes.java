@@ -19,6 +19,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.livetribe.slp.util.Interner;
 
 
 /**
@@ -32,6 +36,18 @@ public class Scopes
 {
     private static final char ESCAPE_PREFIX = '\\';
     private static final char[] reservedChars = new char[128];
+    private static final Interner<Scopes> interner = new Interner<Scopes>();
+    /**
+     * The maximum number of distinct scope strings that are assigned an identifier; scopes containing other
+     * scope strings are matched by comparing strings.
+     */
+    private static final int MAX_SCOPE_IDS = 1024;
+    private static final ConcurrentMap<String, Integer> scopeIds = new ConcurrentHashMap<String, Integer>();
+    /**
+     * The number of identifiers assigned, so that scopes whose scope strings had no identifier
+     * look them up again only after new identifiers have been assigned
+     */
+    private static volatile int assignedScopeIds;
 
     static
     {
@@ -72,6 +88,14 @@ public class Scopes
      */
     public static final Scopes ANY = new Scopes(new String[]{"*"}, false);
 
+    static
+    {
+        // The constants are the canonical instances, so that they are returned by intern()
+        interner.intern(DEFAULT);
+        interner.intern(NONE);
+        interner.intern(ANY);
+    }
+
     /**
      * Creates a Scopes object from the given strings.
      *
@@ -85,6 +109,14 @@ public class Scopes
     }
 
     private final List<String> scopes = new ArrayList<String>();
+    private final int hashCode;
+    /**
+     * The identifiers of the scope strings, looked up when first needed and replaced when new identifiers
+     * have been assigned until all the scope strings have an identifier
+     */
+    private volatile ScopeIds ids;
+    private final boolean none;
+    private final boolean any;
 
     /**
      * Creates a <code>Scopes</code> object containing the given scope strings.
@@ -99,6 +131,33 @@ public class Scopes
             scope = scope.toLowerCase();
             this.scopes.add(escape ? escape(scope) : scope);
         }
+        this.hashCode = this.scopes.hashCode();
+        this.none = this.scopes.isEmpty();
+        this.any = this.scopes.size() == 1 && "*".equals(this.scopes.get(0));
+    }
+
+    private ScopeIds lookupScopeIds()
+    {
+        // Read the count before the identifiers, so that identifiers assigned meanwhile trigger another lookup
+        int assigned = assignedScopeIds;
+        int[] result = new int[scopes.size()];
+        for (int i = 0; i < result.length; ++i)
+        {
+            Integer id = scopeIds.get(scopes.get(i));
+            result[i] = id == null ? -1 : id;
+        }
+        return new ScopeIds(result, assigned);
+    }
+
+    private ScopeIds scopeIds()
+    {
+        ScopeIds result = ids;
+        if (result == null || (result.bits == null && result.assigned != assignedScopeIds))
+        {
+            result = lookupScopeIds();
+            ids = result;
+        }
+        return result;
     }
 
     public boolean equals(Object obj)
@@ -106,12 +165,24 @@ public class Scopes
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         final Scopes that = (Scopes)obj;
-        return scopes.equals(that.scopes);
+        return hashCode == that.hashCode && scopes.equals(that.scopes);
     }
 
     public int hashCode()
     {
-        return scopes.hashCode();
+        return hashCode;
+    }
+
+    /**
+     * Returns the canonical instance of this <code>Scopes</code>: scopes that are equal
+     * return the same instance, and can therefore be compared by identity.
+     *
+     * @return the canonical instance of this <code>Scopes</code>
+     * @see String#intern()
+     */
+    public Scopes intern()
+    {
+        return interner.intern(this);
     }
 
     /**
@@ -133,6 +204,18 @@ public class Scopes
         if (isAnyScope()) return true;
         if (other == null || other.isNoneScope()) return true;
         if (other.isAnyScope()) return false;
+        if (other == this) return true;
+        long[] bits = scopeIds().bits;
+        long[] otherBits = other.scopeIds().bits;
+        if (bits != null && otherBits != null)
+        {
+            for (int i = 0; i < otherBits.length; ++i)
+            {
+                long word = i < bits.length ? bits[i] : 0;
+                if ((otherBits[i] & ~word) != 0) return false;
+            }
+            return true;
+        }
         return scopes.containsAll(other.scopes);
     }
 
@@ -156,6 +239,17 @@ public class Scopes
         if (isAnyScope()) return true;
         if (other == null || other.isNoneScope()) return true;
         if (other.isAnyScope()) return false;
+        if (other == this) return true;
+        long[] bits = scopeIds().bits;
+        long[] otherBits = other.scopeIds().bits;
+        if (bits != null && otherBits != null)
+        {
+            for (int i = 0; i < Math.min(bits.length, otherBits.length); ++i)
+            {
+                if ((bits[i] & otherBits[i]) != 0) return true;
+            }
+            return false;
+        }
         return !Collections.disjoint(scopes, other.scopes);
     }
 
@@ -173,13 +267,56 @@ public class Scopes
         return strings;
     }
 
+    /**
+     * Scope strings are assigned small integer identifiers when a service with those scopes is stored
+     * (see {@link #assignScopeIds()}), so that scopes are matched by comparing bitsets of identifiers,
+     * and services can be partitioned by scope; scopes of requests only look up the identifiers already
+     * assigned, so that they cannot exhaust them.
+     *
+     * @return the identifiers of the scope strings of this <code>Scopes</code> object, in the same order of
+     *         {@link #asStringArray()}, where -1 marks the scope strings that have no identifier
+     */
+    public int[] getScopeIds()
+    {
+        return scopeIds().ids.clone();
+    }
+
+    /**
+     * Assigns identifiers to the scope strings of this <code>Scopes</code> object that do not have one yet;
+     * it is called by service stores when a service with these scopes is stored.
+     * When too many distinct scope strings have been assigned an identifier, new scope strings are not
+     * assigned one.
+     *
+     * @return the identifiers of the scope strings of this <code>Scopes</code> object, as {@link #getScopeIds()}
+     */
+    public int[] assignScopeIds()
+    {
+        ScopeIds result = scopeIds();
+        if (result.bits != null) return result.ids.clone();
+        // Only assignments are serialized, lookups read the identifiers without locking
+        synchronized (scopeIds)
+        {
+            for (String scope : scopes)
+            {
+                if (!scopeIds.containsKey(scope) && assignedScopeIds < MAX_SCOPE_IDS)
+                {
+                    scopeIds.put(scope, assignedScopeIds);
+                    assignedScopeIds = assignedScopeIds + 1;
+                }
+            }
+        }
+        result = lookupScopeIds();
+        ids = result;
+        return result.ids.clone();
+    }
+
     /**
      * @return true if this <code>Scopes</code> object is the {@link #NONE} scope, false otherwise.
      * @see #NONE
      */
     public boolean isNoneScope()
     {
-        return equals(NONE);
+        return none;
     }
 
     /**
@@ -188,7 +325,7 @@ public class Scopes
      */
     public boolean isAnyScope()
     {
-        return equals(ANY);
+        return any;
     }
 
     /**
@@ -267,4 +404,45 @@ public class Scopes
         }
         return result.toString();
     }
+
+    /**
+     * The identifiers of the scope strings, with their bitset.
+     */
+    private static class ScopeIds
+    {
+        /**
+         * The identifiers of the scope strings, -1 for scope strings that have no identifier
+         */
+        private final int[] ids;
+        /**
+         * The bitset of the identifiers of the scope strings, or null if some scope string has no identifier
+         */
+        private final long[] bits;
+        /**
+         * The number of identifiers assigned when the identifiers were looked up
+         */
+        private final int assigned;
+
+        private ScopeIds(int[] ids, int assigned)
+        {
+            this.ids = ids;
+            this.assigned = assigned;
+            int maxId = -1;
+            boolean complete = true;
+            for (int id : ids)
+            {
+                if (id < 0) complete = false;
+                maxId = Math.max(maxId, id);
+            }
+            if (complete)
+            {
+                this.bits = new long[(maxId >> 6) + 1];
+                for (int id : ids) bits[id >> 6] |= 1L << id;
+            }
+            else
+            {
+                this.bits = null;
+            }
+        }
+    }
 }
@@ -65,24 +65,41 @@ public class ServiceInfo
 
     /**
      * Creates a <code>ServiceInfo</code> from a SrvReg message.
+     * The service type, scopes and attributes of the returned <code>ServiceInfo</code> are canonical instances.
      *
      * @param srvReg the SrvReg message to convert into a ServiceInfo
      * @return a new ServiceInfo from the given message
      */
     public static ServiceInfo from(SrvReg srvReg)
     {
-        return new ServiceInfo(srvReg.getServiceType(), srvReg.getURLEntry().toServiceURL(), srvReg.getLanguage(), srvReg.getScopes(), srvReg.getAttributes());
+        return new ServiceInfo(intern(srvReg.getServiceType()), srvReg.getURLEntry().toServiceURL(), srvReg.getLanguage(), intern(srvReg.getScopes()), intern(srvReg.getAttributes()));
     }
 
     /**
      * Creates a <code>ServiceInfo</code> from a SrvDeReg message.
+     * The scopes and attributes of the returned <code>ServiceInfo</code> are canonical instances.
      *
      * @param srvDeReg the SrvDeReg message to convert into a ServiceInfo
      * @return a new ServiceInfo from the given message
      */
     public static ServiceInfo from(SrvDeReg srvDeReg)
     {
-        return new ServiceInfo(srvDeReg.getURLEntry().toServiceURL(), srvDeReg.getLanguage(), srvDeReg.getScopes(), srvDeReg.getTags());
+        return new ServiceInfo(srvDeReg.getURLEntry().toServiceURL(), srvDeReg.getLanguage(), intern(srvDeReg.getScopes()), intern(srvDeReg.getTags()));
+    }
+
+    private static ServiceType intern(ServiceType serviceType)
+    {
+        return serviceType == null ? null : serviceType.intern();
+    }
+
+    private static Scopes intern(Scopes scopes)
+    {
+        return scopes == null ? null : scopes.intern();
+    }
+
+    private static Attributes intern(Attributes attributes)
+    {
+        return attributes == null ? null : attributes.intern();
     }
 
     /**
@@ -203,7 +220,7 @@ public class ServiceInfo
             mergedAttrs = thatAttrs == null ? null : thatAttrs.union(null);
         else
             mergedAttrs = thisAttrs.union(thatAttrs);
-        return clone(getScopes(), mergedAttrs);
+        return clone(getScopes(), intern(mergedAttrs));
     }
 
     /**
@@ -221,7 +238,7 @@ public class ServiceInfo
         Attributes mergedAttrs = null;
         if (thisAttr != null)
             mergedAttrs = thisAttr.complement(thatAttrs);
-        return clone(getScopes(), mergedAttrs);
+        return clone(getScopes(), intern(mergedAttrs));
     }
 
     /**
@@ -260,6 +277,39 @@ public class ServiceInfo
         return registrationTime > UNREGISTERED;
     }
 
+    /**
+     * @return the time, in milliseconds since the Unix epoch, this <code>ServiceInfo</code> has been registered,
+     *         or a value less than or equal to zero if it is not registered
+     * @see #isRegistered()
+     */
+    public long getRegistrationTime()
+    {
+        return registrationTime;
+    }
+
+    /**
+     * Sets the time this <code>ServiceInfo</code> has been registered; used by stores that
+     * materialize services from their own storage to restore the original registration time.
+     *
+     * @param registrationTime the time, in milliseconds since the Unix epoch, this <code>ServiceInfo</code> has been registered
+     * @see #getRegistrationTime()
+     */
+    protected void setRegistrationTime(long registrationTime)
+    {
+        this.registrationTime = registrationTime;
+    }
+
+    /**
+     * Returns the URL entry of this <code>ServiceInfo</code> in wire form, for stores that keep services encoded,
+     * so that replies copy it rather than encoding it again.
+     *
+     * @return the encoded URL entry of this <code>ServiceInfo</code>, or null if it is not available
+     */
+    public byte[] getURLEntryBytes()
+    {
+        return null;
+    }
+
     /**
      * @return whether this service expires or not
      * @see ServiceURL#LIFETIME_PERMANENT
@@ -323,7 +373,7 @@ public class ServiceInfo
         /**
          * @return the ServiceURL of this key.
          */
-        private ServiceURL getServiceURL()
+        public ServiceURL getServiceURL()
         {
             return serviceURL;
         }
@@ -331,7 +381,7 @@ public class ServiceInfo
         /**
          * @return the language of this key.
          */
-        private String getLanguage()
+        public String getLanguage()
         {
             return language;
         }
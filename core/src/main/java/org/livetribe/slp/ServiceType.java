@@ -15,6 +15,8 @@
  */
 package org.livetribe.slp;
 
+import org.livetribe.slp.util.Interner;
+
 /**
  * Services that offer the same functionalities are characterized by the same <code>ServiceType</code>.
  * <br />
@@ -45,6 +47,7 @@ public class ServiceType implements Comparable<ServiceType>
     public static final String DEFAULT_NAMING_AUTHORITY = "";
 
     private static final String SERVICE = "service:";
+    private static final Interner<ServiceType> interner = new Interner<ServiceType>();
 
     private final String type;
     private boolean isServiceURL;
@@ -195,6 +198,18 @@ public class ServiceType implements Comparable<ServiceType>
         return type.hashCode();
     }
 
+    /**
+     * Returns the canonical instance of this <code>ServiceType</code>: service types that are equal
+     * return the same instance, and can therefore be compared by identity.
+     *
+     * @return the canonical instance of this <code>ServiceType</code>
+     * @see String#intern()
+     */
+    public ServiceType intern()
+    {
+        return interner.intern(this);
+    }
+
     /**
      * @return the string form of this service type, that can be passed to {@link #ServiceType(String)} to be parsed.
      */
@@ -0,0 +1,648 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+
+
+/**
+ * A write-ahead log of the services registered in a directory agent, that allows the directory agent
+ * to recover its services after a restart.
+ * <br />
+ * The log is made of generations; each generation has a log file, where every change to the services
+ * is appended, and possibly a snapshot file, containing all services as of the beginning of the generation.
+ * Changes are appended in memory by {@link #appendPut(ServiceInfo)} and {@link #appendRemove(ServiceInfo.Key)}
+ * and become durable when {@link #sync(long)} returns; concurrent calls to <code>sync(long)</code> are grouped
+ * so that one write and one fsync make durable the changes of many callers.
+ * <br />
+ * Appends of the changes of a service must be performed in the same order the changes are applied to the service,
+ * normally by holding the lock that guards the service
+ * (see {@link org.livetribe.slp.spi.ServiceStore#lock(ServiceInfo.Key)});
+ * changes of different services are independent, so they may be appended in any order.
+ * <br />
+ * Each record is prefixed by its length and its checksum, so that a record partially written because of a crash
+ * is detected and discarded on recovery.
+ * <br />
+ * If a write or a fsync fails, the log file may end with a partially written record, and the changes of the failed
+ * write are lost; no further change is written, so that the log never has gaps, and all the following calls to
+ * {@link #sync(long)} and {@link #rotate()} fail: the directory agent must be restarted to recover from
+ * the changes made durable before the failure.
+ */
+public class ServiceInfoLog
+{
+    private static final String FILE_PREFIX = "services-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int LOG_MAGIC = 0x534C504C;
+    private static final int SNAPSHOT_MAGIC = 0x534C5053;
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File directory;
+    private final Lock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private boolean syncing;
+    private IOException failure;
+    private long generation;
+    private FileOutputStream output;
+
+    /**
+     * @param directory the directory where the log and snapshot files are stored
+     */
+    public ServiceInfoLog(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Recovers the services from the latest snapshot and the following logs, and opens a new generation
+     * for appending.
+     * <br />
+     * The lifetime of each recovered service is the remaining lifetime since its original registration;
+     * services whose lifetime expired are not recovered.
+     *
+     * @return the recovered services
+     * @throws IOException if the log cannot be read or the new generation cannot be opened
+     */
+    public List<ServiceInfo> open() throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+
+        long now = System.currentTimeMillis();
+        Map<ServiceInfo.Key, ServiceInfo> services = new LinkedHashMap<ServiceInfo.Key, ServiceInfo>();
+
+        long[] snapshots = generations(SNAPSHOT_SUFFIX);
+        long start = 0;
+        for (int i = snapshots.length - 1; i >= 0; --i)
+        {
+            services.clear();
+            if (read(file(snapshots[i], SNAPSHOT_SUFFIX), SNAPSHOT_MAGIC, services, now))
+            {
+                start = snapshots[i];
+                break;
+            }
+            if (logger.isLoggable(Level.WARNING))
+                logger.warning("Discarding corrupted snapshot " + file(snapshots[i], SNAPSHOT_SUFFIX));
+        }
+
+        long[] logs = generations(LOG_SUFFIX);
+        long last = start;
+        for (long logGeneration : logs)
+        {
+            last = Math.max(last, logGeneration);
+            if (logGeneration < start) continue;
+            if (!read(file(logGeneration, LOG_SUFFIX), LOG_MAGIC, services, now))
+            {
+                if (logger.isLoggable(Level.INFO))
+                    logger.info("Discarded partially written records at the end of " + file(logGeneration, LOG_SUFFIX));
+            }
+        }
+
+        lock.lock();
+        try
+        {
+            generation = last;
+            openGeneration(generation + 1);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Recovered " + services.size() + " services from " + directory);
+        return new ArrayList<ServiceInfo>(services.values());
+    }
+
+    /**
+     * Appends the registration (or the update) of the given service.
+     *
+     * @param service the service registered or updated
+     * @return the sequence number of the appended change, to be passed to {@link #sync(long)}
+     */
+    public long appendPut(ServiceInfo service)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            writePut(data, service);
+            return append(bytes.toByteArray());
+        }
+        catch (IOException x)
+        {
+            // Cannot happen when writing to memory
+            throw new AssertionError(x);
+        }
+    }
+
+    /**
+     * Appends the removal of the service identified by the given key.
+     *
+     * @param key the key of the service removed
+     * @return the sequence number of the appended change, to be passed to {@link #sync(long)}
+     */
+    public long appendRemove(ServiceInfo.Key key)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(REMOVE);
+            writeString(data, key.getServiceURL().getURL());
+            writeString(data, key.getLanguage());
+            return append(bytes.toByteArray());
+        }
+        catch (IOException x)
+        {
+            // Cannot happen when writing to memory
+            throw new AssertionError(x);
+        }
+    }
+
+    private long append(byte[] record) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        lock.lock();
+        try
+        {
+            // Changes appended after a failure are never written, so they are not kept
+            if (failure != null) return ++appended;
+            DataOutputStream data = new DataOutputStream(pending);
+            data.writeInt(record.length);
+            data.writeInt((int)crc.getValue());
+            data.write(record);
+            return ++appended;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the change with the given sequence number, and all the changes appended before it,
+     * are durable.
+     * <br />
+     * The first caller that finds no sync in progress writes and fsyncs all the pending changes on behalf
+     * of all the callers; the others wait for it to finish.
+     *
+     * @param sequence the sequence number returned by one of the append methods
+     * @throws IOException if the changes could not be written, now or by a previous call
+     */
+    public void sync(long sequence) throws IOException
+    {
+        byte[] bytes;
+        long target;
+        FileOutputStream stream;
+        lock.lock();
+        try
+        {
+            while (true)
+            {
+                if (durable >= sequence) return;
+                checkFailure();
+                if (!syncing) break;
+                synced.awaitUninterruptibly();
+            }
+            syncing = true;
+            bytes = pending.toByteArray();
+            pending = new ByteArrayOutputStream();
+            target = appended;
+            stream = output;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        IOException error = null;
+        try
+        {
+            write(stream, bytes);
+        }
+        catch (IOException x)
+        {
+            error = x;
+            throw x;
+        }
+        finally
+        {
+            lock.lock();
+            try
+            {
+                if (error == null)
+                    durable = target;
+                else
+                    fail(error);
+                syncing = false;
+                synced.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a new generation, to be followed by a call to {@link #snapshot(long, List)} with the services
+     * as of the beginning of the new generation.
+     * <br />
+     * Callers must hold the lock that guards all the services, so that no change is appended between the
+     * rotation and the capture of the services.
+     *
+     * @return the new generation
+     * @throws IOException if the new generation cannot be opened
+     */
+    public long rotate() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (syncing) synced.awaitUninterruptibly();
+            checkFailure();
+            try
+            {
+                write(output, pending.toByteArray());
+            }
+            catch (IOException x)
+            {
+                fail(x);
+                throw x;
+            }
+            pending = new ByteArrayOutputStream();
+            durable = appended;
+            output.close();
+            openGeneration(generation + 1);
+            return generation;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot of the given generation and deletes the files of the previous generations,
+     * that are not needed anymore for recovery.
+     *
+     * @param generation the generation returned by {@link #rotate()}
+     * @param services   the services as of the beginning of the given generation
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void snapshot(long generation, List<ServiceInfo> services) throws IOException
+    {
+        File temporary = new File(directory, FILE_PREFIX + generation + SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(VERSION);
+            for (ServiceInfo service : services)
+            {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                writePut(new DataOutputStream(record), service);
+                byte[] recordBytes = record.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(recordBytes);
+                data.writeInt(recordBytes.length);
+                data.writeInt((int)crc.getValue());
+                data.write(recordBytes);
+            }
+            write(stream, bytes.toByteArray());
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        File snapshot = file(generation, SNAPSHOT_SUFFIX);
+        if (!temporary.renameTo(snapshot))
+            throw new IOException("Could not rename " + temporary + " to " + snapshot);
+
+        for (long older : generations(SNAPSHOT_SUFFIX))
+        {
+            if (older < generation) delete(file(older, SNAPSHOT_SUFFIX));
+        }
+        for (long older : generations(LOG_SUFFIX))
+        {
+            if (older < generation) delete(file(older, LOG_SUFFIX));
+        }
+
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Written snapshot " + snapshot + " of " + services.size() + " services");
+    }
+
+    /**
+     * Makes durable the pending changes and closes this log.
+     *
+     * @throws IOException if the pending changes could not be written
+     */
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (syncing) synced.awaitUninterruptibly();
+            if (output == null) return;
+            write(output, pending.toByteArray());
+            pending = new ByteArrayOutputStream();
+            durable = appended;
+            output.close();
+            output = null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void openGeneration(long newGeneration) throws IOException
+    {
+        generation = newGeneration;
+        output = new FileOutputStream(file(generation, LOG_SUFFIX));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(LOG_MAGIC);
+        data.writeInt(VERSION);
+        write(output, bytes.toByteArray());
+    }
+
+    /**
+     * Marks this log as failed, discarding the pending changes; must be called holding the lock.
+     */
+    private void fail(IOException x)
+    {
+        if (failure == null)
+        {
+            failure = x;
+            pending = new ByteArrayOutputStream();
+            if (logger.isLoggable(Level.SEVERE))
+                logger.log(Level.SEVERE, "Could not write service log in " + directory + ", no further change will be logged", x);
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (failure != null)
+        {
+            IOException x = new IOException("Service log in " + directory + " failed");
+            x.initCause(failure);
+            throw x;
+        }
+    }
+
+    void write(FileOutputStream stream, byte[] bytes) throws IOException
+    {
+        if (bytes.length == 0) return;
+        FileChannel channel = stream.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+
+    private void writePut(DataOutputStream data, ServiceInfo service) throws IOException
+    {
+        ServiceType serviceType = service.getServiceType();
+        ServiceURL serviceURL = service.getServiceURL();
+        Attributes attributes = service.getAttributes();
+        Scopes scopes = service.getScopes();
+        data.writeByte(PUT);
+        writeString(data, serviceType == null ? null : serviceType.asString());
+        writeString(data, serviceURL.getURL());
+        data.writeInt(serviceURL.getLifetime());
+        data.writeLong(service.getRegistrationTime());
+        writeString(data, service.getLanguage());
+        String[] scopeStrings = scopes == null ? null : scopes.asStringArray();
+        data.writeInt(scopeStrings == null ? -1 : scopeStrings.length);
+        if (scopeStrings != null)
+        {
+            for (String scope : scopeStrings) writeString(data, scope);
+        }
+        writeString(data, attributes == null ? null : attributes.asString());
+    }
+
+    /**
+     * Reads the records of the given file, applying them to the given services.
+     *
+     * @return true if the file has been read completely, false if a partially written or corrupted record was found
+     */
+    private boolean read(File file, int magic, Map<ServiceInfo.Key, ServiceInfo> services, long now) throws IOException
+    {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            DataInputStream data = new DataInputStream(stream);
+            try
+            {
+                if (data.readInt() != magic) return false;
+                int version = data.readInt();
+                if (version != VERSION) throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            catch (EOFException x)
+            {
+                return false;
+            }
+
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = data.readInt();
+                }
+                catch (EOFException x)
+                {
+                    return true;
+                }
+
+                try
+                {
+                    int checksum = data.readInt();
+                    if (length < 0) return false;
+                    byte[] record = new byte[length];
+                    data.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int)crc.getValue() != checksum) return false;
+                    apply(new DataInputStream(new ByteArrayInputStream(record)), services, now);
+                }
+                catch (EOFException x)
+                {
+                    return false;
+                }
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private void apply(DataInputStream data, Map<ServiceInfo.Key, ServiceInfo> services, long now) throws IOException
+    {
+        byte operation = data.readByte();
+        switch (operation)
+        {
+            case PUT:
+                String serviceType = readString(data);
+                String url = readString(data);
+                int lifetime = data.readInt();
+                long registrationTime = data.readLong();
+                String language = readString(data);
+                int scopesLength = data.readInt();
+                String[] scopes = null;
+                if (scopesLength >= 0)
+                {
+                    scopes = new String[scopesLength];
+                    for (int i = 0; i < scopesLength; ++i) scopes[i] = readString(data);
+                }
+                String attributes = readString(data);
+
+                ServiceURL serviceURL = new ServiceURL(url, lifetime);
+                ServiceInfo.Key key = new ServiceInfo(serviceURL, language, null, null).getKey();
+                if (lifetime != ServiceURL.LIFETIME_PERMANENT)
+                {
+                    long remaining = registrationTime + TimeUnit.SECONDS.toMillis(lifetime) - now;
+                    if (remaining <= 0)
+                    {
+                        services.remove(key);
+                        break;
+                    }
+                    int remainingLifetime = (int)Math.min(ServiceURL.LIFETIME_MAXIMUM, (remaining + 999) / 1000);
+                    serviceURL = new ServiceURL(url, remainingLifetime);
+                }
+                ServiceInfo service = new ServiceInfo(
+                        serviceType == null ? null : new ServiceType(serviceType).intern(),
+                        serviceURL,
+                        language,
+                        scopes == null ? null : Scopes.from(scopes).intern(),
+                        attributes == null ? null : Attributes.from(attributes).intern());
+                services.remove(key);
+                services.put(key, service);
+                break;
+            case REMOVE:
+                String removedURL = readString(data);
+                String removedLanguage = readString(data);
+                services.remove(new ServiceInfo(new ServiceURL(removedURL), removedLanguage, null, null).getKey());
+                break;
+            default:
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    private void writeString(DataOutputStream data, String string) throws IOException
+    {
+        if (string == null)
+        {
+            data.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = string.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private String readString(DataInputStream data) throws IOException
+    {
+        int length = data.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private File file(long generation, String suffix)
+    {
+        return new File(directory, FILE_PREFIX + generation + suffix);
+    }
+
+    private long[] generations(String suffix)
+    {
+        List<Long> result = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(suffix))
+                {
+                    try
+                    {
+                        result.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - suffix.length())));
+                    }
+                    catch (NumberFormatException x)
+                    {
+                        // Not one of our files
+                    }
+                }
+            }
+        }
+        long[] generations = new long[result.size()];
+        for (int i = 0; i < generations.length; ++i) generations[i] = result.get(i);
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    private void delete(File file)
+    {
+        if (!file.delete() && logger.isLoggable(Level.WARNING))
+            logger.warning("Could not delete " + file);
+    }
+}
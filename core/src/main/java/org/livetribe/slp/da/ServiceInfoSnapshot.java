@@ -0,0 +1,381 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+
+
+/**
+ * A compact, versioned snapshot file of the services of a directory agent, that is memory mapped
+ * when read, so that a directory agent can be loaded (or cloned from another one) in bulk.
+ * <br />
+ * The file starts with a header, the offset table of the shared values and the offset table of the records,
+ * followed by the shared values and by the records.
+ * Shared values are the distinct service types, languages, scopes and attributes in their escaped wire form,
+ * which are usually few and shared by many services; each record contains the lifetime and the registration
+ * time of the service, the indexes of its shared values and its URL.
+ * <br />
+ * Services read from a snapshot decode only their URL; each shared value is decoded at most once, and
+ * attributes are decoded when first accessed, typically when they are first matched.
+ *
+ * @see StandardDirectoryAgentServer#exportServices(File)
+ * @see StandardDirectoryAgentServer#importServices(File)
+ */
+public class ServiceInfoSnapshot
+{
+    private static final int MAGIC = 0x534C504D;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES_LENGTH = 24;
+    private static final int OFFSET_BYTES_LENGTH = 4;
+    private static final int NO_VALUE = -1;
+
+    /**
+     * Writes the given services to the given file.
+     *
+     * @param file     the file to write
+     * @param services the services to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(File file, Collection<? extends ServiceInfo> services) throws IOException
+    {
+        // Collect the distinct values, separately for each kind of value
+        List<byte[]> values = new ArrayList<byte[]>();
+        Map<String, Integer> serviceTypes = new HashMap<String, Integer>();
+        Map<String, Integer> languages = new HashMap<String, Integer>();
+        Map<Scopes, Integer> scopesValues = new HashMap<Scopes, Integer>();
+        Map<String, Integer> attributesValues = new HashMap<String, Integer>();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int[] recordOffsets = new int[services.size()];
+        int count = 0;
+        for (ServiceInfo service : services)
+        {
+            ServiceType serviceType = service.getServiceType();
+            ServiceURL serviceURL = service.getServiceURL();
+            Scopes scopes = service.getScopes();
+            Attributes attributes = service.getAttributes();
+
+            recordOffsets[count++] = records.size();
+            records.writeInt(serviceURL.getLifetime());
+            records.writeLong(service.getRegistrationTime());
+            records.writeInt(serviceType == null ? NO_VALUE : index(serviceTypes, serviceType.asString(), values));
+            records.writeInt(service.getLanguage() == null ? NO_VALUE : index(languages, service.getLanguage(), values));
+            records.writeInt(scopes == null ? NO_VALUE : index(scopesValues, scopes, values));
+            records.writeInt(attributes == null ? NO_VALUE : index(attributesValues, attributes.asString(), values));
+            writeBytes(records, utf8(serviceURL.getURL()));
+        }
+
+        long valuesOffset = HEADER_BYTES_LENGTH + ((long)values.size() + count) * OFFSET_BYTES_LENGTH;
+        long offset = valuesOffset;
+        ByteBuffer offsets = ByteBuffer.allocate((values.size() + count) * OFFSET_BYTES_LENGTH);
+        for (byte[] value : values)
+        {
+            offsets.putInt((int)offset);
+            offset += 4 + value.length;
+        }
+        long recordsOffset = offset;
+        if (recordsOffset + records.size() > Integer.MAX_VALUE) throw new IOException("Snapshot too large: " + file);
+        for (int i = 0; i < count; ++i) offsets.putInt((int)(recordsOffset + recordOffsets[i]));
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(count);
+            data.writeInt(values.size());
+            data.writeLong(System.currentTimeMillis());
+            data.write(offsets.array());
+            for (byte[] value : values) writeBytes(data, value);
+            recordBytes.writeTo(data);
+            data.flush();
+            channel.force(false);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private static <K> int index(Map<K, Integer> indexes, K key, List<byte[]> values) throws IOException
+    {
+        Integer index = indexes.get(key);
+        if (index == null)
+        {
+            index = values.size();
+            values.add(key instanceof Scopes ? scopesBytes((Scopes)key) : utf8(key.toString()));
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    private static byte[] scopesBytes(Scopes scopes) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        String[] scopeStrings = scopes.asStringArray();
+        data.writeInt(scopeStrings.length);
+        for (String scope : scopeStrings) writeBytes(data, utf8(scope));
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException
+    {
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static byte[] utf8(String string) throws UnsupportedEncodingException
+    {
+        return string.getBytes("UTF-8");
+    }
+
+    /**
+     * Memory maps the given snapshot file.
+     *
+     * @param file the snapshot file to read
+     * @return the snapshot mapping the given file
+     * @throws IOException if the file cannot be read or it is not a valid snapshot
+     */
+    public static ServiceInfoSnapshot read(File file) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length < HEADER_BYTES_LENGTH || length > Integer.MAX_VALUE)
+                throw new IOException("Invalid snapshot " + file + ": bad length " + length);
+            // The mapping remains valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC) throw new IOException("Invalid snapshot " + file + ": bad magic");
+            int version = buffer.getInt(4);
+            if (version != VERSION) throw new IOException("Unsupported version " + version + " of snapshot " + file);
+            int count = buffer.getInt(8);
+            int valuesCount = buffer.getInt(12);
+            if (count < 0 || valuesCount < 0 || HEADER_BYTES_LENGTH + ((long)count + valuesCount) * OFFSET_BYTES_LENGTH > length)
+                throw new IOException("Invalid snapshot " + file + ": bad counts " + count + ", " + valuesCount);
+            return new ServiceInfoSnapshot(buffer, count, valuesCount, buffer.getLong(16));
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int valuesCount;
+    private final long creationTime;
+    /**
+     * The shared values decoded so far; values are immutable, so races only cause redundant decoding
+     */
+    private final Object[] values;
+
+    private ServiceInfoSnapshot(ByteBuffer buffer, int size, int valuesCount, long creationTime)
+    {
+        this.buffer = buffer;
+        this.size = size;
+        this.valuesCount = valuesCount;
+        this.creationTime = creationTime;
+        this.values = new Object[valuesCount];
+    }
+
+    /**
+     * @return the number of services in this snapshot
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the time, in milliseconds since the Unix epoch, this snapshot has been written
+     */
+    public long getCreationTime()
+    {
+        return creationTime;
+    }
+
+    /**
+     * Returns the service at the given index, with its remaining lifetime as of the given time.
+     *
+     * @param index the index of the service
+     * @param time  the time, in milliseconds since the Unix epoch, used to compute the remaining lifetime
+     * @return the service at the given index, or null if its lifetime expired as of the given time
+     * @throws IOException if the record of the service is corrupted
+     */
+    public ServiceInfo get(int index, long time) throws IOException
+    {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        try
+        {
+            int offset = buffer.getInt(HEADER_BYTES_LENGTH + (valuesCount + index) * OFFSET_BYTES_LENGTH);
+            int lifetime = buffer.getInt(offset);
+            long registrationTime = buffer.getLong(offset + 4);
+            int serviceTypeIndex = buffer.getInt(offset + 12);
+            int languageIndex = buffer.getInt(offset + 16);
+            int scopesIndex = buffer.getInt(offset + 20);
+            int attributesIndex = buffer.getInt(offset + 24);
+            String url = readString(offset + 28);
+
+            if (lifetime != ServiceURL.LIFETIME_PERMANENT)
+            {
+                long remaining = registrationTime + TimeUnit.SECONDS.toMillis(lifetime) - time;
+                if (remaining <= 0) return null;
+                lifetime = (int)Math.min(ServiceURL.LIFETIME_MAXIMUM, (remaining + 999) / 1000);
+            }
+
+            return new SnapshotServiceInfo(
+                    serviceType(serviceTypeIndex),
+                    new ServiceURL(url, lifetime),
+                    language(languageIndex),
+                    scopes(scopesIndex),
+                    attributesIndex);
+        }
+        catch (IndexOutOfBoundsException x)
+        {
+            throw new IOException("Corrupted record " + index + " in snapshot");
+        }
+    }
+
+    /**
+     * @param time the time, in milliseconds since the Unix epoch, used to compute the remaining lifetimes
+     * @return the services of this snapshot whose lifetime is not expired as of the given time
+     * @throws IOException if a record is corrupted
+     * @see #get(int, long)
+     */
+    public List<ServiceInfo> getServiceInfos(long time) throws IOException
+    {
+        List<ServiceInfo> result = new ArrayList<ServiceInfo>(size);
+        for (int i = 0; i < size; ++i)
+        {
+            ServiceInfo service = get(i, time);
+            if (service != null) result.add(service);
+        }
+        return result;
+    }
+
+    private int valueOffset(int index)
+    {
+        if (index >= valuesCount) throw new IndexOutOfBoundsException("Index: " + index + ", values: " + valuesCount);
+        return buffer.getInt(HEADER_BYTES_LENGTH + index * OFFSET_BYTES_LENGTH);
+    }
+
+    private ServiceType serviceType(int index)
+    {
+        if (index == NO_VALUE) return null;
+        ServiceType result = (ServiceType)values[index];
+        if (result == null) values[index] = result = new ServiceType(readString(valueOffset(index))).intern();
+        return result;
+    }
+
+    private String language(int index)
+    {
+        if (index == NO_VALUE) return null;
+        String result = (String)values[index];
+        if (result == null) values[index] = result = readString(valueOffset(index));
+        return result;
+    }
+
+    private Scopes scopes(int index)
+    {
+        if (index == NO_VALUE) return null;
+        Scopes result = (Scopes)values[index];
+        if (result == null)
+        {
+            int offset = valueOffset(index) + 4;
+            String[] scopes = new String[buffer.getInt(offset)];
+            offset += 4;
+            for (int i = 0; i < scopes.length; ++i)
+            {
+                scopes[i] = readString(offset);
+                offset += 4 + buffer.getInt(offset);
+            }
+            values[index] = result = Scopes.from(scopes).intern();
+        }
+        return result;
+    }
+
+    private Attributes attributes(int index)
+    {
+        if (index == NO_VALUE) return null;
+        Attributes result = (Attributes)values[index];
+        if (result == null) values[index] = result = Attributes.from(readString(valueOffset(index))).intern();
+        return result;
+    }
+
+    private String readString(int offset)
+    {
+        int length = buffer.getInt(offset);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 4);
+        view.get(bytes);
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+
+    /**
+     * A service whose attributes are decoded from the snapshot when first accessed.
+     */
+    private class SnapshotServiceInfo extends ServiceInfo
+    {
+        private final int attributesIndex;
+
+        private SnapshotServiceInfo(ServiceType serviceType, ServiceURL serviceURL, String language, Scopes scopes, int attributesIndex)
+        {
+            super(serviceType, serviceURL, language, scopes, null);
+            this.attributesIndex = attributesIndex;
+        }
+
+        public Attributes getAttributes()
+        {
+            return attributes(attributesIndex);
+        }
+    }
+}
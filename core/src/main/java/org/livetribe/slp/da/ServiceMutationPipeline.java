@@ -0,0 +1,406 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.livetribe.slp.SLPError;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.spi.ServiceStore;
+
+
+/**
+ * Applies the modifications of the services of a directory agent from a single writer thread.
+ * <br />
+ * Threads that handle SrvReg and SrvDeReg messages publish the modifications into a bounded ring buffer,
+ * claiming slots without locks, and wait for the modifications to be applied before acknowledging them.
+ * The writer thread drains all the published modifications, applies them in a batch holding the lock of the
+ * {@link ServiceStore} once, appends them to the {@link ServiceInfoLog} (if any) and makes them durable with a
+ * single sync, then notifies the listeners of the store and releases the waiting threads.
+ * Listeners are notified after the lock of the store is released, from the writer thread; they may modify
+ * the services through this pipeline, in which case the modifications are applied immediately.
+ * <br />
+ * Registrations of services already registered with the same content are renewals, that the writer thread
+ * applies without replacing the services and without waiting for the log to be synced.
+ * <br />
+ * When the ring buffer is full, publishers wait for the writer thread to drain it.
+ *
+ * @see StandardDirectoryAgentServer#setSingleWriterEnabled(boolean)
+ */
+public class ServiceMutationPipeline
+{
+    private static final int PUT = 1;
+    private static final int ADD_ATTRIBUTES = 2;
+    private static final int REMOVE = 3;
+    private static final int REMOVE_ATTRIBUTES = 4;
+    private static final int PURGE = 5;
+    private static final int PUT_ALL = 6;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ServiceStore<ServiceInfo> services;
+    private final ServiceInfoLog log;
+    private final AtomicReferenceArray<Mutation> ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final Thread writer = new Thread(new Writer(), "SLP-DA-Writer");
+    private volatile long consumed;
+    private volatile boolean writerWaiting;
+    private volatile boolean running;
+
+    /**
+     * @param services the services to modify
+     * @param log      the log where modifications are appended, or null
+     * @param capacity the capacity of the ring buffer, rounded up to a power of two
+     */
+    public ServiceMutationPipeline(ServiceStore<ServiceInfo> services, ServiceInfoLog log, int capacity)
+    {
+        this.services = services;
+        this.log = log;
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        this.ring = new AtomicReferenceArray<Mutation>(size);
+        this.mask = size - 1;
+        writer.setDaemon(true);
+    }
+
+    public void start()
+    {
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread, after it applied the modifications published so far.
+     */
+    public void stop()
+    {
+        running = false;
+        LockSupport.unpark(writer);
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param service the service to put
+     * @param update  whether the attributes of the given service must be added to the existing service
+     * @return the result of the modification
+     * @see ServiceStore#put(ServiceInfo)
+     * @see ServiceStore#addAttributes(ServiceInfo.Key, org.livetribe.slp.Attributes)
+     */
+    public ServiceStore.Result<ServiceInfo> put(ServiceInfo service, boolean update)
+    {
+        return perform(new Mutation(update ? ADD_ATTRIBUTES : PUT, service)).result;
+    }
+
+    /**
+     * Puts the given services at once; the services are not appended to the log, since imported services
+     * are persisted with a snapshot.
+     *
+     * @param serviceInfos the services to put
+     * @return the results of the modifications
+     * @see ServiceStore#putAll(java.util.Collection)
+     */
+    public List<ServiceStore.Result<ServiceInfo>> putAll(List<ServiceInfo> serviceInfos)
+    {
+        return perform(new Mutation(serviceInfos)).results;
+    }
+
+    /**
+     * @param service the service to remove
+     * @param update  whether the attributes of the given service must be removed from the existing service
+     * @return the result of the modification
+     * @see ServiceStore#remove(ServiceInfo.Key)
+     * @see ServiceStore#removeAttributes(ServiceInfo.Key, org.livetribe.slp.Attributes)
+     */
+    public ServiceStore.Result<ServiceInfo> remove(ServiceInfo service, boolean update)
+    {
+        return perform(new Mutation(update ? REMOVE_ATTRIBUTES : REMOVE, service)).result;
+    }
+
+    /**
+     * @return the purged services
+     * @see ServiceStore#purge()
+     */
+    public List<ServiceInfo> purge()
+    {
+        return perform(new Mutation(PURGE, null)).purged;
+    }
+
+    private Mutation perform(Mutation mutation)
+    {
+        if (!running) throw new ServiceLocationException("Directory agent writer is stopped", SLPError.INTERNAL_SYSTEM_ERROR);
+
+        if (Thread.currentThread() == writer)
+        {
+            // A listener modifies the services while being notified: the writer cannot wait for itself
+            apply(Collections.singletonList(mutation));
+            return result(mutation);
+        }
+
+        long sequence = claimed.getAndIncrement();
+        // Wait for the writer to free the slot
+        while (sequence - consumed > mask)
+        {
+            if (!writer.isAlive()) throw new ServiceLocationException("Directory agent writer is stopped", SLPError.INTERNAL_SYSTEM_ERROR);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        ring.set((int)sequence & mask, mutation);
+        if (writerWaiting) LockSupport.unpark(writer);
+
+        // The writer drains all claimed slots before exiting, unless it died
+        while (!mutation.await(1000))
+        {
+            if (!writer.isAlive()) throw new ServiceLocationException("Directory agent writer is stopped", SLPError.INTERNAL_SYSTEM_ERROR);
+        }
+        return result(mutation);
+    }
+
+    private Mutation result(Mutation mutation)
+    {
+        if (mutation.failure != null)
+        {
+            // Rethrow in the caller's thread, keeping the SLP error of the failure
+            ServiceLocationException failure = mutation.failure;
+            throw new ServiceLocationException(failure.getMessage(), failure, failure.getSLPError());
+        }
+        return mutation;
+    }
+
+    /**
+     * Applies the given batch of modifications and makes them durable.
+     *
+     * @param batch the modifications to apply
+     */
+    private void apply(List<Mutation> batch)
+    {
+        long sequence = 0;
+        // Collect the notifications, to deliver them after the store is unlocked
+        services.beginBatch();
+        try
+        {
+            services.lock();
+            try
+            {
+                for (Mutation mutation : batch)
+                {
+                    try
+                    {
+                        long logged = apply(mutation);
+                        if (logged > 0) sequence = logged;
+                    }
+                    catch (ServiceLocationException x)
+                    {
+                        mutation.failure = x;
+                    }
+                    catch (RuntimeException x)
+                    {
+                        mutation.failure = new ServiceLocationException(x, SLPError.INTERNAL_SYSTEM_ERROR);
+                    }
+                }
+            }
+            finally
+            {
+                services.unlock();
+            }
+
+            if (sequence > 0)
+            {
+                try
+                {
+                    log.sync(sequence);
+                }
+                catch (IOException x)
+                {
+                    fail(batch, new ServiceLocationException("Could not persist services", x, SLPError.INTERNAL_SYSTEM_ERROR));
+                }
+            }
+        }
+        finally
+        {
+            try
+            {
+                services.endBatch();
+            }
+            catch (RuntimeException x)
+            {
+                fail(batch, new ServiceLocationException(x, SLPError.INTERNAL_SYSTEM_ERROR));
+            }
+            for (Mutation mutation : batch) mutation.complete();
+        }
+    }
+
+    private void fail(List<Mutation> batch, ServiceLocationException failure)
+    {
+        for (Mutation mutation : batch)
+        {
+            if (mutation.failure == null) mutation.failure = failure;
+        }
+    }
+
+    /**
+     * @return the log sequence number of the modification, or 0 if it has not been logged
+     */
+    private long apply(Mutation mutation)
+    {
+        ServiceInfo service = mutation.service;
+        long sequence = 0;
+        switch (mutation.type)
+        {
+            case PUT:
+                // Most registrations are renewals of services already registered with the same content
+                ServiceInfo renewed = services.renew(service);
+                if (renewed != null)
+                {
+                    mutation.result = new ServiceStore.Result<ServiceInfo>(renewed, renewed);
+                    // Renewals do not wait for the log to be synced, since the service is already durable
+                    // and only its registration time changed; they become durable with the next sync
+                    if (log != null) log.appendPut(renewed);
+                    break;
+                }
+                mutation.result = services.put(service);
+                if (log != null) sequence = log.appendPut(mutation.result.getCurrent());
+                break;
+            case ADD_ATTRIBUTES:
+                mutation.result = services.addAttributes(service.getKey(), service.getAttributes());
+                if (log != null) sequence = log.appendPut(mutation.result.getCurrent());
+                break;
+            case REMOVE:
+            case REMOVE_ATTRIBUTES:
+                if (mutation.type == REMOVE)
+                    mutation.result = services.remove(service.getKey());
+                else
+                    mutation.result = services.removeAttributes(service.getKey(), service.getAttributes());
+                if (log != null)
+                {
+                    if (mutation.result.getCurrent() == null)
+                        sequence = log.appendRemove(service.getKey());
+                    else
+                        sequence = log.appendPut(mutation.result.getCurrent());
+                }
+                break;
+            case PURGE:
+                mutation.purged = services.purge();
+                if (log != null)
+                {
+                    for (ServiceInfo purged : mutation.purged) sequence = log.appendRemove(purged.getKey());
+                }
+                break;
+            case PUT_ALL:
+                mutation.results = services.putAll(mutation.serviceInfos);
+                break;
+            default:
+                throw new AssertionError("Unknown mutation " + mutation.type);
+        }
+        return sequence;
+    }
+
+    private class Writer implements Runnable
+    {
+        public void run()
+        {
+            if (logger.isLoggable(Level.FINER)) logger.finer("Directory agent writer starting");
+            List<Mutation> batch = new ArrayList<Mutation>();
+            while (true)
+            {
+                long sequence = consumed;
+                Mutation mutation;
+                while (batch.size() <= mask && (mutation = ring.get((int)(sequence + batch.size()) & mask)) != null)
+                {
+                    ring.set((int)(sequence + batch.size()) & mask, null);
+                    batch.add(mutation);
+                }
+
+                if (batch.isEmpty())
+                {
+                    // Exit only when all the claimed slots have been consumed
+                    if (!running && claimed.get() == sequence) break;
+                    writerWaiting = true;
+                    if (ring.get((int)sequence & mask) == null) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    writerWaiting = false;
+                    continue;
+                }
+
+                consumed = sequence + batch.size();
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest("Directory agent writer applying " + batch.size() + " modifications");
+                apply(batch);
+                batch.clear();
+            }
+            if (logger.isLoggable(Level.FINER)) logger.finer("Directory agent writer exiting");
+        }
+    }
+
+    private static class Mutation
+    {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final int type;
+        private final ServiceInfo service;
+        private final List<ServiceInfo> serviceInfos;
+        private ServiceStore.Result<ServiceInfo> result;
+        private List<ServiceStore.Result<ServiceInfo>> results;
+        private List<ServiceInfo> purged;
+        private ServiceLocationException failure;
+
+        private Mutation(int type, ServiceInfo service)
+        {
+            this.type = type;
+            this.service = service;
+            this.serviceInfos = null;
+        }
+
+        private Mutation(List<ServiceInfo> serviceInfos)
+        {
+            this.type = PUT_ALL;
+            this.service = null;
+            this.serviceInfos = serviceInfos;
+        }
+
+        private void complete()
+        {
+            completed.countDown();
+        }
+
+        private boolean await(long timeout)
+        {
+            try
+            {
+                return completed.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
+                throw new ServiceLocationException("Interrupted while waiting for the directory agent writer", x, SLPError.INTERNAL_SYSTEM_ERROR);
+            }
+        }
+    }
+}
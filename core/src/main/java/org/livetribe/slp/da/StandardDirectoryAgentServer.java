@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,9 +33,13 @@ import static org.livetribe.slp.settings.Keys.ADDRESSES_KEY;
 import static org.livetribe.slp.settings.Keys.DA_ADVERTISEMENT_PERIOD_KEY;
 import static org.livetribe.slp.settings.Keys.DA_ATTRIBUTES_KEY;
 import static org.livetribe.slp.settings.Keys.DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY;
+import static org.livetribe.slp.settings.Keys.DA_PERSISTENCE_DIRECTORY_KEY;
+import static org.livetribe.slp.settings.Keys.DA_PERSISTENCE_SNAPSHOT_PERIOD_KEY;
+import static org.livetribe.slp.settings.Keys.DA_SINGLE_WRITER_ENABLED_KEY;
 import static org.livetribe.slp.settings.Keys.LANGUAGE_KEY;
 import static org.livetribe.slp.settings.Keys.PORT_KEY;
 import static org.livetribe.slp.settings.Keys.SCOPES_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_FACTORY_KEY;
 import static org.livetribe.slp.settings.Keys.TCP_CONNECTOR_FACTORY_KEY;
 import static org.livetribe.slp.settings.Keys.TCP_CONNECTOR_SERVER_FACTORY_KEY;
 import static org.livetribe.slp.settings.Keys.UDP_CONNECTOR_FACTORY_KEY;
@@ -53,8 +58,12 @@ import org.livetribe.slp.settings.Factories;
 import org.livetribe.slp.settings.PropertiesSettings;
 import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.AbstractServer;
+import org.livetribe.slp.spi.AttributeIndexes;
+import org.livetribe.slp.spi.ResultLimit;
+import org.livetribe.slp.spi.ResultVersion;
 import org.livetribe.slp.spi.Server;
-import org.livetribe.slp.spi.ServiceInfoCache;
+import org.livetribe.slp.spi.ServiceJournal;
+import org.livetribe.slp.spi.ServiceStore;
 import org.livetribe.slp.spi.TCPAttrRplyPerformer;
 import org.livetribe.slp.spi.TCPSrvAckPerformer;
 import org.livetribe.slp.spi.TCPSrvTypeRplyPerformer;
@@ -67,7 +76,9 @@ import org.livetribe.slp.spi.da.UDPDAAdvertPerformer;
 import org.livetribe.slp.spi.da.UDPSrvRplyPerformer;
 import org.livetribe.slp.spi.filter.FilterParser;
 import org.livetribe.slp.spi.msg.AttrRqst;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.SrvDeReg;
 import org.livetribe.slp.spi.msg.SrvReg;
 import org.livetribe.slp.spi.msg.SrvRqst;
@@ -122,7 +133,7 @@ public class StandardDirectoryAgentServer extends AbstractServer
         return new StandardDirectoryAgentServer(udpConnector, tcpConnector, udpConnectorServer, tcpConnectorServer, scheduledExecutorService, settings);
     }
 
-    private final ServiceInfoCache<ServiceInfo> services = new ServiceInfoCache<ServiceInfo>();
+    private final ServiceStore<ServiceInfo> services;
     private final MessageListener tcpListener = new TCPMessageListener();
     private final MessageListener udpListener = new UDPMessageListener();
     private final Map<String, DirectoryAgentInfo> directoryAgents = new HashMap<String, DirectoryAgentInfo>();
@@ -146,6 +157,11 @@ public class StandardDirectoryAgentServer extends AbstractServer
     private String language = Defaults.get(LANGUAGE_KEY);
     private int advertisementPeriod = Defaults.get(DA_ADVERTISEMENT_PERIOD_KEY);
     private int expiredServicesPurgePeriod = Defaults.get(DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY);
+    private String persistenceDirectory = Defaults.get(DA_PERSISTENCE_DIRECTORY_KEY);
+    private int snapshotPeriod = Defaults.get(DA_PERSISTENCE_SNAPSHOT_PERIOD_KEY);
+    private boolean singleWriterEnabled = Defaults.get(DA_SINGLE_WRITER_ENABLED_KEY);
+    private volatile ServiceInfoLog serviceLog;
+    private volatile ServiceMutationPipeline pipeline;
 
     /**
      * Creates a new StandardDirectoryAgentServer using the default settings
@@ -174,6 +190,7 @@ public class StandardDirectoryAgentServer extends AbstractServer
      */
     public StandardDirectoryAgentServer(UDPConnector udpConnector, TCPConnector tcpConnector, UDPConnectorServer udpConnectorServer, TCPConnectorServer tcpConnectorServer, ScheduledExecutorService scheduledExecutorService, Settings settings)
     {
+        this.services = Factories.<ServiceStore.Factory>newInstance(settings, SERVICE_STORE_FACTORY_KEY).newServiceStore(settings);
         this.udpConnectorServer = udpConnectorServer;
         this.tcpConnectorServer = tcpConnectorServer;
         this.scheduledExecutorService = scheduledExecutorService;
@@ -201,6 +218,12 @@ public class StandardDirectoryAgentServer extends AbstractServer
             this.advertisementPeriod = settings.get(DA_ADVERTISEMENT_PERIOD_KEY);
         if (settings.containsKey(DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY))
             this.expiredServicesPurgePeriod = settings.get(DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY);
+        if (settings.containsKey(DA_PERSISTENCE_DIRECTORY_KEY))
+            this.persistenceDirectory = settings.get(DA_PERSISTENCE_DIRECTORY_KEY);
+        if (settings.containsKey(DA_PERSISTENCE_SNAPSHOT_PERIOD_KEY))
+            this.snapshotPeriod = settings.get(DA_PERSISTENCE_SNAPSHOT_PERIOD_KEY);
+        if (settings.containsKey(DA_SINGLE_WRITER_ENABLED_KEY))
+            this.singleWriterEnabled = settings.get(DA_SINGLE_WRITER_ENABLED_KEY);
     }
 
     public String[] getAddresses()
@@ -309,6 +332,57 @@ public class StandardDirectoryAgentServer extends AbstractServer
         this.expiredServicesPurgePeriod = expiredServicesPurgePeriod;
     }
 
+    public String getPersistenceDirectory()
+    {
+        return persistenceDirectory;
+    }
+
+    /**
+     * Sets the directory where registered services are persisted, so that they are recovered when this
+     * directory agent restarts; if null, services are not persisted.
+     *
+     * @param persistenceDirectory the new persistence directory
+     * @see ServiceInfoLog
+     */
+    public void setPersistenceDirectory(String persistenceDirectory)
+    {
+        this.persistenceDirectory = persistenceDirectory;
+    }
+
+    public int getSnapshotPeriod()
+    {
+        return snapshotPeriod;
+    }
+
+    /**
+     * Sets the period, in seconds, between snapshots of the persisted services
+     *
+     * @param snapshotPeriod the new snapshot period
+     * @see #setPersistenceDirectory(String)
+     */
+    public void setSnapshotPeriod(int snapshotPeriod)
+    {
+        this.snapshotPeriod = snapshotPeriod;
+    }
+
+    public boolean isSingleWriterEnabled()
+    {
+        return singleWriterEnabled;
+    }
+
+    /**
+     * Sets whether the modifications of the registered services are applied in batches from a single writer thread,
+     * rather than from the threads that handle SrvReg and SrvDeReg messages.
+     * When services are persisted, each batch is made durable with a single sync of the log.
+     *
+     * @param singleWriterEnabled whether modifications are applied from a single writer thread
+     * @see ServiceMutationPipeline
+     */
+    public void setSingleWriterEnabled(boolean singleWriterEnabled)
+    {
+        this.singleWriterEnabled = singleWriterEnabled;
+    }
+
     /**
      * Adds a service listener that will be notified in case of service addition, update or removal.
      *
@@ -339,6 +413,163 @@ public class StandardDirectoryAgentServer extends AbstractServer
         return matchServices(null, null, null, null);
     }
 
+    /**
+     * Returns the changes of the services of this directory agent since the given sequence number, so that
+     * consumers can mirror the services of this directory agent incrementally.
+     * If the changes since the given sequence number are not available anymore, returns a snapshot of all the
+     * services instead.
+     *
+     * @param sequence the sequence number returned by the previous invocation, or 0 for the first invocation
+     * @return the changes since the given sequence number, or a snapshot of all the services
+     * @throws IllegalStateException if the changes of the services are not recorded
+     * @see org.livetribe.slp.settings.Keys#SERVICE_STORE_JOURNAL_CAPACITY_KEY
+     */
+    public ServiceJournal.Delta getServiceChangesSince(long sequence)
+    {
+        ServiceJournal journal = services.getServiceJournal();
+        if (journal == null) throw new IllegalStateException("Changes of services are not recorded by DirectoryAgent " + this);
+        return journal.changesSince(sequence, services);
+    }
+
+    /**
+     * Returns the statistics of the attribute indexes that the service store of this directory agent
+     * builds for the attribute tags compared by the received SrvRqsts, and the rate at which the indexes
+     * serve the comparisons of their tags.
+     *
+     * @return the statistics of the attribute indexes, or null if the service store does not build attribute indexes
+     * @see org.livetribe.slp.settings.Keys#SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public AttributeIndexes.Statistics getAttributeIndexStatistics()
+    {
+        return services.getAttributeIndexStatistics();
+    }
+
+    /**
+     * Writes the services of this directory agent to the given file, so that they can be imported by
+     * another directory agent via {@link #importServices(File)}.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     * @see ServiceInfoSnapshot
+     */
+    public void exportServices(File file) throws IOException
+    {
+        ServiceInfoSnapshot.write(file, services.getServiceInfos());
+    }
+
+    /**
+     * Loads in bulk the services contained in the given file, written by {@link #exportServices(File)}.
+     * Imported services replace existing services with the same key, and keep the lifetime remaining
+     * since their original registration; services whose lifetime expired or whose scopes do not match
+     * the scopes of this directory agent are not imported.
+     * <br />
+     * The services are stored at once, so that listeners are notified with a single batch event;
+     * when the {@link #setSingleWriterEnabled(boolean) single writer} is enabled, they are stored by the writer thread.
+     * The attributes of the imported services are decoded from the file when they are stored, since the
+     * service store aggregates and indexes them; each distinct attributes value is decoded only once.
+     *
+     * @param file the file to read
+     * @return the number of services imported
+     * @throws IOException if the file cannot be read
+     * @see ServiceInfoSnapshot
+     */
+    public int importServices(File file) throws IOException
+    {
+        List<ServiceInfo> serviceInfos = new ArrayList<ServiceInfo>();
+        for (ServiceInfo service : ServiceInfoSnapshot.read(file).getServiceInfos(System.currentTimeMillis()))
+        {
+            // RFC 2608, 7.0
+            if (scopes.match(service.getScopes()))
+            {
+                serviceInfos.add(service);
+            }
+            else
+            {
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Could not import service " + service + ", DirectoryAgent scopes " + scopes + " do not match with service scopes " + service.getScopes());
+            }
+        }
+
+        int result;
+        ServiceMutationPipeline mutationPipeline = pipeline;
+        try
+        {
+            if (mutationPipeline != null)
+                result = mutationPipeline.putAll(serviceInfos).size();
+            else
+                result = services.putAll(serviceInfos).size();
+        }
+        catch (ServiceLocationException x)
+        {
+            // Some service is not valid, import the others one by one
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "Could not import services in bulk from " + file, x);
+            if (mutationPipeline != null)
+                result = importServices(mutationPipeline, serviceInfos);
+            else
+                result = importServices(serviceInfos);
+        }
+        // Persist the imported services at once, rather than logging each of them
+        snapshotServices();
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("DirectoryAgent " + this + " imported " + result + " services from " + file);
+        return result;
+    }
+
+    private int importServices(List<ServiceInfo> serviceInfos)
+    {
+        int result = 0;
+        services.beginBatch();
+        try
+        {
+            services.lock();
+            try
+            {
+                for (ServiceInfo service : serviceInfos)
+                {
+                    try
+                    {
+                        services.put(service);
+                        ++result;
+                    }
+                    catch (ServiceLocationException x)
+                    {
+                        if (logger.isLoggable(Level.FINE))
+                            logger.log(Level.FINE, "Could not import service " + service, x);
+                    }
+                }
+            }
+            finally
+            {
+                services.unlock();
+            }
+        }
+        finally
+        {
+            services.endBatch();
+        }
+        return result;
+    }
+
+    private int importServices(ServiceMutationPipeline mutationPipeline, List<ServiceInfo> serviceInfos)
+    {
+        int result = 0;
+        for (ServiceInfo service : serviceInfos)
+        {
+            try
+            {
+                mutationPipeline.putAll(Collections.singletonList(service));
+                ++result;
+            }
+            catch (ServiceLocationException x)
+            {
+                if (logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Could not import service " + service, x);
+            }
+        }
+        return result;
+    }
+
     protected void doStart()
     {
         // Convert bootTime in seconds, as required by the DAAdvert message
@@ -352,6 +583,17 @@ public class StandardDirectoryAgentServer extends AbstractServer
         String loopbackAddress = NetUtils.getLoopbackAddress().getHostAddress();
         directoryAgents.put(loopbackAddress, DirectoryAgentInfo.from(loopbackAddress, scopes, attributes, language, bootTime));
 
+        // Recover the persisted services before accepting requests
+        if (persistenceDirectory != null && persistenceDirectory.trim().length() > 0)
+            recoverServices(new File(persistenceDirectory));
+
+        if (singleWriterEnabled)
+        {
+            ServiceMutationPipeline mutationPipeline = new ServiceMutationPipeline(services, serviceLog, 1024);
+            mutationPipeline.start();
+            pipeline = mutationPipeline;
+        }
+
         udpConnectorServer.addMessageListener(udpListener);
         udpConnectorServer.start();
 
@@ -361,6 +603,9 @@ public class StandardDirectoryAgentServer extends AbstractServer
         if (expiredServicesPurgePeriod > 0)
             scheduledExecutorService.scheduleWithFixedDelay(new ServicesPurger(), expiredServicesPurgePeriod, expiredServicesPurgePeriod, TimeUnit.SECONDS);
 
+        if (serviceLog != null && snapshotPeriod > 0)
+            scheduledExecutorService.scheduleWithFixedDelay(new ServicesSnapshotter(), snapshotPeriod, snapshotPeriod, TimeUnit.SECONDS);
+
         // Directory agent send a DAAdvert on boot (RFC 2608, 12.1)
         if (logger.isLoggable(Level.FINEST))
             logger.finest("DirectoryAgent " + StandardDirectoryAgentServer.this + " sending boot up DAAdverts: " + directoryAgents);
@@ -387,6 +632,98 @@ public class StandardDirectoryAgentServer extends AbstractServer
 
         udpConnectorServer.removeMessageListener(udpListener);
         udpConnectorServer.stop();
+
+        ServiceMutationPipeline mutationPipeline = pipeline;
+        if (mutationPipeline != null)
+        {
+            pipeline = null;
+            mutationPipeline.stop();
+        }
+
+        ServiceInfoLog log = serviceLog;
+        if (log != null)
+        {
+            serviceLog = null;
+            try
+            {
+                log.close();
+            }
+            catch (IOException x)
+            {
+                if (logger.isLoggable(Level.WARNING))
+                    logger.log(Level.WARNING, "Could not close persisted services log", x);
+            }
+        }
+    }
+
+    private void recoverServices(File directory)
+    {
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            for (ServiceInfo service : recovered)
+            {
+                try
+                {
+                    services.put(service);
+                }
+                catch (ServiceLocationException x)
+                {
+                    if (logger.isLoggable(Level.FINE))
+                        logger.log(Level.FINE, "Could not recover service " + service, x);
+                }
+            }
+            serviceLog = log;
+            snapshotServices();
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("DirectoryAgent " + this + " recovered " + recovered.size() + " services from " + directory);
+        }
+        catch (IOException x)
+        {
+            throw new ServiceLocationException("Could not recover services from " + directory, x, SLPError.INTERNAL_SYSTEM_ERROR);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the services of this directory agent, so that the changes logged so far
+     * do not need to be replayed on recovery.
+     *
+     * @throws IOException if the snapshot cannot be written
+     * @see #setPersistenceDirectory(String)
+     */
+    protected void snapshotServices() throws IOException
+    {
+        ServiceInfoLog log = serviceLog;
+        if (log == null) return;
+        long generation;
+        List<ServiceInfo> serviceInfos;
+        services.lock();
+        try
+        {
+            generation = log.rotate();
+            serviceInfos = services.getServiceInfos();
+        }
+        finally
+        {
+            services.unlock();
+        }
+        log.snapshot(generation, serviceInfos);
+    }
+
+    /**
+     * Makes durable the logged change with the given sequence number before the caller acknowledges it.
+     */
+    private void syncServiceLog(ServiceInfoLog log, long sequence)
+    {
+        try
+        {
+            log.sync(sequence);
+        }
+        catch (IOException x)
+        {
+            throw new ServiceLocationException("Could not persist services", x, SLPError.INTERNAL_SYSTEM_ERROR);
+        }
     }
 
     /**
@@ -445,14 +782,15 @@ public class StandardDirectoryAgentServer extends AbstractServer
     /**
      * Handles a unicast UDP SrvRqst message arrived to this directory agent.
      * <br />
-     * This directory agent will reply with a list of matching services.
+     * This directory agent will reply with a list of matching services or, if the SrvRqst carries a
+     * {@link ResultVersionExtension} with the version of the current result, with a not modified reply.
      *
      * @param srvRqst       the SrvRqst message to handle
      * @param localAddress  the address on this server on which the message arrived
      * @param remoteAddress the address on the remote client from which the message was sent
      * @see #handleMulticastSrvRqst(SrvRqst, InetSocketAddress, InetSocketAddress)
      * @see #handleTCPSrvRqst(SrvRqst, Socket)
-     * @see #matchServices(ServiceType, String, Scopes, String)
+     * @see #matchServices(ServiceType, String, Scopes, String, ResultLimit)
      */
     protected void handleUDPSrvRqst(SrvRqst srvRqst, InetSocketAddress localAddress, InetSocketAddress remoteAddress)
     {
@@ -464,7 +802,35 @@ public class StandardDirectoryAgentServer extends AbstractServer
         }
 
         ServiceType serviceType = srvRqst.getServiceType();
-        List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter());
+        MatchCountExtension matchCount = MatchCountExtension.findFirst(srvRqst.getExtensions());
+        if (matchCount != null)
+        {
+            int count = countServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), matchCount.isExists());
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("DirectoryAgent " + this + " returning count " + count + " of services of type " + serviceType);
+            udpSrvRply.perform(localAddress, remoteAddress, srvRqst, new MatchCountExtension(matchCount.isExists(), count));
+            return;
+        }
+
+        ResultLimit limit = ResultLimit.from(srvRqst.getExtensions());
+        List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), limit);
+        ResultVersionExtension resultVersion = ResultVersionExtension.findFirst(srvRqst.getExtensions());
+        if (resultVersion != null)
+        {
+            long version = ResultVersion.of(matchingServices);
+            if (version == resultVersion.getVersion())
+            {
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("DirectoryAgent " + this + " returning not modified " + matchingServices.size() + " services of type " + serviceType);
+                udpSrvRply.perform(localAddress, remoteAddress, srvRqst, new ResultVersionExtension(version, true));
+                return;
+            }
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("DirectoryAgent " + this + " returning " + matchingServices.size() + " services of type " + serviceType + ", version " + version);
+            udpSrvRply.perform(localAddress, remoteAddress, srvRqst, matchingServices, new ResultVersionExtension(version, false));
+            return;
+        }
+
         if (logger.isLoggable(Level.FINE))
             logger.fine("DirectoryAgent " + this + " returning " + matchingServices.size() + " services of type " + serviceType);
         udpSrvRply.perform(localAddress, remoteAddress, srvRqst, matchingServices);
@@ -473,12 +839,13 @@ public class StandardDirectoryAgentServer extends AbstractServer
     /**
      * Handles a unicast TCP SrvRqst message arrived to this directory agent.
      * <br />
-     * This directory agent will reply with a list of matching services.
+     * This directory agent will reply with a list of matching services or, if the SrvRqst carries a
+     * {@link ResultVersionExtension} with the version of the current result, with a not modified reply.
      *
      * @param srvRqst the SrvRqst message to handle
      * @param socket  the socket connected to th client where to write the reply
      * @see #handleUDPSrvRqst(SrvRqst, InetSocketAddress, InetSocketAddress)
-     * @see #matchServices(ServiceType, String, Scopes, String)
+     * @see #matchServices(ServiceType, String, Scopes, String, ResultLimit)
      */
     protected void handleTCPSrvRqst(SrvRqst srvRqst, Socket socket)
     {
@@ -490,7 +857,35 @@ public class StandardDirectoryAgentServer extends AbstractServer
         }
 
         ServiceType serviceType = srvRqst.getServiceType();
-        List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter());
+        MatchCountExtension matchCount = MatchCountExtension.findFirst(srvRqst.getExtensions());
+        if (matchCount != null)
+        {
+            int count = countServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), matchCount.isExists());
+            tcpSrvRply.perform(socket, srvRqst, new MatchCountExtension(matchCount.isExists(), count));
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("DirectoryAgent " + this + " returning count " + count + " of services of type " + serviceType);
+            return;
+        }
+
+        ResultLimit limit = ResultLimit.from(srvRqst.getExtensions());
+        List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), limit);
+        ResultVersionExtension resultVersion = ResultVersionExtension.findFirst(srvRqst.getExtensions());
+        if (resultVersion != null)
+        {
+            long version = ResultVersion.of(matchingServices);
+            if (version == resultVersion.getVersion())
+            {
+                tcpSrvRply.perform(socket, srvRqst, new ResultVersionExtension(version, true));
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("DirectoryAgent " + this + " returning not modified " + matchingServices.size() + " services of type " + serviceType);
+                return;
+            }
+            tcpSrvRply.perform(socket, srvRqst, matchingServices, new ResultVersionExtension(version, false));
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("DirectoryAgent " + this + " returning " + matchingServices.size() + " services of type " + serviceType + ", version " + version);
+            return;
+        }
+
         tcpSrvRply.perform(socket, srvRqst, matchingServices);
         if (logger.isLoggable(Level.FINE))
             logger.fine("DirectoryAgent " + this + " returning " + matchingServices.size() + " services of type " + serviceType);
@@ -506,10 +901,43 @@ public class StandardDirectoryAgentServer extends AbstractServer
      * @return a list of matching services
      */
     protected List<ServiceInfo> matchServices(ServiceType serviceType, String language, Scopes scopes, String filter)
+    {
+        return matchServices(serviceType, language, scopes, filter, null);
+    }
+
+    /**
+     * Matches the services of this directory agent against the given arguments, returning only the services
+     * selected by the given result limit.
+     *
+     * @param serviceType the service type to match or null to match any service type
+     * @param language    the language to match or null to match any language
+     * @param scopes      the Scopes to match or null to match any Scopes
+     * @param filter      the LDAPv3 filter to match the service Attributes against or null to match any Attributes
+     * @param limit       the result limit requested with the SrvRqst, or null to return all matching services
+     * @return a list of matching services
+     */
+    protected List<ServiceInfo> matchServices(ServiceType serviceType, String language, Scopes scopes, String filter, ResultLimit limit)
+    {
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("DirectoryAgent " + this + " matching ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter + ", limit " + limit);
+        return services.match(serviceType, language, scopes, new FilterParser().parse(filter), limit);
+    }
+
+    /**
+     * Counts the services of this directory agent that match the given arguments.
+     *
+     * @param serviceType the service type to match or null to match any service type
+     * @param language    the language to match or null to match any language
+     * @param scopes      the Scopes to match or null to match any Scopes
+     * @param filter      the LDAPv3 filter to match the service Attributes against or null to match any Attributes
+     * @param exists      true to stop counting at the first matching service
+     * @return the number of matching services, at most 1 if <code>exists</code> is true
+     */
+    protected int countServices(ServiceType serviceType, String language, Scopes scopes, String filter, boolean exists)
     {
         if (logger.isLoggable(Level.FINEST))
-            logger.finest("DirectoryAgent " + this + " matching ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter);
-        return services.match(serviceType, language, scopes, new FilterParser().parse(filter));
+            logger.finest("DirectoryAgent " + this + " counting ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter + ", exists " + exists);
+        return services.count(serviceType, language, scopes, new FilterParser().parse(filter), exists ? 1 : Integer.MAX_VALUE);
     }
 
     /**
@@ -657,29 +1085,16 @@ public class StandardDirectoryAgentServer extends AbstractServer
 
     protected Attributes matchAttributes(AttrRqst attrRqst)
     {
-        boolean isForServiceType = attrRqst.isForServiceType();
-        ServiceURL serviceURL = null;
-        ServiceType serviceType = null;
-        if (isForServiceType)
-        {
-            serviceURL = null;
-            serviceType = new ServiceType(attrRqst.getURL());
-        }
-        else
-        {
-            serviceURL = new ServiceURL(attrRqst.getURL());
-            serviceType = serviceURL.getServiceType();
-        }
-        List<ServiceInfo> services = matchServices(serviceType, attrRqst.getLanguage(), attrRqst.getScopes(), null);
+        // The attributes of the services of a service type are aggregated by the store
+        if (attrRqst.isForServiceType())
+            return services.matchAttributes(new ServiceType(attrRqst.getURL()), attrRqst.getLanguage(), attrRqst.getScopes(), attrRqst.getTags());
+
+        // Only the services with the given URL are visited
+        ServiceURL serviceURL = new ServiceURL(attrRqst.getURL());
+        List<ServiceInfo> matchingServices = services.match(serviceURL, attrRqst.getLanguage(), attrRqst.getScopes());
 
         Attributes attributes = Attributes.NONE;
-        for (ServiceInfo service : services)
-        {
-            if (isForServiceType)
-                attributes = attributes.merge(service.getAttributes());
-            else if (service.getServiceURL().equals(serviceURL))
-                attributes = attributes.merge(service.getAttributes());
-        }
+        for (ServiceInfo service : matchingServices) attributes = attributes.merge(service.getAttributes());
         Attributes tags = attrRqst.getTags();
         if (!tags.isEmpty()) attributes = attributes.intersect(attrRqst.getTags());
         return attributes;
@@ -736,19 +1151,8 @@ public class StandardDirectoryAgentServer extends AbstractServer
 
     protected List<ServiceType> matchServiceTypes(SrvTypeRqst srvTypeRqst)
     {
-        List<ServiceType> result = new ArrayList<ServiceType>();
-        List<ServiceInfo> serviceInfos = services.getServiceInfos();
-        for (ServiceInfo serviceInfo : serviceInfos)
-        {
-            ServiceType serviceType = serviceInfo.resolveServiceType();
-            if (srvTypeRqst.isAnyNamingAuthority())
-                result.add(serviceType);
-            else if (srvTypeRqst.isDefaultNamingAuthority() && serviceType.isDefaultNamingAuthority())
-                result.add(serviceType);
-            else if (srvTypeRqst.getNamingAuthority().equals(serviceType.getNamingAuthority()))
-                result.add(serviceType);
-        }
-        return result;
+        String namingAuthority = srvTypeRqst.isAnyNamingAuthority() ? ServiceType.ANY_NAMING_AUTHORITY : srvTypeRqst.getNamingAuthority();
+        return services.matchServiceTypes(namingAuthority, srvTypeRqst.getScopes());
     }
 
     /**
@@ -758,7 +1162,7 @@ public class StandardDirectoryAgentServer extends AbstractServer
      * @param update  whether the given service replaces or updates a previously cached service
      * @return a structure containing the previous service (if any) and the current service
      */
-    protected ServiceInfoCache.Result<ServiceInfo> cacheService(ServiceInfo service, boolean update)
+    protected ServiceStore.Result<ServiceInfo> cacheService(ServiceInfo service, boolean update)
     {
         // RFC 2608, 7.0
         if (!scopes.match(service.getScopes()))
@@ -768,16 +1172,96 @@ public class StandardDirectoryAgentServer extends AbstractServer
             throw new ServiceLocationException("Could not register service " + service, SLPError.SCOPE_NOT_SUPPORTED);
         }
 
+        // The writer thread renews the services itself, so that only it modifies the services
+        ServiceMutationPipeline mutationPipeline = pipeline;
+        if (mutationPipeline != null) return mutationPipeline.put(service, update);
+
+        // Most registrations are renewals of services already registered with the same content
+        if (!update)
+        {
+            ServiceStore.Result<ServiceInfo> result = renewService(service);
+            if (result != null) return result;
+        }
+
+        ServiceInfoLog log = serviceLog;
+        if (log == null) return putService(service, update);
+
+        // Log the change in the same order it is applied to the cache, then wait for it to be durable;
+        // changes of different services may be logged in any order, so only the service is locked.
+        // Listeners are notified after the service is unlocked, so that they may use the services
+        long sequence;
+        ServiceStore.Result<ServiceInfo> result;
+        services.beginBatch();
+        try
+        {
+            services.lock(service.getKey());
+            try
+            {
+                result = putService(service, update);
+                sequence = log.appendPut(result.getCurrent());
+            }
+            finally
+            {
+                services.unlock(service.getKey());
+            }
+        }
+        finally
+        {
+            services.endBatch();
+        }
+        syncServiceLog(log, sequence);
+        return result;
+    }
+
+    /**
+     * Renews the given service, if it is already registered with the same content, without replacing it
+     * and without notifying listeners.
+     *
+     * @param service the service to renew
+     * @return a structure whose previous and current services are the renewed service,
+     *         or null if the given service is not a renewal
+     * @see ServiceStore#renew(ServiceInfo)
+     */
+    private ServiceStore.Result<ServiceInfo> renewService(ServiceInfo service)
+    {
+        ServiceInfo renewed;
+        ServiceInfoLog log = serviceLog;
+        if (log == null)
+        {
+            renewed = services.renew(service);
+        }
+        else
+        {
+            services.lock(service.getKey());
+            try
+            {
+                renewed = services.renew(service);
+                // Renewals do not wait for the log to be synced, since the service is already durable
+                // and only its registration time changed; they become durable with the next sync
+                if (renewed != null) log.appendPut(renewed);
+            }
+            finally
+            {
+                services.unlock(service.getKey());
+            }
+        }
+        if (renewed == null) return null;
+        if (logger.isLoggable(Level.FINEST)) logger.finest("Renewed service " + renewed);
+        return new ServiceStore.Result<ServiceInfo>(renewed, renewed);
+    }
+
+    private ServiceStore.Result<ServiceInfo> putService(ServiceInfo service, boolean update)
+    {
         if (update)
         {
-            ServiceInfoCache.Result<ServiceInfo> result = services.addAttributes(service.getKey(), service.getAttributes());
+            ServiceStore.Result<ServiceInfo> result = services.addAttributes(service.getKey(), service.getAttributes());
             if (logger.isLoggable(Level.FINE))
                 logger.fine("Added attributes " + service + " to service " + result.getPrevious() + ", result is: " + result.getCurrent());
             return result;
         }
         else
         {
-            ServiceInfoCache.Result<ServiceInfo> result = services.put(service);
+            ServiceStore.Result<ServiceInfo> result = services.put(service);
             if (logger.isLoggable(Level.FINE))
             {
                 if (result.getPrevious() == null)
@@ -796,7 +1280,7 @@ public class StandardDirectoryAgentServer extends AbstractServer
      * @param update  whether the given service removes or updates a previously cached service
      * @return a structure containing the previous service and the current service (if any)
      */
-    protected ServiceInfoCache.Result<ServiceInfo> uncacheService(ServiceInfo service, boolean update)
+    protected ServiceStore.Result<ServiceInfo> uncacheService(ServiceInfo service, boolean update)
     {
         // RFC 2608, 7.0
         if (!scopes.match(service.getScopes()))
@@ -806,16 +1290,54 @@ public class StandardDirectoryAgentServer extends AbstractServer
             throw new ServiceLocationException("Could not deregister service " + service, SLPError.SCOPE_NOT_SUPPORTED);
         }
 
+        ServiceMutationPipeline mutationPipeline = pipeline;
+        if (mutationPipeline != null) return mutationPipeline.remove(service, update);
+
+        ServiceInfoLog log = serviceLog;
+        if (log == null) return removeService(service, update);
+
+        // Log the change in the same order it is applied to the cache, then wait for it to be durable;
+        // changes of different services may be logged in any order, so only the service is locked.
+        // Listeners are notified after the service is unlocked, so that they may use the services
+        long sequence;
+        ServiceStore.Result<ServiceInfo> result;
+        services.beginBatch();
+        try
+        {
+            services.lock(service.getKey());
+            try
+            {
+                result = removeService(service, update);
+                if (result.getCurrent() == null)
+                    sequence = log.appendRemove(service.getKey());
+                else
+                    sequence = log.appendPut(result.getCurrent());
+            }
+            finally
+            {
+                services.unlock(service.getKey());
+            }
+        }
+        finally
+        {
+            services.endBatch();
+        }
+        syncServiceLog(log, sequence);
+        return result;
+    }
+
+    private ServiceStore.Result<ServiceInfo> removeService(ServiceInfo service, boolean update)
+    {
         if (update)
         {
-            ServiceInfoCache.Result<ServiceInfo> result = services.removeAttributes(service.getKey(), service.getAttributes());
+            ServiceStore.Result<ServiceInfo> result = services.removeAttributes(service.getKey(), service.getAttributes());
             if (logger.isLoggable(Level.FINE))
                 logger.fine("Removed attributes " + service + " from service " + result.getPrevious() + ", result is: " + result.getCurrent());
             return result;
         }
         else
         {
-            ServiceInfoCache.Result<ServiceInfo> result = services.remove(service.getKey());
+            ServiceStore.Result<ServiceInfo> result = services.remove(service.getKey());
             if (logger.isLoggable(Level.FINE))
                 logger.fine("Deregistered service " + result.getPrevious());
             return result;
@@ -826,11 +1348,38 @@ public class StandardDirectoryAgentServer extends AbstractServer
      * Purge the expired services from the service cache
      *
      * @return the list of purged services
-     * @see ServiceInfoCache#purge()
+     * @see ServiceStore#purge()
      */
     protected List<ServiceInfo> purgeExpiredServices()
     {
-        return services.purge();
+        ServiceMutationPipeline mutationPipeline = pipeline;
+        if (mutationPipeline != null) return mutationPipeline.purge();
+
+        ServiceInfoLog log = serviceLog;
+        if (log == null) return services.purge();
+
+        long sequence = 0;
+        List<ServiceInfo> result;
+        services.beginBatch();
+        try
+        {
+            services.lock();
+            try
+            {
+                result = services.purge();
+                for (ServiceInfo service : result) sequence = log.appendRemove(service.getKey());
+            }
+            finally
+            {
+                services.unlock();
+            }
+        }
+        finally
+        {
+            services.endBatch();
+        }
+        if (sequence > 0) syncServiceLog(log, sequence);
+        return result;
     }
 
     private class ServicesPurger implements Runnable
@@ -845,6 +1394,24 @@ public class StandardDirectoryAgentServer extends AbstractServer
         }
     }
 
+    private class ServicesSnapshotter implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                if (logger.isLoggable(Level.FINEST))
+                    logger.finest("DirectoryAgent " + StandardDirectoryAgentServer.this + " writing snapshot of services");
+                snapshotServices();
+            }
+            catch (IOException x)
+            {
+                if (logger.isLoggable(Level.WARNING))
+                    logger.log(Level.WARNING, "DirectoryAgent " + StandardDirectoryAgentServer.this + " could not write snapshot of services", x);
+            }
+        }
+    }
+
     private class UnsolicitedDAAdvert implements Runnable
     {
         public void run()
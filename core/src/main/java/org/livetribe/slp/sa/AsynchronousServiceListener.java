@@ -0,0 +1,354 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.sa;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.livetribe.slp.ServiceInfo;
+
+
+/**
+ * A {@link ServiceListener} that delivers events to another listener asynchronously, so that a slow listener
+ * does not delay the thread that modified the services (for example, the thread that replies to a SrvReg).
+ * <br />
+ * Events are queued in a bounded queue and delivered in order by an {@link Executor}, one at a time;
+ * therefore the events of each service are delivered in the same order they have been produced.
+ * An update of a service whose previous event is still queued is conflated with it into a single event that
+ * spans from the service prior the first event to the service after the update.
+ * When the queue is full, the threads that produce events wait until there is space in the queue.
+ * <br />
+ * Usage:
+ * <pre>
+ * directoryAgent.addServiceListener(new AsynchronousServiceListener(auditListener, 1024));
+ * </pre>
+ * The delivery lag can be monitored with {@link #getLag()}.
+ */
+public class AsynchronousServiceListener implements ServiceBatchListener
+{
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private final Map<ServiceInfo.Key, Entry> lastEntries = new HashMap<ServiceInfo.Key, Entry>();
+    private final ServiceListener listener;
+    private final int capacity;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Runnable deliverer = new Deliverer();
+    private boolean scheduled;
+    private boolean closed;
+    private long delivered;
+    private long conflated;
+
+    /**
+     * Creates a new AsynchronousServiceListener that delivers events from its own thread.
+     *
+     * @param listener the listener to deliver events to
+     * @param capacity the maximum number of queued events
+     */
+    public AsynchronousServiceListener(ServiceListener listener, int capacity)
+    {
+        this(listener, capacity, null);
+    }
+
+    /**
+     * Creates a new AsynchronousServiceListener that delivers events from the given executor.
+     *
+     * @param listener the listener to deliver events to
+     * @param capacity the maximum number of queued events
+     * @param executor the executor that delivers events, or null to deliver events from a dedicated thread
+     */
+    public AsynchronousServiceListener(ServiceListener listener, int capacity, Executor executor)
+    {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.listener = listener;
+        this.capacity = capacity;
+        if (executor == null)
+        {
+            this.ownedExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "SLP-ServiceListener-" + AsynchronousServiceListener.this.listener);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.executor = ownedExecutor;
+        }
+        else
+        {
+            this.ownedExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    public void serviceAdded(ServiceEvent event)
+    {
+        enqueue(ServiceBatchEvent.Type.ADDED, event);
+    }
+
+    public void serviceUpdated(ServiceEvent event)
+    {
+        enqueue(ServiceBatchEvent.Type.UPDATED, event);
+    }
+
+    public void serviceRemoved(ServiceEvent event)
+    {
+        enqueue(ServiceBatchEvent.Type.REMOVED, event);
+    }
+
+    public void servicesChanged(ServiceBatchEvent event)
+    {
+        // Changes are enqueued in the order they have been made, as if they were delivered one by one
+        for (ServiceBatchEvent.Change change : event.getChanges()) enqueue(change.getType(), change.getEvent());
+    }
+
+    private void enqueue(ServiceBatchEvent.Type kind, ServiceEvent event)
+    {
+        ServiceInfo.Key key = key(event);
+        boolean schedule = false;
+        lock.lock();
+        try
+        {
+            if (closed) return;
+
+            Entry last = lastEntries.get(key);
+            if (kind == ServiceBatchEvent.Type.UPDATED && last != null && last.kind != ServiceBatchEvent.Type.REMOVED)
+            {
+                // Conflate with the queued event of the same service, which is the last one for that service
+                last.event = new ServiceEvent(event.getSource(), last.event.getPreviousService(), event.getCurrentService());
+                ++conflated;
+                return;
+            }
+
+            while (queue.size() >= capacity && !closed) notFull.awaitUninterruptibly();
+            if (closed) return;
+
+            Entry entry = new Entry(kind, key, event);
+            queue.addLast(entry);
+            lastEntries.put(key, entry);
+            if (!scheduled)
+            {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (schedule) schedule();
+    }
+
+    private void schedule()
+    {
+        try
+        {
+            executor.execute(deliverer);
+        }
+        catch (RuntimeException x)
+        {
+            // The queued events are delivered when the next event schedules the delivery again
+            lock.lock();
+            try
+            {
+                scheduled = false;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (logger.isLoggable(Level.WARNING))
+                logger.log(Level.WARNING, "Could not schedule the delivery of events to ServiceListener " + listener, x);
+        }
+    }
+
+    private ServiceInfo.Key key(ServiceEvent event)
+    {
+        ServiceInfo service = event.getCurrentService();
+        if (service == null) service = event.getPreviousService();
+        return service.getKey();
+    }
+
+    /**
+     * @return the time, in milliseconds, the oldest queued event has been waiting to be delivered,
+     *         or 0 if there are no queued events
+     */
+    public long getLag()
+    {
+        lock.lock();
+        try
+        {
+            if (queue.isEmpty()) return 0;
+            return System.currentTimeMillis() - queue.getFirst().time;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getPendingCount()
+    {
+        lock.lock();
+        try
+        {
+            return queue.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events delivered so far
+     */
+    public long getDeliveredCount()
+    {
+        lock.lock();
+        try
+        {
+            return delivered;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of updates conflated with queued events so far
+     */
+    public long getConflatedCount()
+    {
+        lock.lock();
+        try
+        {
+            return conflated;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops queueing events and discards the queued events; if this listener created its own thread,
+     * the thread is stopped.
+     * <br />
+     * This listener should be removed from the source of events before being closed.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            queue.clear();
+            lastEntries.clear();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (ownedExecutor != null) ownedExecutor.shutdown();
+    }
+
+    private class Deliverer implements Runnable
+    {
+        public void run()
+        {
+            while (true)
+            {
+                Entry entry;
+                lock.lock();
+                try
+                {
+                    if (queue.isEmpty())
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                    entry = queue.removeFirst();
+                    if (lastEntries.get(entry.key) == entry) lastEntries.remove(entry.key);
+                    ++delivered;
+                    notFull.signal();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                deliver(entry);
+            }
+        }
+
+        private void deliver(Entry entry)
+        {
+            try
+            {
+                switch (entry.kind)
+                {
+                    case ADDED:
+                        listener.serviceAdded(entry.event);
+                        break;
+                    case UPDATED:
+                        listener.serviceUpdated(entry.event);
+                        break;
+                    default:
+                        listener.serviceRemoved(entry.event);
+                        break;
+                }
+            }
+            catch (RuntimeException x)
+            {
+                if (logger.isLoggable(Level.INFO))
+                    logger.log(Level.INFO, "ServiceListener " + listener + " threw exception, ignoring", x);
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final long time = System.currentTimeMillis();
+        private final ServiceBatchEvent.Type kind;
+        private final ServiceInfo.Key key;
+        private ServiceEvent event;
+
+        private Entry(ServiceBatchEvent.Type kind, ServiceInfo.Key key, ServiceEvent event)
+        {
+            this.kind = kind;
+            this.key = key;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.sa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
+
+
+/**
+ * The event that coalesces the {@link ServiceEvent}s produced by a batch of modifications of services,
+ * in the order they have been produced.
+ *
+ * @see ServiceBatchListener
+ */
+public class ServiceBatchEvent extends EventObject
+{
+    private static final long serialVersionUID = -4081526394726184953L;
+
+    /**
+     * The kinds of change of a service.
+     */
+    public enum Type
+    {
+        ADDED, UPDATED, REMOVED
+    }
+
+    private final List<Change> changes;
+
+    /**
+     * Creates a new ServiceBatchEvent.
+     *
+     * @param source  the source of the event
+     * @param changes the changes of the services, in the order they have been made
+     */
+    public ServiceBatchEvent(Object source, List<Change> changes)
+    {
+        super(source);
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return the changes of the services, in the order they have been made
+     */
+    public List<Change> getChanges()
+    {
+        return changes;
+    }
+
+    /**
+     * @return the events of the services registered by the batch, in the order they have been registered
+     */
+    public List<ServiceEvent> getAdded()
+    {
+        return eventsOf(Type.ADDED);
+    }
+
+    /**
+     * @return the events of the services updated by the batch, in the order they have been updated
+     */
+    public List<ServiceEvent> getUpdated()
+    {
+        return eventsOf(Type.UPDATED);
+    }
+
+    /**
+     * @return the events of the services deregistered by the batch, in the order they have been deregistered
+     */
+    public List<ServiceEvent> getRemoved()
+    {
+        return eventsOf(Type.REMOVED);
+    }
+
+    private List<ServiceEvent> eventsOf(Type type)
+    {
+        List<ServiceEvent> result = new ArrayList<ServiceEvent>();
+        for (Change change : changes)
+        {
+            if (change.getType() == type) result.add(change.getEvent());
+        }
+        return result;
+    }
+
+    /**
+     * @return the total number of events in this batch
+     */
+    public int size()
+    {
+        return changes.size();
+    }
+
+    /**
+     * A change of a service, with its kind.
+     */
+    public static class Change
+    {
+        private final Type type;
+        private final ServiceEvent event;
+
+        /**
+         * @param type  the kind of change
+         * @param event the event of the change
+         */
+        public Change(Type type, ServiceEvent event)
+        {
+            this.type = type;
+            this.event = event;
+        }
+
+        /**
+         * @return the kind of change
+         */
+        public Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return the event of the change
+         */
+        public ServiceEvent getEvent()
+        {
+            return event;
+        }
+    }
+}
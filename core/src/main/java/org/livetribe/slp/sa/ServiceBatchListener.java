@@ -0,0 +1,35 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.sa;
+
+
+/**
+ * A {@link ServiceListener} that receives the events produced by a batch of modifications
+ * (such as bulk registrations or purges of expired services) in a single {@link ServiceBatchEvent}.
+ * <br />
+ * Modifications of single services are still notified through the {@link ServiceListener} methods.
+ *
+ * @see org.livetribe.slp.spi.ServiceStore#putAll(java.util.Collection)
+ */
+public interface ServiceBatchListener extends ServiceListener
+{
+    /**
+     * Invoked when a batch of services is registered, updated or deregistered
+     *
+     * @param event the batch event
+     */
+    public void servicesChanged(ServiceBatchEvent event);
+}
@@ -36,7 +36,7 @@ import org.livetribe.slp.da.DirectoryAgentInfo;
 import org.livetribe.slp.settings.Defaults;
 import org.livetribe.slp.settings.Factories;
 import org.livetribe.slp.settings.Settings;
-import org.livetribe.slp.spi.ServiceInfoCache;
+import org.livetribe.slp.spi.ServiceStore;
 import org.livetribe.slp.spi.net.TCPConnector;
 import org.livetribe.slp.spi.net.UDPConnector;
 import org.livetribe.slp.spi.net.UDPConnectorServer;
@@ -106,7 +106,7 @@ public class StandardServiceAgent extends AbstractServiceAgent implements Servic
 
     protected void register(ServiceInfo service, boolean update) throws ServiceLocationException
     {
-        ServiceInfoCache.Result<ServiceInfo> result = cacheService(service, update);
+        ServiceStore.Result<ServiceInfo> result = cacheService(service, update);
         if (logger.isLoggable(Level.FINE))
             logger.fine("Registered service, current: " + result.getCurrent() + ", previous: " + result.getPrevious());
         if (isRunning()) forwardRegistration(service, result.getPrevious(), result.getCurrent(), update);
@@ -134,7 +134,7 @@ public class StandardServiceAgent extends AbstractServiceAgent implements Servic
 
     protected void deregister(ServiceInfo service, boolean update) throws ServiceLocationException
     {
-        ServiceInfoCache.Result<ServiceInfo> result = uncacheService(service, update);
+        ServiceStore.Result<ServiceInfo> result = uncacheService(service, update);
         if (logger.isLoggable(Level.FINE))
             logger.fine("Deregistered service, current: " + result.getCurrent() + ", previous: " + result.getPrevious());
         if (isRunning()) forwardDeregistration(service, result.getPrevious(), result.getCurrent(), update);
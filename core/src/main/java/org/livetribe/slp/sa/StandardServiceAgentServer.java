@@ -29,10 +29,12 @@ import org.livetribe.slp.ServiceLocationException;
 import org.livetribe.slp.settings.Factories;
 import org.livetribe.slp.settings.PropertiesSettings;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.ResultLimit;
 import org.livetribe.slp.spi.Server;
-import org.livetribe.slp.spi.ServiceInfoCache;
+import org.livetribe.slp.spi.ServiceStore;
 import org.livetribe.slp.spi.TCPSrvAckPerformer;
 import org.livetribe.slp.spi.da.TCPSrvRplyPerformer;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
 import org.livetribe.slp.spi.msg.SrvDeReg;
 import org.livetribe.slp.spi.msg.SrvReg;
@@ -171,7 +173,7 @@ public class StandardServiceAgentServer extends AbstractServiceAgent
         {
             boolean update = srvReg.isUpdating();
             ServiceInfo givenService = ServiceInfo.from(srvReg);
-            ServiceInfoCache.Result<ServiceInfo> result = cacheService(givenService, update);
+            ServiceStore.Result<ServiceInfo> result = cacheService(givenService, update);
             forwardRegistration(givenService, result.getPrevious(), result.getCurrent(), update);
             tcpSrvAck.perform(socket, srvReg, SLPError.NO_ERROR);
         }
@@ -195,7 +197,7 @@ public class StandardServiceAgentServer extends AbstractServiceAgent
         {
             boolean update = srvDeReg.isUpdating();
             ServiceInfo givenService = ServiceInfo.from(srvDeReg);
-            ServiceInfoCache.Result<ServiceInfo> result = uncacheService(givenService, update);
+            ServiceStore.Result<ServiceInfo> result = uncacheService(givenService, update);
             forwardDeregistration(givenService, result.getPrevious(), result.getCurrent(), update);
             tcpSrvAck.perform(socket, srvDeReg, SLPError.NO_ERROR);
         }
@@ -223,7 +225,18 @@ public class StandardServiceAgentServer extends AbstractServiceAgent
             return;
         }
 
-        List<ServiceInfo> matchingServices = matchServices(srvRqst.getServiceType(), srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter());
+        MatchCountExtension matchCount = MatchCountExtension.findFirst(srvRqst.getExtensions());
+        if (matchCount != null)
+        {
+            int count = countServices(srvRqst.getServiceType(), srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), matchCount.isExists());
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("ServiceAgent server " + this + " returning count " + count + " of services of type " + srvRqst.getServiceType());
+            tcpSrvRply.perform(socket, srvRqst, new MatchCountExtension(matchCount.isExists(), count));
+            return;
+        }
+
+        ResultLimit limit = ResultLimit.from(srvRqst.getExtensions());
+        List<ServiceInfo> matchingServices = matchServices(srvRqst.getServiceType(), srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), limit);
         if (logger.isLoggable(Level.FINE))
             logger.fine("ServiceAgent server " + this + " returning " + matchingServices.size() + " services of type " + srvRqst.getServiceType());
         tcpSrvRply.perform(socket, srvRqst, matchingServices);
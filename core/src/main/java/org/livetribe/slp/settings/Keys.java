@@ -152,6 +152,30 @@ public class Keys
      */
     public static final Key<Integer> DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY = Key.from("livetribe.slp.da.expired.services.purge.period", Integer.class);
 
+    /**
+     * The key to specify the directory where DAs persist the registered services, so that they can be
+     * recovered after a restart.
+     * Default value is no directory, therefore services are not persisted.
+     */
+    public static final Key<String> DA_PERSISTENCE_DIRECTORY_KEY = Key.from("livetribe.slp.da.persistence.directory", String.class);
+
+    /**
+     * The key to specify the period, in seconds, between snapshots of the persisted services.
+     * Default value is 600.
+     *
+     * @see #DA_PERSISTENCE_DIRECTORY_KEY
+     */
+    public static final Key<Integer> DA_PERSISTENCE_SNAPSHOT_PERIOD_KEY = Key.from("livetribe.slp.da.persistence.snapshot.period", Integer.class);
+
+    /**
+     * The key to specify whether DAs apply the modifications of the registered services from a single writer thread,
+     * rather than from the threads that handle SrvReg and SrvDeReg messages.
+     * Default value is false.
+     *
+     * @see org.livetribe.slp.da.ServiceMutationPipeline
+     */
+    public static final Key<Boolean> DA_SINGLE_WRITER_ENABLED_KEY = Key.from("livetribe.slp.da.single.writer.enabled", Boolean.class);
+
     /**
      * The key to specify the IP address to which the ServiceAgentClient connects to.
      * Default value is 127.0.0.1
@@ -182,6 +206,85 @@ public class Keys
      */
     public static final Key<Boolean> SA_UNICAST_PREFER_TCP = Key.from("livetribe.slp.sa.unicast.prefer.tcp", Boolean.class);
 
+    /**
+     * The key to specify the full qualified name of the ServiceStore factory class, used by
+     * directory agents and service agents to store services.
+     */
+    public static final Key<String> SERVICE_STORE_FACTORY_KEY = Key.from("livetribe.slp.service.store.factory", String.class);
+
+    /**
+     * The key to specify the number of changes of the services held in memory by the
+     * {@link org.livetribe.slp.spi.ServiceJournal} of a service store; zero disables the journal.
+     * Default value is 1024.
+     */
+    public static final Key<Integer> SERVICE_STORE_JOURNAL_CAPACITY_KEY = Key.from("livetribe.slp.service.store.journal.capacity", Integer.class);
+
+    /**
+     * The key to specify whether the {@link org.livetribe.slp.spi.ServiceJournal} of a service store records
+     * the renewals of services; renewals are frequent and would evict the other changes from the journal.
+     * Default value is false.
+     */
+    public static final Key<Boolean> SERVICE_STORE_JOURNAL_RENEWALS_KEY = Key.from("livetribe.slp.service.store.journal.renewals", Boolean.class);
+
+    /**
+     * The key to specify the number of queries between two samples of the selectivity of the attribute comparisons
+     * of the queries, used by {@link org.livetribe.slp.spi.ServiceInfoCache} to decide which attribute tags to index;
+     * zero disables attribute indexes.
+     * Default value is 16.
+     *
+     * @see org.livetribe.slp.spi.AttributeIndexes
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY = Key.from("livetribe.slp.service.store.index.sample.period", Integer.class);
+
+    /**
+     * The key to specify the number of queries between two evaluations of the attribute indexes to build or drop.
+     * Default value is 256.
+     *
+     * @see #SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_WINDOW_KEY = Key.from("livetribe.slp.service.store.index.window", Integer.class);
+
+    /**
+     * The key to specify the minimum percentage of queries that must compare an attribute tag, in the same way,
+     * in order to index it; indexes are dropped when the percentage falls below half this value.
+     * Default value is 10.
+     *
+     * @see #SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_MIN_FREQUENCY_KEY = Key.from("livetribe.slp.service.store.index.min.frequency", Integer.class);
+
+    /**
+     * The key to specify the maximum percentage of services that may match the comparisons of an attribute tag
+     * in order to index it.
+     * Default value is 20.
+     *
+     * @see #SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_MAX_SELECTIVITY_KEY = Key.from("livetribe.slp.service.store.index.max.selectivity", Integer.class);
+
+    /**
+     * The key to specify the maximum number of distinct values of an attribute tag that is indexed, when frequently
+     * compared, regardless of the selectivity of its comparisons.
+     * Default value is 16.
+     *
+     * @see #SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_LOW_CARDINALITY_KEY = Key.from("livetribe.slp.service.store.index.low.cardinality", Integer.class);
+
+    /**
+     * The key to specify the maximum number of attribute indexes of a service store.
+     * Default value is 16.
+     *
+     * @see #SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static final Key<Integer> SERVICE_STORE_INDEX_MAX_COUNT_KEY = Key.from("livetribe.slp.service.store.index.max.count", Integer.class);
+
+    /**
+     * The key to specify the number of shards of a {@link org.livetribe.slp.spi.ShardedServiceStore}.
+     * Default value is 16.
+     */
+    public static final Key<Integer> SERVICE_STORE_SHARDS_KEY = Key.from("livetribe.slp.service.store.shards", Integer.class);
+
     /**
      * The key to specify the full qualified name of the TCPConnector factory class.
      */
@@ -215,6 +318,14 @@ public class Keys
      */
     public static final Key<String> UA_FACTORY_KEY = Key.from("livetribe.slp.ua.factory", String.class);
 
+    /**
+     * The key to specify the maximum number of results of SrvRqsts to directory agents that user agents cache,
+     * together with their version, so that directory agents can reply that a repeated query has the same result
+     * instead of sending it again; 0 disables the cache.
+     * Default value is 64.
+     */
+    public static final Key<Integer> UA_RESULT_CACHE_SIZE_KEY = Key.from("livetribe.slp.ua.result.cache.size", Integer.class);
+
     /**
      * The key to specify whether the UserAgentClient should use TCP to contact the ServiceAgentServer.
      */
@@ -0,0 +1,881 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.settings.Defaults;
+import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.filter.AndFilter;
+import org.livetribe.slp.spi.filter.ExpressionFilter;
+import org.livetribe.slp.spi.filter.Filter;
+import org.livetribe.slp.spi.filter.NotFilter;
+import org.livetribe.slp.spi.filter.OrFilter;
+
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_LOW_CARDINALITY_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_MAX_COUNT_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_MAX_SELECTIVITY_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_MIN_FREQUENCY_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_INDEX_WINDOW_KEY;
+
+
+/**
+ * The attribute indexes of a {@link ServiceInfoCache}, built and dropped according to the observed queries.
+ * <br />
+ * The filters of the queries are decomposed into comparisons of attribute tags; for each tag, the number of
+ * comparisons for equality, for a range and for a prefix are counted and, for a sample of the queries, the
+ * selectivity of the comparisons and the cardinality of the values of the tag are measured.
+ * At the end of every window of queries, an index is built for each tag and kind of comparison that is
+ * frequent and selective enough, and the indexes of comparisons that are not anymore are dropped; tags with few
+ * distinct values, such as booleans, are indexed when frequent even if not selective, since their indexes are small
+ * and are selective in conjunctions and negations.
+ * <br />
+ * Services are identified by dense integer identifiers, and the posting lists of the indexes are
+ * {@link CompressedBitmap compressed bitmaps} of identifiers, so that low cardinality tags such as booleans
+ * take little memory.
+ * Filters are evaluated with bitmap operations: conjunctions intersect, disjunctions unite and negations
+ * subtract the bitmaps of their filters; the evaluation of a filter yields the services that certainly match,
+ * that are not matched again against the filter, and the services that may match, for example because
+ * some of their values cannot be indexed or because a comparison is not indexed, that are matched against
+ * the filter. Indexes are used only if they yield fewer services than would be scanned otherwise.
+ * <br />
+ * Stores use this class while holding their lock; it is not thread safe. The work done for a query is bounded
+ * regardless of the size of the store, so that large stores are not locked for long: selectivities and
+ * cardinalities are sampled on a random subset of the services, and new indexes are built a batch of services at
+ * a time, one batch for each query, and used only once they are complete.
+ */
+public class AttributeIndexes
+{
+    /**
+     * The kind of comparison an index serves.
+     */
+    public enum Kind
+    {
+        /**
+         * Comparisons like <code>(tag=value)</code>
+         */
+        EQUALITY,
+        /**
+         * Comparisons like <code>(tag&gt;=value)</code> or <code>(tag&lt;=value)</code>
+         */
+        RANGE,
+        /**
+         * Comparisons like <code>(tag=prefix*)</code>
+         */
+        PREFIX
+    }
+
+    /**
+     * The maximum number of services on which the selectivity of the comparisons of a query is sampled.
+     */
+    static final int SAMPLE_SIZE = 1024;
+    /**
+     * The maximum number of services added to the indexes being built for each query.
+     */
+    static final int BUILD_BATCH = 4096;
+
+    private final Random random = new Random();
+    private final Map<String, Tag> tags = new HashMap<String, Tag>();
+    private final List<Index> indexes = new ArrayList<Index>();
+    private final Map<ServiceInfo.Key, Integer> ids = new HashMap<ServiceInfo.Key, Integer>();
+    private final List<ServiceInfo.Key> keys = new ArrayList<ServiceInfo.Key>();
+    private final List<Integer> freeIds = new ArrayList<Integer>();
+    private final CompressedBitmap universe = new CompressedBitmap();
+    private final int samplePeriod;
+    private final int window;
+    private final int minFrequency;
+    private final int maxSelectivity;
+    private final int maxIndexes;
+    private final int lowCardinality;
+    private long queries;
+    private int windowQueries;
+
+    /**
+     * @param samplePeriod   the number of queries between two samples of the selectivity of the comparisons
+     * @param window         the number of queries between two evaluations of the indexes to build or drop
+     * @param minFrequency   the minimum percentage of the queries of a window that must perform a kind of
+     *                       comparison of a tag in order to index it
+     * @param maxSelectivity the maximum percentage of the services that may match a kind of comparison of a tag
+     *                       in order to index it
+     * @param maxIndexes     the maximum number of indexes
+     * @param lowCardinality the maximum number of distinct values of a tag that is indexed regardless of
+     *                       the selectivity of its comparisons
+     */
+    public AttributeIndexes(int samplePeriod, int window, int minFrequency, int maxSelectivity, int maxIndexes, int lowCardinality)
+    {
+        if (samplePeriod <= 0) throw new IllegalArgumentException("Invalid sample period " + samplePeriod);
+        if (window <= 0) throw new IllegalArgumentException("Invalid window " + window);
+        this.samplePeriod = samplePeriod;
+        this.window = window;
+        this.minFrequency = minFrequency;
+        this.maxSelectivity = maxSelectivity;
+        this.maxIndexes = maxIndexes;
+        this.lowCardinality = lowCardinality;
+    }
+
+    /**
+     * @param settings the configuration settings, may be null
+     * @return a new AttributeIndexes configured with the given settings, or null if the sample period is not positive
+     * @see org.livetribe.slp.settings.Keys#SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY
+     */
+    public static AttributeIndexes newInstance(Settings settings)
+    {
+        int samplePeriod = settings == null ? Defaults.get(SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY) : settings.get(SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY, Defaults.get(SERVICE_STORE_INDEX_SAMPLE_PERIOD_KEY));
+        if (samplePeriod <= 0) return null;
+        int window = settings == null ? Defaults.get(SERVICE_STORE_INDEX_WINDOW_KEY) : settings.get(SERVICE_STORE_INDEX_WINDOW_KEY, Defaults.get(SERVICE_STORE_INDEX_WINDOW_KEY));
+        int minFrequency = settings == null ? Defaults.get(SERVICE_STORE_INDEX_MIN_FREQUENCY_KEY) : settings.get(SERVICE_STORE_INDEX_MIN_FREQUENCY_KEY, Defaults.get(SERVICE_STORE_INDEX_MIN_FREQUENCY_KEY));
+        int maxSelectivity = settings == null ? Defaults.get(SERVICE_STORE_INDEX_MAX_SELECTIVITY_KEY) : settings.get(SERVICE_STORE_INDEX_MAX_SELECTIVITY_KEY, Defaults.get(SERVICE_STORE_INDEX_MAX_SELECTIVITY_KEY));
+        int maxIndexes = settings == null ? Defaults.get(SERVICE_STORE_INDEX_MAX_COUNT_KEY) : settings.get(SERVICE_STORE_INDEX_MAX_COUNT_KEY, Defaults.get(SERVICE_STORE_INDEX_MAX_COUNT_KEY));
+        int lowCardinality = settings == null ? Defaults.get(SERVICE_STORE_INDEX_LOW_CARDINALITY_KEY) : settings.get(SERVICE_STORE_INDEX_LOW_CARDINALITY_KEY, Defaults.get(SERVICE_STORE_INDEX_LOW_CARDINALITY_KEY));
+        return new AttributeIndexes(samplePeriod, window, minFrequency, maxSelectivity, maxIndexes, lowCardinality);
+    }
+
+    /**
+     * Evaluates the given filter with the indexes.
+     *
+     * @param filter the filter of the query
+     * @param limit  the number of services the query would scan without indexes
+     * @return the services that match and that may match the filter, or null if the indexes
+     *         yield more services than the given limit
+     */
+    Candidates candidates(Filter filter, int limit)
+    {
+        if (indexes.isEmpty()) return null;
+        List<Index> used = new ArrayList<Index>();
+        Evaluation evaluation = evaluate(filter, used);
+        if (evaluation.possible == null || used.isEmpty()) return null;
+        if (evaluation.possible.getCardinality() > limit) return null;
+        for (Index index : used) ++index.hits;
+        return new Candidates(evaluation.certain, evaluation.possible.andNot(evaluation.certain));
+    }
+
+    private Evaluation evaluate(Filter filter, List<Index> used)
+    {
+        if (filter instanceof ExpressionFilter)
+        {
+            ExpressionFilter comparison = (ExpressionFilter)filter;
+            Kind kind = kindOf(comparison);
+            if (kind == null) return Evaluation.UNKNOWN;
+            Tag tag = tags.get(comparison.getTag());
+            if (tag == null) return Evaluation.UNKNOWN;
+            Index index = tag.indexes[kind.ordinal()];
+            if (index == null || !index.isBuilt()) return Evaluation.UNKNOWN;
+            used.add(index);
+            return index.lookup(comparison);
+        }
+        else if (filter instanceof AndFilter)
+        {
+            CompressedBitmap certain = null;
+            CompressedBitmap possible = null;
+            for (Filter child : ((AndFilter)filter).getFilters())
+            {
+                Evaluation evaluation = evaluate(child, used);
+                certain = certain == null ? evaluation.certain : certain.and(evaluation.certain);
+                if (evaluation.possible != null)
+                    possible = possible == null ? evaluation.possible : possible.and(evaluation.possible);
+            }
+            return new Evaluation(certain == null ? new CompressedBitmap() : certain, possible);
+        }
+        else if (filter instanceof OrFilter)
+        {
+            CompressedBitmap certain = new CompressedBitmap();
+            CompressedBitmap possible = new CompressedBitmap();
+            for (Filter child : ((OrFilter)filter).getFilters())
+            {
+                Evaluation evaluation = evaluate(child, used);
+                certain = certain.or(evaluation.certain);
+                possible = possible == null || evaluation.possible == null ? null : possible.or(evaluation.possible);
+            }
+            return new Evaluation(certain, possible);
+        }
+        else if (filter instanceof NotFilter)
+        {
+            // Services that certainly match the negated filter are those that cannot match the filter
+            Evaluation evaluation = evaluate(((NotFilter)filter).getFilter(), used);
+            CompressedBitmap certain = evaluation.possible == null ? new CompressedBitmap() : universe.andNot(evaluation.possible);
+            return new Evaluation(certain, universe.andNot(evaluation.certain));
+        }
+        return Evaluation.UNKNOWN;
+    }
+
+    /**
+     * @param id the identifier of a service
+     * @return the key of the service with the given identifier
+     */
+    ServiceInfo.Key keyOf(int id)
+    {
+        return keys.get(id);
+    }
+
+    /**
+     * Records a query, sampling the selectivity of its comparisons and, at the end of a window of queries,
+     * building and dropping indexes.
+     *
+     * @param filter   the filter of the query
+     * @param services all the services of the store, by key
+     */
+    void observe(Filter filter, Map<ServiceInfo.Key, ? extends ServiceInfo> services)
+    {
+        List<ExpressionFilter> comparisons = new ArrayList<ExpressionFilter>();
+        comparisons(filter, comparisons);
+        if (comparisons.isEmpty()) return;
+
+        Collection<? extends ServiceInfo> sample = queries++ % samplePeriod == 0 ? sample(services) : null;
+        for (ExpressionFilter comparison : comparisons)
+        {
+            Kind kind = kindOf(comparison);
+            if (kind == null) continue;
+            Tag tag = tags.get(comparison.getTag());
+            if (tag == null)
+            {
+                tag = new Tag(comparison.getTag());
+                tags.put(tag.name, tag);
+            }
+            ++tag.queries;
+            ++tag.windowCounts[kind.ordinal()];
+            Index index = tag.indexes[kind.ordinal()];
+            if (index != null) ++index.lookups;
+            if (sample != null) tag.sample(kind, comparison, sample);
+        }
+
+        if (++windowQueries >= window) adapt();
+        build(services);
+    }
+
+    private Collection<? extends ServiceInfo> sample(Map<ServiceInfo.Key, ? extends ServiceInfo> services)
+    {
+        if (services.size() <= SAMPLE_SIZE) return services.values();
+        // Draw random identifiers, skipping the free ones, rather than iterating over all the services
+        List<ServiceInfo> result = new ArrayList<ServiceInfo>(SAMPLE_SIZE);
+        for (int attempts = 0; result.size() < SAMPLE_SIZE && attempts < 4 * SAMPLE_SIZE; ++attempts)
+        {
+            ServiceInfo.Key key = keys.get(random.nextInt(keys.size()));
+            ServiceInfo service = key == null ? null : services.get(key);
+            if (service != null) result.add(service);
+        }
+        return result;
+    }
+
+    private void build(Map<ServiceInfo.Key, ? extends ServiceInfo> services)
+    {
+        int batch = BUILD_BATCH;
+        for (Index index : indexes)
+        {
+            if (index.isBuilt()) continue;
+            // Services with identifiers below the built mark are kept up to date by update()
+            while (index.built < keys.size() && batch > 0)
+            {
+                ServiceInfo.Key key = keys.get(index.built);
+                if (key != null) index.add(services.get(key), index.built);
+                ++index.built;
+                --batch;
+            }
+            if (index.built >= keys.size()) index.built = Index.BUILT;
+            if (batch == 0) return;
+        }
+    }
+
+    private void comparisons(Filter filter, List<ExpressionFilter> result)
+    {
+        if (filter instanceof ExpressionFilter)
+        {
+            result.add((ExpressionFilter)filter);
+        }
+        else if (filter instanceof AndFilter)
+        {
+            for (Filter child : ((AndFilter)filter).getFilters()) comparisons(child, result);
+        }
+        else if (filter instanceof OrFilter)
+        {
+            for (Filter child : ((OrFilter)filter).getFilters()) comparisons(child, result);
+        }
+        else if (filter instanceof NotFilter)
+        {
+            comparisons(((NotFilter)filter).getFilter(), result);
+        }
+    }
+
+    private Kind kindOf(ExpressionFilter comparison)
+    {
+        if (!ExpressionFilter.EQ.equals(comparison.getOperator())) return Kind.RANGE;
+        String prefix = comparison.getWildcardPrefix();
+        if (prefix == null) return Kind.EQUALITY;
+        // Patterns without prefix, such as presence comparisons, match too many values to be indexed
+        return prefix.length() > 0 ? Kind.PREFIX : null;
+    }
+
+    private void adapt()
+    {
+        // Drop first, to make room for the indexes to build
+        for (Iterator<Index> iterator = indexes.iterator(); iterator.hasNext();)
+        {
+            Index index = iterator.next();
+            Tag tag = tags.get(index.tag);
+            int i = index.kind.ordinal();
+            // Use half the frequency threshold to drop, so that indexes are not built and dropped repeatedly
+            if (frequency(tag.windowCounts[i]) < minFrequency / 2 || !isSelective(tag, i))
+            {
+                tag.indexes[i] = null;
+                iterator.remove();
+            }
+        }
+
+        for (Iterator<Tag> iterator = tags.values().iterator(); iterator.hasNext();)
+        {
+            Tag tag = iterator.next();
+            boolean active = false;
+            for (Kind kind : Kind.values())
+            {
+                int i = kind.ordinal();
+                if (tag.indexes[i] == null && indexes.size() < maxIndexes)
+                {
+                    if (frequency(tag.windowCounts[i]) >= minFrequency && isSelective(tag, i))
+                    {
+                        // The index is filled by build()
+                        Index index = new Index(tag.name, kind);
+                        tag.indexes[i] = index;
+                        indexes.add(index);
+                    }
+                }
+                active |= tag.windowCounts[i] > 0 || tag.indexes[i] != null;
+                tag.windowCounts[i] = 0;
+            }
+            // Forget the tags that are not queried anymore, so that arbitrary tags do not accumulate
+            if (!active) iterator.remove();
+        }
+
+        windowQueries = 0;
+    }
+
+    private int frequency(int count)
+    {
+        return (int)(100L * count / windowQueries);
+    }
+
+    private boolean isSelective(Tag tag, int kind)
+    {
+        double selectivity = tag.selectivities[kind];
+        if (selectivity < 0) return false;
+        return selectivity * 100 <= maxSelectivity || tag.cardinality <= lowCardinality;
+    }
+
+    /**
+     * Updates the indexes after a service has been added, updated or removed.
+     *
+     * @param previous the service prior the change, or null
+     * @param current  the service after the change, or null
+     */
+    void update(ServiceInfo previous, ServiceInfo current)
+    {
+        ServiceInfo.Key key = current != null ? current.getKey() : previous.getKey();
+        Integer id = ids.get(key);
+        if (id == null)
+        {
+            // Reuse the identifiers of removed services, to keep the bitmaps dense
+            id = freeIds.isEmpty() ? keys.size() : freeIds.remove(freeIds.size() - 1);
+            if (id == keys.size())
+                keys.add(key);
+            else
+                keys.set(id, key);
+            ids.put(key, id);
+            universe.add(id);
+        }
+
+        for (Index index : indexes)
+        {
+            // Indexes being built will add the services they have not reached yet
+            if (id >= index.built) continue;
+            if (previous != null) index.remove(previous, id);
+            if (current != null) index.add(current, id);
+        }
+
+        if (current == null)
+        {
+            ids.remove(key);
+            keys.set(id, null);
+            freeIds.add(id);
+            universe.remove(id);
+        }
+    }
+
+    /**
+     * @return a snapshot of the statistics of the queried tags and of the indexes
+     */
+    Statistics getStatistics()
+    {
+        List<TagStatistics> tagStatistics = new ArrayList<TagStatistics>(tags.size());
+        for (Tag tag : tags.values())
+            tagStatistics.add(new TagStatistics(tag.name, tag.queries, tag.selectivities.clone(), tag.cardinality));
+        List<IndexStatistics> indexStatistics = new ArrayList<IndexStatistics>(indexes.size());
+        for (Index index : indexes)
+            indexStatistics.add(new IndexStatistics(index.tag, index.kind, index.size, index.lookups, index.hits, index.isBuilt()));
+        return new Statistics(tagStatistics, indexStatistics);
+    }
+
+    /**
+     * The services that match a filter, and the services that may match it, as evaluated by the indexes.
+     */
+    static class Candidates
+    {
+        private final CompressedBitmap matching;
+        private final CompressedBitmap candidates;
+
+        private Candidates(CompressedBitmap matching, CompressedBitmap candidates)
+        {
+            this.matching = matching;
+            this.candidates = candidates;
+        }
+
+        /**
+         * @return the identifiers of the services that match the filter
+         */
+        int[] getMatching()
+        {
+            return matching.toArray();
+        }
+
+        /**
+         * @return the identifiers of the services that may match the filter, and must be matched against it
+         */
+        int[] getCandidates()
+        {
+            return candidates.toArray();
+        }
+    }
+
+    /**
+     * The evaluation of a filter: the services that certainly match it, a subset of the services that possibly
+     * match it; the latter are null when they cannot be evaluated by the indexes, meaning all the services.
+     */
+    private static class Evaluation
+    {
+        private static final Evaluation UNKNOWN = new Evaluation(new CompressedBitmap(), null);
+
+        private final CompressedBitmap certain;
+        private final CompressedBitmap possible;
+
+        private Evaluation(CompressedBitmap certain, CompressedBitmap possible)
+        {
+            this.certain = certain;
+            this.possible = possible;
+        }
+    }
+
+    /**
+     * The statistics of the comparisons of a tag.
+     */
+    private static class Tag
+    {
+        private final String name;
+        private final int[] windowCounts = new int[Kind.values().length];
+        private final double[] selectivities = new double[Kind.values().length];
+        private final Index[] indexes = new Index[Kind.values().length];
+        private long queries;
+        private int cardinality = -1;
+
+        private Tag(String name)
+        {
+            this.name = name;
+            for (int i = 0; i < selectivities.length; ++i) selectivities[i] = -1;
+        }
+
+        private void sample(Kind kind, ExpressionFilter comparison, Collection<? extends ServiceInfo> services)
+        {
+            if (services.isEmpty()) return;
+            int matching = 0;
+            Set<Object> values = new HashSet<Object>();
+            for (ServiceInfo service : services)
+            {
+                Attributes attributes = service.getAttributes();
+                // Services without attributes do not have the tag, and do not match
+                if (attributes == null) continue;
+                try
+                {
+                    if (comparison.matches(attributes)) ++matching;
+                }
+                catch (ServiceLocationException x)
+                {
+                    // Malformed comparisons, for example of opaque values, do not match
+                }
+                Attributes.Value value = attributes.valueFor(name);
+                for (int i = 0; i < value.getSize(); ++i)
+                {
+                    if (value.isStringType()) values.add(value.getNormalizedStringValue(i));
+                    else if (value.isIntegerType()) values.add(value.getIntegerValue(i));
+                    else if (value.isBooleanType()) values.add(value.getBooleanValue(i));
+                }
+            }
+            double selectivity = (double)matching / services.size();
+            int i = kind.ordinal();
+            // Smooth the samples, so that a single unusual query does not build or drop an index
+            selectivities[i] = selectivities[i] < 0 ? selectivity : (3 * selectivities[i] + selectivity) / 4;
+            cardinality = values.size();
+        }
+    }
+
+    /**
+     * An index of the values of a tag, serving one kind of comparison.
+     * <br />
+     * Services whose value cannot be compared via the index, for example opaque values, possibly match every
+     * comparison; services that do not have the tag never match a comparison, and are not indexed.
+     */
+    private static class Index
+    {
+        private static final int BUILT = Integer.MAX_VALUE;
+
+        private final String tag;
+        private final Kind kind;
+        private final Map<String, CompressedBitmap> strings;
+        private final Map<Integer, CompressedBitmap> integers;
+        private final Map<Boolean, CompressedBitmap> booleans;
+        private final CompressedBitmap others = new CompressedBitmap();
+        private int size;
+        private long lookups;
+        private long hits;
+        // The identifiers below this mark are indexed
+        private int built;
+
+        private Index(String tag, Kind kind)
+        {
+            this.tag = tag;
+            this.kind = kind;
+            switch (kind)
+            {
+                case EQUALITY:
+                    strings = new HashMap<String, CompressedBitmap>();
+                    integers = new HashMap<Integer, CompressedBitmap>();
+                    booleans = new HashMap<Boolean, CompressedBitmap>();
+                    break;
+                case RANGE:
+                    strings = new TreeMap<String, CompressedBitmap>();
+                    integers = new TreeMap<Integer, CompressedBitmap>();
+                    booleans = null;
+                    break;
+                default:
+                    strings = new TreeMap<String, CompressedBitmap>();
+                    integers = null;
+                    booleans = null;
+                    break;
+            }
+        }
+
+        private boolean isBuilt()
+        {
+            return built == BUILT;
+        }
+
+        private void add(ServiceInfo service, int id)
+        {
+            update(service, id, true);
+        }
+
+        private void remove(ServiceInfo service, int id)
+        {
+            update(service, id, false);
+        }
+
+        private void update(ServiceInfo service, int id, boolean add)
+        {
+            Attributes attributes = service.getAttributes();
+            if (attributes == null || !attributes.containsTag(tag)) return;
+            size += add ? 1 : -1;
+            Attributes.Value value = attributes.valueFor(tag);
+            if (value.isStringType())
+            {
+                // Range comparisons of strings only compare the first value
+                int count = kind == Kind.RANGE ? 1 : value.getSize();
+                for (int i = 0; i < count; ++i) update(strings, value.getNormalizedStringValue(i), id, add);
+            }
+            else if (value.isIntegerType() && integers != null)
+            {
+                for (int i = 0; i < value.getSize(); ++i) update(integers, value.getIntegerValue(i), id, add);
+            }
+            else if (value.isBooleanType() && booleans != null)
+            {
+                update(booleans, value.getBooleanValue(0), id, add);
+            }
+            else
+            {
+                if (add)
+                    others.add(id);
+                else
+                    others.remove(id);
+            }
+        }
+
+        private <V> void update(Map<V, CompressedBitmap> map, V value, int id, boolean add)
+        {
+            CompressedBitmap ids = map.get(value);
+            if (add)
+            {
+                if (ids == null)
+                {
+                    ids = new CompressedBitmap();
+                    map.put(value, ids);
+                }
+                ids.add(id);
+            }
+            else if (ids != null)
+            {
+                ids.remove(id);
+                if (ids.isEmpty()) map.remove(value);
+            }
+        }
+
+        /**
+         * @return the services that match and that possibly match the given comparison
+         */
+        private Evaluation lookup(ExpressionFilter comparison)
+        {
+            List<CompressedBitmap> postings = new ArrayList<CompressedBitmap>();
+            boolean exact = true;
+            switch (kind)
+            {
+                case EQUALITY:
+                {
+                    collect(strings.get(comparison.getNormalizedValue()), postings);
+                    Integer integer = comparison.getIntegerValue();
+                    if (integer != null) collect(integers.get(integer), postings);
+                    Boolean bool = comparison.getBooleanValue();
+                    if (bool != null) collect(booleans.get(bool), postings);
+                    break;
+                }
+                case RANGE:
+                {
+                    SortedMap<String, CompressedBitmap> sortedStrings = (SortedMap<String, CompressedBitmap>)strings;
+                    SortedMap<Integer, CompressedBitmap> sortedIntegers = (SortedMap<Integer, CompressedBitmap>)integers;
+                    String string = comparison.getNormalizedValue();
+                    Integer integer = comparison.getIntegerValue();
+                    if (ExpressionFilter.GE.equals(comparison.getOperator()))
+                    {
+                        postings.addAll(sortedStrings.tailMap(string).values());
+                        if (integer != null) postings.addAll(sortedIntegers.tailMap(integer).values());
+                    }
+                    else
+                    {
+                        // Head maps exclude their bound, so the bound is the successor of the value
+                        postings.addAll(sortedStrings.headMap(string + '\u0000').values());
+                        if (integer != null)
+                            postings.addAll((integer == Integer.MAX_VALUE ? sortedIntegers : sortedIntegers.headMap(integer + 1)).values());
+                    }
+                    break;
+                }
+                default:
+                {
+                    SortedMap<String, CompressedBitmap> sortedStrings = (SortedMap<String, CompressedBitmap>)strings;
+                    String prefix = comparison.getWildcardPrefix();
+                    char last = prefix.charAt(prefix.length() - 1);
+                    Map<String, CompressedBitmap> range = last == Character.MAX_VALUE ? sortedStrings.tailMap(prefix) : sortedStrings.subMap(prefix, prefix.substring(0, prefix.length() - 1) + (char)(last + 1));
+                    postings.addAll(range.values());
+                    // Patterns with more wildcards, such as foo*bar, match only some of the values with the prefix
+                    exact = comparison.isPrefixPattern();
+                    break;
+                }
+            }
+
+            CompressedBitmap matching = new CompressedBitmap();
+            for (CompressedBitmap ids : postings) matching = matching.or(ids);
+            CompressedBitmap possible = others.isEmpty() ? matching : matching.or(others);
+            return new Evaluation(exact ? matching : new CompressedBitmap(), possible);
+        }
+
+        private void collect(CompressedBitmap ids, List<CompressedBitmap> postings)
+        {
+            if (ids != null) postings.add(ids);
+        }
+    }
+
+    /**
+     * A snapshot of the statistics of the queried tags and of the indexes of a store.
+     */
+    public static class Statistics
+    {
+        private final List<TagStatistics> tags;
+        private final List<IndexStatistics> indexes;
+
+        private Statistics(List<TagStatistics> tags, List<IndexStatistics> indexes)
+        {
+            this.tags = Collections.unmodifiableList(tags);
+            this.indexes = Collections.unmodifiableList(indexes);
+        }
+
+        /**
+         * @return the statistics of the recently queried tags
+         */
+        public List<TagStatistics> getTags()
+        {
+            return tags;
+        }
+
+        /**
+         * @return the statistics of the current indexes
+         */
+        public List<IndexStatistics> getIndexes()
+        {
+            return indexes;
+        }
+    }
+
+    /**
+     * The statistics of the comparisons of a tag.
+     */
+    public static class TagStatistics
+    {
+        private final String tag;
+        private final long queries;
+        private final double[] selectivities;
+        private final int cardinality;
+
+        private TagStatistics(String tag, long queries, double[] selectivities, int cardinality)
+        {
+            this.tag = tag;
+            this.queries = queries;
+            this.selectivities = selectivities;
+            this.cardinality = cardinality;
+        }
+
+        public String getTag()
+        {
+            return tag;
+        }
+
+        /**
+         * @return the number of comparisons of the tag
+         */
+        public long getQueries()
+        {
+            return queries;
+        }
+
+        /**
+         * @param kind the kind of comparison
+         * @return the sampled fraction of services that match the given kind of comparison of the tag,
+         *         or -1 if it has not been sampled
+         */
+        public double getSelectivity(Kind kind)
+        {
+            return selectivities[kind.ordinal()];
+        }
+
+        /**
+         * @return the sampled number of distinct values of the tag, or -1 if it has not been sampled
+         */
+        public int getCardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        public String toString()
+        {
+            return tag + ":" + queries;
+        }
+    }
+
+    /**
+     * The statistics of an index.
+     */
+    public static class IndexStatistics
+    {
+        private final String tag;
+        private final Kind kind;
+        private final int size;
+        private final long lookups;
+        private final long hits;
+        private final boolean built;
+
+        private IndexStatistics(String tag, Kind kind, int size, long lookups, long hits, boolean built)
+        {
+            this.built = built;
+            this.tag = tag;
+            this.kind = kind;
+            this.size = size;
+            this.lookups = lookups;
+            this.hits = hits;
+        }
+
+        public String getTag()
+        {
+            return tag;
+        }
+
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return the number of indexed services
+         */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @return the number of comparisons the index could serve since it has been built
+         */
+        public long getLookups()
+        {
+            return lookups;
+        }
+
+        /**
+         * @return the number of queries the index has served since it has been built
+         */
+        public long getHits()
+        {
+            return hits;
+        }
+
+        /**
+         * @return whether the index is complete, or is still being built and does not serve queries yet
+         */
+        public boolean isBuilt()
+        {
+            return built;
+        }
+
+        /**
+         * @return the fraction of the comparisons the index has served, or 0 if it had no lookups
+         */
+        public double getHitRate()
+        {
+            return lookups == 0 ? 0 : (double)hits / lookups;
+        }
+
+        @Override
+        public String toString()
+        {
+            return tag + ":" + kind + ":" + hits + "/" + lookups;
+        }
+    }
+}
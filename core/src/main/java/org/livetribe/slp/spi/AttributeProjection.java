@@ -0,0 +1,116 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import org.livetribe.slp.Attributes;
+
+
+/**
+ * The attributes that a SrvRply carries for each service: all the attributes (the default), none of them,
+ * so that the reply carries only the service URLs, or only the attributes with the given tags.
+ * <br />
+ * Replies with fewer attributes are smaller, so that they fit more often in a UDP datagram without
+ * being retried on TCP.
+ */
+public class AttributeProjection
+{
+    /**
+     * The projection that keeps all the attributes of the services.
+     */
+    public static final AttributeProjection ALL = new AttributeProjection(null);
+
+    /**
+     * The projection that keeps none of the attributes of the services.
+     */
+    public static final AttributeProjection NONE = new AttributeProjection(Attributes.NONE);
+
+    private final Attributes tags;
+
+    private AttributeProjection(Attributes tags)
+    {
+        this.tags = tags;
+    }
+
+    /**
+     * @param tags the tags to keep, possibly containing the globbing character '*'
+     * @return the projection that keeps only the attributes with the given tags
+     */
+    public static AttributeProjection of(Attributes tags)
+    {
+        if (tags == null) return ALL;
+        if (tags.isEmpty()) return NONE;
+        return new AttributeProjection(tags);
+    }
+
+    /**
+     * @return the tags to keep, or null if all the attributes are kept
+     */
+    public Attributes getTags()
+    {
+        return tags;
+    }
+
+    public boolean isAll()
+    {
+        return tags == null;
+    }
+
+    public boolean isNone()
+    {
+        return tags != null && tags.isEmpty();
+    }
+
+    /**
+     * @param tag the unescaped tag to keep as well
+     * @return a projection that keeps the attributes of this projection and the attribute with the given tag
+     */
+    public AttributeProjection include(String tag)
+    {
+        if (isAll() || tag == null) return this;
+        return of(tags.union(Attributes.fromTags(Attributes.escapeTag(tag))));
+    }
+
+    /**
+     * @param attributes the attributes to project
+     * @return the attributes with the tags kept by this projection, or null if this projection keeps no attributes
+     */
+    public Attributes project(Attributes attributes)
+    {
+        if (isNone()) return null;
+        if (isAll() || attributes == null) return attributes;
+        return attributes.intersect(tags);
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final AttributeProjection that = (AttributeProjection)obj;
+        return tags == null ? that.tags == null : tags.equals(that.tags);
+    }
+
+    public int hashCode()
+    {
+        return tags == null ? 0 : tags.hashCode();
+    }
+
+    public String toString()
+    {
+        if (isAll()) return "all attributes";
+        if (isNone()) return "no attributes";
+        return tags.asTagsString();
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Arrays;
+
+
+/**
+ * A compressed set of non negative integers, used as posting list of the {@link AttributeIndexes}.
+ * <br />
+ * Integers are partitioned by their high 16 bits into chunks of 65536 integers, in the manner of Roaring bitmaps:
+ * chunks with few integers store them in a sorted array of 16 bits values, and chunks with many integers store
+ * them in a bitmap of 8 KiB; therefore both sparse and dense sets take little memory, and set operations
+ * are performed chunk by chunk, word by word when both chunks are bitmaps.
+ * <br />
+ * The set operations return new bitmaps and do not modify their operands.
+ * This class is not thread safe.
+ */
+class CompressedBitmap
+{
+    /**
+     * Chunks with more integers than this are stored as bitmaps, that take less memory than arrays
+     */
+    private static final int MAX_ARRAY_CARDINALITY = 4096;
+
+    private char[] keys;
+    private Chunk[] chunks;
+    private int size;
+
+    CompressedBitmap()
+    {
+        this(4);
+    }
+
+    private CompressedBitmap(int capacity)
+    {
+        this.keys = new char[capacity];
+        this.chunks = new Chunk[capacity];
+    }
+
+    /**
+     * @param value the integer to add
+     * @return true if the integer was not present
+     */
+    boolean add(int value)
+    {
+        if (value < 0) throw new IllegalArgumentException("Invalid value " + value);
+        char key = (char)(value >>> 16);
+        int index = indexOf(key);
+        if (index < 0)
+        {
+            index = -index - 1;
+            insert(index, key, new ArrayChunk(1));
+        }
+        Chunk chunk = chunks[index];
+        int cardinality = chunk.cardinality;
+        chunks[index] = chunk.add((char)value);
+        return chunks[index].cardinality > cardinality;
+    }
+
+    /**
+     * @param value the integer to remove
+     * @return true if the integer was present
+     */
+    boolean remove(int value)
+    {
+        if (value < 0) return false;
+        int index = indexOf((char)(value >>> 16));
+        if (index < 0) return false;
+        Chunk chunk = chunks[index];
+        int cardinality = chunk.cardinality;
+        chunk = chunk.remove((char)value);
+        if (chunk.cardinality == 0)
+        {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(chunks, index + 1, chunks, index, size - index - 1);
+            chunks[--size] = null;
+        }
+        else
+        {
+            chunks[index] = chunk;
+        }
+        return chunk.cardinality < cardinality;
+    }
+
+    boolean contains(int value)
+    {
+        if (value < 0) return false;
+        int index = indexOf((char)(value >>> 16));
+        return index >= 0 && chunks[index].contains((char)value);
+    }
+
+    int getCardinality()
+    {
+        int result = 0;
+        for (int i = 0; i < size; ++i) result += chunks[i].cardinality;
+        return result;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the integers of this bitmap, in ascending order
+     */
+    int[] toArray()
+    {
+        int[] result = new int[getCardinality()];
+        int offset = 0;
+        for (int i = 0; i < size; ++i) offset = chunks[i].toArray(keys[i] << 16, result, offset);
+        return result;
+    }
+
+    /**
+     * @param other the bitmap to intersect with this bitmap
+     * @return a new bitmap with the integers present in both this bitmap and the given bitmap
+     */
+    CompressedBitmap and(CompressedBitmap other)
+    {
+        CompressedBitmap result = new CompressedBitmap(Math.max(1, Math.min(size, other.size)));
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size)
+        {
+            if (keys[i] < other.keys[j])
+            {
+                ++i;
+            }
+            else if (keys[i] > other.keys[j])
+            {
+                ++j;
+            }
+            else
+            {
+                Chunk chunk = chunks[i].and(other.chunks[j]);
+                if (chunk.cardinality > 0) result.append(keys[i], chunk);
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param other the bitmap to unite with this bitmap
+     * @return a new bitmap with the integers present in this bitmap or in the given bitmap
+     */
+    CompressedBitmap or(CompressedBitmap other)
+    {
+        CompressedBitmap result = new CompressedBitmap(Math.max(1, size + other.size));
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size)
+        {
+            if (j == other.size || (i < size && keys[i] < other.keys[j]))
+            {
+                result.append(keys[i], chunks[i].copy());
+                ++i;
+            }
+            else if (i == size || keys[i] > other.keys[j])
+            {
+                result.append(other.keys[j], other.chunks[j].copy());
+                ++j;
+            }
+            else
+            {
+                result.append(keys[i], chunks[i].or(other.chunks[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param other the bitmap to subtract from this bitmap
+     * @return a new bitmap with the integers present in this bitmap and not in the given bitmap
+     */
+    CompressedBitmap andNot(CompressedBitmap other)
+    {
+        CompressedBitmap result = new CompressedBitmap(Math.max(1, size));
+        int j = 0;
+        for (int i = 0; i < size; ++i)
+        {
+            while (j < other.size && other.keys[j] < keys[i]) ++j;
+            if (j < other.size && other.keys[j] == keys[i])
+            {
+                Chunk chunk = chunks[i].andNot(other.chunks[j]);
+                if (chunk.cardinality > 0) result.append(keys[i], chunk);
+            }
+            else
+            {
+                result.append(keys[i], chunks[i].copy());
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(char key)
+    {
+        return binarySearch(keys, size, key);
+    }
+
+    private void insert(int index, char key, Chunk chunk)
+    {
+        ensureCapacity();
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        ++size;
+    }
+
+    private void append(char key, Chunk chunk)
+    {
+        ensureCapacity();
+        keys[size] = key;
+        chunks[size] = chunk;
+        ++size;
+    }
+
+    private void ensureCapacity()
+    {
+        if (size < keys.length) return;
+        int capacity = keys.length * 2;
+        char[] newKeys = new char[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        keys = newKeys;
+        Chunk[] newChunks = new Chunk[capacity];
+        System.arraycopy(chunks, 0, newChunks, 0, size);
+        chunks = newChunks;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * @return the index of the given key in the first <code>size</code> elements of the given sorted array,
+     *         or <code>(-(insertion point) - 1)</code> if the key is not present
+     */
+    private static int binarySearch(char[] array, int size, char key)
+    {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            char value = array[middle];
+            if (value < key)
+                low = middle + 1;
+            else if (value > key)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    private static char[] copyOf(char[] array, int size, int capacity)
+    {
+        char[] result = new char[capacity];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * The integers of a bitmap that have the same high 16 bits; operations that change the cardinality of
+     * a chunk may return a chunk of a different type.
+     */
+    private static abstract class Chunk
+    {
+        protected int cardinality;
+
+        protected abstract Chunk add(char value);
+
+        protected abstract Chunk remove(char value);
+
+        protected abstract boolean contains(char value);
+
+        protected abstract Chunk and(Chunk other);
+
+        protected abstract Chunk or(Chunk other);
+
+        protected abstract Chunk andNot(Chunk other);
+
+        protected abstract Chunk copy();
+
+        protected abstract int toArray(int high, int[] result, int offset);
+    }
+
+    private static class ArrayChunk extends Chunk
+    {
+        private char[] values;
+
+        private ArrayChunk(int capacity)
+        {
+            this.values = new char[capacity];
+        }
+
+        protected Chunk add(char value)
+        {
+            int index = binarySearch(values, cardinality, value);
+            if (index >= 0) return this;
+            if (cardinality == MAX_ARRAY_CARDINALITY) return toBitmapChunk().add(value);
+            index = -index - 1;
+            if (cardinality == values.length) values = copyOf(values, cardinality, Math.min(MAX_ARRAY_CARDINALITY, Math.max(4, values.length * 2)));
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            ++cardinality;
+            return this;
+        }
+
+        protected Chunk remove(char value)
+        {
+            int index = binarySearch(values, cardinality, value);
+            if (index < 0) return this;
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            --cardinality;
+            return this;
+        }
+
+        protected boolean contains(char value)
+        {
+            return binarySearch(values, cardinality, value) >= 0;
+        }
+
+        protected Chunk and(Chunk other)
+        {
+            ArrayChunk result = new ArrayChunk(Math.max(1, cardinality));
+            for (int i = 0; i < cardinality; ++i)
+            {
+                if (other.contains(values[i])) result.values[result.cardinality++] = values[i];
+            }
+            return result;
+        }
+
+        protected Chunk or(Chunk other)
+        {
+            if (other instanceof BitmapChunk) return other.or(this);
+            ArrayChunk that = (ArrayChunk)other;
+            char[] merged = new char[cardinality + that.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < that.cardinality)
+            {
+                if (j == that.cardinality || (i < cardinality && values[i] < that.values[j]))
+                {
+                    merged[count++] = values[i++];
+                }
+                else if (i == cardinality || values[i] > that.values[j])
+                {
+                    merged[count++] = that.values[j++];
+                }
+                else
+                {
+                    merged[count++] = values[i++];
+                    ++j;
+                }
+            }
+            ArrayChunk result = new ArrayChunk(0);
+            result.values = merged;
+            result.cardinality = count;
+            return count > MAX_ARRAY_CARDINALITY ? result.toBitmapChunk() : result;
+        }
+
+        protected Chunk andNot(Chunk other)
+        {
+            ArrayChunk result = new ArrayChunk(Math.max(1, cardinality));
+            for (int i = 0; i < cardinality; ++i)
+            {
+                if (!other.contains(values[i])) result.values[result.cardinality++] = values[i];
+            }
+            return result;
+        }
+
+        protected Chunk copy()
+        {
+            ArrayChunk result = new ArrayChunk(0);
+            result.values = copyOf(values, cardinality, cardinality);
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        protected int toArray(int high, int[] result, int offset)
+        {
+            for (int i = 0; i < cardinality; ++i) result[offset++] = high | values[i];
+            return offset;
+        }
+
+        private BitmapChunk toBitmapChunk()
+        {
+            BitmapChunk result = new BitmapChunk();
+            for (int i = 0; i < cardinality; ++i) result.set(values[i]);
+            return result;
+        }
+    }
+
+    private static class BitmapChunk extends Chunk
+    {
+        private final long[] words = new long[1024];
+
+        protected Chunk add(char value)
+        {
+            set(value);
+            return this;
+        }
+
+        private void set(char value)
+        {
+            long word = words[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) == 0)
+            {
+                words[value >>> 6] = word | bit;
+                ++cardinality;
+            }
+        }
+
+        protected Chunk remove(char value)
+        {
+            long word = words[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) == 0) return this;
+            words[value >>> 6] = word & ~bit;
+            --cardinality;
+            return shrink();
+        }
+
+        protected boolean contains(char value)
+        {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        protected Chunk and(Chunk other)
+        {
+            if (other instanceof ArrayChunk) return other.and(this);
+            BitmapChunk that = (BitmapChunk)other;
+            BitmapChunk result = new BitmapChunk();
+            for (int i = 0; i < words.length; ++i)
+            {
+                long word = words[i] & that.words[i];
+                result.words[i] = word;
+                result.cardinality += Long.bitCount(word);
+            }
+            return result.shrink();
+        }
+
+        protected Chunk or(Chunk other)
+        {
+            BitmapChunk result = (BitmapChunk)copy();
+            if (other instanceof ArrayChunk)
+            {
+                ArrayChunk that = (ArrayChunk)other;
+                for (int i = 0; i < that.cardinality; ++i) result.set(that.values[i]);
+            }
+            else
+            {
+                BitmapChunk that = (BitmapChunk)other;
+                result.cardinality = 0;
+                for (int i = 0; i < words.length; ++i)
+                {
+                    long word = words[i] | that.words[i];
+                    result.words[i] = word;
+                    result.cardinality += Long.bitCount(word);
+                }
+            }
+            return result;
+        }
+
+        protected Chunk andNot(Chunk other)
+        {
+            BitmapChunk result = (BitmapChunk)copy();
+            if (other instanceof ArrayChunk)
+            {
+                ArrayChunk that = (ArrayChunk)other;
+                for (int i = 0; i < that.cardinality; ++i)
+                {
+                    char value = that.values[i];
+                    long bit = 1L << value;
+                    if ((result.words[value >>> 6] & bit) != 0)
+                    {
+                        result.words[value >>> 6] &= ~bit;
+                        --result.cardinality;
+                    }
+                }
+            }
+            else
+            {
+                BitmapChunk that = (BitmapChunk)other;
+                result.cardinality = 0;
+                for (int i = 0; i < words.length; ++i)
+                {
+                    long word = words[i] & ~that.words[i];
+                    result.words[i] = word;
+                    result.cardinality += Long.bitCount(word);
+                }
+            }
+            return result.shrink();
+        }
+
+        protected Chunk copy()
+        {
+            BitmapChunk result = new BitmapChunk();
+            System.arraycopy(words, 0, result.words, 0, words.length);
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        protected int toArray(int high, int[] result, int offset)
+        {
+            for (int i = 0; i < words.length; ++i)
+            {
+                long word = words[i];
+                while (word != 0)
+                {
+                    result[offset++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return offset;
+        }
+
+        private Chunk shrink()
+        {
+            if (cardinality > MAX_ARRAY_CARDINALITY) return this;
+            ArrayChunk result = new ArrayChunk(Math.max(1, cardinality));
+            int count = 0;
+            for (int i = 0; i < words.length; ++i)
+            {
+                long word = words[i];
+                while (word != 0)
+                {
+                    result.values[count++] = (char)((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            result.cardinality = count;
+            return result;
+        }
+    }
+}
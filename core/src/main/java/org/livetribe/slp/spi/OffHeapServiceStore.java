@@ -0,0 +1,1032 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.SLPError;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.filter.Filter;
+import org.livetribe.slp.spi.msg.URLEntry;
+
+
+/**
+ * A {@link ServiceStore} that keeps services outside the Java heap, for directory agents that hold
+ * a very large number of services.
+ * <br />
+ * Services are stored as records in slabs of direct memory; each record contains the registration time,
+ * the lifetime, the URL entry of the service in its wire form and the attributes string, while service types, languages
+ * and scopes, which are usually few and shared by many services, are kept in reference counted tables
+ * and referenced by the records.
+ * Records are found via an open addressing index of primitive arrays, keyed by the hash of the
+ * {@link ServiceInfo.Key service key}; the space of removed records is reclaimed by compacting the slabs
+ * when it exceeds the space of the live records.
+ * <br />
+ * Services are materialized only when returned to callers, for example when they match a query;
+ * materialized services carry their URL entry in wire form, so that replies copy it as it is.
+ * Since services are materialized, the services returned by this store are equal to, but not the same
+ * instances of, the services that have been stored.
+ */
+public class OffHeapServiceStore implements ServiceStore<ServiceInfo>
+{
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 16;
+    private static final int NO_VALUE = -1;
+    private static final int EXPLICIT_SERVICE_TYPE = 1;
+    // Offsets of the fields of a record
+    private static final int LENGTH_OFFSET = 0;
+    private static final int REGISTRATION_TIME_OFFSET = 4;
+    private static final int SERVICE_TYPE_OFFSET = 12;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int LANGUAGE_OFFSET = 20;
+    private static final int SCOPES_OFFSET = 24;
+    private static final int LIFETIME_OFFSET = 28;
+    private static final int URL_ENTRY_LENGTH_OFFSET = 32;
+    private static final int URL_ENTRY_OFFSET = 36;
+    // Offsets of the fields of a URL entry, see URLEntry
+    private static final int URL_ENTRY_URL_LENGTH_OFFSET = 3;
+    private static final int URL_ENTRY_URL_OFFSET = 5;
+
+    private final Lock lock = new ReentrantLock();
+    private final ServiceNotifier notifier = new ServiceNotifier(this);
+    private final Values<ServiceType> serviceTypes = new Values<ServiceType>();
+    private final Values<String> languages = new Values<String>();
+    private final Values<Scopes> scopes = new Values<Scopes>();
+    private final ServiceTypeRegistry serviceTypeRegistry = new ServiceTypeRegistry();
+    private final int slabSize;
+    private final ServiceJournal journal;
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer slab;
+    private long liveBytes;
+    private long garbageBytes;
+    private int[] hashes = new int[INITIAL_INDEX_CAPACITY];
+    private long[] addresses = new long[INITIAL_INDEX_CAPACITY];
+    private int size;
+
+    public OffHeapServiceStore()
+    {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param slabSize the size, in bytes, of the slabs of direct memory where services are stored
+     */
+    public OffHeapServiceStore(int slabSize)
+    {
+        this(slabSize, null);
+    }
+
+    /**
+     * @param slabSize the size, in bytes, of the slabs of direct memory where services are stored
+     * @param journal  the journal where changes are recorded, or null to not record changes;
+     *                 the services referenced by the journal are kept on the heap
+     */
+    public OffHeapServiceStore(int slabSize, ServiceJournal journal)
+    {
+        this.slabSize = slabSize;
+        this.journal = journal;
+    }
+
+    public void lock()
+    {
+        lock.lock();
+    }
+
+    public void unlock()
+    {
+        lock.unlock();
+    }
+
+    public void lock(ServiceInfo.Key key)
+    {
+        lock();
+    }
+
+    public void unlock(ServiceInfo.Key key)
+    {
+        unlock();
+    }
+
+    public void beginBatch()
+    {
+        notifier.beginBatch();
+    }
+
+    public void endBatch()
+    {
+        notifier.endBatch();
+    }
+
+    public void addServiceListener(ServiceListener listener)
+    {
+        notifier.addServiceListener(listener);
+    }
+
+    public ServiceJournal getServiceJournal()
+    {
+        return journal;
+    }
+
+    public AttributeIndexes.Statistics getAttributeIndexStatistics()
+    {
+        return null;
+    }
+
+    public void removeServiceListener(ServiceListener listener)
+    {
+        notifier.removeServiceListener(listener);
+    }
+
+    protected void notifyServiceAdded(ServiceInfo previous, ServiceInfo current)
+    {
+        notifier.serviceAdded(previous, current);
+    }
+
+    protected void notifyServiceUpdated(ServiceInfo previous, ServiceInfo current)
+    {
+        notifier.serviceUpdated(previous, current);
+    }
+
+    protected void notifyServiceRemoved(ServiceInfo previous, ServiceInfo current)
+    {
+        notifier.serviceRemoved(previous, current);
+    }
+
+    public Result<ServiceInfo> put(ServiceInfo service)
+    {
+        ServiceInfoCache.validate(service);
+        return putValidated(service);
+    }
+
+    /**
+     * Stores the given service, that has already been validated.
+     */
+    private Result<ServiceInfo> putValidated(ServiceInfo service)
+    {
+        ServiceType serviceType = service.resolveServiceType();
+        byte[] urlEntry = urlEntryBytes(service.getServiceURL());
+        ServiceInfo previous = null;
+
+        lock();
+        try
+        {
+            int slot = find(service.getKey(), urlEntry);
+            long address = addresses[slot];
+            if (address != 0)
+            {
+                ServiceType existingServiceType = serviceTypes.get(slab(address).getInt(offset(address) + SERVICE_TYPE_OFFSET));
+                if (!existingServiceType.equals(serviceType))
+                    throw new ServiceLocationException("Invalid registration of service " + service.getKey() +
+                                                       ": already registered under service type " + existingServiceType +
+                                                       ", cannot be registered also under service type " + serviceType, SLPError.INVALID_REGISTRATION);
+                previous = materialize(address);
+            }
+            service.setRegistered(true);
+            store(slot, service, urlEntry);
+            if (previous != null)
+            {
+                serviceTypeRegistry.remove(previous);
+                previous.setRegistered(false);
+            }
+            serviceTypeRegistry.add(service);
+            if (journal != null) journal.record(ServiceJournal.Type.ADDED, previous, service);
+        }
+        finally
+        {
+            unlock();
+        }
+
+        notifyServiceAdded(previous, service);
+        return new Result<ServiceInfo>(previous, service);
+    }
+
+    public ServiceInfo renew(ServiceInfo service)
+    {
+        byte[] urlEntry = urlEntryBytes(service.getServiceURL());
+        byte[] attributes = service.getAttributes() == null ? null : utf8(service.getAttributes().asString());
+        lock();
+        try
+        {
+            long address = addresses[find(service.getKey(), urlEntry)];
+            if (address == 0) return null;
+            ByteBuffer buffer = slab(address);
+            int offset = offset(address);
+            if (!isRenewal(buffer, offset, service, attributes)) return null;
+            // The given service is equal to the stored one, and becomes the renewed service
+            service.setRegistered(true);
+            buffer.putLong(offset + REGISTRATION_TIME_OFFSET, service.getRegistrationTime());
+            if (journal != null && journal.recordsRenewals()) journal.record(ServiceJournal.Type.RENEWED, service, service);
+            return service;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    /**
+     * Compares the given service with the given record without materializing the record.
+     */
+    private boolean isRenewal(ByteBuffer buffer, int offset, ServiceInfo service, byte[] attributes)
+    {
+        if (buffer.getInt(offset + LIFETIME_OFFSET) != service.getServiceURL().getLifetime()) return false;
+        if ((buffer.getInt(offset + FLAGS_OFFSET) & EXPLICIT_SERVICE_TYPE) != (service.getServiceType() == null ? 0 : EXPLICIT_SERVICE_TYPE))
+            return false;
+        if (buffer.getInt(offset + SERVICE_TYPE_OFFSET) != serviceTypes.find(service.resolveServiceType())) return false;
+        if (buffer.getInt(offset + LANGUAGE_OFFSET) != languages.find(service.getLanguage())) return false;
+        int scopesId = service.getScopes() == null ? NO_VALUE : scopes.find(service.getScopes());
+        if (service.getScopes() != null && scopesId == NO_VALUE) return false;
+        if (buffer.getInt(offset + SCOPES_OFFSET) != scopesId) return false;
+
+        int attributesOffset = offset + URL_ENTRY_OFFSET + buffer.getInt(offset + URL_ENTRY_LENGTH_OFFSET);
+        int length = buffer.getInt(attributesOffset);
+        if (attributes == null) return length < 0;
+        if (length != attributes.length) return false;
+        for (int i = 0; i < length; ++i)
+        {
+            if (buffer.get(attributesOffset + 4 + i) != attributes[i]) return false;
+        }
+        return true;
+    }
+
+    public Result<ServiceInfo> addAttributes(ServiceInfo.Key key, Attributes attributes)
+    {
+        return update(key, attributes, true);
+    }
+
+    public Result<ServiceInfo> removeAttributes(ServiceInfo.Key key, Attributes attributes)
+    {
+        return update(key, attributes, false);
+    }
+
+    private Result<ServiceInfo> update(ServiceInfo.Key key, Attributes attributes, boolean add)
+    {
+        ServiceInfo previous = null;
+        ServiceInfo current = null;
+
+        lock();
+        try
+        {
+            byte[] urlEntry = urlEntryBytes(key.getServiceURL());
+            int slot = find(key, urlEntry);
+            long address = addresses[slot];
+            // Updating a service that does not exist must fail (RFC 2608, 9.3)
+            if (address == 0)
+                throw new ServiceLocationException("Could not find service to update " + key, SLPError.INVALID_UPDATE);
+
+            previous = materialize(address);
+            current = add ? previous.addAttributes(attributes) : previous.removeAttributes(attributes);
+            current.setRegistered(true);
+            store(slot, current, urlEntryBytes(current.getServiceURL()));
+            previous.setRegistered(false);
+            serviceTypeRegistry.remove(previous);
+            serviceTypeRegistry.add(current);
+            if (journal != null) journal.record(ServiceJournal.Type.UPDATED, previous, current);
+        }
+        finally
+        {
+            unlock();
+        }
+
+        notifyServiceUpdated(previous, current);
+        return new Result<ServiceInfo>(previous, current);
+    }
+
+    public Result<ServiceInfo> remove(ServiceInfo.Key key)
+    {
+        ServiceInfo previous = null;
+
+        byte[] urlEntry = urlEntryBytes(key.getServiceURL());
+        lock();
+        try
+        {
+            int slot = find(key, urlEntry);
+            long address = addresses[slot];
+            if (address == 0) return new Result<ServiceInfo>(null, null);
+            previous = materialize(address);
+            previous.setRegistered(false);
+            serviceTypeRegistry.remove(previous);
+            release(address);
+            removeSlot(slot);
+            if (journal != null) journal.record(ServiceJournal.Type.REMOVED, previous, null);
+        }
+        finally
+        {
+            unlock();
+        }
+
+        notifyServiceRemoved(previous, null);
+        return new Result<ServiceInfo>(previous, null);
+    }
+
+    public List<Result<ServiceInfo>> putAll(Collection<? extends ServiceInfo> services)
+    {
+        List<Result<ServiceInfo>> result = new ArrayList<Result<ServiceInfo>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                ServiceInfoCache.validateAll(this, services);
+                for (ServiceInfo service : services) result.add(putValidated(service));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<ServiceInfo>> updateAll(Collection<? extends ServiceInfo> services)
+    {
+        List<Result<ServiceInfo>> result = new ArrayList<Result<ServiceInfo>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                ServiceInfoCache.validateUpdateAll(this, services);
+                for (ServiceInfo service : services) result.add(addAttributes(service.getKey(), service.getAttributes()));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<ServiceInfo>> removeAll(Collection<ServiceInfo.Key> keys)
+    {
+        List<Result<ServiceInfo>> result = new ArrayList<Result<ServiceInfo>>(keys.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                for (ServiceInfo.Key key : keys) result.add(remove(key));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public ServiceInfo get(ServiceInfo.Key key)
+    {
+        byte[] urlEntry = urlEntryBytes(key.getServiceURL());
+        lock();
+        try
+        {
+            long address = addresses[find(key, urlEntry)];
+            return address == 0 ? null : materialize(address);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public List<ServiceInfo> match(ServiceType serviceType, String language, Scopes scopes, Filter filter)
+    {
+        return match(serviceType, language, scopes, filter, null);
+    }
+
+    public List<ServiceInfo> match(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit)
+    {
+        Collection<ServiceInfo> result = limit == null ? new ArrayList<ServiceInfo>() : limit.newSelection();
+        long now = System.currentTimeMillis();
+        lock();
+        try
+        {
+            // Service types, languages and scopes are shared by many services: match each only once
+            byte[] serviceTypeMatches = new byte[serviceTypes.getCapacity()];
+            byte[] languageMatches = new byte[languages.getCapacity()];
+            byte[] scopesMatches = new byte[this.scopes.getCapacity()];
+            for (long address : addresses)
+            {
+                if (address == 0) continue;
+                ByteBuffer buffer = slab(address);
+                int offset = offset(address);
+                if (isExpiredAsOf(buffer, offset, now)) continue;
+
+                int serviceTypeId = buffer.getInt(offset + SERVICE_TYPE_OFFSET);
+                if (serviceType != null && !matches(serviceTypeMatches, serviceTypeId, serviceType)) continue;
+
+                int languageId = buffer.getInt(offset + LANGUAGE_OFFSET);
+                if (language != null && !matches(languageMatches, languageId, language)) continue;
+
+                int scopesId = buffer.getInt(offset + SCOPES_OFFSET);
+                if (scopes != null && (scopesId == NO_VALUE || !matches(scopesMatches, scopesId, scopes))) continue;
+
+                if (filter != null && !filter.matches(attributes(buffer, offset))) continue;
+
+                result.add(materialize(address));
+            }
+            return limit == null ? (List<ServiceInfo>)result : ((ResultLimit.Selection<ServiceInfo>)result).asList();
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public int count(ServiceType serviceType, String language, Scopes scopes, Filter filter, int max)
+    {
+        int result = 0;
+        long now = System.currentTimeMillis();
+        lock();
+        try
+        {
+            // Services are never materialized, and attributes are decoded only to match the filter
+            byte[] serviceTypeMatches = new byte[serviceTypes.getCapacity()];
+            byte[] languageMatches = new byte[languages.getCapacity()];
+            byte[] scopesMatches = new byte[this.scopes.getCapacity()];
+            for (int i = 0; i < addresses.length && result < max; ++i)
+            {
+                long address = addresses[i];
+                if (address == 0) continue;
+                ByteBuffer buffer = slab(address);
+                int offset = offset(address);
+                if (isExpiredAsOf(buffer, offset, now)) continue;
+
+                int serviceTypeId = buffer.getInt(offset + SERVICE_TYPE_OFFSET);
+                if (serviceType != null && !matches(serviceTypeMatches, serviceTypeId, serviceType)) continue;
+
+                int languageId = buffer.getInt(offset + LANGUAGE_OFFSET);
+                if (language != null && !matches(languageMatches, languageId, language)) continue;
+
+                int scopesId = buffer.getInt(offset + SCOPES_OFFSET);
+                if (scopes != null && (scopesId == NO_VALUE || !matches(scopesMatches, scopesId, scopes))) continue;
+
+                if (filter != null && !filter.matches(attributes(buffer, offset))) continue;
+
+                ++result;
+            }
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public List<ServiceInfo> match(ServiceURL serviceURL, String language, Scopes scopes)
+    {
+        List<ServiceInfo> result = new ArrayList<ServiceInfo>();
+        long now = System.currentTimeMillis();
+        byte[] urlEntry = urlEntryBytes(serviceURL);
+        lock();
+        try
+        {
+            // Records are indexed by URL and language, and there are few distinct languages: look up each of them
+            for (int languageId = 0; languageId < languages.getCapacity(); ++languageId)
+            {
+                String registeredLanguage = languages.get(languageId);
+                if (registeredLanguage == null) continue;
+                if (language != null && !language.equals(registeredLanguage)) continue;
+
+                ServiceInfo.Key key = new ServiceInfo(serviceURL, registeredLanguage, null, null).getKey();
+                long address = addresses[find(key, urlEntry)];
+                if (address == 0) continue;
+                ByteBuffer buffer = slab(address);
+                int offset = offset(address);
+                if (isExpiredAsOf(buffer, offset, now)) continue;
+
+                int scopesId = buffer.getInt(offset + SCOPES_OFFSET);
+                if (scopes != null && (scopesId == NO_VALUE || !this.scopes.get(scopesId).match(scopes))) continue;
+
+                result.add(materialize(address));
+            }
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    private boolean matches(byte[] matches, int id, Object asked)
+    {
+        byte match = matches[id];
+        if (match == 0)
+        {
+            boolean matching;
+            if (asked instanceof ServiceType)
+            {
+                ServiceType registered = serviceTypes.get(id);
+                matching = asked == registered || ((ServiceType)asked).matches(registered);
+            }
+            else if (asked instanceof Scopes)
+            {
+                matching = this.scopes.get(id).match((Scopes)asked);
+            }
+            else
+            {
+                matching = asked.equals(languages.get(id));
+            }
+            matches[id] = match = matching ? (byte)1 : (byte)-1;
+        }
+        return match > 0;
+    }
+
+    public List<ServiceType> matchServiceTypes(String namingAuthority, Scopes scopes)
+    {
+        lock();
+        try
+        {
+            return serviceTypeRegistry.match(namingAuthority, scopes);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public Attributes matchAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags)
+    {
+        List<Attributes.Aggregate> aggregates = new ArrayList<Attributes.Aggregate>();
+        lock();
+        try
+        {
+            serviceTypeRegistry.matchAttributes(serviceType, language, scopes, aggregates);
+            return Attributes.Aggregate.aggregate(aggregates, tags);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public List<ServiceInfo> getServiceInfos()
+    {
+        lock();
+        try
+        {
+            List<ServiceInfo> result = new ArrayList<ServiceInfo>(size);
+            for (long address : addresses)
+            {
+                if (address != 0) result.add(materialize(address));
+            }
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public List<ServiceInfo> purge()
+    {
+        List<ServiceInfo> result = new ArrayList<ServiceInfo>();
+        long now = System.currentTimeMillis();
+        lock();
+        try
+        {
+            List<ServiceInfo.Key> expired = new ArrayList<ServiceInfo.Key>();
+            for (long address : addresses)
+            {
+                if (address != 0 && isExpiredAsOf(slab(address), offset(address), now))
+                    expired.add(materialize(address).getKey());
+            }
+            for (Result<ServiceInfo> removed : removeAll(expired))
+            {
+                if (removed.getPrevious() != null) result.add(removed.getPrevious());
+            }
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public int getSize()
+    {
+        lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated by this store
+     */
+    public long getAllocatedBytes()
+    {
+        lock();
+        try
+        {
+            long result = 0;
+            for (ByteBuffer buffer : slabs) result += buffer.capacity();
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    private boolean isExpiredAsOf(ByteBuffer buffer, int offset, long time)
+    {
+        // The lifetime of the URL entry cannot represent permanent services, use the one of the record
+        int lifetime = buffer.getInt(offset + LIFETIME_OFFSET);
+        if (lifetime == ServiceURL.LIFETIME_PERMANENT) return false;
+        long registrationTime = buffer.getLong(offset + REGISTRATION_TIME_OFFSET);
+        return registrationTime + TimeUnit.SECONDS.toMillis(lifetime) <= time;
+    }
+
+    private Attributes attributes(ByteBuffer buffer, int offset)
+    {
+        int attributesOffset = offset + URL_ENTRY_OFFSET + buffer.getInt(offset + URL_ENTRY_LENGTH_OFFSET);
+        int length = buffer.getInt(attributesOffset);
+        if (length < 0) return null;
+        return Attributes.from(utf8(bytes(buffer, attributesOffset + 4, length)));
+    }
+
+    private ServiceInfo materialize(long address)
+    {
+        ByteBuffer buffer = slab(address);
+        int offset = offset(address);
+        byte[] urlEntryBytes = bytes(buffer, offset + URL_ENTRY_OFFSET, buffer.getInt(offset + URL_ENTRY_LENGTH_OFFSET));
+        URLEntry urlEntry = new URLEntry();
+        urlEntry.deserialize(urlEntryBytes, 0);
+        ServiceType serviceType = (buffer.getInt(offset + FLAGS_OFFSET) & EXPLICIT_SERVICE_TYPE) == 0 ? null : serviceTypes.get(buffer.getInt(offset + SERVICE_TYPE_OFFSET));
+        ServiceURL serviceURL = new ServiceURL(urlEntry.getURL(), buffer.getInt(offset + LIFETIME_OFFSET));
+        return new StoredServiceInfo(serviceType, serviceURL,
+                languages.get(buffer.getInt(offset + LANGUAGE_OFFSET)), scopes.get(buffer.getInt(offset + SCOPES_OFFSET)),
+                attributes(buffer, offset), urlEntryBytes, buffer.getLong(offset + REGISTRATION_TIME_OFFSET));
+    }
+
+    /**
+     * Stores the given service in a new record, replacing the record at the given slot of the index, if any.
+     */
+    private void store(int slot, ServiceInfo service, byte[] urlEntry)
+    {
+        byte[] attributes = service.getAttributes() == null ? null : utf8(service.getAttributes().asString());
+        int length = URL_ENTRY_OFFSET + urlEntry.length + 4 + (attributes == null ? 0 : attributes.length);
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(LENGTH_OFFSET, length);
+        record.putLong(REGISTRATION_TIME_OFFSET, service.getRegistrationTime());
+        record.putInt(SERVICE_TYPE_OFFSET, serviceTypes.acquire(service.resolveServiceType()));
+        record.putInt(FLAGS_OFFSET, service.getServiceType() == null ? 0 : EXPLICIT_SERVICE_TYPE);
+        record.putInt(LANGUAGE_OFFSET, languages.acquire(service.getLanguage()));
+        record.putInt(SCOPES_OFFSET, service.getScopes() == null ? NO_VALUE : scopes.acquire(service.getScopes()));
+        record.putInt(LIFETIME_OFFSET, service.getServiceURL().getLifetime());
+        record.putInt(URL_ENTRY_LENGTH_OFFSET, urlEntry.length);
+        record.position(URL_ENTRY_OFFSET);
+        record.put(urlEntry);
+        record.putInt(attributes == null ? NO_VALUE : attributes.length);
+        if (attributes != null) record.put(attributes);
+
+        long previous = addresses[slot];
+        if (previous != 0)
+        {
+            release(previous);
+        }
+        else
+        {
+            ++size;
+            if (size * 2 > addresses.length)
+            {
+                resize(addresses.length * 2);
+                slot = find(service.getKey(), urlEntry);
+            }
+            hashes[slot] = hash(service.getKey());
+        }
+        addresses[slot] = allocate(record.array());
+        liveBytes += length;
+
+        if (garbageBytes > liveBytes && garbageBytes > slabSize) compact();
+    }
+
+    private void release(long address)
+    {
+        ByteBuffer buffer = slab(address);
+        int offset = offset(address);
+        serviceTypes.release(buffer.getInt(offset + SERVICE_TYPE_OFFSET));
+        languages.release(buffer.getInt(offset + LANGUAGE_OFFSET));
+        int scopesId = buffer.getInt(offset + SCOPES_OFFSET);
+        if (scopesId != NO_VALUE) scopes.release(scopesId);
+        int length = buffer.getInt(offset + LENGTH_OFFSET);
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    private long allocate(byte[] record)
+    {
+        if (slab == null || slab.remaining() < record.length)
+        {
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, record.length));
+            slabs.add(slab);
+        }
+        long address = ((long)slabs.size() << 32) | slab.position();
+        slab.put(record);
+        return address;
+    }
+
+    /**
+     * Copies the live records into new slabs, releasing the old slabs and the space of removed records.
+     */
+    private void compact()
+    {
+        List<ByteBuffer> oldSlabs = slabs;
+        slabs = new ArrayList<ByteBuffer>();
+        slab = null;
+        for (int i = 0; i < addresses.length; ++i)
+        {
+            long address = addresses[i];
+            if (address == 0) continue;
+            ByteBuffer buffer = oldSlabs.get((int)(address >>> 32) - 1);
+            int offset = offset(address);
+            addresses[i] = allocate(bytes(buffer, offset, buffer.getInt(offset + LENGTH_OFFSET)));
+        }
+        garbageBytes = 0;
+    }
+
+    private ByteBuffer slab(long address)
+    {
+        return slabs.get((int)(address >>> 32) - 1);
+    }
+
+    private int offset(long address)
+    {
+        return (int)address;
+    }
+
+    private int hash(ServiceInfo.Key key)
+    {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the slot of the index that contains the record with the given key, or the empty slot
+     *         where the record should be inserted
+     */
+    private int find(ServiceInfo.Key key, byte[] urlEntry)
+    {
+        int hash = hash(key);
+        int mask = addresses.length - 1;
+        int languageId = languages.find(key.getLanguage());
+        int slot = hash & mask;
+        while (true)
+        {
+            long address = addresses[slot];
+            if (address == 0) return slot;
+            if (hashes[slot] == hash && languageId != NO_VALUE && keyEquals(address, languageId, urlEntry)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(long address, int languageId, byte[] urlEntry)
+    {
+        ByteBuffer buffer = slab(address);
+        int offset = offset(address);
+        if (buffer.getInt(offset + LANGUAGE_OFFSET) != languageId) return false;
+        int urlOffset = offset + URL_ENTRY_OFFSET + URL_ENTRY_URL_OFFSET;
+        int urlLength = buffer.getShort(offset + URL_ENTRY_OFFSET + URL_ENTRY_URL_LENGTH_OFFSET) & 0xFFFF;
+        if (urlLength != urlEntry.length - URL_ENTRY_URL_OFFSET - 1) return false;
+        for (int i = 0; i < urlLength; ++i)
+        {
+            if (buffer.get(urlOffset + i) != urlEntry[URL_ENTRY_URL_OFFSET + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the given slot from the index, shifting back the following entries of the same cluster,
+     * so that no tombstones are needed.
+     */
+    private void removeSlot(int slot)
+    {
+        int mask = addresses.length - 1;
+        int hole = slot;
+        addresses[hole] = 0;
+        int next = hole;
+        while (true)
+        {
+            next = (next + 1) & mask;
+            if (addresses[next] == 0) break;
+            int home = hashes[next] & mask;
+            // Move the entry into the hole, unless its home slot is cyclically between the hole and the entry
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays)
+            {
+                addresses[hole] = addresses[next];
+                hashes[hole] = hashes[next];
+                addresses[next] = 0;
+                hole = next;
+            }
+        }
+        --size;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldHashes = hashes;
+        long[] oldAddresses = addresses;
+        hashes = new int[capacity];
+        addresses = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; ++i)
+        {
+            if (oldAddresses[i] == 0) continue;
+            int slot = oldHashes[i] & mask;
+            while (addresses[slot] != 0) slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            addresses[slot] = oldAddresses[i];
+        }
+    }
+
+    private static byte[] urlEntryBytes(ServiceURL serviceURL)
+    {
+        URLEntry urlEntry = new URLEntry();
+        urlEntry.setURL(serviceURL.getURL());
+        urlEntry.setLifetime(serviceURL.getLifetime());
+        return urlEntry.serialize();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length)
+    {
+        byte[] result = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(result);
+        return result;
+    }
+
+    private static byte[] utf8(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static String utf8(byte[] bytes)
+    {
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+
+    /**
+     * A table of reference counted values, identified by small integers.
+     */
+    private static class Values<V>
+    {
+        private final Map<V, Integer> ids = new HashMap<V, Integer>();
+        private final List<V> values = new ArrayList<V>();
+        private final List<Integer> freeIds = new ArrayList<Integer>();
+        private int[] references = new int[INITIAL_INDEX_CAPACITY];
+
+        private int find(V value)
+        {
+            Integer id = ids.get(value);
+            return id == null ? NO_VALUE : id;
+        }
+
+        private int acquire(V value)
+        {
+            Integer id = ids.get(value);
+            if (id == null)
+            {
+                if (freeIds.isEmpty())
+                {
+                    id = values.size();
+                    values.add(value);
+                    if (id == references.length)
+                    {
+                        int[] newReferences = new int[references.length * 2];
+                        System.arraycopy(references, 0, newReferences, 0, references.length);
+                        references = newReferences;
+                    }
+                }
+                else
+                {
+                    id = freeIds.remove(freeIds.size() - 1);
+                    values.set(id, value);
+                }
+                ids.put(value, id);
+            }
+            ++references[id];
+            return id;
+        }
+
+        private void release(int id)
+        {
+            if (--references[id] == 0)
+            {
+                ids.remove(values.get(id));
+                values.set(id, null);
+                freeIds.add(id);
+            }
+        }
+
+        private V get(int id)
+        {
+            return id == NO_VALUE ? null : values.get(id);
+        }
+
+        private int getCapacity()
+        {
+            return values.size();
+        }
+    }
+
+    /**
+     * A service materialized from its record, that carries its URL entry in wire form.
+     */
+    public static class StoredServiceInfo extends ServiceInfo
+    {
+        private final byte[] urlEntryBytes;
+
+        private StoredServiceInfo(ServiceType serviceType, ServiceURL serviceURL, String language, Scopes scopes, Attributes attributes, byte[] urlEntryBytes, long registrationTime)
+        {
+            super(serviceType, serviceURL, language, scopes, attributes);
+            this.urlEntryBytes = urlEntryBytes;
+            setRegistrationTime(registrationTime);
+        }
+
+        /**
+         * @return the URL entry of this service in wire form
+         * @see URLEntry#setBytes(byte[])
+         */
+        @Override
+        public byte[] getURLEntryBytes()
+        {
+            return urlEntryBytes;
+        }
+    }
+
+    public static class Factory implements ServiceStore.Factory
+    {
+        public ServiceStore<ServiceInfo> newServiceStore(Settings settings)
+        {
+            return new OffHeapServiceStore(DEFAULT_SLAB_SIZE, ServiceJournal.newInstance(settings));
+        }
+    }
+}
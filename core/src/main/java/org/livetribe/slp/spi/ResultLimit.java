@@ -0,0 +1,251 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.spi.msg.Extension;
+import org.livetribe.slp.spi.msg.ResultLimitExtension;
+
+
+/**
+ * The maximum number of services to return for a query, optionally selected by the value of an
+ * integer attribute, for example the 3 least loaded services of a service type.
+ * <br />
+ * Services with the same value of the order attribute (or all the services, when there is no order attribute)
+ * are selected randomly, so that queries with the same result limit spread over the matching services.
+ * Services that do not have the order attribute, or whose value is not an integer, are selected after
+ * the services that have it.
+ *
+ * @see ServiceStore#match(org.livetribe.slp.ServiceType, String, org.livetribe.slp.Scopes, org.livetribe.slp.spi.filter.Filter, ResultLimit)
+ */
+public class ResultLimit
+{
+    /**
+     * The maximum value of the maximum number of results, as it is encoded in the SrvRqst extension.
+     */
+    public static final int MAX_RESULTS = 0xFFFF;
+
+    private final int maxResults;
+    private final String orderTag;
+    private final boolean ascending;
+
+    /**
+     * Creates a result limit that selects randomly the given number of services.
+     *
+     * @param maxResults the maximum number of services to return
+     */
+    public ResultLimit(int maxResults)
+    {
+        this(maxResults, null, true);
+    }
+
+    /**
+     * @param maxResults the maximum number of services to return
+     * @param orderTag   the unescaped tag of the integer attribute used to select the services, or null
+     *                   to select the services randomly
+     * @param ascending  true to select the services with the lowest values of the order attribute,
+     *                   false to select the services with the highest values
+     */
+    public ResultLimit(int maxResults, String orderTag, boolean ascending)
+    {
+        if (maxResults <= 0 || maxResults > MAX_RESULTS)
+            throw new IllegalArgumentException("Invalid max results " + maxResults);
+        this.maxResults = maxResults;
+        this.orderTag = orderTag == null || orderTag.length() == 0 ? null : orderTag;
+        this.ascending = ascending;
+    }
+
+    /**
+     * @param extensions the extensions of a SrvRqst
+     * @return the result limit carried by the {@link ResultLimitExtension} among the given extensions,
+     *         or null if there is no such extension or if it does not specify a valid limit
+     */
+    public static ResultLimit from(Collection<? extends Extension> extensions)
+    {
+        ResultLimitExtension extension = ResultLimitExtension.findFirst(extensions);
+        if (extension == null || extension.getMaxResults() <= 0) return null;
+        return new ResultLimit(extension.getMaxResults(), extension.getOrderTag(), extension.isAscending());
+    }
+
+    public int getMaxResults()
+    {
+        return maxResults;
+    }
+
+    public String getOrderTag()
+    {
+        return orderTag;
+    }
+
+    public boolean isAscending()
+    {
+        return ascending;
+    }
+
+    /**
+     * Selects among the given services the ones to return according to this result limit, for example to combine
+     * the replies of many agents, or the replies of agents that do not support result limits.
+     *
+     * @param services the services to select from
+     * @return a new list of at most {@link #getMaxResults()} services, in the order specified by this result limit
+     */
+    public <T extends ServiceInfo> List<T> select(Collection<? extends T> services)
+    {
+        Selection<T> result = newSelection();
+        result.addAll(services);
+        return result.asList();
+    }
+
+    /**
+     * @return a new, empty, selection of services for this result limit
+     */
+    <T extends ServiceInfo> Selection<T> newSelection()
+    {
+        return new Selection<T>(this);
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final ResultLimit that = (ResultLimit)obj;
+        if (maxResults != that.maxResults) return false;
+        if (ascending != that.ascending) return false;
+        return orderTag == null ? that.orderTag == null : orderTag.equals(that.orderTag);
+    }
+
+    public int hashCode()
+    {
+        int result = maxResults;
+        result = 29 * result + (orderTag == null ? 0 : orderTag.hashCode());
+        result = 29 * result + (ascending ? 1 : 0);
+        return result;
+    }
+
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder();
+        result.append(maxResults);
+        if (orderTag != null) result.append(" by ").append(orderTag).append(ascending ? " ascending" : " descending");
+        return result.toString();
+    }
+
+    /**
+     * A bounded collection that retains the best services added to it, according to a {@link ResultLimit}.
+     * <br />
+     * Services are kept in a heap of at most {@link ResultLimit#getMaxResults()} elements, with the worst service
+     * on top, so that adding N services costs O(N log K) and the matching services are never sorted as a whole.
+     */
+    static class Selection<T extends ServiceInfo> extends AbstractCollection<T>
+    {
+        private final Random random = new Random();
+        private final PriorityQueue<Entry<T>> heap;
+        private final int maxResults;
+        private final String orderTag;
+        private final boolean ascending;
+
+        private Selection(ResultLimit limit)
+        {
+            this.maxResults = limit.getMaxResults();
+            this.orderTag = limit.getOrderTag();
+            this.ascending = limit.isAscending();
+            this.heap = new PriorityQueue<Entry<T>>(Math.min(maxResults, 64) + 1, Collections.reverseOrder());
+        }
+
+        /**
+         * @param service the service to select
+         * @return true if the service is retained (possibly evicting a worse service), false otherwise
+         */
+        public boolean add(T service)
+        {
+            long rank = rank(service.getAttributes());
+            int tiebreak = random.nextInt();
+            if (heap.size() == maxResults)
+            {
+                // Compare with the worst selected service before creating the entry
+                Entry<T> worst = heap.peek();
+                if (rank > worst.rank || (rank == worst.rank && tiebreak >= worst.tiebreak)) return false;
+                heap.poll();
+            }
+            heap.add(new Entry<T>(service, rank, tiebreak));
+            return true;
+        }
+
+        private long rank(Attributes attributes)
+        {
+            if (orderTag == null) return 0;
+            if (attributes == null) return Long.MAX_VALUE;
+            Attributes.Value value = attributes.valueFor(orderTag);
+            // Services without the order attribute are selected last, whatever the order
+            if (!value.isIntegerType() || value.getSize() == 0) return Long.MAX_VALUE;
+            long integer = value.getIntegerValue(0);
+            return ascending ? integer : -integer;
+        }
+
+        public Iterator<T> iterator()
+        {
+            return asList().iterator();
+        }
+
+        public int size()
+        {
+            return heap.size();
+        }
+
+        /**
+         * @return a new list of the selected services, best first
+         */
+        public List<T> asList()
+        {
+            List<Entry<T>> entries = new ArrayList<Entry<T>>(heap);
+            Collections.sort(entries);
+            List<T> result = new ArrayList<T>(entries.size());
+            for (Entry<T> entry : entries) result.add(entry.service);
+            return result;
+        }
+    }
+
+    private static class Entry<T> implements Comparable<Entry<T>>
+    {
+        private final T service;
+        private final long rank;
+        private final int tiebreak;
+
+        private Entry(T service, long rank, int tiebreak)
+        {
+            this.service = service;
+            this.rank = rank;
+            this.tiebreak = tiebreak;
+        }
+
+        public int compareTo(Entry<T> that)
+        {
+            if (rank != that.rank) return rank < that.rank ? -1 : 1;
+            if (tiebreak != that.tiebreak) return tiebreak < that.tiebreak ? -1 : 1;
+            return 0;
+        }
+    }
+}
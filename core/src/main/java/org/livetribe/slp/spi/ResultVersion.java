@@ -0,0 +1,102 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Collection;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceURL;
+
+
+/**
+ * Computes the version of the result of a query, so that clients that repeat the same query can be told that
+ * the result has not been modified instead of receiving it again.
+ * <br />
+ * The version is a 64 bits hash of the content of the matching services (service URL, lifetime, language,
+ * scopes and attributes), independent of the order of the services; services whose registration has been
+ * renewed do not change the version, while services that expire do, even if the store has not been purged yet.
+ */
+public class ResultVersion
+{
+    /**
+     * The version that no result has, used by clients that do not have a previous result.
+     */
+    public static final long NONE = 0L;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private ResultVersion()
+    {
+    }
+
+    /**
+     * @param services the services of the result
+     * @return the version of the result, never {@link #NONE}
+     */
+    public static long of(Collection<? extends ServiceInfo> services)
+    {
+        long result = services.size();
+        // Summing is independent of the order of the services
+        for (ServiceInfo service : services) result += mix(hash(service));
+        return result == NONE ? 1L : result;
+    }
+
+    private static long hash(ServiceInfo service)
+    {
+        long result = FNV_OFFSET_BASIS;
+        ServiceURL serviceURL = service.getServiceURL();
+        result = hash(result, serviceURL.getURL());
+        result = hash(result, String.valueOf(serviceURL.getLifetime()));
+        result = hash(result, service.getLanguage());
+        Scopes scopes = service.getScopes();
+        if (scopes != null)
+        {
+            for (String scope : scopes.asStringArray()) result = hash(result, scope);
+        }
+        Attributes attributes = service.getAttributes();
+        result = hash(result, attributes == null ? null : attributes.asString());
+        return result;
+    }
+
+    private static long hash(long hash, String value)
+    {
+        if (value != null)
+        {
+            for (int i = 0; i < value.length(); ++i)
+            {
+                hash ^= value.charAt(i);
+                hash *= FNV_PRIME;
+            }
+        }
+        // Separates the values, so that "ab" + "c" and "a" + "bc" hash differently
+        hash ^= 0xFFFF;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -16,7 +16,10 @@
 package org.livetribe.slp.spi;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
@@ -29,10 +32,9 @@ import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.ServiceLocationException;
 import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.ServiceURL;
-import org.livetribe.slp.sa.ServiceEvent;
 import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.filter.Filter;
-import org.livetribe.slp.util.Listeners;
 
 
 /**
@@ -40,13 +42,57 @@ import org.livetribe.slp.util.Listeners;
  * // TODO: whose value is all the service types of services represented by the SA.
  * // TODO: put a getServiceTypes() or something like that to support it
  * A cache for {@link ServiceInfo}s, that provides facilities to store, update, remove and query ServiceInfos.
+ * <br />
+ * This is the default {@link ServiceStore} implementation, that keeps services in hash maps
+ * and matches them by scanning the services of the queried scopes, or the candidates returned by the
+ * {@link AttributeIndexes attribute indexes} built for the observed queries.
  */
-public class ServiceInfoCache<T extends ServiceInfo>
+public class ServiceInfoCache<T extends ServiceInfo> implements ServiceStore<T>
 {
     private final Lock lock = new ReentrantLock();
     private final Map<ServiceInfo.Key, ServiceType> keysToServiceTypes = new HashMap<ServiceInfo.Key, ServiceType>();
     private final Map<ServiceInfo.Key, T> keysToServiceInfos = new HashMap<ServiceInfo.Key, T>();
-    private final Listeners<ServiceListener> listeners = new Listeners<ServiceListener>();
+    private final List<Map<ServiceInfo.Key, T>> scopePartitions = new ArrayList<Map<ServiceInfo.Key, T>>();
+    private final Map<ServiceInfo.Key, T> unpartitioned = new HashMap<ServiceInfo.Key, T>();
+    private final Map<ServiceURL, List<ServiceInfo.Key>> serviceURLsToKeys = new HashMap<ServiceURL, List<ServiceInfo.Key>>();
+    private final ServiceTypeRegistry serviceTypeRegistry = new ServiceTypeRegistry();
+    private final ServiceNotifier notifier;
+    private final ServiceJournal journal;
+    private final AttributeIndexes attributeIndexes;
+
+    public ServiceInfoCache()
+    {
+        this(null, null, null);
+    }
+
+    /**
+     * @param journal the journal where changes are recorded, or null to not record changes
+     */
+    public ServiceInfoCache(ServiceJournal journal)
+    {
+        this(null, journal, null);
+    }
+
+    /**
+     * @param journal          the journal where changes are recorded, or null to not record changes
+     * @param attributeIndexes the attribute indexes of this cache, or null to not index attributes
+     */
+    public ServiceInfoCache(ServiceJournal journal, AttributeIndexes attributeIndexes)
+    {
+        this(null, journal, attributeIndexes);
+    }
+
+    /**
+     * @param notifier         the notifier of the listeners of this cache, or null to create a new one
+     * @param journal          the journal where changes are recorded, or null to not record changes
+     * @param attributeIndexes the attribute indexes of this cache, or null to not index attributes
+     */
+    ServiceInfoCache(ServiceNotifier notifier, ServiceJournal journal, AttributeIndexes attributeIndexes)
+    {
+        this.notifier = notifier == null ? new ServiceNotifier(this) : notifier;
+        this.journal = journal;
+        this.attributeIndexes = attributeIndexes;
+    }
 
     /**
      * Locks this cache in order to perform multiple operations atomically.
@@ -68,35 +114,92 @@ public class ServiceInfoCache<T extends ServiceInfo>
         lock.unlock();
     }
 
+    /**
+     * Locks this cache, that is not partitioned.
+     *
+     * @see #unlock(ServiceInfo.Key)
+     */
+    public void lock(ServiceInfo.Key key)
+    {
+        lock();
+    }
+
+    /**
+     * Unlocks this cache.
+     *
+     * @see #lock(ServiceInfo.Key)
+     */
+    public void unlock(ServiceInfo.Key key)
+    {
+        unlock();
+    }
+
+    public void beginBatch()
+    {
+        notifier.beginBatch();
+    }
+
+    public void endBatch()
+    {
+        notifier.endBatch();
+    }
+
     public void addServiceListener(ServiceListener listener)
     {
-        listeners.add(listener);
+        notifier.addServiceListener(listener);
     }
 
     public void removeServiceListener(ServiceListener listener)
     {
-        listeners.remove(listener);
+        notifier.removeServiceListener(listener);
+    }
+
+    public ServiceJournal getServiceJournal()
+    {
+        return journal;
+    }
+
+    public AttributeIndexes.Statistics getAttributeIndexStatistics()
+    {
+        if (attributeIndexes == null) return null;
+        lock();
+        try
+        {
+            return attributeIndexes.getStatistics();
+        }
+        finally
+        {
+            unlock();
+        }
     }
 
     protected void notifyServiceAdded(T previous, T current)
     {
-        ServiceEvent event = new ServiceEvent(this, previous, current);
-        for (ServiceListener listener : listeners) listener.serviceAdded(event);
+        notifier.serviceAdded(previous, current);
     }
 
     protected void notifyServiceUpdated(T previous, T current)
     {
-        ServiceEvent event = new ServiceEvent(this, previous, current);
-        for (ServiceListener listener : listeners) listener.serviceUpdated(event);
+        notifier.serviceUpdated(previous, current);
     }
 
     protected void notifyServiceRemoved(T previous, T current)
     {
-        ServiceEvent event = new ServiceEvent(this, previous, current);
-        for (ServiceListener listener : listeners) listener.serviceRemoved(event);
+        notifier.serviceRemoved(previous, current);
     }
 
     protected void check(T service)
+    {
+        validate(service);
+    }
+
+    /**
+     * Validates the given service before it is stored.
+     *
+     * @param service the service to validate
+     * @throws ServiceLocationException with error {@link SLPError#INVALID_REGISTRATION} if the service is not valid
+     */
+    static void validate(ServiceInfo service)
     {
         // RFC 2608, 7.0
         if (service.getLanguage() == null)
@@ -110,6 +213,92 @@ public class ServiceInfoCache<T extends ServiceInfo>
         }
     }
 
+    /**
+     * @param existing the registered service
+     * @param service  the service to register
+     * @return whether the given service only renews the registration of the existing service
+     * @see ServiceStore#renew(ServiceInfo)
+     */
+    static boolean isRenewal(ServiceInfo existing, ServiceInfo service)
+    {
+        // Services created from messages have canonical service types, scopes and attributes,
+        // so that in most cases they are compared by identity
+        return existing.getServiceURL().getLifetime() == service.getServiceURL().getLifetime() &&
+                equals(existing.getServiceType(), service.getServiceType()) &&
+                equals(existing.getLanguage(), service.getLanguage()) &&
+                equals(existing.getScopes(), service.getScopes()) &&
+                equals(existing.getAttributes(), service.getAttributes());
+    }
+
+    private static boolean equals(Object existing, Object other)
+    {
+        return existing == other || existing != null && existing.equals(other);
+    }
+
+    /**
+     * Validates the given services before they are stored by {@link ServiceStore#putAll(Collection)}, so that
+     * either all of them or none of them are stored.
+     * The caller must hold the lock of the store.
+     *
+     * @param store    the store where services are going to be stored
+     * @param services the services to validate
+     * @throws ServiceLocationException with error {@link SLPError#INVALID_REGISTRATION} if a service is not valid
+     */
+    static void validateAll(ServiceStore<?> store, Collection<? extends ServiceInfo> services)
+    {
+        for (ServiceInfo service : services) validate(service);
+        validateServiceTypes(store, services);
+    }
+
+    /**
+     * Verifies that the given services are not already registered under a different service type,
+     * either in the given store or among the given services.
+     * The caller must hold the lock of the store.
+     *
+     * @param store    the store where services are going to be stored
+     * @param services the services to verify
+     * @throws ServiceLocationException with error {@link SLPError#INVALID_REGISTRATION} if a service is registered
+     *                                  under a different service type
+     */
+    private static void validateServiceTypes(ServiceStore<?> store, Collection<? extends ServiceInfo> services)
+    {
+        Map<ServiceInfo.Key, ServiceType> serviceTypes = new HashMap<ServiceInfo.Key, ServiceType>();
+        for (ServiceInfo service : services)
+        {
+            ServiceType serviceType = service.resolveServiceType();
+            ServiceType existingServiceType = serviceTypes.get(service.getKey());
+            if (existingServiceType == null)
+            {
+                ServiceInfo existing = store.get(service.getKey());
+                if (existing != null) existingServiceType = existing.resolveServiceType();
+            }
+            if (existingServiceType != null && !existingServiceType.equals(serviceType))
+                throw new ServiceLocationException("Invalid registration of service " + service.getKey() +
+                                                   ": already registered under service type " + existingServiceType +
+                                                   ", cannot be registered also under service type " + serviceType, SLPError.INVALID_REGISTRATION);
+            serviceTypes.put(service.getKey(), serviceType);
+        }
+    }
+
+    /**
+     * Verifies that the services to be updated by {@link ServiceStore#updateAll(Collection)} exist, so that
+     * either all of them or none of them are updated.
+     * The caller must hold the lock of the store.
+     *
+     * @param store    the store where services are going to be updated
+     * @param services the services to verify
+     * @throws ServiceLocationException with error {@link SLPError#INVALID_UPDATE} if a service does not exist
+     */
+    static void validateUpdateAll(ServiceStore<?> store, Collection<? extends ServiceInfo> services)
+    {
+        for (ServiceInfo service : services)
+        {
+            // Updating a service that does not exist must fail (RFC 2608, 9.3)
+            if (store.get(service.getKey()) == null)
+                throw new ServiceLocationException("Could not find service to update " + service.getKey(), SLPError.INVALID_UPDATE);
+        }
+    }
+
     /**
      * Adds the given service to this cache replacing an eventually existing entry.
      *
@@ -119,7 +308,14 @@ public class ServiceInfoCache<T extends ServiceInfo>
     public Result<T> put(T service)
     {
         check(service);
+        return putValidated(service);
+    }
 
+    /**
+     * Stores the given service, that has already been checked.
+     */
+    Result<T> putValidated(T service)
+    {
         ServiceType serviceType = service.resolveServiceType();
         T previous = null;
 
@@ -133,8 +329,16 @@ public class ServiceInfoCache<T extends ServiceInfo>
                                                    ", cannot be registered also under service type " + serviceType, SLPError.INVALID_REGISTRATION);
             keysToServiceTypes.put(service.getKey(), serviceType);
             previous = keysToServiceInfos.put(service.getKey(), service);
+            if (previous != null)
+                serviceTypeRegistry.remove(previous);
+            else
+                indexServiceURL(service.getKey());
+            partition(previous, service);
+            if (attributeIndexes != null) attributeIndexes.update(previous, service);
+            serviceTypeRegistry.add(service);
             service.setRegistered(true);
             if (previous != null) previous.setRegistered(false);
+            if (journal != null) journal.record(ServiceJournal.Type.ADDED, previous, service);
         }
         finally
         {
@@ -145,6 +349,93 @@ public class ServiceInfoCache<T extends ServiceInfo>
         return new Result<T>(previous, service);
     }
 
+    public T renew(T service)
+    {
+        lock();
+        try
+        {
+            T existing = keysToServiceInfos.get(service.getKey());
+            if (existing == null || !isRenewal(existing, service)) return null;
+            existing.setRegistered(true);
+            if (journal != null && journal.recordsRenewals()) journal.record(ServiceJournal.Type.RENEWED, existing, existing);
+            return existing;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    /**
+     * Moves a service from the scope partitions of its previous version to the scope partitions of its
+     * current version.
+     * <br />
+     * Services are partitioned by each of their scopes, so that queries for given scopes only visit the
+     * services of one of those scopes; services whose scopes are null, {@link Scopes#NONE}, {@link Scopes#ANY}
+     * or contain scope strings without identifier are not partitioned, and are visited by every query.
+     * The scope strings of stored services are assigned an identifier, see {@link Scopes#assignScopeIds()}.
+     *
+     * @param previous the previous version of the service, or null
+     * @param current  the current version of the service, or null
+     */
+    private void partition(T previous, T current)
+    {
+        if (previous != null)
+        {
+            for (Map<ServiceInfo.Key, T> partition : partitionsOf(previous.getScopes(), false))
+                partition.remove(previous.getKey());
+        }
+        if (current != null)
+        {
+            for (Map<ServiceInfo.Key, T> partition : partitionsOf(current.getScopes(), true))
+                partition.put(current.getKey(), current);
+        }
+    }
+
+    private List<Map<ServiceInfo.Key, T>> partitionsOf(Scopes scopes, boolean assign)
+    {
+        if (!isPartitionable(scopes)) return Collections.singletonList(unpartitioned);
+        int[] ids = assign ? scopes.assignScopeIds() : scopes.getScopeIds();
+        List<Map<ServiceInfo.Key, T>> result = new ArrayList<Map<ServiceInfo.Key, T>>(ids.length);
+        for (int id : ids)
+        {
+            if (id < 0) return Collections.singletonList(unpartitioned);
+            while (scopePartitions.size() <= id) scopePartitions.add(null);
+            Map<ServiceInfo.Key, T> partition = scopePartitions.get(id);
+            if (partition == null)
+            {
+                partition = new HashMap<ServiceInfo.Key, T>();
+                scopePartitions.set(id, partition);
+            }
+            result.add(partition);
+        }
+        return result;
+    }
+
+    private boolean isPartitionable(Scopes scopes)
+    {
+        return scopes != null && !scopes.isNoneScope() && !scopes.isAnyScope();
+    }
+
+    private void indexServiceURL(ServiceInfo.Key key)
+    {
+        List<ServiceInfo.Key> keys = serviceURLsToKeys.get(key.getServiceURL());
+        if (keys == null)
+        {
+            // Services with the same URL usually exist in one language only
+            keys = new ArrayList<ServiceInfo.Key>(1);
+            serviceURLsToKeys.put(key.getServiceURL(), keys);
+        }
+        keys.add(key);
+    }
+
+    private void unindexServiceURL(ServiceInfo.Key key)
+    {
+        List<ServiceInfo.Key> keys = serviceURLsToKeys.get(key.getServiceURL());
+        keys.remove(key);
+        if (keys.isEmpty()) serviceURLsToKeys.remove(key.getServiceURL());
+    }
+
     public int getSize()
     {
         lock();
@@ -197,8 +488,13 @@ public class ServiceInfoCache<T extends ServiceInfo>
 
             current = (T)previous.addAttributes(attributes);
             keysToServiceInfos.put(current.getKey(), current);
+            partition(previous, current);
+            if (attributeIndexes != null) attributeIndexes.update(previous, current);
+            serviceTypeRegistry.remove(previous);
+            serviceTypeRegistry.add(current);
             current.setRegistered(true);
             previous.setRegistered(false);
+            if (journal != null) journal.record(ServiceJournal.Type.UPDATED, previous, current);
         }
         finally
         {
@@ -231,8 +527,13 @@ public class ServiceInfoCache<T extends ServiceInfo>
 
             current = (T)previous.removeAttributes(attributes);
             keysToServiceInfos.put(current.getKey(), current);
+            partition(previous, current);
+            if (attributeIndexes != null) attributeIndexes.update(previous, current);
+            serviceTypeRegistry.remove(previous);
+            serviceTypeRegistry.add(current);
             current.setRegistered(true);
             previous.setRegistered(false);
+            if (journal != null) journal.record(ServiceJournal.Type.UPDATED, previous, current);
         }
         finally
         {
@@ -259,7 +560,12 @@ public class ServiceInfoCache<T extends ServiceInfo>
             ServiceType serviceType = keysToServiceTypes.remove(key);
             if (serviceType == null) return new Result<T>(null, null);
             previous = keysToServiceInfos.remove(key);
+            serviceTypeRegistry.remove(previous);
+            unindexServiceURL(key);
+            partition(previous, null);
+            if (attributeIndexes != null) attributeIndexes.update(previous, null);
             previous.setRegistered(false);
+            if (journal != null) journal.record(ServiceJournal.Type.REMOVED, previous, null);
         }
         finally
         {
@@ -270,28 +576,249 @@ public class ServiceInfoCache<T extends ServiceInfo>
         return new Result<T>(previous, null);
     }
 
+    public List<Result<T>> putAll(Collection<? extends T> services)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                for (T service : services) check(service);
+                validateServiceTypes(this, services);
+                for (T service : services) result.add(putValidated(service));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<T>> updateAll(Collection<? extends ServiceInfo> services)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                validateUpdateAll(this, services);
+                for (ServiceInfo service : services) result.add(addAttributes(service.getKey(), service.getAttributes()));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<T>> removeAll(Collection<ServiceInfo.Key> keys)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(keys.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                for (ServiceInfo.Key key : keys) result.add(remove(key));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
     public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter)
+    {
+        return match(serviceType, language, scopes, filter, null);
+    }
+
+    public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit)
+    {
+        // With a result limit, matching services are selected as they are found, keeping only the best ones
+        Collection<T> result = limit == null ? new ArrayList<T>() : limit.<T>newSelection();
+        long now = System.currentTimeMillis();
+        lock();
+        try
+        {
+            Map<ServiceInfo.Key, T> smallest = isPartitionable(scopes) ? smallestPartition(scopes) : null;
+            int scanned = smallest == null ? keysToServiceInfos.size() : smallest.size() + unpartitioned.size();
+            AttributeIndexes.Candidates indexed = null;
+            if (attributeIndexes != null && filter != null) indexed = attributeIndexes.candidates(filter, scanned);
+
+            if (indexed != null)
+            {
+                // Services that the indexes evaluated as matching are not matched against the filter again
+                match(servicesOf(indexed.getMatching()), serviceType, language, scopes, null, now, result);
+                match(servicesOf(indexed.getCandidates()), serviceType, language, scopes, filter, now, result);
+            }
+            else if (smallest == null)
+            {
+                match(keysToServiceInfos.values(), serviceType, language, scopes, filter, now, result);
+            }
+            else
+            {
+                match(smallest.values(), serviceType, language, scopes, filter, now, result);
+                match(unpartitioned.values(), serviceType, language, scopes, filter, now, result);
+            }
+
+            if (attributeIndexes != null && filter != null) attributeIndexes.observe(filter, keysToServiceInfos);
+            return limit == null ? (List<T>)result : ((ResultLimit.Selection<T>)result).asList();
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    private List<T> servicesOf(int[] ids)
+    {
+        List<T> result = new ArrayList<T>(ids.length);
+        for (int id : ids) result.add(keysToServiceInfos.get(attributeIndexes.keyOf(id)));
+        return result;
+    }
+
+    /**
+     * @param scopes the scopes to match
+     * @return the smallest of the scope partitions of the given scopes, where all the partitioned services
+     *         that have the given scopes are
+     */
+    private Map<ServiceInfo.Key, T> smallestPartition(Scopes scopes)
+    {
+        Map<ServiceInfo.Key, T> smallest = null;
+        for (int id : scopes.getScopeIds())
+        {
+            // Services with scopes without identifier are not partitioned
+            if (id < 0) return Collections.emptyMap();
+            Map<ServiceInfo.Key, T> partition = id < scopePartitions.size() ? scopePartitions.get(id) : null;
+            if (partition == null) partition = Collections.emptyMap();
+            if (smallest == null || partition.size() < smallest.size()) smallest = partition;
+        }
+        if (smallest == null) return Collections.emptyMap();
+        return smallest;
+    }
+
+    private void match(Collection<T> candidates, ServiceType serviceType, String language, Scopes scopes, Filter filter, long now, Collection<T> result)
+    {
+        for (T serviceInfo : candidates)
+        {
+            if (matches(serviceInfo, serviceType, language, scopes, filter, now)) result.add(serviceInfo);
+        }
+    }
+
+    private boolean matches(T serviceInfo, ServiceType serviceType, String language, Scopes scopes, Filter filter, long now)
+    {
+        if (serviceInfo.isRegistered() && !serviceInfo.isExpiredAsOf(now))
+        {
+            if (matchServiceTypes(serviceInfo.resolveServiceType(), serviceType))
+            {
+                if (matchLanguage(serviceInfo.getLanguage(), language))
+                {
+                    if (matchScopes(serviceInfo.getScopes(), scopes))
+                    {
+                        return matchAttributes(serviceInfo.getAttributes(), filter);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public int count(ServiceType serviceType, String language, Scopes scopes, Filter filter, int max)
+    {
+        long now = System.currentTimeMillis();
+        lock();
+        try
+        {
+            Map<ServiceInfo.Key, T> smallest = isPartitionable(scopes) ? smallestPartition(scopes) : null;
+            int scanned = smallest == null ? keysToServiceInfos.size() : smallest.size() + unpartitioned.size();
+            AttributeIndexes.Candidates indexed = null;
+            if (attributeIndexes != null && filter != null) indexed = attributeIndexes.candidates(filter, scanned);
+
+            int result = 0;
+            if (indexed != null)
+            {
+                // Services are looked up from the index identifiers only until the count is reached
+                result = count(indexed.getMatching(), serviceType, language, scopes, null, now, result, max);
+                result = count(indexed.getCandidates(), serviceType, language, scopes, filter, now, result, max);
+            }
+            else if (smallest == null)
+            {
+                result = count(keysToServiceInfos.values(), serviceType, language, scopes, filter, now, result, max);
+            }
+            else
+            {
+                result = count(smallest.values(), serviceType, language, scopes, filter, now, result, max);
+                result = count(unpartitioned.values(), serviceType, language, scopes, filter, now, result, max);
+            }
+
+            if (attributeIndexes != null && filter != null) attributeIndexes.observe(filter, keysToServiceInfos);
+            return result;
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    private int count(int[] ids, ServiceType serviceType, String language, Scopes scopes, Filter filter, long now, int count, int max)
+    {
+        for (int i = 0; i < ids.length && count < max; ++i)
+        {
+            T serviceInfo = keysToServiceInfos.get(attributeIndexes.keyOf(ids[i]));
+            if (matches(serviceInfo, serviceType, language, scopes, filter, now)) ++count;
+        }
+        return count;
+    }
+
+    private int count(Collection<T> candidates, ServiceType serviceType, String language, Scopes scopes, Filter filter, long now, int count, int max)
+    {
+        for (Iterator<T> iterator = candidates.iterator(); iterator.hasNext() && count < max; )
+        {
+            if (matches(iterator.next(), serviceType, language, scopes, filter, now)) ++count;
+        }
+        return count;
+    }
+
+    public List<T> match(ServiceURL serviceURL, String language, Scopes scopes)
     {
         List<T> result = new ArrayList<T>();
         long now = System.currentTimeMillis();
         lock();
         try
         {
-            for (T serviceInfo : keysToServiceInfos.values())
+            List<ServiceInfo.Key> keys = serviceURLsToKeys.get(serviceURL);
+            if (keys == null) return result;
+            for (ServiceInfo.Key key : keys)
             {
+                T serviceInfo = keysToServiceInfos.get(key);
                 if (serviceInfo.isRegistered() && !serviceInfo.isExpiredAsOf(now))
                 {
-                    if (matchServiceTypes(serviceInfo.resolveServiceType(), serviceType))
+                    if (matchLanguage(serviceInfo.getLanguage(), language))
                     {
-                        if (matchLanguage(serviceInfo.getLanguage(), language))
+                        if (matchScopes(serviceInfo.getScopes(), scopes))
                         {
-                            if (matchScopes(serviceInfo.getScopes(), scopes))
-                            {
-                                if (matchAttributes(serviceInfo.getAttributes(), filter))
-                                {
-                                    result.add(serviceInfo);
-                                }
-                            }
+                            result.add(serviceInfo);
                         }
                     }
                 }
@@ -304,9 +831,45 @@ public class ServiceInfoCache<T extends ServiceInfo>
         }
     }
 
+    public List<ServiceType> matchServiceTypes(String namingAuthority, Scopes scopes)
+    {
+        lock();
+        try
+        {
+            return serviceTypeRegistry.match(namingAuthority, scopes);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public Attributes matchAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags)
+    {
+        List<Attributes.Aggregate> aggregates = new ArrayList<Attributes.Aggregate>();
+        lock();
+        try
+        {
+            serviceTypeRegistry.matchAttributes(serviceType, language, scopes, aggregates);
+            return Attributes.Aggregate.aggregate(aggregates, tags);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the registry of the service types of this cache, to be used while holding the lock of this cache
+     */
+    ServiceTypeRegistry getServiceTypeRegistry()
+    {
+        return serviceTypeRegistry;
+    }
+
     private boolean matchServiceTypes(ServiceType registered, ServiceType asked)
     {
-        return asked == null || asked.matches(registered);
+        return asked == null || asked == registered || asked.matches(registered);
     }
 
     private boolean matchScopes(Scopes registered, Scopes asked)
@@ -321,7 +884,7 @@ public class ServiceInfoCache<T extends ServiceInfo>
 
     private boolean matchLanguage(String registered, String asked)
     {
-        return asked == null || asked.equals(registered);
+        return asked == null || asked == registered || asked.equals(registered);
     }
 
     public List<T> getServiceInfos()
@@ -348,16 +911,17 @@ public class ServiceInfoCache<T extends ServiceInfo>
     {
         List<T> result = new ArrayList<T>();
         long now = System.currentTimeMillis();
+        List<ServiceInfo.Key> expired = new ArrayList<ServiceInfo.Key>();
         lock();
         try
         {
-            for (T serviceInfo : getServiceInfos())
+            for (T serviceInfo : keysToServiceInfos.values())
             {
-                if (serviceInfo.isExpiredAsOf(now))
-                {
-                    T purged = remove(serviceInfo.getKey()).getPrevious();
-                    if (purged != null) result.add(purged);
-                }
+                if (serviceInfo.isExpiredAsOf(now)) expired.add(serviceInfo.getKey());
+            }
+            for (Result<T> removed : removeAll(expired))
+            {
+                if (removed.getPrevious() != null) result.add(removed.getPrevious());
             }
             return result;
         }
@@ -367,25 +931,11 @@ public class ServiceInfoCache<T extends ServiceInfo>
         }
     }
 
-    public static class Result<T>
+    public static class Factory implements ServiceStore.Factory
     {
-        private final T previous;
-        private final T current;
-
-        public Result(T previous, T current)
-        {
-            this.previous = previous;
-            this.current = current;
-        }
-
-        public T getPrevious()
-        {
-            return previous;
-        }
-
-        public T getCurrent()
+        public ServiceStore<ServiceInfo> newServiceStore(Settings settings)
         {
-            return current;
+            return new ServiceInfoCache<ServiceInfo>(ServiceJournal.newInstance(settings), AttributeIndexes.newInstance(settings));
         }
     }
 }
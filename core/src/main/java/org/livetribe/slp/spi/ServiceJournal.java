@@ -0,0 +1,303 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.settings.Defaults;
+import org.livetribe.slp.settings.Settings;
+
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_JOURNAL_CAPACITY_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_JOURNAL_RENEWALS_KEY;
+
+
+/**
+ * A bounded, in-memory, journal of the recent changes of a {@link ServiceStore}.
+ * <br />
+ * Every change is assigned a sequence number, greater than the sequence numbers of the changes recorded before it.
+ * Stores record changes while holding their lock, so that the order of the sequence numbers is the order in which
+ * the changes have been applied.
+ * <br />
+ * Consumers that mirror the content of a store remember the sequence number of the last change they have seen,
+ * and call {@link #changesSince(long, ServiceStore)} to obtain the changes that followed; when the journal does not
+ * hold those changes anymore, they obtain a snapshot of the store instead.
+ * Sequence numbers are meaningful only for the lifetime of a journal: consumers of a store that has been recreated
+ * (for example after a restart of the agent) must start over from a snapshot.
+ */
+public class ServiceJournal
+{
+    /**
+     * The type of a change; a RENEWED change only refreshes the registration time of a service,
+     * and is recorded only by journals that {@link ServiceJournal#recordsRenewals() record renewals}.
+     */
+    public enum Type
+    {
+        ADDED, UPDATED, REMOVED, RENEWED
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private final Change[] changes;
+    private final boolean renewals;
+    private long sequence;
+
+    /**
+     * Creates a journal that does not record renewals.
+     *
+     * @param capacity the maximum number of changes held by this journal
+     */
+    public ServiceJournal(int capacity)
+    {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity the maximum number of changes held by this journal
+     * @param renewals whether renewals of services are recorded
+     */
+    public ServiceJournal(int capacity, boolean renewals)
+    {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.changes = new Change[capacity];
+        this.renewals = renewals;
+    }
+
+    /**
+     * @param settings the configuration settings, may be null
+     * @return a new ServiceJournal with the capacity specified in the given settings,
+     *         or null if the capacity is not positive
+     * @see org.livetribe.slp.settings.Keys#SERVICE_STORE_JOURNAL_CAPACITY_KEY
+     * @see org.livetribe.slp.settings.Keys#SERVICE_STORE_JOURNAL_RENEWALS_KEY
+     */
+    public static ServiceJournal newInstance(Settings settings)
+    {
+        int capacity = settings == null ? Defaults.get(SERVICE_STORE_JOURNAL_CAPACITY_KEY) : settings.get(SERVICE_STORE_JOURNAL_CAPACITY_KEY, Defaults.get(SERVICE_STORE_JOURNAL_CAPACITY_KEY));
+        boolean renewals = settings == null ? Defaults.get(SERVICE_STORE_JOURNAL_RENEWALS_KEY) : settings.get(SERVICE_STORE_JOURNAL_RENEWALS_KEY, Defaults.get(SERVICE_STORE_JOURNAL_RENEWALS_KEY));
+        return capacity > 0 ? new ServiceJournal(capacity, renewals) : null;
+    }
+
+    /**
+     * @return whether the renewals of services are recorded by this journal; stores must not record
+     *         {@link Type#RENEWED} changes otherwise
+     */
+    public boolean recordsRenewals()
+    {
+        return renewals;
+    }
+
+    /**
+     * Records a change; must be called while holding the lock of the store that has been changed.
+     *
+     * @param type     the type of the change
+     * @param previous the service prior the change, or null
+     * @param current  the service after the change, or null
+     * @return the sequence number of the change
+     */
+    public long record(Type type, ServiceInfo previous, ServiceInfo current)
+    {
+        lock.lock();
+        try
+        {
+            long result = ++sequence;
+            changes[(int)(result % changes.length)] = new Change(result, type, previous, current);
+            return result;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last recorded change, or 0 if no change has been recorded
+     */
+    public long getSequence()
+    {
+        lock.lock();
+        try
+        {
+            return sequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the maximum number of changes held by this journal
+     */
+    public int getCapacity()
+    {
+        return changes.length;
+    }
+
+    /**
+     * Returns the changes recorded after the given sequence number, or a snapshot of the given store if
+     * this journal does not hold all those changes anymore.
+     *
+     * @param sequence the sequence number of the last change seen by the caller, or 0 if no change has been seen
+     * @param store    the store whose changes are recorded by this journal
+     * @return the changes since the given sequence number, or a snapshot of the store
+     */
+    public Delta changesSince(long sequence, ServiceStore<?> store)
+    {
+        // Holding the lock of the store, no change can be recorded while the snapshot is taken
+        store.lock();
+        try
+        {
+            Delta result = changesSince(sequence);
+            if (result != null) return result;
+            List<ServiceInfo> services = new ArrayList<ServiceInfo>(store.getServiceInfos());
+            return new Delta(getSequence(), null, services);
+        }
+        finally
+        {
+            store.unlock();
+        }
+    }
+
+    /**
+     * @param sequence the sequence number of the last change seen by the caller
+     * @return the changes recorded after the given sequence number, or null if this journal does not hold
+     *         all those changes anymore
+     */
+    public Delta changesSince(long sequence)
+    {
+        lock.lock();
+        try
+        {
+            // A sequence number from the future (for example from before a restart) cannot be trusted
+            if (sequence > this.sequence) return null;
+            long oldest = Math.max(1, this.sequence - changes.length + 1);
+            if (sequence + 1 < oldest) return null;
+            List<Change> result = new ArrayList<Change>((int)(this.sequence - sequence));
+            for (long i = sequence + 1; i <= this.sequence; ++i) result.add(changes[(int)(i % changes.length)]);
+            return new Delta(this.sequence, result, null);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A change recorded in a {@link ServiceJournal}.
+     */
+    public static class Change
+    {
+        private final long sequence;
+        private final Type type;
+        private final ServiceInfo previous;
+        private final ServiceInfo current;
+
+        private Change(long sequence, Type type, ServiceInfo previous, ServiceInfo current)
+        {
+            this.sequence = sequence;
+            this.type = type;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return the service prior the change, or null if the service did not exist
+         */
+        public ServiceInfo getPrevious()
+        {
+            return previous;
+        }
+
+        /**
+         * @return the service after the change, or null if the service has been removed
+         */
+        public ServiceInfo getCurrent()
+        {
+            return current;
+        }
+
+        @Override
+        public String toString()
+        {
+            return sequence + ":" + type + ":" + (current != null ? current : previous);
+        }
+    }
+
+    /**
+     * The result of {@link ServiceJournal#changesSince(long, ServiceStore)}: either the changes that followed
+     * a given sequence number, or a snapshot of the store.
+     */
+    public static class Delta
+    {
+        private final long sequence;
+        private final List<Change> changes;
+        private final List<ServiceInfo> services;
+
+        private Delta(long sequence, List<Change> changes, List<ServiceInfo> services)
+        {
+            this.sequence = sequence;
+            this.changes = changes == null ? null : Collections.unmodifiableList(changes);
+            this.services = services == null ? null : Collections.unmodifiableList(services);
+        }
+
+        /**
+         * @return the sequence number of the last change included in this delta, to be passed to the next
+         *         invocation of {@link ServiceJournal#changesSince(long, ServiceStore)}
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return true if this delta is a snapshot of the store, false if it contains the changes since
+         *         the requested sequence number
+         */
+        public boolean isSnapshot()
+        {
+            return services != null;
+        }
+
+        /**
+         * @return the changes since the requested sequence number, or null if this delta is a snapshot
+         */
+        public List<Change> getChanges()
+        {
+            return changes;
+        }
+
+        /**
+         * @return all the services of the store, or null if this delta is not a snapshot
+         */
+        public List<ServiceInfo> getServices()
+        {
+            return services;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.sa.ServiceBatchEvent;
+import org.livetribe.slp.sa.ServiceBatchListener;
+import org.livetribe.slp.sa.ServiceEvent;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.util.Listeners;
+
+
+/**
+ * Notifies the {@link ServiceListener}s of a {@link ServiceStore}.
+ * <br />
+ * Between {@link #beginBatch()} and {@link #endBatch()}, the events produced by the calling thread are
+ * collected rather than delivered; at the end of the outermost batch they are delivered at once,
+ * in a single {@link ServiceBatchEvent} to {@link ServiceBatchListener}s, and one by one to the other listeners.
+ */
+class ServiceNotifier
+{
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+    private final Listeners<ServiceListener> listeners = new Listeners<ServiceListener>();
+    private final Object source;
+
+    ServiceNotifier(Object source)
+    {
+        this.source = source;
+    }
+
+    void addServiceListener(ServiceListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    void removeServiceListener(ServiceListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    void serviceAdded(ServiceInfo previous, ServiceInfo current)
+    {
+        ServiceEvent event = new ServiceEvent(source, previous, current);
+        Batch batch = batches.get();
+        if (batch != null)
+            batch.add(ServiceBatchEvent.Type.ADDED, event);
+        else
+            for (ServiceListener listener : listeners) listener.serviceAdded(event);
+    }
+
+    void serviceUpdated(ServiceInfo previous, ServiceInfo current)
+    {
+        ServiceEvent event = new ServiceEvent(source, previous, current);
+        Batch batch = batches.get();
+        if (batch != null)
+            batch.add(ServiceBatchEvent.Type.UPDATED, event);
+        else
+            for (ServiceListener listener : listeners) listener.serviceUpdated(event);
+    }
+
+    void serviceRemoved(ServiceInfo previous, ServiceInfo current)
+    {
+        ServiceEvent event = new ServiceEvent(source, previous, current);
+        Batch batch = batches.get();
+        if (batch != null)
+            batch.add(ServiceBatchEvent.Type.REMOVED, event);
+        else
+            for (ServiceListener listener : listeners) listener.serviceRemoved(event);
+    }
+
+    /**
+     * Starts collecting the events produced by the calling thread; batches may be nested.
+     *
+     * @see #endBatch()
+     */
+    void beginBatch()
+    {
+        Batch batch = batches.get();
+        if (batch == null)
+            batches.set(new Batch());
+        else
+            ++batch.depth;
+    }
+
+    /**
+     * Ends the current batch, delivering the collected events if it is the outermost batch.
+     *
+     * @see #beginBatch()
+     */
+    void endBatch()
+    {
+        Batch batch = batches.get();
+        if (batch.depth > 0)
+        {
+            --batch.depth;
+            return;
+        }
+        batches.remove();
+        if (batch.changes.isEmpty()) return;
+
+        ServiceBatchEvent batchEvent = null;
+        for (ServiceListener listener : listeners)
+        {
+            if (listener instanceof ServiceBatchListener)
+            {
+                if (batchEvent == null) batchEvent = new ServiceBatchEvent(source, batch.changes);
+                ((ServiceBatchListener)listener).servicesChanged(batchEvent);
+            }
+            else
+            {
+                for (ServiceBatchEvent.Change change : batch.changes)
+                {
+                    switch (change.getType())
+                    {
+                        case ADDED:
+                            listener.serviceAdded(change.getEvent());
+                            break;
+                        case UPDATED:
+                            listener.serviceUpdated(change.getEvent());
+                            break;
+                        default:
+                            listener.serviceRemoved(change.getEvent());
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Batch
+    {
+        private final List<ServiceBatchEvent.Change> changes = new ArrayList<ServiceBatchEvent.Change>();
+        private int depth;
+
+        private void add(ServiceBatchEvent.Type type, ServiceEvent event)
+        {
+            changes.add(new ServiceBatchEvent.Change(type, event));
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.filter.Filter;
+
+
+/**
+ * A store for {@link ServiceInfo}s, that provides facilities to store, update, remove and query ServiceInfos.
+ * <br />
+ * Directory agents and service agents obtain their store from the {@link Factory} specified under the
+ * {@link org.livetribe.slp.settings.Keys#SERVICE_STORE_FACTORY_KEY} key; the default implementation
+ * is {@link ServiceInfoCache}.
+ * <br />
+ * Implementations must be safe for use by multiple threads, and must notify {@link ServiceListener}s
+ * after the store has been modified; the modifications performed by the batch operations must be notified
+ * to {@link org.livetribe.slp.sa.ServiceBatchListener}s with a single event.
+ */
+public interface ServiceStore<T extends ServiceInfo>
+{
+    /**
+     * Locks this store in order to perform multiple operations atomically.
+     * The lock must be reentrant.
+     *
+     * @see #unlock()
+     */
+    public void lock();
+
+    /**
+     * Unlocks this store.
+     *
+     * @see #lock()
+     */
+    public void unlock();
+
+    /**
+     * Locks the part of this store that holds the service with the given key, in order to perform multiple
+     * operations on that service atomically, for example to modify the service and to record the modification
+     * elsewhere in the same order of the modifications of the same service performed by other threads.
+     * Stores that are not partitioned lock the whole store, as {@link #lock()} does.
+     * <br />
+     * The lock must be reentrant; while holding it, only operations on the service with the given key
+     * may be performed.
+     *
+     * @param key the key of the service
+     * @see #unlock(ServiceInfo.Key)
+     */
+    public void lock(ServiceInfo.Key key);
+
+    /**
+     * Unlocks the part of this store that holds the service with the given key.
+     *
+     * @param key the key of the service
+     * @see #lock(ServiceInfo.Key)
+     */
+    public void unlock(ServiceInfo.Key key);
+
+    /**
+     * Starts a batch of modifications performed by the calling thread: listeners are notified of the
+     * modifications at the end of the outermost batch, rather than while they are performed.
+     * <br />
+     * Callers that lock this store to perform modifications begin a batch before locking and end it
+     * after unlocking, so that listeners are never notified while the lock is held.
+     *
+     * @see #endBatch()
+     */
+    public void beginBatch();
+
+    /**
+     * Ends the batch started by {@link #beginBatch()}, notifying the listeners of the modifications
+     * performed by the calling thread if it is the outermost batch.
+     *
+     * @see #beginBatch()
+     */
+    public void endBatch();
+
+    public void addServiceListener(ServiceListener listener);
+
+    public void removeServiceListener(ServiceListener listener);
+
+    /**
+     * @return the journal where the changes of this store are recorded, or null if changes are not recorded
+     */
+    public ServiceJournal getServiceJournal();
+
+    /**
+     * @return a snapshot of the statistics of the attribute indexes of this store, or null if this store
+     *         does not build attribute indexes
+     */
+    public AttributeIndexes.Statistics getAttributeIndexStatistics();
+
+    /**
+     * Adds the given service to this store replacing an eventually existing entry.
+     *
+     * @param service The service to store
+     * @return a result whose previous is the replaced service and where current is the given service
+     * @throws org.livetribe.slp.ServiceLocationException with error {@link org.livetribe.slp.SLPError#INVALID_REGISTRATION}
+     *                                                    if the service is not valid, or if it is already registered
+     *                                                    under a different service type
+     */
+    public Result<T> put(T service);
+
+    /**
+     * Renews the registration of the given service, if a service with the same key and the same content
+     * (service type, language, scopes, attributes and lifetime) is already registered, by refreshing its
+     * registration time; the store is otherwise not modified and listeners are not notified.
+     *
+     * @param service the service to renew
+     * @return the renewed service (which may be the given service for stores that do not keep service instances),
+     *         or null if the given service is not registered or is registered with a different content
+     * @see #put(ServiceInfo)
+     */
+    public T renew(T service);
+
+    /**
+     * Updates an existing ServiceInfo identified by the given Key, adding the given attributes.
+     *
+     * @param key        the service's key
+     * @param attributes the attributes to add
+     * @return a result whose previous is the service prior the update and where current is the current service
+     * @throws org.livetribe.slp.ServiceLocationException with error {@link org.livetribe.slp.SLPError#INVALID_UPDATE}
+     *                                                    if the service does not exist
+     */
+    public Result<T> addAttributes(ServiceInfo.Key key, Attributes attributes);
+
+    /**
+     * Updates an existing ServiceInfo identified by the given Key, removing the given attributes.
+     *
+     * @param key        the service's key
+     * @param attributes the attributes to remove
+     * @return a result whose previous is the service prior the update and where current is the current service
+     * @throws org.livetribe.slp.ServiceLocationException with error {@link org.livetribe.slp.SLPError#INVALID_UPDATE}
+     *                                                    if the service does not exist
+     */
+    public Result<T> removeAttributes(ServiceInfo.Key key, Attributes attributes);
+
+    /**
+     * Removes an existing entry with the given {@link ServiceInfo.Key}; if the entry does not exist, does nothing.
+     *
+     * @param key the service's key
+     * @return a result whose previous is the existing service and where current is null
+     */
+    public Result<T> remove(ServiceInfo.Key key);
+
+    /**
+     * Adds the given services to this store, replacing eventually existing entries, holding the lock once.
+     * <br />
+     * If any of the given services is not valid, no service is added.
+     *
+     * @param services the services to store
+     * @return the results of the additions, in the same order of the given services
+     * @throws org.livetribe.slp.ServiceLocationException with error {@link org.livetribe.slp.SLPError#INVALID_REGISTRATION}
+     *                                                    if any service is not valid, or if it is already registered
+     *                                                    under a different service type
+     * @see #put(ServiceInfo)
+     */
+    public List<Result<T>> putAll(Collection<? extends T> services);
+
+    /**
+     * Updates the existing services that have the same keys of the given services, adding the attributes of the
+     * given services, holding the lock once.
+     * <br />
+     * If any of the services to update does not exist, no service is updated.
+     *
+     * @param services the services whose attributes must be added
+     * @return the results of the updates, in the same order of the given services
+     * @throws org.livetribe.slp.ServiceLocationException with error {@link org.livetribe.slp.SLPError#INVALID_UPDATE}
+     *                                                    if any service does not exist
+     * @see #addAttributes(ServiceInfo.Key, Attributes)
+     */
+    public List<Result<T>> updateAll(Collection<? extends ServiceInfo> services);
+
+    /**
+     * Removes the existing entries with the given keys, holding the lock once; keys that do not exist are ignored.
+     *
+     * @param keys the keys of the services to remove
+     * @return the results of the removals, in the same order of the given keys
+     * @see #remove(ServiceInfo.Key)
+     */
+    public List<Result<T>> removeAll(Collection<ServiceInfo.Key> keys);
+
+    /**
+     * @param key the {@link ServiceInfo.Key} identifying the service
+     * @return the service correspondent to the given {@link ServiceInfo.Key}.
+     */
+    public T get(ServiceInfo.Key key);
+
+    /**
+     * Matches the registered, not expired, services of this store against the given arguments.
+     *
+     * @param serviceType the service type to match, or null to match any service type
+     * @param language    the language to match, or null to match any language
+     * @param scopes      the scopes to match, or null to match any scope
+     * @param filter      the filter to match, or null to match any attribute
+     * @return a list of matching services
+     */
+    public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter);
+
+    /**
+     * Matches the registered, not expired, services of this store against the given arguments, and returns
+     * at most {@link ResultLimit#getMaxResults()} of the matching services, selected as specified by the given
+     * result limit; the matching services are selected as they are found, without sorting them all.
+     *
+     * @param serviceType the service type to match, or null to match any service type
+     * @param language    the language to match, or null to match any language
+     * @param scopes      the scopes to match, or null to match any scope
+     * @param filter      the filter to match, or null to match any attribute
+     * @param limit       the result limit, or null to return all the matching services
+     * @return a list of matching services, in the order specified by the result limit
+     * @see #match(ServiceType, String, Scopes, Filter)
+     */
+    public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit);
+
+    /**
+     * Counts the registered, not expired, services of this store that match the given arguments, with the same
+     * criteria of {@link #match(ServiceType, String, Scopes, Filter)}, without creating the list of the matching
+     * services; counting stops as soon as the given maximum is reached.
+     *
+     * @param serviceType the service type to match, or null to match any service type
+     * @param language    the language to match, or null to match any language
+     * @param scopes      the scopes to match, or null to match any scope
+     * @param filter      the filter to match, or null to match any attribute
+     * @param max         the maximum count, for example 1 to know whether at least one service matches
+     * @return the number of matching services, at most <code>max</code>
+     */
+    public int count(ServiceType serviceType, String language, Scopes scopes, Filter filter, int max);
+
+    /**
+     * Matches the registered, not expired, services with the given service URL (one for each language)
+     * against the given arguments, without visiting the other services of the same service type.
+     *
+     * @param serviceURL the service URL of the services
+     * @param language   the language to match, or null to match any language
+     * @param scopes     the scopes to match, or null to match any scope
+     * @return a list of matching services
+     * @see #match(ServiceType, String, Scopes, Filter)
+     */
+    public List<T> match(ServiceURL serviceURL, String language, Scopes scopes);
+
+    /**
+     * Returns the distinct service types of the services of this store, as needed to reply to SrvTypeRqsts;
+     * the cost of this method depends on the number of distinct service types, not on the number of services.
+     *
+     * @param namingAuthority the naming authority to match (the empty string for the default naming authority),
+     *                        or {@link ServiceType#ANY_NAMING_AUTHORITY} to match any naming authority
+     * @param scopes          the scopes to match (a service type matches if at least one of its services is in one
+     *                        of the given scopes), or null to match any scope
+     * @return a list of distinct service types
+     */
+    public List<ServiceType> matchServiceTypes(String namingAuthority, Scopes scopes);
+
+    /**
+     * Returns the attributes of the services that match the given arguments, combined as by
+     * {@link Attributes.Aggregate#aggregate(Collection, Attributes)}, as needed to reply to AttrRqsts for
+     * service types; the cost of this method depends on the number of distinct service types and attribute values,
+     * not on the number of services.
+     * <br />
+     * Services are matched as in {@link #match(ServiceType, String, Scopes, Filter)}, except that the
+     * services that have expired but have not been purged yet are included.
+     *
+     * @param serviceType the service type to match, or null to match any service type
+     * @param language    the language to match, or null to match any language
+     * @param scopes      the scopes to match, or null to match any scope
+     * @param tags        the tags to retain, possibly containing the globbing character '*',
+     *                    or null or empty to retain all tags
+     * @return the combined attributes of the matching services
+     */
+    public Attributes matchAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags);
+
+    /**
+     * @return a list of all services present in this store
+     */
+    public List<T> getServiceInfos();
+
+    /**
+     * Purges from this store entries whose registration time plus their lifetime
+     * is less than the current time; that is, entries that should have been renewed
+     * but for some reason they have not been.
+     *
+     * @return The list of purged entries.
+     */
+    public List<T> purge();
+
+    /**
+     * @return the number of services present in this store
+     */
+    public int getSize();
+
+    /**
+     * The result of a modification of a {@link ServiceStore}.
+     */
+    public static class Result<T>
+    {
+        private final T previous;
+        private final T current;
+
+        public Result(T previous, T current)
+        {
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public T getPrevious()
+        {
+            return previous;
+        }
+
+        public T getCurrent()
+        {
+            return current;
+        }
+    }
+
+    /**
+     * Creates new instances of {@link ServiceStore}, used by directory agents and service agents
+     * to store {@link ServiceInfo}s.
+     */
+    public interface Factory
+    {
+        /**
+         * @param settings the configuration settings, may be null
+         * @return a new, empty, ServiceStore
+         */
+        public ServiceStore<ServiceInfo> newServiceStore(Settings settings);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+
+
+/**
+ * The service types of the services of a {@link ServiceStore}, indexed by naming authority and by scopes,
+ * and reference counted so that a service type is present as long as at least one service has it.
+ * <br />
+ * The services of each service type are further partitioned by scopes and language, and each partition keeps
+ * an {@link Attributes.Aggregate aggregate} of the attributes of its services, to reply to AttrRqsts for
+ * service types without merging the attributes of all the services.
+ * <br />
+ * Stores keep the registry up to date while holding their lock; the registry is not thread safe.
+ */
+class ServiceTypeRegistry
+{
+    private final Map<String, Map<ServiceType, Map<Scopes, Map<String, Partition>>>> namingAuthorities = new HashMap<String, Map<ServiceType, Map<Scopes, Map<String, Partition>>>>();
+
+    /**
+     * Adds a reference to the service type, the scopes and the attributes of the given service.
+     *
+     * @param service the service added to the store
+     */
+    void add(ServiceInfo service)
+    {
+        ServiceType serviceType = service.resolveServiceType();
+        Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes = namingAuthorities.get(serviceType.getNamingAuthority());
+        if (serviceTypes == null)
+        {
+            serviceTypes = new HashMap<ServiceType, Map<Scopes, Map<String, Partition>>>();
+            namingAuthorities.put(serviceType.getNamingAuthority(), serviceTypes);
+        }
+        Map<Scopes, Map<String, Partition>> scopes = serviceTypes.get(serviceType);
+        if (scopes == null)
+        {
+            scopes = new HashMap<Scopes, Map<String, Partition>>();
+            serviceTypes.put(serviceType, scopes);
+        }
+        Map<String, Partition> languages = scopes.get(service.getScopes());
+        if (languages == null)
+        {
+            languages = new HashMap<String, Partition>();
+            scopes.put(service.getScopes(), languages);
+        }
+        Partition partition = languages.get(service.getLanguage());
+        if (partition == null)
+        {
+            partition = new Partition();
+            languages.put(service.getLanguage(), partition);
+        }
+        ++partition.count;
+        partition.attributes.add(service.getAttributes());
+    }
+
+    /**
+     * Removes a reference to the service type, the scopes and the attributes of the given service.
+     *
+     * @param service the service removed from the store
+     */
+    void remove(ServiceInfo service)
+    {
+        ServiceType serviceType = service.resolveServiceType();
+        Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes = namingAuthorities.get(serviceType.getNamingAuthority());
+        if (serviceTypes == null) return;
+        Map<Scopes, Map<String, Partition>> scopes = serviceTypes.get(serviceType);
+        if (scopes == null) return;
+        Map<String, Partition> languages = scopes.get(service.getScopes());
+        if (languages == null) return;
+        Partition partition = languages.get(service.getLanguage());
+        if (partition == null) return;
+        partition.attributes.remove(service.getAttributes());
+        if (--partition.count > 0) return;
+        languages.remove(service.getLanguage());
+        if (!languages.isEmpty()) return;
+        scopes.remove(service.getScopes());
+        if (!scopes.isEmpty()) return;
+        serviceTypes.remove(serviceType);
+        if (serviceTypes.isEmpty()) namingAuthorities.remove(serviceType.getNamingAuthority());
+    }
+
+    /**
+     * Adds to the given collection the service types that have the given naming authority and that
+     * have at least one service in the given scopes.
+     *
+     * @param namingAuthority the naming authority to match, or {@link ServiceType#ANY_NAMING_AUTHORITY} to match
+     *                        any naming authority
+     * @param scopes          the scopes to match, or null to match any scope
+     * @param result          the collection where the matching service types are added
+     */
+    void match(String namingAuthority, Scopes scopes, Collection<ServiceType> result)
+    {
+        if (ServiceType.ANY_NAMING_AUTHORITY.equals(namingAuthority))
+        {
+            for (Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes : namingAuthorities.values())
+                match(serviceTypes, scopes, result);
+        }
+        else
+        {
+            Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes = namingAuthorities.get(namingAuthority);
+            if (serviceTypes != null) match(serviceTypes, scopes, result);
+        }
+    }
+
+    private void match(Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes, Scopes scopes, Collection<ServiceType> result)
+    {
+        for (Map.Entry<ServiceType, Map<Scopes, Map<String, Partition>>> entry : serviceTypes.entrySet())
+        {
+            // Services are registered in few distinct scopes, so this loop is short
+            for (Scopes registered : entry.getValue().keySet())
+            {
+                if (matchScopes(registered, scopes))
+                {
+                    result.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean matchScopes(Scopes registered, Scopes asked)
+    {
+        return asked == null || registered == null || registered.weakMatch(asked);
+    }
+
+    /**
+     * @param namingAuthority the naming authority to match
+     * @param scopes          the scopes to match
+     * @return a new list of the matching service types
+     * @see #match(String, Scopes, Collection)
+     */
+    List<ServiceType> match(String namingAuthority, Scopes scopes)
+    {
+        List<ServiceType> result = new ArrayList<ServiceType>();
+        match(namingAuthority, scopes, result);
+        return result;
+    }
+
+    /**
+     * Adds to the given collection the attribute aggregates of the services that match the given arguments,
+     * with the same criteria of {@link ServiceStore#match(ServiceType, String, Scopes, org.livetribe.slp.spi.filter.Filter)}.
+     * <br />
+     * The aggregates are live: they must be used while holding the lock of the store.
+     *
+     * @param serviceType the service type to match, or null to match any service type
+     * @param language    the language to match, or null to match any language
+     * @param scopes      the scopes to match, or null to match any scope
+     * @param result      the collection where the matching aggregates are added
+     */
+    void matchAttributes(ServiceType serviceType, String language, Scopes scopes, Collection<Attributes.Aggregate> result)
+    {
+        for (Map<ServiceType, Map<Scopes, Map<String, Partition>>> serviceTypes : namingAuthorities.values())
+        {
+            for (Map.Entry<ServiceType, Map<Scopes, Map<String, Partition>>> typeEntry : serviceTypes.entrySet())
+            {
+                ServiceType registeredType = typeEntry.getKey();
+                if (serviceType != null && serviceType != registeredType && !serviceType.matches(registeredType))
+                    continue;
+                for (Map.Entry<Scopes, Map<String, Partition>> scopesEntry : typeEntry.getValue().entrySet())
+                {
+                    Scopes registeredScopes = scopesEntry.getKey();
+                    if (scopes != null && (registeredScopes == null || !registeredScopes.match(scopes))) continue;
+                    for (Map.Entry<String, Partition> languageEntry : scopesEntry.getValue().entrySet())
+                    {
+                        if (language != null && !language.equals(languageEntry.getKey())) continue;
+                        result.add(languageEntry.getValue().attributes);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The services of a service type with the same scopes and language.
+     */
+    private static class Partition
+    {
+        private final Attributes.Aggregate attributes = new Attributes.Aggregate();
+        private int count;
+    }
+}
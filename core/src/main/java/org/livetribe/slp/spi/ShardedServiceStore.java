@@ -0,0 +1,377 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.settings.Defaults;
+import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.filter.Filter;
+
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_SHARDS_KEY;
+
+
+/**
+ * A {@link ServiceStore} that partitions services by the hash of their {@link ServiceInfo.Key key}
+ * into independently locked shards, so that modifications of services in different shards proceed in parallel.
+ * <br />
+ * Queries visit the shards one after the other, locking one shard at a time; therefore a query that runs
+ * concurrently with modifications may see some of them and not others.
+ * {@link #lock()} locks all the shards, in order, so that multiple operations can still be performed atomically;
+ * {@link #lock(ServiceInfo.Key)} locks only the shard of a service.
+ * <br />
+ * Listeners are notified with events whose source is this store, exactly as for {@link ServiceInfoCache};
+ * the batch operations and purges deliver a single event spanning all the shards.
+ */
+public class ShardedServiceStore<T extends ServiceInfo> implements ServiceStore<T>
+{
+    private final ServiceNotifier notifier = new ServiceNotifier(this);
+    private final ServiceJournal journal;
+    private final List<Shard> shards;
+    private final int shift;
+
+    /**
+     * @param shardCount the number of shards, rounded up to a power of two
+     */
+    public ShardedServiceStore(int shardCount)
+    {
+        this(shardCount, null);
+    }
+
+    /**
+     * @param shardCount the number of shards, rounded up to a power of two
+     * @param journal    the journal where the changes of all the shards are recorded, or null to not record changes
+     */
+    public ShardedServiceStore(int shardCount, ServiceJournal journal)
+    {
+        this.journal = journal;
+        int count = 1;
+        int bits = 0;
+        while (count < shardCount)
+        {
+            count <<= 1;
+            ++bits;
+        }
+        // Shards are selected by the high bits of the hash, as the low bits select the buckets within each shard
+        shift = 32 - bits;
+        shards = new ArrayList<Shard>(count);
+        for (int i = 0; i < count; ++i) shards.add(new Shard());
+    }
+
+    private Shard shard(ServiceInfo.Key key)
+    {
+        if (shift == 32) return shards.get(0);
+        return shards.get((key.hashCode() * 0x9E3779B9) >>> shift);
+    }
+
+    /**
+     * Locks all the shards of this store in order to perform multiple operations atomically.
+     *
+     * @see #unlock()
+     */
+    public void lock()
+    {
+        for (Shard shard : shards) shard.lock();
+    }
+
+    /**
+     * Unlocks all the shards of this store.
+     *
+     * @see #lock()
+     */
+    public void unlock()
+    {
+        for (int i = shards.size() - 1; i >= 0; --i) shards.get(i).unlock();
+    }
+
+    /**
+     * Locks only the shard that holds the service with the given key, so that operations on services of
+     * different shards are still performed in parallel.
+     *
+     * @see #unlock(ServiceInfo.Key)
+     */
+    public void lock(ServiceInfo.Key key)
+    {
+        shard(key).lock();
+    }
+
+    /**
+     * Unlocks the shard that holds the service with the given key.
+     *
+     * @see #lock(ServiceInfo.Key)
+     */
+    public void unlock(ServiceInfo.Key key)
+    {
+        shard(key).unlock();
+    }
+
+    public void beginBatch()
+    {
+        notifier.beginBatch();
+    }
+
+    public void endBatch()
+    {
+        notifier.endBatch();
+    }
+
+    public void addServiceListener(ServiceListener listener)
+    {
+        notifier.addServiceListener(listener);
+    }
+
+    public void removeServiceListener(ServiceListener listener)
+    {
+        notifier.removeServiceListener(listener);
+    }
+
+    public ServiceJournal getServiceJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Shards do not build attribute indexes, since each shard would index the same tags.
+     */
+    public AttributeIndexes.Statistics getAttributeIndexStatistics()
+    {
+        return null;
+    }
+
+    public Result<T> put(T service)
+    {
+        return shard(service.getKey()).put(service);
+    }
+
+    public T renew(T service)
+    {
+        return shard(service.getKey()).renew(service);
+    }
+
+    public Result<T> addAttributes(ServiceInfo.Key key, Attributes attributes)
+    {
+        return shard(key).addAttributes(key, attributes);
+    }
+
+    public Result<T> removeAttributes(ServiceInfo.Key key, Attributes attributes)
+    {
+        return shard(key).removeAttributes(key, attributes);
+    }
+
+    public Result<T> remove(ServiceInfo.Key key)
+    {
+        return shard(key).remove(key);
+    }
+
+    public List<Result<T>> putAll(Collection<? extends T> services)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                ServiceInfoCache.validateAll(this, services);
+                for (T service : services) result.add(shard(service.getKey()).putValidated(service));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<T>> updateAll(Collection<? extends ServiceInfo> services)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(services.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                ServiceInfoCache.validateUpdateAll(this, services);
+                for (ServiceInfo service : services) result.add(addAttributes(service.getKey(), service.getAttributes()));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public List<Result<T>> removeAll(Collection<ServiceInfo.Key> keys)
+    {
+        List<Result<T>> result = new ArrayList<Result<T>>(keys.size());
+        notifier.beginBatch();
+        try
+        {
+            lock();
+            try
+            {
+                for (ServiceInfo.Key key : keys) result.add(remove(key));
+            }
+            finally
+            {
+                unlock();
+            }
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public T get(ServiceInfo.Key key)
+    {
+        return shard(key).get(key);
+    }
+
+    public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter)
+    {
+        List<T> result = new ArrayList<T>();
+        for (Shard shard : shards) result.addAll(shard.match(serviceType, language, scopes, filter));
+        return result;
+    }
+
+    public List<T> match(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit)
+    {
+        if (limit == null) return match(serviceType, language, scopes, filter);
+        // Each shard selects its best services, and the best of those are selected again
+        List<T> result = new ArrayList<T>();
+        for (Shard shard : shards) result.addAll(shard.match(serviceType, language, scopes, filter, limit));
+        return limit.select(result);
+    }
+
+    public int count(ServiceType serviceType, String language, Scopes scopes, Filter filter, int max)
+    {
+        int result = 0;
+        for (int i = 0; i < shards.size() && result < max; ++i)
+            result += shards.get(i).count(serviceType, language, scopes, filter, max - result);
+        return result;
+    }
+
+    public List<T> match(ServiceURL serviceURL, String language, Scopes scopes)
+    {
+        // Services with the same URL and different languages may be in different shards
+        List<T> result = new ArrayList<T>();
+        for (Shard shard : shards) result.addAll(shard.match(serviceURL, language, scopes));
+        return result;
+    }
+
+    public List<ServiceType> matchServiceTypes(String namingAuthority, Scopes scopes)
+    {
+        // The same service type may be present in many shards
+        Set<ServiceType> result = new LinkedHashSet<ServiceType>();
+        for (Shard shard : shards) result.addAll(shard.matchServiceTypes(namingAuthority, scopes));
+        return new ArrayList<ServiceType>(result);
+    }
+
+    public Attributes matchAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags)
+    {
+        // The aggregates of the shards are combined while they cannot change
+        List<Attributes.Aggregate> aggregates = new ArrayList<Attributes.Aggregate>();
+        lock();
+        try
+        {
+            for (Shard shard : shards) shard.getServiceTypeRegistry().matchAttributes(serviceType, language, scopes, aggregates);
+            return Attributes.Aggregate.aggregate(aggregates, tags);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    public List<T> getServiceInfos()
+    {
+        List<T> result = new ArrayList<T>();
+        for (Shard shard : shards) result.addAll(shard.getServiceInfos());
+        return result;
+    }
+
+    public List<T> purge()
+    {
+        List<T> result = new ArrayList<T>();
+        notifier.beginBatch();
+        try
+        {
+            for (Shard shard : shards) result.addAll(shard.purge());
+        }
+        finally
+        {
+            notifier.endBatch();
+        }
+        return result;
+    }
+
+    public int getSize()
+    {
+        int result = 0;
+        for (Shard shard : shards) result += shard.getSize();
+        return result;
+    }
+
+    /**
+     * @return the number of shards of this store
+     */
+    public int getShardCount()
+    {
+        return shards.size();
+    }
+
+    /**
+     * A shard that notifies the listeners of the enclosing store.
+     */
+    private class Shard extends ServiceInfoCache<T>
+    {
+        private Shard()
+        {
+            super(notifier, journal, null);
+        }
+    }
+
+    public static class Factory implements ServiceStore.Factory
+    {
+        public ServiceStore<ServiceInfo> newServiceStore(Settings settings)
+        {
+            int shardCount = settings == null ? Defaults.get(SERVICE_STORE_SHARDS_KEY) : settings.get(SERVICE_STORE_SHARDS_KEY, Defaults.get(SERVICE_STORE_SHARDS_KEY));
+            return new ShardedServiceStore<ServiceInfo>(shardCount, ServiceJournal.newInstance(settings));
+        }
+    }
+}
@@ -17,14 +17,18 @@ package org.livetribe.slp.spi;
 
 import java.util.List;
 
+import org.livetribe.slp.Attributes;
 import org.livetribe.slp.SLPError;
 import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.ServiceURL;
 import org.livetribe.slp.spi.msg.AttributeListExtension;
 import org.livetribe.slp.spi.msg.LanguageExtension;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.ScopeListExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
+import org.livetribe.slp.spi.msg.TagListExtension;
 import org.livetribe.slp.spi.msg.URLEntry;
 
 
@@ -39,11 +43,25 @@ public class SrvRplyPerformer
     }
 
     protected SrvRply newSrvRply(Message message, List<? extends ServiceInfo> services, int maxLength)
+    {
+        return newSrvRply(message, services, maxLength, null);
+    }
+
+    protected SrvRply newSrvRply(Message message, List<? extends ServiceInfo> services, int maxLength, ResultVersionExtension resultVersion)
     {
         SrvRply srvRply = newSrvRply(message, SLPError.NO_ERROR);
+        // The version comes before the URL entries, so that it is sent even if the reply overflows
+        if (resultVersion != null) srvRply.addExtension(resultVersion);
 
         SrvRply result = (SrvRply)Message.deserialize(srvRply.serialize());
 
+        boolean languageRequested = LanguageExtension.findFirst(message.getExtensions()) != null;
+        boolean scopesRequested = ScopeListExtension.findFirst(message.getExtensions()) != null;
+        boolean attributesRequested = AttributeListExtension.findFirst(message.getExtensions()) != null;
+        // Only the attributes with the requested tags, if any, are sent
+        TagListExtension tagList = TagListExtension.findFirst(message.getExtensions());
+        Attributes tags = tagList == null ? null : tagList.getTags();
+
         for (ServiceInfo service : services)
         {
             ServiceURL serviceURL = service.getServiceURL();
@@ -51,10 +69,13 @@ public class SrvRplyPerformer
             URLEntry urlEntry = new URLEntry();
             urlEntry.setURL(serviceURL.getURL());
             urlEntry.setLifetime(serviceURL.getLifetime());
+            // Stores that keep services in wire form already have the encoded URL entry
+            byte[] urlEntryBytes = service.getURLEntryBytes();
+            if (urlEntryBytes != null) urlEntry.setBytes(urlEntryBytes);
             srvRply.addURLEntry(urlEntry);
 
             // Add language only if it has been requested
-            if (LanguageExtension.findFirst(message.getExtensions()) != null)
+            if (languageRequested)
             {
                 LanguageExtension languageExtension = new LanguageExtension();
                 languageExtension.setURL(serviceURL.getURL());
@@ -63,7 +84,7 @@ public class SrvRplyPerformer
             }
 
             // Add scopes only if they were requested
-            if (ScopeListExtension.findFirst(message.getExtensions()) != null)
+            if (scopesRequested)
             {
                 ScopeListExtension scopesExt = new ScopeListExtension();
                 scopesExt.setURL(serviceURL.getURL());
@@ -72,11 +93,13 @@ public class SrvRplyPerformer
             }
 
             // Add attributes only if they were requested
-            if (AttributeListExtension.findFirst(message.getExtensions()) != null)
+            if (attributesRequested)
             {
+                Attributes attributes = service.getAttributes();
+                if (tags != null && attributes != null) attributes = attributes.intersect(tags);
                 AttributeListExtension attributesExt = new AttributeListExtension();
                 attributesExt.setURL(serviceURL.getURL());
-                attributesExt.setAttributes(service.getAttributes());
+                attributesExt.setAttributes(attributes);
                 srvRply.addExtension(attributesExt);
             }
 
@@ -93,6 +116,22 @@ public class SrvRplyPerformer
         return result;
     }
 
+    protected SrvRply newSrvRply(Message message, MatchCountExtension matchCount)
+    {
+        // The reply carries only the count, not the URLs of the matching services
+        SrvRply srvRply = newSrvRply(message, SLPError.NO_ERROR);
+        srvRply.addExtension(matchCount);
+        return srvRply;
+    }
+
+    protected SrvRply newSrvRply(Message message, ResultVersionExtension resultVersion)
+    {
+        // The reply carries only the version, the client already has the matching services
+        SrvRply srvRply = newSrvRply(message, SLPError.NO_ERROR);
+        srvRply.addExtension(resultVersion);
+        return srvRply;
+    }
+
     protected SrvRply newSrvRply(Message message, SLPError error)
     {
         SrvRply srvRply = new SrvRply();
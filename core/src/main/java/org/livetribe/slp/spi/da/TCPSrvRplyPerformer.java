@@ -22,7 +22,9 @@ import org.livetribe.slp.SLPError;
 import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.SrvRplyPerformer;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.net.TCPConnector;
 
@@ -46,6 +48,27 @@ public class TCPSrvRplyPerformer extends SrvRplyPerformer
         tcpConnector.write(socket, bytes);
     }
 
+    public void perform(Socket socket, Message message, List<? extends ServiceInfo> services, ResultVersionExtension resultVersion)
+    {
+        SrvRply srvRply = newSrvRply(message, services, Integer.MAX_VALUE, resultVersion);
+        byte[] bytes = srvRply.serialize();
+        tcpConnector.write(socket, bytes);
+    }
+
+    public void perform(Socket socket, Message message, ResultVersionExtension resultVersion)
+    {
+        SrvRply srvRply = newSrvRply(message, resultVersion);
+        byte[] bytes = srvRply.serialize();
+        tcpConnector.write(socket, bytes);
+    }
+
+    public void perform(Socket socket, Message message, MatchCountExtension matchCount)
+    {
+        SrvRply srvRply = newSrvRply(message, matchCount);
+        byte[] bytes = srvRply.serialize();
+        tcpConnector.write(socket, bytes);
+    }
+
     public void perform(Socket socket, Message message, SLPError error)
     {
         SrvRply srvRply = newSrvRply(message, error);
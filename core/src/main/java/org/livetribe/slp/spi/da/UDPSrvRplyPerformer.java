@@ -25,7 +25,9 @@ import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.settings.Defaults;
 import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.SrvRplyPerformer;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.net.UDPConnector;
 
@@ -57,6 +59,27 @@ public class UDPSrvRplyPerformer extends SrvRplyPerformer
         udpConnector.send(localAddress.getAddress().getHostAddress(), remoteAddress, bytes);
     }
 
+    public void perform(InetSocketAddress localAddress, InetSocketAddress remoteAddress, Message message, List<? extends ServiceInfo> services, ResultVersionExtension resultVersion)
+    {
+        SrvRply srvRply = newSrvRply(message, services, maxTransmissionUnit, resultVersion);
+        byte[] bytes = srvRply.serialize();
+        udpConnector.send(localAddress.getAddress().getHostAddress(), remoteAddress, bytes);
+    }
+
+    public void perform(InetSocketAddress localAddress, InetSocketAddress remoteAddress, Message message, ResultVersionExtension resultVersion)
+    {
+        SrvRply srvRply = newSrvRply(message, resultVersion);
+        byte[] bytes = srvRply.serialize();
+        udpConnector.send(localAddress.getAddress().getHostAddress(), remoteAddress, bytes);
+    }
+
+    public void perform(InetSocketAddress localAddress, InetSocketAddress remoteAddress, Message message, MatchCountExtension matchCount)
+    {
+        SrvRply srvRply = newSrvRply(message, matchCount);
+        byte[] bytes = srvRply.serialize();
+        udpConnector.send(localAddress.getAddress().getHostAddress(), remoteAddress, bytes);
+    }
+
     public void perform(InetSocketAddress localAddress, InetSocketAddress remoteAddress, Message message, SLPError error)
     {
         SrvRply srvRply = newSrvRply(message, error);
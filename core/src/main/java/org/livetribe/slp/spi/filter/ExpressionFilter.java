@@ -33,14 +33,20 @@ public class ExpressionFilter implements Filter
     private static final Pattern EXPRESSION_PATTERN = Pattern.compile("(.+?)([<>]?=)(.+)");
     private static final Pattern OCTET_STRING_PATTERN = Pattern.compile("(\\\\[\\da-f]{2})+");
 
-    static final String GE = ">=";
-    static final String LE = "<=";
-    static final String EQ = "=";
+    public static final String GE = ">=";
+    public static final String LE = "<=";
+    public static final String EQ = "=";
     private static final String ANY = "*";
 
     private final String lhs;
     private final String operator;
     private final String rhs;
+    private final boolean integerRhs;
+    private final int integerCompare;
+    private final Boolean booleanCompare;
+    private final String normalizedCompare;
+    private final byte[] opaqueCompare;
+    private final WildcardMatcher wildcardMatcher;
 
     public ExpressionFilter(String lhs, String operator, String rhs) throws ServiceLocationException
     {
@@ -51,6 +57,54 @@ public class ExpressionFilter implements Filter
         // Check if wildcard comparison is done properly (RFC 2608, 8.1)
         if (!EQ.equals(operator) && rhs.indexOf(ANY) >= 0)
             throw new ServiceLocationException("Invalid filter " + this + ": wildcard matching is only allowed with operator " + EQ, SLPError.PARSE_ERROR);
+
+        // Convert the right hand side once, so that it is not converted for every match
+        String unescaped = unescape(rhs.trim());
+        int integer = 0;
+        boolean isInteger = true;
+        try
+        {
+            integer = Integer.parseInt(unescaped);
+        }
+        catch (NumberFormatException x)
+        {
+            isInteger = false;
+        }
+        this.integerRhs = isInteger;
+        this.integerCompare = integer;
+
+        unescaped = unescape(rhs);
+        if ("true".equalsIgnoreCase(unescaped) || "false".equalsIgnoreCase(unescaped))
+            this.booleanCompare = Boolean.valueOf(unescaped);
+        else
+            this.booleanCompare = null;
+
+        // Decode the right hand side once, to be compared with opaque attribute values
+        byte[] opaque;
+        try
+        {
+            opaque = octetStringToBytes(rhs);
+        }
+        catch (ServiceLocationException x)
+        {
+            // Not an octet string: matching an opaque value reports the parse error
+            opaque = null;
+        }
+        this.opaqueCompare = opaque;
+
+        // Normalize the right hand side once, to be compared with the normalized attribute values
+        this.normalizedCompare = normalizeFilterValue(rhs);
+        if (rhs.indexOf(ANY) >= 0)
+        {
+            // Compile the wildcard pattern once; trailing empty parts are kept to anchor the suffix
+            String[] parts = rhs.split("\\*", -1);
+            for (int i = 0; i < parts.length; ++i) parts[i] = normalizeFilterValue(parts[i]);
+            this.wildcardMatcher = new WildcardMatcher(parts);
+        }
+        else
+        {
+            this.wildcardMatcher = null;
+        }
     }
 
     public static ExpressionFilter fromString(String expr) throws ServiceLocationException
@@ -73,6 +127,64 @@ public class ExpressionFilter implements Filter
         throw new ServiceLocationException("Bad filter expression: " + expr, SLPError.PARSE_ERROR);
     }
 
+    /**
+     * @return the unescaped tag of the attribute compared by this filter
+     */
+    public String getTag()
+    {
+        return lhs;
+    }
+
+    /**
+     * @return the comparison operator, one of {@link #EQ}, {@link #GE} or {@link #LE}
+     */
+    public String getOperator()
+    {
+        return operator;
+    }
+
+    /**
+     * @return the normalized value attribute string values are compared to
+     */
+    public String getNormalizedValue()
+    {
+        return normalizedCompare;
+    }
+
+    /**
+     * @return the value attribute integer values are compared to, or null if the value is not an integer
+     */
+    public Integer getIntegerValue()
+    {
+        return integerRhs ? integerCompare : null;
+    }
+
+    /**
+     * @return the value attribute boolean values are compared to, or null if the value is not a boolean
+     */
+    public Boolean getBooleanValue()
+    {
+        return booleanCompare;
+    }
+
+    /**
+     * @return the normalized literal prefix of the wildcard pattern of this filter, possibly the empty string,
+     *         or null if this filter has no wildcards
+     */
+    public String getWildcardPrefix()
+    {
+        return wildcardMatcher == null ? null : wildcardMatcher.getPrefix();
+    }
+
+    /**
+     * @return true if the wildcard pattern of this filter only constrains the prefix of values, as in
+     *         <code>(tag=prefix*)</code>, false if this filter has no wildcards or other wildcards
+     */
+    public boolean isPrefixPattern()
+    {
+        return wildcardMatcher != null && wildcardMatcher.isPrefix();
+    }
+
     public boolean matches(Attributes attributes)
     {
         if (attributes == null) return false;
@@ -90,50 +202,34 @@ public class ExpressionFilter implements Filter
     {
         if (attributeValue.isStringType())
         {
+            int size = attributeValue.getSize();
             if (GE.equals(operator))
             {
-                return compareStringValue((String)attributeValue.getValue(), compare) >= 0;
+                return attributeValue.getNormalizedStringValue(0).compareTo(normalizedCompare) >= 0;
             }
             else if (LE.equals(operator))
             {
-                return compareStringValue((String)attributeValue.getValue(), compare) <= 0;
+                return attributeValue.getNormalizedStringValue(0).compareTo(normalizedCompare) <= 0;
             }
             else if (EQ.equals(operator))
             {
-                boolean result = false;
-                if (compare.indexOf(ANY) >= 0)
+                if (wildcardMatcher != null)
                 {
                     // Wildcard comparison
-                    String[] parts = compare.split("\\*", 0);
-                    Object[] values = attributeValue.getValues();
-                    for (Object value : values)
+                    for (int i = 0; i < size; ++i)
                     {
-                        String stringValue = normalizeSpace((String)value).toLowerCase();
-                        boolean match = true;
-                        int start = 0;
-                        for (String part : parts)
-                        {
-                            part = normalizeFilterValue(part).toLowerCase();
-                            if (part.length() > 0)
-                            {
-                                int index = stringValue.indexOf(part, start);
-                                match &= index >= 0;
-                                start = index + 1;
-                            }
-                        }
-                        result |= match;
+                        if (wildcardMatcher.matches(attributeValue.getNormalizedStringValue(i))) return true;
                     }
                 }
                 else
                 {
                     // Direct comparison
-                    Object[] values = attributeValue.getValues();
-                    for (Object value : values)
+                    for (int i = 0; i < size; ++i)
                     {
-                        result |= compareStringValue((String)value, compare) == 0;
+                        if (attributeValue.getNormalizedStringValue(i).equals(normalizedCompare)) return true;
                     }
                 }
-                return result;
+                return false;
             }
             else
             {
@@ -142,65 +238,49 @@ public class ExpressionFilter implements Filter
         }
         else if (attributeValue.isIntegerType())
         {
-            try
+            if (!integerRhs) return false;
+            int size = attributeValue.getSize();
+            if (GE.equals(operator))
             {
-                int compareInteger = Integer.parseInt(unescape(compare.trim()));
-                if (GE.equals(operator))
+                for (int i = 0; i < size; ++i)
                 {
-                    Object[] values = attributeValue.getValues();
-                    boolean result = false;
-                    for (Object value : values)
-                    {
-                        Integer integerValue = (Integer)value;
-                        result |= integerValue >= compareInteger;
-                    }
-                    return result;
-                }
-                else if (LE.equals(operator))
-                {
-                    Object[] values = attributeValue.getValues();
-                    boolean result = false;
-                    for (Object value : values)
-                    {
-                        Integer integerValue = (Integer)value;
-                        result |= integerValue <= compareInteger;
-                    }
-                    return result;
+                    if (attributeValue.getIntegerValue(i) >= integerCompare) return true;
                 }
-                else if (EQ.equals(operator))
+                return false;
+            }
+            else if (LE.equals(operator))
+            {
+                for (int i = 0; i < size; ++i)
                 {
-                    Object[] values = attributeValue.getValues();
-                    boolean result = false;
-                    for (Object value : values)
-                    {
-                        Integer integerValue = (Integer)value;
-                        result |= integerValue == compareInteger;
-                    }
-                    return result;
+                    if (attributeValue.getIntegerValue(i) <= integerCompare) return true;
                 }
-                else
+                return false;
+            }
+            else if (EQ.equals(operator))
+            {
+                for (int i = 0; i < size; ++i)
                 {
-                    throw new AssertionError("Invalid operator " + operator);
+                    if (attributeValue.getIntegerValue(i) == integerCompare) return true;
                 }
+                return false;
             }
-            catch (NumberFormatException x)
+            else
             {
-                return false;
+                throw new AssertionError("Invalid operator " + operator);
             }
         }
         else if (attributeValue.isBooleanType())
         {
             if (!EQ.equals(operator)) return false;
-            if (!"true".equalsIgnoreCase(unescape(compare)) && !"false".equalsIgnoreCase(unescape(compare))) return false;
-            Boolean value = (Boolean)attributeValue.getValue();
-            return value.equals(Boolean.valueOf(unescape(compare)));
+            if (booleanCompare == null) return false;
+            return attributeValue.getBooleanValue(0) == booleanCompare;
         }
         else if (attributeValue.isOpaqueType())
         {
             if (!EQ.equals(operator)) return false;
-            byte[] value = (byte[])attributeValue.getValue();
-
-            return Arrays.equals(octetStringToBytes(compare), value);
+            byte[] value = attributeValue.getOpaqueValue(0);
+            byte[] opaque = opaqueCompare != null ? opaqueCompare : octetStringToBytes(compare);
+            return Arrays.equals(opaque, value);
         }
         else
         {
@@ -210,19 +290,12 @@ public class ExpressionFilter implements Filter
 
     protected static int compareStringValue(String attributeValue, String filterValue)
     {
-        return normalizeSpace(attributeValue).compareToIgnoreCase(
-                normalizeFilterValue(filterValue)
-        );
+        return Attributes.normalizeValue(attributeValue).compareTo(normalizeFilterValue(filterValue));
     }
 
     protected static String normalizeFilterValue(String value)
     {
-        return normalizeSpace(unescape(value));
-    }
-
-    protected static String normalizeSpace(String s)
-    {
-        return s.trim().replaceAll("\\s+", "");
+        return Attributes.normalizeValue(unescape(value));
     }
 
     protected static String unescape(String escaped)
@@ -30,6 +30,11 @@ public class NotFilter implements Filter
         this.filter = filter;
     }
 
+    public Filter getFilter()
+    {
+        return filter;
+    }
+
     public boolean matches(Attributes attributes)
     {
         return !filter.matches(attributes);
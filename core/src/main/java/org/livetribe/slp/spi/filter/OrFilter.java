@@ -32,6 +32,11 @@ public class OrFilter implements Filter
         this.filters = filters;
     }
 
+    public List<Filter> getFilters()
+    {
+        return filters;
+    }
+
     public boolean matches(Attributes attributes)
     {
         boolean result = false;
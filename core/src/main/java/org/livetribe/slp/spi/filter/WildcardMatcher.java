@@ -0,0 +1,96 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.filter;
+
+
+/**
+ * Matches normalized string values against a wildcard pattern such as <code>foo*bar*baz</code>.
+ * <br />
+ * The pattern is compiled once into an anchored prefix, an anchored suffix and an ordered
+ * sequence of middle segments; matching a value does not allocate.
+ */
+class WildcardMatcher
+{
+    private final String prefix;
+    private final String suffix;
+    private final String[] segments;
+    private final int minLength;
+
+    /**
+     * @param parts the normalized parts of the pattern, as obtained by splitting it on the wildcard character;
+     *              the first part is the prefix and the last part is the suffix, and both may be empty
+     */
+    WildcardMatcher(String[] parts)
+    {
+        if (parts.length < 2) throw new IllegalArgumentException("Pattern has no wildcards");
+        this.prefix = parts[0];
+        this.suffix = parts[parts.length - 1];
+        int count = 0;
+        for (int i = 1; i < parts.length - 1; ++i)
+        {
+            if (parts[i].length() > 0) ++count;
+        }
+        this.segments = new String[count];
+        int length = prefix.length() + suffix.length();
+        count = 0;
+        for (int i = 1; i < parts.length - 1; ++i)
+        {
+            String part = parts[i];
+            if (part.length() > 0)
+            {
+                segments[count++] = part;
+                length += part.length();
+            }
+        }
+        this.minLength = length;
+    }
+
+    /**
+     * @return the literal prefix that every matching value starts with, possibly the empty string
+     */
+    String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * @return true if this pattern only constrains the prefix of values, as in <code>foo*</code>
+     */
+    boolean isPrefix()
+    {
+        return segments.length == 0 && suffix.length() == 0;
+    }
+
+    boolean matches(String value)
+    {
+        int length = value.length();
+        if (length < minLength) return false;
+        if (!value.startsWith(prefix)) return false;
+        int end = length - suffix.length();
+        if (!value.startsWith(suffix, end)) return false;
+
+        // Leftmost matching of each segment is enough to decide whether the ordered segments fit
+        int start = prefix.length();
+        for (String segment : segments)
+        {
+            int index = value.indexOf(segment, start);
+            if (index < 0) return false;
+            start = index + segment.length();
+            if (start > end) return false;
+        }
+        return true;
+    }
+}
@@ -126,7 +126,7 @@ public class AttrRqst extends Rqst
         int scopesLength = readInt(bytes, offset, SCOPES_LENGTH_BYTES_LENGTH);
 
         offset += SCOPES_LENGTH_BYTES_LENGTH;
-        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)));
+        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)).intern());
 
         offset += scopesLength;
         int tagsLength = readInt(bytes, offset, TAGS_LENGTH_BYTES_LENGTH);
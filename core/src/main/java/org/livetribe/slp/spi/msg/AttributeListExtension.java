@@ -142,7 +142,7 @@ public class AttributeListExtension extends Extension
         int attributesLength = readInt(bodyBytes, offset, ATTRIBUTES_LENGTH_BYTES_LENGTH);
 
         offset += ATTRIBUTES_LENGTH_BYTES_LENGTH;
-        setAttributes(Attributes.from(readString(bodyBytes, offset, attributesLength, false)));
+        setAttributes(Attributes.from(readString(bodyBytes, offset, attributesLength, false)).intern());
 
         offset += attributesLength;
         int authBlocksCount = readInt(bodyBytes, offset, AUTH_BLOCKS_COUNT_BYTES_LENGTH);
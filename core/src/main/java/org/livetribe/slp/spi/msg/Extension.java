@@ -36,6 +36,10 @@ public abstract class Extension extends BytesBlock
     public static final int SCOPE_LIST_EXTENSION_ID = 0x8000;
     public static final int IDENTIFIER_EXTENSION_ID = 0x8001;
     public static final int LANGUAGE_EXTENSION_ID = 0x8002;
+    public static final int RESULT_LIMIT_EXTENSION_ID = 0x8003;
+    public static final int TAG_LIST_EXTENSION_ID = 0x8004;
+    public static final int MATCH_COUNT_EXTENSION_ID = 0x8005;
+    public static final int RESULT_VERSION_EXTENSION_ID = 0x8006;
 
     public static final int ID_BYTES_LENGTH = 2;
     public static final int NEXT_EXTENSION_OFFSET_BYTES_LENGTH = 3;
@@ -99,6 +103,14 @@ public abstract class Extension extends BytesBlock
                 return new IdentifierExtension();
             case LANGUAGE_EXTENSION_ID:
                 return new LanguageExtension();
+            case RESULT_LIMIT_EXTENSION_ID:
+                return new ResultLimitExtension();
+            case TAG_LIST_EXTENSION_ID:
+                return new TagListExtension();
+            case MATCH_COUNT_EXTENSION_ID:
+                return new MatchCountExtension();
+            case RESULT_VERSION_EXTENSION_ID:
+                return new ResultVersionExtension();
             default:
                 return null;
         }
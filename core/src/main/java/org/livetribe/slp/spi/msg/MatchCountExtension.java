@@ -0,0 +1,129 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import java.util.Collection;
+
+import org.livetribe.slp.ServiceLocationException;
+
+
+/**
+ * The LiveTribe SLP Match Count Extension is the following:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |      Extension ID = 0x8005    |     Next Extension Offset     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * | Offset, contd.|     Mode      |             Count             \
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |          Count, contd.        |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * The Mode field is 0 to count the matching services, 1 to know only whether at least one service matches.
+ * <br />
+ * This extension is sent in SrvRqsts, with a zero Count, to ask to reply with the number of matching services
+ * instead of their URLs; the SrvRply then has no URL entries and carries this extension with the Count.
+ * Agents that do not understand it ignore it and reply with the URLs of the matching services.
+ */
+public class MatchCountExtension extends Extension
+{
+    private static final int MODE_BYTES_LENGTH = 1;
+    private static final int COUNT_BYTES_LENGTH = 4;
+    private static final int COUNT = 0;
+    private static final int EXISTS = 1;
+
+    private boolean exists;
+    private int count;
+
+    MatchCountExtension()
+    {
+    }
+
+    /**
+     * @param exists true to know only whether at least one service matches, false to count the matching services
+     * @param count  the number of matching services, or zero in requests
+     */
+    public MatchCountExtension(boolean exists, int count)
+    {
+        this.exists = exists;
+        this.count = count;
+    }
+
+    public int getId()
+    {
+        return MATCH_COUNT_EXTENSION_ID;
+    }
+
+    public boolean isExists()
+    {
+        return exists;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final MatchCountExtension that = (MatchCountExtension)obj;
+        return isExists() == that.isExists() && getCount() == that.getCount();
+    }
+
+    public int hashCode()
+    {
+        return 29 * (isExists() ? 1 : 0) + getCount();
+    }
+
+    protected byte[] serializeBody() throws ServiceLocationException
+    {
+        byte[] result = new byte[MODE_BYTES_LENGTH + COUNT_BYTES_LENGTH];
+
+        int offset = 0;
+        writeInt(isExists() ? EXISTS : COUNT, result, offset, MODE_BYTES_LENGTH);
+
+        offset += MODE_BYTES_LENGTH;
+        writeInt(getCount(), result, offset, COUNT_BYTES_LENGTH);
+
+        return result;
+    }
+
+    protected void deserializeBody(byte[] bodyBytes) throws ServiceLocationException
+    {
+        int offset = 0;
+        exists = readInt(bodyBytes, offset, MODE_BYTES_LENGTH) == EXISTS;
+
+        offset += MODE_BYTES_LENGTH;
+        count = readInt(bodyBytes, offset, COUNT_BYTES_LENGTH);
+    }
+
+    /**
+     * Returns the first MatchCountExtension found in the given collection of extensions,
+     * or null if the extension collection does not contain a MatchCountExtension.
+     */
+    public static MatchCountExtension findFirst(Collection<? extends Extension> extensions)
+    {
+        for (Extension extension : extensions)
+        {
+            if (MATCH_COUNT_EXTENSION_ID == extension.getId())
+                return (MatchCountExtension)extension;
+        }
+        return null;
+    }
+}
@@ -26,6 +26,7 @@ import org.livetribe.slp.SLPError;
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceLocationException;
 import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.util.Interner;
 
 
 /**
@@ -68,6 +69,7 @@ public abstract class Message extends BytesBlock
     private static final byte SLP_VERSION = 2;
 
     private static final Random random = new Random();
+    private static final Interner<String> languages = new Interner<String>();
 
     private boolean overflow;
     private boolean fresh;
@@ -293,7 +295,7 @@ public abstract class Message extends BytesBlock
             int languageLength = readInt(bytes, offset, LANGUAGE_LENGTH_BYTES_LENGTH);
 
             offset += LANGUAGE_LENGTH_BYTES_LENGTH;
-            String language = readString(bytes, offset, languageLength, true);
+            String language = languages.intern(readString(bytes, offset, languageLength, true));
 
             Message message = createMessage(messageType);
             message.setOverflow((flags & 0x8000) == 0x8000);
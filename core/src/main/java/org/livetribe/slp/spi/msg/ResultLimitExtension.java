@@ -0,0 +1,156 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import java.util.Collection;
+
+import org.livetribe.slp.ServiceLocationException;
+
+
+/**
+ * The LiveTribe SLP Result Limit Extension is the following:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |      Extension ID = 0x8003    |     Next Extension Offset     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * | Offset, contd.|          Max Results          |     Order     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |       Order Tag Length        |           Order Tag           /
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * The Order field is 0 for ascending order, 1 for descending order; the Order Tag is empty to select
+ * the services randomly.
+ * <br />
+ * This extension is sent in SrvRqsts to ask to reply with at most Max Results services; since its identifier
+ * is in the range 0x8000-0x8FFF, agents that do not understand it ignore it and reply with all the services.
+ */
+public class ResultLimitExtension extends Extension
+{
+    private static final int MAX_RESULTS_BYTES_LENGTH = 2;
+    private static final int ORDER_BYTES_LENGTH = 1;
+    private static final int ORDER_TAG_LENGTH_BYTES_LENGTH = 2;
+    private static final int ASCENDING = 0;
+    private static final int DESCENDING = 1;
+
+    private int maxResults;
+    private String orderTag;
+    private boolean ascending = true;
+
+    ResultLimitExtension()
+    {
+    }
+
+    public ResultLimitExtension(int maxResults, String orderTag, boolean ascending)
+    {
+        this.maxResults = maxResults;
+        this.orderTag = orderTag;
+        this.ascending = ascending;
+    }
+
+    public int getId()
+    {
+        return RESULT_LIMIT_EXTENSION_ID;
+    }
+
+    public int getMaxResults()
+    {
+        return maxResults;
+    }
+
+    /**
+     * @return the unescaped tag of the integer attribute to order the services by, or null
+     */
+    public String getOrderTag()
+    {
+        return orderTag;
+    }
+
+    public boolean isAscending()
+    {
+        return ascending;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final ResultLimitExtension that = (ResultLimitExtension)obj;
+        if (getMaxResults() != that.getMaxResults()) return false;
+        if (isAscending() != that.isAscending()) return false;
+        return getOrderTag() == null ? that.getOrderTag() == null : getOrderTag().equals(that.getOrderTag());
+    }
+
+    public int hashCode()
+    {
+        int result = getMaxResults();
+        result = 29 * result + (getOrderTag() == null ? 0 : getOrderTag().hashCode());
+        result = 29 * result + (isAscending() ? 1 : 0);
+        return result;
+    }
+
+    protected byte[] serializeBody() throws ServiceLocationException
+    {
+        byte[] orderTagBytes = writeString(getOrderTag(), true);
+
+        int bodyLength = MAX_RESULTS_BYTES_LENGTH + ORDER_BYTES_LENGTH + ORDER_TAG_LENGTH_BYTES_LENGTH + orderTagBytes.length;
+        byte[] result = new byte[bodyLength];
+
+        int offset = 0;
+        writeInt(getMaxResults(), result, offset, MAX_RESULTS_BYTES_LENGTH);
+
+        offset += MAX_RESULTS_BYTES_LENGTH;
+        writeInt(isAscending() ? ASCENDING : DESCENDING, result, offset, ORDER_BYTES_LENGTH);
+
+        offset += ORDER_BYTES_LENGTH;
+        writeInt(orderTagBytes.length, result, offset, ORDER_TAG_LENGTH_BYTES_LENGTH);
+
+        offset += ORDER_TAG_LENGTH_BYTES_LENGTH;
+        System.arraycopy(orderTagBytes, 0, result, offset, orderTagBytes.length);
+
+        return result;
+    }
+
+    protected void deserializeBody(byte[] bodyBytes) throws ServiceLocationException
+    {
+        int offset = 0;
+        maxResults = readInt(bodyBytes, offset, MAX_RESULTS_BYTES_LENGTH);
+
+        offset += MAX_RESULTS_BYTES_LENGTH;
+        ascending = readInt(bodyBytes, offset, ORDER_BYTES_LENGTH) != DESCENDING;
+
+        offset += ORDER_BYTES_LENGTH;
+        int orderTagLength = readInt(bodyBytes, offset, ORDER_TAG_LENGTH_BYTES_LENGTH);
+
+        offset += ORDER_TAG_LENGTH_BYTES_LENGTH;
+        orderTag = readString(bodyBytes, offset, orderTagLength, true);
+    }
+
+    /**
+     * Returns the first ResultLimitExtension found in the given collection of extensions,
+     * or null if the extension collection does not contain a ResultLimitExtension.
+     */
+    public static ResultLimitExtension findFirst(Collection<? extends Extension> extensions)
+    {
+        for (Extension extension : extensions)
+        {
+            if (RESULT_LIMIT_EXTENSION_ID == extension.getId())
+                return (ResultLimitExtension)extension;
+        }
+        return null;
+    }
+}
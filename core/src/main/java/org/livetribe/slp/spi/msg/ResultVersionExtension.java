@@ -0,0 +1,137 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import java.util.Collection;
+
+import org.livetribe.slp.ServiceLocationException;
+
+
+/**
+ * The LiveTribe SLP Result Version Extension is the following:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |      Extension ID = 0x8006    |     Next Extension Offset     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * | Offset, contd.| Not Modified  |            Version            \
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                        Version, contd.                        \
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |        Version, contd.        |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * The Version field is the version of the result of a SrvRqst, see
+ * {@link org.livetribe.slp.spi.ResultVersion}; the Not Modified field is 1 if the result has not been modified,
+ * 0 otherwise.
+ * <br />
+ * This extension is sent in SrvRqsts with the version of the result the client already has (or
+ * {@link org.livetribe.slp.spi.ResultVersion#NONE} if it has none) and with a zero Not Modified field.
+ * If the version of the current result is the same, the SrvRply has no URL entries and carries this extension
+ * with the Not Modified field set to 1; otherwise the SrvRply carries the matching services and this extension
+ * with the version of the current result.
+ * Agents that do not understand it ignore it and always reply with the matching services.
+ */
+public class ResultVersionExtension extends Extension
+{
+    private static final int NOT_MODIFIED_BYTES_LENGTH = 1;
+    private static final int VERSION_BYTES_LENGTH = 8;
+
+    private long version;
+    private boolean notModified;
+
+    ResultVersionExtension()
+    {
+    }
+
+    /**
+     * @param version     the version of the result
+     * @param notModified true if the result has not been modified since the version sent in the SrvRqst
+     */
+    public ResultVersionExtension(long version, boolean notModified)
+    {
+        this.version = version;
+        this.notModified = notModified;
+    }
+
+    public int getId()
+    {
+        return RESULT_VERSION_EXTENSION_ID;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public boolean isNotModified()
+    {
+        return notModified;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final ResultVersionExtension that = (ResultVersionExtension)obj;
+        return getVersion() == that.getVersion() && isNotModified() == that.isNotModified();
+    }
+
+    public int hashCode()
+    {
+        return 29 * (int)(getVersion() ^ (getVersion() >>> 32)) + (isNotModified() ? 1 : 0);
+    }
+
+    protected byte[] serializeBody() throws ServiceLocationException
+    {
+        byte[] result = new byte[NOT_MODIFIED_BYTES_LENGTH + VERSION_BYTES_LENGTH];
+
+        int offset = 0;
+        writeInt(isNotModified() ? 1 : 0, result, offset, NOT_MODIFIED_BYTES_LENGTH);
+
+        offset += NOT_MODIFIED_BYTES_LENGTH;
+        writeInt((int)(getVersion() >>> 32), result, offset, VERSION_BYTES_LENGTH / 2);
+        writeInt((int)getVersion(), result, offset + VERSION_BYTES_LENGTH / 2, VERSION_BYTES_LENGTH / 2);
+
+        return result;
+    }
+
+    protected void deserializeBody(byte[] bodyBytes) throws ServiceLocationException
+    {
+        int offset = 0;
+        notModified = readInt(bodyBytes, offset, NOT_MODIFIED_BYTES_LENGTH) == 1;
+
+        offset += NOT_MODIFIED_BYTES_LENGTH;
+        long high = readInt(bodyBytes, offset, VERSION_BYTES_LENGTH / 2);
+        long low = readInt(bodyBytes, offset + VERSION_BYTES_LENGTH / 2, VERSION_BYTES_LENGTH / 2);
+        version = (high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the first ResultVersionExtension found in the given collection of extensions,
+     * or null if the extension collection does not contain a ResultVersionExtension.
+     */
+    public static ResultVersionExtension findFirst(Collection<? extends Extension> extensions)
+    {
+        for (Extension extension : extensions)
+        {
+            if (RESULT_VERSION_EXTENSION_ID == extension.getId())
+                return (ResultVersionExtension)extension;
+        }
+        return null;
+    }
+}
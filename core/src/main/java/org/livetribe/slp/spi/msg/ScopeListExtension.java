@@ -142,7 +142,7 @@ public class ScopeListExtension extends Extension
         int scopesLength = readInt(bodyBytes, offset, SCOPES_LENGTH_BYTES_LENGTH);
 
         offset += SCOPES_LENGTH_BYTES_LENGTH;
-        setScopes(Scopes.from(readStringArray(bodyBytes, offset, scopesLength, false)));
+        setScopes(Scopes.from(readStringArray(bodyBytes, offset, scopesLength, false)).intern());
 
         offset += scopesLength;
         int authBlocksCount = readInt(bodyBytes, offset, AUTH_BLOCKS_COUNT_BYTES_LENGTH);
@@ -81,7 +81,7 @@ public class SrvDeReg extends Message
         int scopesLength = readInt(bytes, offset, SCOPES_LENGTH_BYTES_LENGTH);
 
         offset += SCOPES_LENGTH_BYTES_LENGTH;
-        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)));
+        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)).intern());
 
         offset += scopesLength;
         URLEntry url = new URLEntry();
@@ -91,7 +91,7 @@ public class SrvDeReg extends Message
         int tagsLength = readInt(bytes, offset, TAGS_LENGTH_BYTES_LENGTH);
 
         offset += TAGS_LENGTH_BYTES_LENGTH;
-        setTags(Attributes.fromTags(readString(bytes, offset, tagsLength, false)));
+        setTags(Attributes.fromTags(readString(bytes, offset, tagsLength, false)).intern());
     }
 
     public byte getMessageType()
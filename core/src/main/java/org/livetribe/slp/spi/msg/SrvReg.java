@@ -127,19 +127,19 @@ public class SrvReg extends Message
 
         offset += SERVICE_TYPE_LENGTH_BYTES_LENGTH;
         String serviceType = readString(bytes, offset, serviceTypeLength, true);
-        setServiceType(serviceType == null ? null : new ServiceType(serviceType));
+        setServiceType(serviceType == null ? null : new ServiceType(serviceType).intern());
 
         offset += serviceTypeLength;
         int scopesLength = readInt(bytes, offset, SCOPES_LENGTH_BYTES_LENGTH);
 
         offset += SCOPES_LENGTH_BYTES_LENGTH;
-        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)));
+        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)).intern());
 
         offset += scopesLength;
         int attrsLength = readInt(bytes, offset, ATTRIBUTES_LENGTH_BYTES_LENGTH);
 
         offset += ATTRIBUTES_LENGTH_BYTES_LENGTH;
-        setAttributes(Attributes.from(readString(bytes, offset, attrsLength, false)));
+        setAttributes(Attributes.from(readString(bytes, offset, attrsLength, false)).intern());
 
         offset += attrsLength;
         int authBlocksCount = readInt(bytes, offset, AUTH_BLOCKS_COUNT_BYTES_LENGTH);
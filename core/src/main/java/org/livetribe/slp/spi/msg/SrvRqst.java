@@ -122,13 +122,13 @@ public class SrvRqst extends Rqst
 
         offset += SERVICE_TYPE_LENGTH_BYTES_LENGTH;
         String serviceType = readString(bytes, offset, serviceTypeLength, true);
-        setServiceType(serviceType == null ? null : new ServiceType(serviceType));
+        setServiceType(serviceType == null ? null : new ServiceType(serviceType).intern());
 
         offset += serviceTypeLength;
         int scopesLength = readInt(bytes, offset, SCOPES_LENGTH_BYTES_LENGTH);
 
         offset += SCOPES_LENGTH_BYTES_LENGTH;
-        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)));
+        setScopes(Scopes.from(readStringArray(bytes, offset, scopesLength, false)).intern());
 
         offset += scopesLength;
         int filterLength = readInt(bytes, offset, FILTER_LENGTH_BYTES_LENGTH);
@@ -85,7 +85,7 @@ public class SrvTypeRply extends Rply
 
         offset += SERVICE_TYPES_LENGTH_BYTES_LENGTH;
         String[] serviceTypeStrings = readStringArray(bytes, offset, serviceTypesBytes, true);
-        for (String serviceTypeString : serviceTypeStrings) addServiceType(new ServiceType(serviceTypeString));
+        for (String serviceTypeString : serviceTypeStrings) addServiceType(new ServiceType(serviceTypeString).intern());
     }
 
     public byte getMessageType()
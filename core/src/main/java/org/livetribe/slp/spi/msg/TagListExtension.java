@@ -0,0 +1,114 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import java.util.Collection;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.ServiceLocationException;
+
+
+/**
+ * The LiveTribe SLP Tag List Extension is the following:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |      Extension ID = 0x8004    |     Next Extension Offset     |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * | Offset, contd.|        Tag List Length        |   Tag List    /
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * This extension is sent in SrvRqsts together with an {@link AttributeListExtension} to ask to reply
+ * only with the attributes whose tags are in the Tag List, that has the same format of the tag list of AttrRqsts
+ * (RFC 2608, 10.3); agents that do not understand it ignore it and reply with all the attributes.
+ */
+public class TagListExtension extends Extension
+{
+    private static final int TAGS_LENGTH_BYTES_LENGTH = 2;
+
+    private Attributes tags;
+
+    TagListExtension()
+    {
+    }
+
+    public TagListExtension(Attributes tags)
+    {
+        this.tags = tags;
+    }
+
+    public int getId()
+    {
+        return TAG_LIST_EXTENSION_ID;
+    }
+
+    public Attributes getTags()
+    {
+        return tags;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        final TagListExtension that = (TagListExtension)obj;
+        return getTags() == null ? that.getTags() == null : getTags().equals(that.getTags());
+    }
+
+    public int hashCode()
+    {
+        return getTags() == null ? 0 : getTags().hashCode();
+    }
+
+    protected byte[] serializeBody() throws ServiceLocationException
+    {
+        byte[] tagsBytes = getTags() == null ? EMPTY_BYTES : writeString(getTags().asTagsString(), false);
+
+        byte[] result = new byte[TAGS_LENGTH_BYTES_LENGTH + tagsBytes.length];
+
+        int offset = 0;
+        writeInt(tagsBytes.length, result, offset, TAGS_LENGTH_BYTES_LENGTH);
+
+        offset += TAGS_LENGTH_BYTES_LENGTH;
+        System.arraycopy(tagsBytes, 0, result, offset, tagsBytes.length);
+
+        return result;
+    }
+
+    protected void deserializeBody(byte[] bodyBytes) throws ServiceLocationException
+    {
+        int offset = 0;
+        int tagsLength = readInt(bodyBytes, offset, TAGS_LENGTH_BYTES_LENGTH);
+
+        offset += TAGS_LENGTH_BYTES_LENGTH;
+        tags = Attributes.fromTags(readString(bodyBytes, offset, tagsLength, false));
+    }
+
+    /**
+     * Returns the first TagListExtension found in the given collection of extensions,
+     * or null if the extension collection does not contain a TagListExtension.
+     */
+    public static TagListExtension findFirst(Collection<? extends Extension> extensions)
+    {
+        for (Extension extension : extensions)
+        {
+            if (TAG_LIST_EXTENSION_ID == extension.getId())
+                return (TagListExtension)extension;
+        }
+        return null;
+    }
+}
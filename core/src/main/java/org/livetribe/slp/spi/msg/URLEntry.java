@@ -45,6 +45,7 @@ public class URLEntry extends BytesBlock
     private int lifetime;
     private String url;
     private AuthenticationBlock[] authenticationBlocks;
+    private byte[] bytes;
 
     public int hashCode()
     {
@@ -73,6 +74,9 @@ public class URLEntry extends BytesBlock
 
     public byte[] serialize() throws ServiceLocationException
     {
+        // Entries already in wire form are copied as they are
+        if (bytes != null) return bytes;
+
         byte[] urlBytes = writeString(getURL(), true);
         int urlBytesLength = urlBytes.length;
         AuthenticationBlock[] blocks = getAuthenticationBlocks();
@@ -156,6 +160,7 @@ public class URLEntry extends BytesBlock
     public void setLifetime(int lifetime)
     {
         this.lifetime = lifetime;
+        this.bytes = null;
     }
 
     public String getURL()
@@ -166,6 +171,7 @@ public class URLEntry extends BytesBlock
     public void setURL(String url)
     {
         this.url = url;
+        this.bytes = null;
     }
 
     public AuthenticationBlock[] getAuthenticationBlocks()
@@ -176,6 +182,20 @@ public class URLEntry extends BytesBlock
     public void setAuthenticationBlocks(AuthenticationBlock[] authenticationBlocks)
     {
         this.authenticationBlocks = authenticationBlocks;
+        this.bytes = null;
+    }
+
+    /**
+     * Sets the wire form of this URLEntry, so that it is copied as it is when this URLEntry is serialized.
+     * The given bytes must be the serialized form of the URL, lifetime and authentication blocks of this URLEntry;
+     * they are discarded when any of those is modified.
+     *
+     * @param bytes the serialized bytes of this URLEntry
+     * @see #serialize()
+     */
+    public void setBytes(byte[] bytes)
+    {
+        this.bytes = bytes;
     }
 
     public ServiceURL toServiceURL()
@@ -34,15 +34,18 @@ import org.livetribe.slp.da.DirectoryAgentInfo;
 import org.livetribe.slp.da.DirectoryAgentListener;
 import org.livetribe.slp.sa.ServiceListener;
 import org.livetribe.slp.settings.Defaults;
+import org.livetribe.slp.settings.Factories;
 import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.AbstractServer;
 import org.livetribe.slp.spi.MulticastDASrvRqstPerformer;
-import org.livetribe.slp.spi.ServiceInfoCache;
+import org.livetribe.slp.spi.ResultLimit;
+import org.livetribe.slp.spi.ServiceStore;
 import org.livetribe.slp.spi.UDPSrvAckPerformer;
 import org.livetribe.slp.spi.da.DirectoryAgentInfoCache;
 import org.livetribe.slp.spi.filter.Filter;
 import org.livetribe.slp.spi.filter.FilterParser;
 import org.livetribe.slp.spi.msg.DAAdvert;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
 import org.livetribe.slp.spi.msg.SrvAck;
 import org.livetribe.slp.spi.msg.SrvDeReg;
@@ -62,6 +65,7 @@ import static org.livetribe.slp.settings.Keys.PORT_KEY;
 import static org.livetribe.slp.settings.Keys.SA_ATTRIBUTES_KEY;
 import static org.livetribe.slp.settings.Keys.SA_UNICAST_PREFER_TCP;
 import static org.livetribe.slp.settings.Keys.SCOPES_KEY;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_FACTORY_KEY;
 
 
 /**
@@ -69,7 +73,7 @@ import static org.livetribe.slp.settings.Keys.SCOPES_KEY;
  */
 public abstract class AbstractServiceAgent extends AbstractServer implements DirectoryAgentListener
 {
-    private final ServiceInfoCache<ServiceInfo> services = new ServiceInfoCache<ServiceInfo>();
+    private final ServiceStore<ServiceInfo> services;
     private final DirectoryAgentInfoCache directoryAgents = new DirectoryAgentInfoCache();
     private final MessageListener udpListener = new UDPMessageListener();
     private final Map<String, ServiceAgentInfo> serviceAgents = new HashMap<String, ServiceAgentInfo>();
@@ -92,6 +96,7 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
 
     protected AbstractServiceAgent(UDPConnector udpConnector, TCPConnector tcpConnector, UDPConnectorServer udpConnectorServer, Settings settings)
     {
+        this.services = Factories.<ServiceStore.Factory>newInstance(settings, SERVICE_STORE_FACTORY_KEY).newServiceStore(settings);
         this.udpConnectorServer = udpConnectorServer;
         this.multicastDASrvRqst = new MulticastDASrvRqstPerformer(udpConnector, settings);
         this.udpSrvAck = new UDPSrvAckPerformer(udpConnector, settings);
@@ -299,10 +304,10 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
 
     protected void deregisterServices()
     {
-        for (ServiceInfo service : services.getServiceInfos())
+        for (ServiceStore.Result<ServiceInfo> result : uncacheServices(services.getServiceInfos()))
         {
-            ServiceInfoCache.Result<ServiceInfo> result = uncacheService(service, false);
             ServiceInfo oldService = result.getPrevious();
+            if (oldService == null) continue;
             ServiceInfo givenService = new ServiceInfo(oldService.getServiceURL(), oldService.getLanguage(), oldService.getScopes(), Attributes.NONE);
             forwardDeregistration(givenService, oldService, null, false);
         }
@@ -385,6 +390,7 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
         }
 
         ServiceType serviceType = srvRqst.getServiceType();
+        MatchCountExtension matchCount = MatchCountExtension.findFirst(srvRqst.getExtensions());
         if (ServiceAgentInfo.SERVICE_TYPE.equals(serviceType))
         {
             if (logger.isLoggable(Level.FINE))
@@ -396,9 +402,17 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
             if (logger.isLoggable(Level.FINE))
                 logger.fine("ServiceAgent " + this + " ignoring message " + srvRqst + ", service type not handled by ServiceAgents");
         }
+        else if (matchCount != null)
+        {
+            int count = countServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), matchCount.isExists());
+            if (logger.isLoggable(Level.FINE))
+                logger.fine("ServiceAgent " + this + " returning count " + count + " of services of type " + srvRqst.getServiceType());
+            udpSrvRply.perform(localAddress, remoteAddress, serviceAgent, srvRqst, new MatchCountExtension(matchCount.isExists(), count));
+        }
         else
         {
-            List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter());
+            ResultLimit limit = ResultLimit.from(srvRqst.getExtensions());
+            List<ServiceInfo> matchingServices = matchServices(serviceType, srvRqst.getLanguage(), srvRqst.getScopes(), srvRqst.getFilter(), limit);
             if (logger.isLoggable(Level.FINE))
                 logger.fine("ServiceAgent " + this + " returning " + matchingServices.size() + " services of type " + srvRqst.getServiceType());
             udpSrvRply.perform(localAddress, remoteAddress, serviceAgent, srvRqst, matchingServices);
@@ -406,22 +420,34 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
     }
 
     protected List<ServiceInfo> matchServices(ServiceType serviceType, String language, Scopes scopes, String filter) throws ServiceLocationException
+    {
+        return matchServices(serviceType, language, scopes, filter, null);
+    }
+
+    protected List<ServiceInfo> matchServices(ServiceType serviceType, String language, Scopes scopes, String filter, ResultLimit limit) throws ServiceLocationException
     {
         if (logger.isLoggable(Level.FINEST))
-            logger.finest("ServiceAgent " + this + " matching ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter);
-        List<ServiceInfo> result = services.match(serviceType, language, scopes, new FilterParser().parse(filter));
+            logger.finest("ServiceAgent " + this + " matching ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter + ", limit " + limit);
+        List<ServiceInfo> result = services.match(serviceType, language, scopes, new FilterParser().parse(filter), limit);
         if (logger.isLoggable(Level.FINEST))
             logger.finest("ServiceAgent " + this + " matched " + result.size() + " services: " + result);
         return result;
     }
 
+    protected int countServices(ServiceType serviceType, String language, Scopes scopes, String filter, boolean exists) throws ServiceLocationException
+    {
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("ServiceAgent " + this + " counting ServiceType " + serviceType + ", language " + language + ", scopes " + scopes + ", filter " + filter + ", exists " + exists);
+        return services.count(serviceType, language, scopes, new FilterParser().parse(filter), exists ? 1 : Integer.MAX_VALUE);
+    }
+
     protected void handleUDPSrvReg(SrvReg srvReg, InetSocketAddress localAddress, InetSocketAddress remoteAddress)
     {
         try
         {
             boolean update = srvReg.isUpdating();
             ServiceInfo givenService = ServiceInfo.from(srvReg);
-            ServiceInfoCache.Result<ServiceInfo> result = cacheService(givenService, update);
+            ServiceStore.Result<ServiceInfo> result = cacheService(givenService, update);
             if (logger.isLoggable(Level.FINE))
                 logger.fine("ServiceAgent " + this + " registered service " + givenService);
             forwardRegistration(givenService, result.getPrevious(), result.getCurrent(), update);
@@ -439,7 +465,7 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
         {
             boolean update = srvDeReg.isUpdating();
             ServiceInfo givenService = ServiceInfo.from(srvDeReg);
-            ServiceInfoCache.Result<ServiceInfo> result = uncacheService(givenService, update);
+            ServiceStore.Result<ServiceInfo> result = uncacheService(givenService, update);
             forwardDeregistration(givenService, result.getPrevious(), result.getCurrent(), update);
             udpSrvAck.perform(localAddress, remoteAddress, srvDeReg, SLPError.NO_ERROR);
         }
@@ -473,7 +499,7 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
             logger.finest("ServiceAgent " + this + " noticed DirectoryAgent death: " + directoryAgent);
     }
 
-    protected ServiceInfoCache.Result<ServiceInfo> cacheService(ServiceInfo service, boolean update)
+    protected ServiceStore.Result<ServiceInfo> cacheService(ServiceInfo service, boolean update)
     {
         // RFC 2608, 7.0
         if (!scopes.match(service.getScopes()))
@@ -491,7 +517,7 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
         return services.get(service.getKey());
     }
 
-    protected ServiceInfoCache.Result<ServiceInfo> uncacheService(ServiceInfo service, boolean update)
+    protected ServiceStore.Result<ServiceInfo> uncacheService(ServiceInfo service, boolean update)
     {
         // RFC 2608, 7.0
         if (!scopes.match(service.getScopes()))
@@ -504,6 +530,21 @@ public abstract class AbstractServiceAgent extends AbstractServer implements Dir
         return update ? services.removeAttributes(service.getKey(), service.getAttributes()) : services.remove(service.getKey());
     }
 
+    /**
+     * Removes the given cached services at once; this is the batch variant of
+     * {@link #uncacheService(ServiceInfo, boolean)}, used when this service agent deregisters all its services.
+     *
+     * @param services the cached services to remove
+     * @return the results of the removals, in the same order of the given services
+     */
+    protected List<ServiceStore.Result<ServiceInfo>> uncacheServices(List<ServiceInfo> services)
+    {
+        // Cached services already match the scopes of this service agent, so they are removed at once
+        List<ServiceInfo.Key> keys = new ArrayList<ServiceInfo.Key>(services.size());
+        for (ServiceInfo service : services) keys.add(service.getKey());
+        return this.services.removeAll(keys);
+    }
+
     /**
      * ServiceAgents listen for udp messages that may arrive.
      */
@@ -25,6 +25,7 @@ import org.livetribe.slp.settings.Defaults;
 import org.livetribe.slp.settings.Settings;
 import org.livetribe.slp.spi.SrvRplyPerformer;
 import org.livetribe.slp.spi.msg.IdentifierExtension;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.net.UDPConnector;
@@ -65,6 +66,16 @@ public class UDPSrvRplyPerformer extends SrvRplyPerformer
         send(localAddress, remoteAddress, bytes);
     }
 
+    public void perform(InetSocketAddress localAddress, InetSocketAddress remoteAddress, ServiceAgentInfo serviceAgent, Message message, MatchCountExtension matchCount)
+    {
+        SrvRply srvRply = newSrvRply(message, matchCount);
+        if (serviceAgent.getIdentifier() != null)
+            srvRply.addExtension(new IdentifierExtension(serviceAgent.getHostAddress(), serviceAgent.getIdentifier()));
+
+        byte[] bytes = srvRply.serialize();
+        send(localAddress, remoteAddress, bytes);
+    }
+
     protected void send(InetSocketAddress localAddress, InetSocketAddress remoteAddress, byte[] bytes)
     {
         udpConnector.send(localAddress.getAddress().getHostAddress(), remoteAddress, bytes);
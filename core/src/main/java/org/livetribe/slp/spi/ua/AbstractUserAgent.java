@@ -18,6 +18,7 @@ package org.livetribe.slp.spi.ua;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,13 +32,18 @@ import org.livetribe.slp.ServiceURL;
 import org.livetribe.slp.da.DirectoryAgentInfo;
 import org.livetribe.slp.settings.Defaults;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.AttributeProjection;
 import org.livetribe.slp.spi.MulticastDASrvRqstPerformer;
+import org.livetribe.slp.spi.ResultLimit;
+import org.livetribe.slp.spi.ResultVersion;
 import org.livetribe.slp.spi.filter.Filter;
 import org.livetribe.slp.spi.filter.FilterParser;
 import org.livetribe.slp.spi.msg.AttrRply;
 import org.livetribe.slp.spi.msg.AttributeListExtension;
 import org.livetribe.slp.spi.msg.DAAdvert;
 import org.livetribe.slp.spi.msg.LanguageExtension;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.ScopeListExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.msg.SrvTypeRply;
@@ -47,6 +53,7 @@ import org.livetribe.slp.spi.net.TCPConnector;
 import org.livetribe.slp.spi.net.UDPConnector;
 
 import static org.livetribe.slp.settings.Keys.PORT_KEY;
+import static org.livetribe.slp.settings.Keys.UA_RESULT_CACHE_SIZE_KEY;
 import static org.livetribe.slp.settings.Keys.UA_UNICAST_PREFER_TCP;
 
 
@@ -65,6 +72,8 @@ public abstract class AbstractUserAgent implements IUserAgent
     private final MulticastSrvTypeRqstPerformer multicastSrvTypeRqst;
     private int port = Defaults.get(PORT_KEY);
     private boolean preferTCP = Defaults.get(UA_UNICAST_PREFER_TCP);
+    private int resultCacheSize = Defaults.get(UA_RESULT_CACHE_SIZE_KEY);
+    private final ResultCache resultCache;
 
     public AbstractUserAgent(UDPConnector udpConnector, TCPConnector tcpConnector, Settings settings)
     {
@@ -76,12 +85,14 @@ public abstract class AbstractUserAgent implements IUserAgent
         this.unicastSrvTypeRqst = new UnicastSrvTypeRqstPerformer(udpConnector, tcpConnector, settings);
         this.multicastSrvTypeRqst = new MulticastSrvTypeRqstPerformer(udpConnector, settings);
         if (settings != null) setSettings(settings);
+        this.resultCache = resultCacheSize > 0 ? new ResultCache(resultCacheSize) : null;
     }
 
     private void setSettings(Settings settings)
     {
         if (settings.containsKey(PORT_KEY)) this.port = settings.get(PORT_KEY);
         if (settings.containsKey(UA_UNICAST_PREFER_TCP)) this.preferTCP = settings.get(UA_UNICAST_PREFER_TCP);
+        if (settings.containsKey(UA_RESULT_CACHE_SIZE_KEY)) this.resultCacheSize = settings.get(UA_RESULT_CACHE_SIZE_KEY);
     }
 
     public int getPort()
@@ -95,8 +106,21 @@ public abstract class AbstractUserAgent implements IUserAgent
     }
 
     public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filterString)
+    {
+        return findServices(serviceType, language, scopes, filterString, null);
+    }
+
+    public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filterString, ResultLimit limit)
+    {
+        return findServices(serviceType, language, scopes, filterString, limit, AttributeProjection.ALL);
+    }
+
+    public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filterString, ResultLimit limit, AttributeProjection projection)
     {
         Filter filter = new FilterParser().parse(filterString);
+        if (projection == null) projection = AttributeProjection.ALL;
+        // The attribute that orders the services is needed to select among the replies of many agents
+        AttributeProjection requested = limit == null ? projection : projection.include(limit.getOrderTag());
         List<ServiceInfo> result = new ArrayList<ServiceInfo>();
 
         List<DirectoryAgentInfo> directoryAgents = findDirectoryAgents(scopes, null);
@@ -105,13 +129,12 @@ public abstract class AbstractUserAgent implements IUserAgent
             for (DirectoryAgentInfo directoryAgent : directoryAgents)
             {
                 InetSocketAddress address = resolveDirectoryAgentAddress(directoryAgent);
-                SrvRply srvRply = unicastSrvRqst.perform(address, preferTCP, serviceType, language, scopes, filter);
-                if (srvRply.getSLPError() == SLPError.NO_ERROR) result.addAll(srvRplyToServiceInfos(srvRply, scopes));
+                result.addAll(findServices(address, serviceType, language, scopes, filter, limit, requested));
             }
         }
         else
         {
-            List<SrvRply> srvRplys = multicastSrvRqst.perform(serviceType, language, scopes, filter);
+            List<SrvRply> srvRplys = multicastSrvRqst.perform(serviceType, language, scopes, filter, limit, requested);
             for (SrvRply srvRply : srvRplys)
             {
                 if (srvRply.getSLPError() == SLPError.NO_ERROR)
@@ -122,7 +145,7 @@ public abstract class AbstractUserAgent implements IUserAgent
                         {
                             // Attempt to use TCP
                             InetSocketAddress address = new InetSocketAddress(srvRply.getResponder(), port);
-                            srvRply = unicastSrvRqst.perform(address, true, serviceType, language, scopes, filter);
+                            srvRply = unicastSrvRqst.perform(address, true, serviceType, language, scopes, filter, limit, requested);
                         }
                         catch (Exception ignored)
                         {
@@ -134,9 +157,116 @@ public abstract class AbstractUserAgent implements IUserAgent
             }
         }
 
+        // Each agent replied with its best services, or with all services if it does not support result limits
+        if (limit != null) result = limit.select(result);
+        // Agents that do not support tag lists reply with all the attributes
+        return project(result, projection);
+    }
+
+    private List<ServiceInfo> findServices(InetSocketAddress address, ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection)
+    {
+        if (resultCache == null)
+        {
+            SrvRply srvRply = unicastSrvRqst.perform(address, preferTCP, serviceType, language, scopes, filter, limit, projection);
+            if (srvRply.getSLPError() != SLPError.NO_ERROR) return Collections.emptyList();
+            return srvRplyToServiceInfos(srvRply, scopes);
+        }
+
+        ResultCache.Query query = new ResultCache.Query(address, serviceType, language, scopes, filter, limit, projection);
+        ResultCache.Result cached = resultCache.get(query);
+        long version = cached == null ? ResultVersion.NONE : cached.getVersion();
+        SrvRply srvRply = unicastSrvRqst.perform(address, preferTCP, serviceType, language, scopes, filter, limit, projection, version);
+        if (srvRply.getSLPError() != SLPError.NO_ERROR) return Collections.emptyList();
+
+        ResultVersionExtension resultVersion = ResultVersionExtension.findFirst(srvRply.getExtensions());
+        if (cached != null && resultVersion != null && resultVersion.isNotModified() && resultVersion.getVersion() == version)
+        {
+            if (logger.isLoggable(Level.FINER))
+                logger.finer("UserAgent " + this + " reusing " + cached.getServices().size() + " services of type " + serviceType + " not modified on " + address);
+            return cached.getServices();
+        }
+
+        List<ServiceInfo> result = srvRplyToServiceInfos(srvRply, scopes);
+        // Directory agents that do not support result versions do not send them
+        if (resultVersion != null && !resultVersion.isNotModified() && !srvRply.isOverflow())
+            resultCache.put(query, new ResultCache.Result(resultVersion.getVersion(), result));
+        else if (cached != null)
+            resultCache.remove(query);
         return result;
     }
 
+    private List<ServiceInfo> project(List<ServiceInfo> services, AttributeProjection projection)
+    {
+        if (projection.isAll()) return services;
+        List<ServiceInfo> result = new ArrayList<ServiceInfo>(services.size());
+        for (ServiceInfo service : services)
+            result.add(new ServiceInfo(service.getServiceURL(), service.getLanguage(), service.getScopes(), projection.project(service.getAttributes())));
+        return result;
+    }
+
+    public int countServices(ServiceType serviceType, String language, Scopes scopes, String filterString)
+    {
+        return countServices(serviceType, language, scopes, filterString, false);
+    }
+
+    public boolean hasServices(ServiceType serviceType, String language, Scopes scopes, String filterString)
+    {
+        return countServices(serviceType, language, scopes, filterString, true) > 0;
+    }
+
+    protected int countServices(ServiceType serviceType, String language, Scopes scopes, String filterString, boolean exists)
+    {
+        Filter filter = new FilterParser().parse(filterString);
+        int result = 0;
+
+        List<DirectoryAgentInfo> directoryAgents = findDirectoryAgents(scopes, null);
+        if (!directoryAgents.isEmpty())
+        {
+            for (DirectoryAgentInfo directoryAgent : directoryAgents)
+            {
+                InetSocketAddress address = resolveDirectoryAgentAddress(directoryAgent);
+                SrvRply srvRply = unicastSrvRqst.performCount(address, preferTCP, serviceType, language, scopes, filter, exists);
+                if (srvRply.getSLPError() == SLPError.NO_ERROR) result += srvRplyToCount(srvRply);
+                // No need to ask other directory agents
+                if (exists && result > 0) return 1;
+            }
+        }
+        else
+        {
+            List<SrvRply> srvRplys = multicastSrvRqst.performCount(serviceType, language, scopes, filter, exists);
+            for (SrvRply srvRply : srvRplys)
+            {
+                if (srvRply.getSLPError() == SLPError.NO_ERROR)
+                {
+                    // Only agents that do not support counting reply with URLs, that may overflow
+                    if (srvRply.isOverflow() && MatchCountExtension.findFirst(srvRply.getExtensions()) == null)
+                    {
+                        try
+                        {
+                            // Attempt to use TCP
+                            InetSocketAddress address = new InetSocketAddress(srvRply.getResponder(), port);
+                            srvRply = unicastSrvRqst.performCount(address, true, serviceType, language, scopes, filter, exists);
+                        }
+                        catch (Exception ignored)
+                        {
+                            // Attempt failed, use what we have
+                        }
+                    }
+                    result += srvRplyToCount(srvRply);
+                }
+            }
+        }
+
+        return exists ? Math.min(result, 1) : result;
+    }
+
+    private int srvRplyToCount(SrvRply srvRply)
+    {
+        MatchCountExtension matchCount = MatchCountExtension.findFirst(srvRply.getExtensions());
+        // Agents that do not support counting reply with the URLs of the matching services
+        return matchCount == null ? srvRply.getURLEntries().size() : matchCount.getCount();
+    }
+
     public Attributes findAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags)
     {
         return findAttributes(serviceType.asString(), language, scopes, tags);
@@ -22,6 +22,8 @@ import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.spi.AttributeProjection;
+import org.livetribe.slp.spi.ResultLimit;
 
 
 /**
@@ -31,6 +33,22 @@ public interface IUserAgent
 {
     public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filter);
 
+    public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filter, ResultLimit limit);
+
+    public List<ServiceInfo> findServices(ServiceType serviceType, String language, Scopes scopes, String filter, ResultLimit limit, AttributeProjection projection);
+
+    /**
+     * @return the number of services that match the given arguments, without retrieving them
+     * @see #findServices(ServiceType, String, Scopes, String)
+     */
+    public int countServices(ServiceType serviceType, String language, Scopes scopes, String filter);
+
+    /**
+     * @return whether at least one service matches the given arguments, without retrieving the matching services
+     * @see #findServices(ServiceType, String, Scopes, String)
+     */
+    public boolean hasServices(ServiceType serviceType, String language, Scopes scopes, String filter);
+
     public Attributes findAttributes(ServiceType serviceType, String language, Scopes scopes, Attributes tags);
 
     public Attributes findAttributes(ServiceURL serviceURL, String language, Scopes scopes, Attributes tags);
@@ -20,7 +20,9 @@ import java.util.List;
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.AttributeProjection;
 import org.livetribe.slp.spi.Converger;
+import org.livetribe.slp.spi.ResultLimit;
 import org.livetribe.slp.spi.filter.Filter;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.msg.SrvRqst;
@@ -41,7 +43,19 @@ public class MulticastSrvRqstPerformer extends SrvRqstPerformer
 
     public List<SrvRply> perform(ServiceType serviceType, String language, Scopes scopes, Filter filter)
     {
-        SrvRqst srvRqst = newSrvRqst(serviceType, language, scopes, filter);
+        return perform(serviceType, language, scopes, filter, null, AttributeProjection.ALL);
+    }
+
+    public List<SrvRply> perform(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection)
+    {
+        SrvRqst srvRqst = newSrvRqst(serviceType, language, scopes, filter, limit, projection);
+        srvRqst.setMulticast(true);
+        return converger.converge(srvRqst);
+    }
+
+    public List<SrvRply> performCount(ServiceType serviceType, String language, Scopes scopes, Filter filter, boolean exists)
+    {
+        SrvRqst srvRqst = newCountSrvRqst(serviceType, language, scopes, filter, exists);
         srvRqst.setMulticast(true);
         return converger.converge(srvRqst);
     }
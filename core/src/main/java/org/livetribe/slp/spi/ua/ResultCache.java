@@ -0,0 +1,159 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.ua;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.spi.AttributeProjection;
+import org.livetribe.slp.spi.ResultLimit;
+import org.livetribe.slp.spi.filter.Filter;
+
+
+/**
+ * The last results of the SrvRqsts sent to directory agents, with their versions, so that the directory
+ * agents can reply that a repeated query has the same result instead of sending it again.
+ * <br />
+ * The least recently used results are evicted when the cache is full.
+ *
+ * @see org.livetribe.slp.spi.ResultVersion
+ */
+class ResultCache
+{
+    private final Map<Query, Result> results;
+
+    ResultCache(final int maxSize)
+    {
+        this.results = new LinkedHashMap<Query, Result>(16, 0.75F, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<Query, Result> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized Result get(Query query)
+    {
+        return results.get(query);
+    }
+
+    public synchronized void put(Query query, Result result)
+    {
+        results.put(query, result);
+    }
+
+    public synchronized void remove(Query query)
+    {
+        results.remove(query);
+    }
+
+    public synchronized int getSize()
+    {
+        return results.size();
+    }
+
+    /**
+     * A SrvRqst sent to a directory agent.
+     */
+    public static class Query
+    {
+        private final InetSocketAddress address;
+        private final ServiceType serviceType;
+        private final String language;
+        private final Scopes scopes;
+        private final String filter;
+        private final ResultLimit limit;
+        private final AttributeProjection projection;
+
+        public Query(InetSocketAddress address, ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection)
+        {
+            this.address = address;
+            this.serviceType = serviceType;
+            this.language = language;
+            this.scopes = scopes;
+            this.filter = filter == null ? null : filter.asString();
+            this.limit = limit;
+            this.projection = projection;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (obj == null || getClass() != obj.getClass()) return false;
+            final Query that = (Query)obj;
+            return equals(address, that.address) &&
+                    equals(serviceType, that.serviceType) &&
+                    equals(language, that.language) &&
+                    equals(scopes, that.scopes) &&
+                    equals(filter, that.filter) &&
+                    equals(limit, that.limit) &&
+                    equals(projection, that.projection);
+        }
+
+        private boolean equals(Object value1, Object value2)
+        {
+            return value1 == null ? value2 == null : value1.equals(value2);
+        }
+
+        public int hashCode()
+        {
+            int result = hashCode(address);
+            result = 29 * result + hashCode(serviceType);
+            result = 29 * result + hashCode(language);
+            result = 29 * result + hashCode(scopes);
+            result = 29 * result + hashCode(filter);
+            result = 29 * result + hashCode(limit);
+            result = 29 * result + hashCode(projection);
+            return result;
+        }
+
+        private int hashCode(Object value)
+        {
+            return value == null ? 0 : value.hashCode();
+        }
+    }
+
+    /**
+     * The result of a SrvRqst, with its version.
+     */
+    public static class Result
+    {
+        private final long version;
+        private final List<ServiceInfo> services;
+
+        public Result(long version, List<ServiceInfo> services)
+        {
+            this.version = version;
+            this.services = services;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public List<ServiceInfo> getServices()
+        {
+            return services;
+        }
+    }
+}
@@ -17,12 +17,18 @@ package org.livetribe.slp.spi.ua;
 
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.spi.AttributeProjection;
+import org.livetribe.slp.spi.ResultLimit;
 import org.livetribe.slp.spi.filter.Filter;
 import org.livetribe.slp.spi.msg.AttributeListExtension;
 import org.livetribe.slp.spi.msg.LanguageExtension;
+import org.livetribe.slp.spi.msg.MatchCountExtension;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultLimitExtension;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.ScopeListExtension;
 import org.livetribe.slp.spi.msg.SrvRqst;
+import org.livetribe.slp.spi.msg.TagListExtension;
 
 
 /**
@@ -31,6 +37,45 @@ import org.livetribe.slp.spi.msg.SrvRqst;
 public class SrvRqstPerformer
 {
     protected SrvRqst newSrvRqst(ServiceType serviceType, String language, Scopes scopes, Filter filter)
+    {
+        return newSrvRqst(serviceType, language, scopes, filter, null, AttributeProjection.ALL);
+    }
+
+    protected SrvRqst newSrvRqst(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection)
+    {
+        SrvRqst srvRqst = newBareSrvRqst(serviceType, language, scopes, filter);
+        // Ask to send the language if it's missing in the request
+        if (language == null) srvRqst.addExtension(new LanguageExtension());
+        // Ask to send the Attributes as well (RFC 3059), unless only the URLs are needed
+        if (projection == null || !projection.isNone()) srvRqst.addExtension(new AttributeListExtension());
+        // Ask to send only the Attributes with the given tags
+        if (projection != null && !projection.isAll() && !projection.isNone())
+            srvRqst.addExtension(new TagListExtension(projection.getTags()));
+        // Ask to send the Scopes as well
+        srvRqst.addExtension(new ScopeListExtension());
+        // Ask to send only the best services, if a limit is specified
+        if (limit != null)
+            srvRqst.addExtension(new ResultLimitExtension(limit.getMaxResults(), limit.getOrderTag(), limit.isAscending()));
+        return srvRqst;
+    }
+
+    protected SrvRqst newSrvRqst(ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection, long resultVersion)
+    {
+        SrvRqst srvRqst = newSrvRqst(serviceType, language, scopes, filter, limit, projection);
+        // Ask to send the matching services only if the result has been modified since the given version
+        srvRqst.addExtension(new ResultVersionExtension(resultVersion, false));
+        return srvRqst;
+    }
+
+    protected SrvRqst newCountSrvRqst(ServiceType serviceType, String language, Scopes scopes, Filter filter, boolean exists)
+    {
+        SrvRqst srvRqst = newBareSrvRqst(serviceType, language, scopes, filter);
+        // Ask to send only the number of matching services
+        srvRqst.addExtension(new MatchCountExtension(exists, 0));
+        return srvRqst;
+    }
+
+    private SrvRqst newBareSrvRqst(ServiceType serviceType, String language, Scopes scopes, Filter filter)
     {
         SrvRqst srvRqst = new SrvRqst();
         srvRqst.setLanguage(language);
@@ -38,12 +83,6 @@ public class SrvRqstPerformer
         srvRqst.setServiceType(serviceType);
         srvRqst.setScopes(scopes);
         srvRqst.setFilter(filter == null ? null : filter.asString());
-        // Ask to send the language if it's missing in the request
-        if (language == null) srvRqst.addExtension(new LanguageExtension());
-        // Ask to send the Attributes as well (RFC 3059)
-        srvRqst.addExtension(new AttributeListExtension());
-        // Ask to send the Scopes as well
-        srvRqst.addExtension(new ScopeListExtension());
         return srvRqst;
     }
 }
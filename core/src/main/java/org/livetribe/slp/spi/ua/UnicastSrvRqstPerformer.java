@@ -20,6 +20,8 @@ import java.net.InetSocketAddress;
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.AttributeProjection;
+import org.livetribe.slp.spi.ResultLimit;
 import org.livetribe.slp.spi.filter.Filter;
 import org.livetribe.slp.spi.msg.Message;
 import org.livetribe.slp.spi.msg.SrvRply;
@@ -49,7 +51,26 @@ public class UnicastSrvRqstPerformer extends SrvRqstPerformer
 
     public SrvRply perform(InetSocketAddress address, boolean preferTCP, ServiceType serviceType, String language, Scopes scopes, Filter filter)
     {
-        SrvRqst srvRqst = newSrvRqst(serviceType, language, scopes, filter);
+        return perform(address, preferTCP, serviceType, language, scopes, filter, null, AttributeProjection.ALL);
+    }
+
+    public SrvRply perform(InetSocketAddress address, boolean preferTCP, ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection)
+    {
+        return perform(address, preferTCP, newSrvRqst(serviceType, language, scopes, filter, limit, projection));
+    }
+
+    public SrvRply perform(InetSocketAddress address, boolean preferTCP, ServiceType serviceType, String language, Scopes scopes, Filter filter, ResultLimit limit, AttributeProjection projection, long resultVersion)
+    {
+        return perform(address, preferTCP, newSrvRqst(serviceType, language, scopes, filter, limit, projection, resultVersion));
+    }
+
+    public SrvRply performCount(InetSocketAddress address, boolean preferTCP, ServiceType serviceType, String language, Scopes scopes, Filter filter, boolean exists)
+    {
+        return perform(address, preferTCP, newCountSrvRqst(serviceType, language, scopes, filter, exists));
+    }
+
+    private SrvRply perform(InetSocketAddress address, boolean preferTCP, SrvRqst srvRqst)
+    {
         byte[] srvRqstBytes = srvRqst.serialize();
         byte[] srvRplyBytes = null;
         if (preferTCP)
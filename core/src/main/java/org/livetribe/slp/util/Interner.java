@@ -0,0 +1,109 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A pool of canonical instances of immutable objects, similar to {@link String#intern()}.
+ * <br />
+ * Equal objects passed to {@link #intern(Object)} return the same instance, so that many equal
+ * objects (for example the scopes or the attributes of many services) share one instance, and
+ * comparisons between interned objects can be performed by identity.
+ * <br />
+ * The pool only holds weak references to the canonical instances, so that instances that are
+ * not referenced anymore can be garbage collected.
+ * <br />
+ * The pool is split in stripes by hash code, each with its own lock, so that threads interning
+ * different objects rarely contend.
+ */
+public class Interner<T>
+{
+    private static final int STRIPES = 16;
+
+    private final List<Stripe<T>> stripes = new ArrayList<Stripe<T>>(STRIPES);
+
+    public Interner()
+    {
+        for (int i = 0; i < STRIPES; ++i) stripes.add(new Stripe<T>());
+    }
+
+    /**
+     * @param object the object to intern
+     * @return the canonical instance equal to the given object, or the given object itself
+     *         if it is the first of its kind; null if the given object is null
+     */
+    public T intern(T object)
+    {
+        if (object == null) return null;
+        Stripe<T> stripe = stripe(object);
+        stripe.lock.lock();
+        try
+        {
+            WeakReference<T> reference = stripe.pool.get(object);
+            T result = reference == null ? null : reference.get();
+            if (result != null) return result;
+            stripe.pool.put(object, new WeakReference<T>(object));
+            return object;
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe<T> stripe(T object)
+    {
+        // Spread the high bits of the hash code, since only the low bits select the stripe
+        int hash = object.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes.get(hash & (STRIPES - 1));
+    }
+
+    /**
+     * @return the number of canonical instances currently held by this pool
+     */
+    public int getSize()
+    {
+        int result = 0;
+        for (Stripe<T> stripe : stripes)
+        {
+            stripe.lock.lock();
+            try
+            {
+                result += stripe.pool.size();
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    private static class Stripe<T>
+    {
+        private final Map<T, WeakReference<T>> pool = new WeakHashMap<T, WeakReference<T>>();
+        private final Lock lock = new ReentrantLock();
+    }
+}
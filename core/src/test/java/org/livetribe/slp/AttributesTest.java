@@ -512,4 +512,243 @@ public class AttributesTest
         Attributes.Value value = attributes.valueFor("a");
         Assert.assertTrue(value.isStringType());
     }
+
+    @Test
+    public void testParseEscapedValues() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=1\\2c2),(b=x\\28y\\29),(c=\\28\\29)");
+        assert "1,2".equals(attributes.valueFor("a").getStringValue(0));
+        assert "x(y)".equals(attributes.valueFor("b").getStringValue(0));
+        assert "()".equals(attributes.valueFor("c").getStringValue(0));
+        assert !attributes.valueFor("a").isMultiValued();
+        assert Attributes.from(attributes.asString()).equals(attributes);
+    }
+
+    @Test
+    public void testParseMultiValuesWithWhitespace() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a= 1 , 2 ,3 ),(b=x y, z )");
+
+        // Values surrounded by whitespace are strings, without the surrounding whitespace
+        Attributes.Value aValue = attributes.valueFor("a");
+        assert aValue.isStringType();
+        assert Arrays.equals(new Object[]{"1", "2", "3"}, aValue.getValues());
+
+        Attributes.Value bValue = attributes.valueFor("b");
+        assert Arrays.equals(new Object[]{"x y", "z"}, bValue.getValues());
+    }
+
+    @Test
+    public void testParseIntegerAndStringValues() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=-0),(b=+5),(c=2147483647),(d=-2147483648),(e=2147483648),(f=-2147483649),(g=99999999999999999999),(h=-),(i=--1),(j=5+)");
+        assert attributes.valueFor("a").isIntegerType();
+        assert attributes.valueFor("a").getIntegerValue(0) == 0;
+        assert attributes.valueFor("b").isStringType();
+        assert "+5".equals(attributes.valueFor("b").getStringValue(0));
+        assert attributes.valueFor("c").getIntegerValue(0) == Integer.MAX_VALUE;
+        assert attributes.valueFor("d").getIntegerValue(0) == Integer.MIN_VALUE;
+        assert "2147483648".equals(attributes.valueFor("e").getStringValue(0));
+        assert "-2147483649".equals(attributes.valueFor("f").getStringValue(0));
+        assert "99999999999999999999".equals(attributes.valueFor("g").getStringValue(0));
+        assert attributes.valueFor("h").isStringType();
+        assert attributes.valueFor("i").isStringType();
+        assert attributes.valueFor("j").isStringType();
+
+        // Mixed integers and strings are all strings
+        Attributes.Value value = Attributes.from("(a=1,x)").valueFor("a");
+        assert value.isStringType();
+        assert Arrays.equals(new Object[]{"1", "x"}, value.getValues());
+    }
+
+    @Test
+    public void testParseBooleanValuesIgnoringCase() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=TRUE),(b=False),(c=tRuE,FALSE),(d=truth)");
+        assert attributes.valueFor("a").isBooleanType();
+        assert attributes.valueFor("a").getBooleanValue(0);
+        assert !attributes.valueFor("b").getBooleanValue(0);
+        assert Arrays.equals(new Object[]{true, false}, attributes.valueFor("c").getValues());
+        assert attributes.valueFor("d").isStringType();
+        assert "(a=true),(b=false),(c=true,false),(d=truth)".equals(attributes.asString());
+    }
+
+    @Test
+    public void testParseLowerCaseOpaqueValues() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=\\ff\\ca\\fe),(b=\\ff\\00,\\FF\\01)");
+        Attributes.Value aValue = attributes.valueFor("a");
+        assert aValue.isOpaqueType();
+        assert Arrays.equals(new byte[]{(byte)0xCA, (byte)0xFE}, aValue.getOpaqueValue(0));
+        Attributes.Value bValue = attributes.valueFor("b");
+        assert bValue.getSize() == 2;
+        assert Arrays.equals(new byte[]{1}, bValue.getOpaqueValue(1));
+        assert Attributes.from("(a=\\FF\\CA\\FE)").equals(Attributes.from("(a=\\ff\\ca\\fe)"));
+
+        // Opaque values cannot be mixed with other values
+        assertParseError("(a=\\ff\\00,x)");
+    }
+
+    @Test
+    public void testParseMalformedEscapes() throws Exception
+    {
+        assertParseError("(a=\\zz)");
+        assertParseError("(a=x\\2)");
+        assertParseError("(a=x\\)");
+        // Only reserved characters can be escaped
+        assertParseError("(a=x\\41)");
+        assertParseError("(a=\\FF\\zz)");
+        assertParseError("(a=\\FF\\0)");
+    }
+
+    @Test
+    public void testParseEmptyValuesAndTags() throws Exception
+    {
+        assertParseError("(a=)");
+        assertParseError("(a=  )");
+        assertParseError("(a=,)");
+        assertParseError("(a=1,,2)");
+        assertParseError("(=1)");
+        assertParseError("(a=1");
+
+        // Trailing empty values are discarded
+        Attributes.Value value = Attributes.from("(a=1,)").valueFor("a");
+        assert value.isIntegerType();
+        assert value.getSize() == 1;
+
+        // Empty tags are skipped
+        Attributes attributes = Attributes.from("a,,b,");
+        assert attributes.getSize() == 2;
+        assert attributes.containsTag("a");
+        assert attributes.containsTag("b");
+        assert Attributes.from(",(a=1),,b").getSize() == 2;
+        assert Attributes.from(" ").isEmpty();
+        assert Attributes.fromTags("a,,b").getSize() == 2;
+    }
+
+    private void assertParseError(String attributeList)
+    {
+        try
+        {
+            Attributes.from(attributeList);
+            assert false : attributeList;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.PARSE_ERROR;
+        }
+    }
+
+    @Test
+    public void testTypedValues() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=1,-2,3),(b=true,false),(c=\\FF\\CA\\FE),(d=foo,bar)");
+
+        Attributes.Value aValue = attributes.valueFor("a");
+        assert aValue.getSize() == 3;
+        assert aValue.getIntegerValue(0) == 1;
+        assert aValue.getIntegerValue(1) == -2;
+        assert aValue.getIntegerValue(2) == 3;
+
+        Attributes.Value bValue = attributes.valueFor("b");
+        assert bValue.getSize() == 2;
+        assert bValue.getBooleanValue(0);
+        assert !bValue.getBooleanValue(1);
+
+        Attributes.Value cValue = attributes.valueFor("c");
+        assert cValue.getSize() == 1;
+        assert Arrays.equals(new byte[]{(byte)0xCA, (byte)0xFE}, cValue.getOpaqueValue(0));
+
+        Attributes.Value dValue = attributes.valueFor("d");
+        assert dValue.getSize() == 2;
+        assert "foo".equals(dValue.getStringValue(0));
+        assert "bar".equals(dValue.getStringValue(1));
+
+        assert attributes.valueFor("e").getSize() == 0;
+    }
+
+    @Test
+    public void testNormalizedStringValues() throws Exception
+    {
+        Attributes attributes = Attributes.from("(a=My Documents, Foo\tBar ),(b=foo)");
+
+        Attributes.Value aValue = attributes.valueFor("a");
+        assert "My Documents".equals(aValue.getStringValue(0));
+        assert "mydocuments".equals(aValue.getNormalizedStringValue(0));
+        assert "foobar".equals(aValue.getNormalizedStringValue(1));
+
+        Attributes.Value bValue = attributes.valueFor("b");
+        assert "foo".equals(bValue.getNormalizedStringValue(0));
+
+        assert "mydocuments".equals(Attributes.normalizeValue(" MY\tdocu MENTS "));
+    }
+
+    @Test
+    public void testIntern() throws Exception
+    {
+        Attributes attributes1 = Attributes.from("(a=1),(b=foo),c");
+        Attributes attributes2 = Attributes.from("c,(b=foo),(a=1)");
+        assert attributes1 != attributes2;
+        assert attributes1.intern() == attributes2.intern();
+        assert Attributes.from("(a=2)").intern() != attributes1.intern();
+        assert Attributes.from("").intern() == Attributes.NONE;
+    }
+
+    @Test
+    public void testAggregate() throws Exception
+    {
+        Attributes attributes1 = Attributes.from("(a=1),(b=true),(c=foo),(d=\\FF\\00),e,(f=1)");
+        Attributes attributes2 = Attributes.from("(a=1,2),(b=false),(c=bar),(d=\\FF\\01),e,(f=foo)");
+        Attributes attributes3 = Attributes.from("(a=3),g");
+
+        Attributes.Aggregate aggregate = new Attributes.Aggregate();
+        assert aggregate.isEmpty();
+        assert aggregate.asAttributes(null) == Attributes.NONE;
+        aggregate.add(attributes1);
+        aggregate.add(attributes2);
+        aggregate.add(attributes3);
+
+        Attributes result = aggregate.asAttributes(null);
+        assert result.getSize() == 7;
+        // Values are not duplicated
+        Attributes.Value aValue = result.valueFor("a");
+        assert aValue.isIntegerType();
+        assert aValue.isMultiValued();
+        assert Arrays.equals(new Object[]{1, 2, 3}, aValue.getValues());
+        assert Arrays.equals(new Object[]{true, false}, result.valueFor("b").getValues());
+        assert Arrays.equals(new Object[]{"foo", "bar"}, result.valueFor("c").getValues());
+        // No combination for opaque values
+        assert result.valueFor("d").equals(attributes2.valueFor("d"));
+        assert result.valueFor("e").isPresenceType();
+        assert result.valueFor("f").isStringType();
+        assert Arrays.equals(new Object[]{"1", "foo"}, result.valueFor("f").getValues());
+
+        // Tags, with globbing
+        result = aggregate.asAttributes(Attributes.fromTags("a,x,*g"));
+        assert result.getSize() == 2;
+        assert result.containsTag("a");
+        assert result.containsTag("g");
+
+        // Values are present as long as an Attributes object contains them
+        aggregate.remove(attributes2);
+        result = aggregate.asAttributes(null);
+        assert Arrays.equals(new Object[]{1, 3}, result.valueFor("a").getValues());
+        Attributes.Value bValue = result.valueFor("b");
+        assert !bValue.isMultiValued();
+        assert bValue.getValue().equals(Boolean.TRUE);
+        assert result.valueFor("f").isIntegerType();
+        assert result.valueFor("e").isPresenceType();
+
+        aggregate.remove(attributes1);
+        aggregate.remove(attributes3);
+        assert aggregate.isEmpty();
+
+        // Aggregates are combined
+        Attributes.Aggregate aggregate1 = new Attributes.Aggregate();
+        aggregate1.add(attributes1);
+        Attributes.Aggregate aggregate2 = new Attributes.Aggregate();
+        aggregate2.add(attributes3);
+        result = Attributes.Aggregate.aggregate(Arrays.asList(aggregate1, aggregate2), Attributes.fromTags("a"));
+        assert Arrays.equals(new Object[]{1, 3}, result.valueFor("a").getValues());
+    }
 }
@@ -15,7 +15,9 @@
  */
 package org.livetribe.slp;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.livetribe.slp.sa.ServiceListener;
 import org.livetribe.slp.sa.ServiceNotificationEvent;
@@ -84,15 +86,12 @@ public class MatchingServiceInfoCache implements ServiceNotificationListener
 
     public void addAll(Collection<ServiceInfo> serviceInfos)
     {
-        services.lock();
-        try
-        {
-            for (ServiceInfo serviceInfo : serviceInfos) put(serviceInfo);
-        }
-        finally
+        List<ServiceInfo> matching = new ArrayList<ServiceInfo>();
+        for (ServiceInfo serviceInfo : serviceInfos)
         {
-            services.unlock();
+            if (matches(serviceInfo)) matching.add(serviceInfo);
         }
+        services.putAll(matching);
     }
 
     public Collection<ServiceInfo> getServices()
@@ -104,4 +104,65 @@ public class ScopesTest
         scopes = Scopes.from(reserved);
         assert Arrays.equals(scopes.asStringArray(), reserved);
     }
+
+    @Test
+    public void testIntern()
+    {
+        Scopes scopes1 = Scopes.from("scope1", "scope2");
+        Scopes scopes2 = Scopes.from("SCOPE1", "scope2");
+        assert scopes1 != scopes2;
+        assert scopes1.intern() == scopes2.intern();
+        assert scopes1.intern().match(scopes2.intern());
+
+        assert Scopes.from("default").intern() == Scopes.DEFAULT;
+        assert Scopes.from("*").intern() != Scopes.ANY;
+    }
+
+    @Test
+    public void testScopeIds()
+    {
+        Scopes scopes1 = Scopes.from("testScopeIds1", "testScopeIds2");
+        Scopes scopes2 = Scopes.from("TESTSCOPEIDS2");
+        // Identifiers are assigned only on request
+        assert Arrays.equals(scopes1.getScopeIds(), new int[]{-1, -1});
+        assert Arrays.equals(scopes2.getScopeIds(), new int[]{-1});
+        assert scopes1.match(scopes2);
+        assert !scopes2.match(scopes1);
+
+        int[] ids2 = scopes2.assignScopeIds();
+        assert ids2[0] >= 0;
+        // The identifiers that are assigned are visible to scopes created before
+        int[] partial = scopes1.getScopeIds();
+        assert partial[0] == -1 && partial[1] == ids2[0];
+
+        int[] ids1 = scopes1.assignScopeIds();
+        assert Arrays.equals(scopes1.getScopeIds(), ids1);
+        assert ids1.length == 2;
+        assert ids1[0] >= 0 && ids1[1] >= 0 && ids1[0] != ids1[1];
+        assert ids2.length == 1;
+        assert ids2[0] == ids1[1];
+        assert Scopes.NONE.getScopeIds().length == 0;
+
+        // Bitwise matching is consistent with the scope strings
+        assert scopes1.match(scopes2);
+        assert !scopes2.match(scopes1);
+        assert scopes1.weakMatch(scopes2);
+        assert scopes2.weakMatch(scopes1);
+        Scopes scopes3 = Scopes.from("testScopeIds3");
+        scopes3.assignScopeIds();
+        assert !scopes1.match(scopes3);
+        assert !scopes1.weakMatch(scopes3);
+        assert !scopes3.weakMatch(scopes1);
+        assert scopes1.match(Scopes.NONE);
+        assert !scopes1.match(Scopes.ANY);
+        assert Scopes.ANY.match(scopes1);
+        assert !Scopes.NONE.weakMatch(scopes1);
+
+        // Scopes without identifiers are matched by comparing strings
+        Scopes scopes4 = Scopes.from("testScopeIds1", "testScopeIds4");
+        assert scopes4.getScopeIds()[1] == -1;
+        assert scopes4.weakMatch(scopes1);
+        assert !scopes4.match(scopes1);
+        assert scopes1.match(Scopes.from("testScopeIds2", "testScopeIds1"));
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceURL;
+
+
+/**
+ *
+ */
+public class ServiceInfoLogTest
+{
+    private File newDirectory() throws Exception
+    {
+        File directory = File.createTempFile("slp-", ".log");
+        assert directory.delete();
+        assert directory.mkdirs();
+        return directory;
+    }
+
+    private void delete(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    private ServiceInfo newServiceInfo(String url, int lifetime, String attributes) throws Exception
+    {
+        ServiceInfo service = new ServiceInfo(new ServiceURL(url, lifetime), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from(attributes));
+        service.setRegistered(true);
+        return service;
+    }
+
+    @Test
+    public void testRecoverFromLog() throws Exception
+    {
+        File directory = newDirectory();
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            assert log.open().isEmpty();
+            ServiceInfo service1 = newServiceInfo("service:foo://host1", 60, "(a=1)");
+            ServiceInfo service2 = newServiceInfo("service:foo://host2", ServiceURL.LIFETIME_PERMANENT, "(b=true)");
+            ServiceInfo service3 = newServiceInfo("service:foo://host3", 60, "");
+            log.appendPut(service1);
+            log.appendPut(service2);
+            long sequence = log.appendPut(service3);
+            log.sync(sequence);
+            sequence = log.appendRemove(service3.getKey());
+            log.sync(sequence);
+            // Not synced, but made durable on close
+            log.appendPut(service1.addAttributes(Attributes.from("(c=foo)")));
+            log.close();
+
+            log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            log.close();
+            assert recovered.size() == 2;
+            // The update of service1 is the last change
+            ServiceInfo recovered1 = recovered.get(1);
+            assert recovered1.getKey().equals(service1.getKey());
+            assert recovered1.getScopes() == Scopes.DEFAULT;
+            assert recovered1.getAttributes().equals(Attributes.from("(a=1),(c=foo)"));
+            assert recovered1.getServiceURL().getLifetime() > 0;
+            assert recovered1.getServiceURL().getLifetime() <= 60;
+            ServiceInfo recovered2 = recovered.get(0);
+            assert recovered2.getKey().equals(service2.getKey());
+            assert recovered2.getServiceURL().getLifetime() == ServiceURL.LIFETIME_PERMANENT;
+            assert recovered2.getAttributes().equals(service2.getAttributes());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testRecoverFromSnapshotAndLog() throws Exception
+    {
+        File directory = newDirectory();
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            log.open();
+            ServiceInfo service1 = newServiceInfo("service:foo://host1", 60, "(a=1)");
+            ServiceInfo service2 = newServiceInfo("service:foo://host2", 60, "(a=2)");
+            log.sync(log.appendPut(service1));
+            long generation = log.rotate();
+            log.snapshot(generation, Arrays.asList(service1));
+            log.sync(log.appendPut(service2));
+            log.close();
+
+            // Only the files of the last generation are kept
+            assert directory.list().length == 2;
+
+            log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            log.close();
+            assert recovered.size() == 2;
+            assert recovered.get(0).getKey().equals(service1.getKey());
+            assert recovered.get(1).getKey().equals(service2.getKey());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testFailedWriteFailsFollowingSyncs() throws Exception
+    {
+        File directory = newDirectory();
+        try
+        {
+            final AtomicBoolean failing = new AtomicBoolean();
+            ServiceInfoLog log = new ServiceInfoLog(directory)
+            {
+                @Override
+                void write(FileOutputStream stream, byte[] bytes) throws IOException
+                {
+                    if (failing.get()) throw new IOException("Simulated failure");
+                    super.write(stream, bytes);
+                }
+            };
+            log.open();
+            ServiceInfo service1 = newServiceInfo("service:foo://host1", 60, "(a=1)");
+            ServiceInfo service2 = newServiceInfo("service:foo://host2", 60, "(a=2)");
+            ServiceInfo service3 = newServiceInfo("service:foo://host3", 60, "(a=3)");
+            long sequence1 = log.appendPut(service1);
+            log.sync(sequence1);
+
+            failing.set(true);
+            long sequence2 = log.appendPut(service2);
+            try
+            {
+                log.sync(sequence2);
+                assert false;
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+
+            // Later changes are not made durable, otherwise the log would have a gap
+            failing.set(false);
+            long sequence3 = log.appendPut(service3);
+            try
+            {
+                log.sync(sequence3);
+                assert false;
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+            try
+            {
+                log.sync(sequence2);
+                assert false;
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+            try
+            {
+                log.rotate();
+                assert false;
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+            // Changes durable before the failure are still durable
+            log.sync(sequence1);
+            log.close();
+
+            log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            log.close();
+            assert recovered.size() == 1;
+            assert recovered.get(0).getKey().equals(service1.getKey());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsDiscarded() throws Exception
+    {
+        File directory = newDirectory();
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            log.open();
+            ServiceInfo service1 = newServiceInfo("service:foo://host1", 60, "(a=1)");
+            ServiceInfo service2 = newServiceInfo("service:foo://host2", 60, "(a=2)");
+            log.sync(log.appendPut(service1));
+            log.sync(log.appendPut(service2));
+            log.close();
+
+            // Simulate a crash in the middle of the write of the last record
+            File logFile = null;
+            for (File file : directory.listFiles())
+            {
+                if (file.getName().endsWith(".log") && (logFile == null || file.length() > logFile.length()))
+                    logFile = file;
+            }
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            file.setLength(file.length() - 3);
+            file.close();
+
+            log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            log.close();
+            assert recovered.size() == 1;
+            assert recovered.get(0).getKey().equals(service1.getKey());
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testExpiredServicesAreNotRecovered() throws Exception
+    {
+        File directory = newDirectory();
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            log.open();
+            log.sync(log.appendPut(newServiceInfo("service:foo://host1", 1, "")));
+            log.close();
+
+            Thread.sleep(1500);
+
+            log = new ServiceInfoLog(directory);
+            assert log.open().isEmpty();
+            log.close();
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+
+
+/**
+ *
+ */
+public class ServiceInfoSnapshotTest
+{
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo://host1", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1,2),(b=\\FF\\00),c"));
+        service1.setRegistered(true);
+        ServiceInfo service2 = new ServiceInfo(new ServiceType("service:bar"), new ServiceURL("service:foo://host2", ServiceURL.LIFETIME_PERMANENT), Locale.ITALIAN.getLanguage(), Scopes.from("scope1", "scope2"), Attributes.NONE);
+        service2.setRegistered(true);
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:foo://host3", 1), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, null);
+        service3.setRegistered(true);
+
+        File file = File.createTempFile("slp-", ".snapshot");
+        try
+        {
+            ServiceInfoSnapshot.write(file, Arrays.asList(service1, service2, service3));
+
+            ServiceInfoSnapshot snapshot = ServiceInfoSnapshot.read(file);
+            assert snapshot.getSize() == 3;
+
+            long now = System.currentTimeMillis();
+            ServiceInfo read1 = snapshot.get(0, now);
+            assert read1.getKey().equals(service1.getKey());
+            assert read1.getServiceType() == null;
+            assert read1.getServiceURL().getLifetime() <= 60;
+            assert read1.getScopes() == Scopes.DEFAULT;
+            assert read1.getAttributes().equals(service1.getAttributes());
+            // Decoded once
+            assert read1.getAttributes() == read1.getAttributes();
+
+            ServiceInfo read2 = snapshot.get(1, now);
+            assert read2.getKey().equals(service2.getKey());
+            assert read2.getServiceType().equals(service2.getServiceType());
+            assert read2.getServiceURL().getLifetime() == ServiceURL.LIFETIME_PERMANENT;
+            assert read2.getScopes().equals(service2.getScopes());
+            assert read2.getAttributes() == Attributes.NONE;
+
+            ServiceInfo read3 = snapshot.get(2, now);
+            assert read3.getKey().equals(service3.getKey());
+            assert read3.getAttributes() == null;
+
+            // The third service is expired 2 seconds later
+            List<ServiceInfo> services = snapshot.getServiceInfos(now + 2000);
+            assert services.size() == 2;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadInvalidFile() throws Exception
+    {
+        File file = File.createTempFile("slp-", ".snapshot");
+        try
+        {
+            FileOutputStream stream = new FileOutputStream(file);
+            stream.write(new byte[32]);
+            stream.close();
+            try
+            {
+                ServiceInfoSnapshot.read(file);
+                assert false;
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.da;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.SLPError;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceEvent;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.spi.ServiceInfoCache;
+import org.livetribe.slp.spi.ServiceStore;
+
+
+/**
+ *
+ */
+public class ServiceMutationPipelineTest
+{
+    private ServiceInfo newServiceInfo(String url, int lifetime, String attributes) throws Exception
+    {
+        return new ServiceInfo(new ServiceURL(url, lifetime), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from(attributes));
+    }
+
+    @Test
+    public void testPutRemove() throws Exception
+    {
+        ServiceStore<ServiceInfo> store = new ServiceInfoCache<ServiceInfo>();
+        ServiceMutationPipeline pipeline = new ServiceMutationPipeline(store, null, 4);
+        pipeline.start();
+        try
+        {
+            ServiceInfo service = newServiceInfo("service:foo://host", 60, "(a=1)");
+            ServiceStore.Result<ServiceInfo> result = pipeline.put(service, false);
+            assert result.getPrevious() == null;
+            assert result.getCurrent() == service;
+            assert store.get(service.getKey()) == service;
+
+            ServiceInfo update = newServiceInfo("service:foo://host", 60, "(b=2)");
+            result = pipeline.put(update, true);
+            assert result.getPrevious() == service;
+            assert result.getCurrent().getAttributes().equals(Attributes.from("(a=1),(b=2)"));
+
+            result = pipeline.remove(update, true);
+            assert result.getCurrent().getAttributes().equals(Attributes.from("(a=1)"));
+
+            result = pipeline.remove(service, false);
+            assert result.getCurrent() == null;
+            assert store.getSize() == 0;
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void testRenewal() throws Exception
+    {
+        ServiceStore<ServiceInfo> store = new ServiceInfoCache<ServiceInfo>();
+        final AtomicInteger events = new AtomicInteger();
+        store.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                events.incrementAndGet();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                events.incrementAndGet();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                events.incrementAndGet();
+            }
+        });
+        ServiceMutationPipeline pipeline = new ServiceMutationPipeline(store, null, 4);
+        pipeline.start();
+        try
+        {
+            ServiceInfo service = newServiceInfo("service:foo://host", 60, "(a=1)");
+            pipeline.put(service, false);
+            assert events.get() == 1;
+
+            // The writer renews the registered service instead of replacing it
+            ServiceStore.Result<ServiceInfo> result = pipeline.put(newServiceInfo("service:foo://host", 60, "(a=1)"), false);
+            assert result.getPrevious() == service;
+            assert result.getCurrent() == service;
+            assert store.get(service.getKey()) == service;
+            assert events.get() == 1;
+
+            // A registration with a different content replaces the service
+            result = pipeline.put(newServiceInfo("service:foo://host", 60, "(a=2)"), false);
+            assert result.getPrevious() == service;
+            assert result.getCurrent() != service;
+            assert events.get() == 2;
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrown() throws Exception
+    {
+        ServiceStore<ServiceInfo> store = new ServiceInfoCache<ServiceInfo>();
+        ServiceMutationPipeline pipeline = new ServiceMutationPipeline(store, null, 4);
+        pipeline.start();
+        try
+        {
+            try
+            {
+                pipeline.put(newServiceInfo("service:foo://host", 60, "(a=1)"), true);
+                assert false;
+            }
+            catch (ServiceLocationException x)
+            {
+                assert x.getSLPError() == SLPError.INVALID_UPDATE;
+            }
+
+            // The writer survives failed modifications
+            pipeline.put(newServiceInfo("service:foo://host", 60, "(a=1)"), false);
+            assert store.getSize() == 1;
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void testPurge() throws Exception
+    {
+        ServiceStore<ServiceInfo> store = new ServiceInfoCache<ServiceInfo>();
+        ServiceMutationPipeline pipeline = new ServiceMutationPipeline(store, null, 4);
+        pipeline.start();
+        try
+        {
+            pipeline.put(newServiceInfo("service:foo://host1", 1, ""), false);
+            pipeline.put(newServiceInfo("service:foo://host2", ServiceURL.LIFETIME_PERMANENT, ""), false);
+            Thread.sleep(1500);
+
+            List<ServiceInfo> purged = pipeline.purge();
+            assert purged.size() == 1;
+            assert store.getSize() == 1;
+        }
+        finally
+        {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void testStopped() throws Exception
+    {
+        ServiceMutationPipeline pipeline = new ServiceMutationPipeline(new ServiceInfoCache<ServiceInfo>(), null, 4);
+        pipeline.start();
+        pipeline.stop();
+        try
+        {
+            pipeline.put(newServiceInfo("service:foo://host", 60, ""), false);
+            assert false;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.INTERNAL_SYSTEM_ERROR;
+        }
+    }
+
+    @Test
+    public void testConcurrentMutationsAreLogged() throws Exception
+    {
+        File directory = File.createTempFile("slp-", ".log");
+        assert directory.delete();
+        assert directory.mkdirs();
+        try
+        {
+            ServiceInfoLog log = new ServiceInfoLog(directory);
+            assert log.open().isEmpty();
+            ServiceStore<ServiceInfo> store = new ServiceInfoCache<ServiceInfo>();
+            // A small ring buffer, so that publishers also wait for the writer to drain it
+            final ServiceMutationPipeline pipeline = new ServiceMutationPipeline(store, log, 8);
+            pipeline.start();
+
+            int threads = 4;
+            final int count = 250;
+            final AtomicInteger failures = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(threads);
+            for (int i = 0; i < threads; ++i)
+            {
+                final int thread = i;
+                new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int j = 0; j < count; ++j)
+                            {
+                                ServiceInfo service = newServiceInfo("service:foo://host" + thread + "-" + j, ServiceURL.LIFETIME_PERMANENT, "");
+                                pipeline.put(service, false);
+                                if (j % 2 == 1) pipeline.remove(service, false);
+                            }
+                        }
+                        catch (Exception x)
+                        {
+                            failures.incrementAndGet();
+                        }
+                        finally
+                        {
+                            latch.countDown();
+                        }
+                    }
+                }.start();
+            }
+            assert latch.await(60, TimeUnit.SECONDS);
+            pipeline.stop();
+            log.close();
+
+            assert failures.get() == 0;
+            assert store.getSize() == threads * count / 2;
+
+            log = new ServiceInfoLog(directory);
+            List<ServiceInfo> recovered = log.open();
+            log.close();
+            assert recovered.size() == threads * count / 2;
+        }
+        finally
+        {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+}
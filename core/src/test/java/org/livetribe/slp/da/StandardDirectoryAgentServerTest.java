@@ -15,6 +15,9 @@
  */
 package org.livetribe.slp.da;
 
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -24,8 +27,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 import static org.livetribe.slp.settings.Keys.BROADCAST_ENABLED_KEY;
 import static org.livetribe.slp.settings.Keys.DA_ADVERTISEMENT_PERIOD_KEY;
 import static org.livetribe.slp.settings.Keys.DA_EXPIRED_SERVICES_PURGE_PERIOD_KEY;
+import static org.livetribe.slp.settings.Keys.DA_PERSISTENCE_DIRECTORY_KEY;
+import static org.livetribe.slp.settings.Keys.DA_SINGLE_WRITER_ENABLED_KEY;
 import static org.livetribe.slp.settings.Keys.PORT_KEY;
 import static org.livetribe.slp.settings.Keys.SA_UNICAST_PREFER_TCP;
+import static org.livetribe.slp.settings.Keys.TCP_CONNECTOR_FACTORY_KEY;
 import static org.livetribe.slp.settings.Keys.UDP_CONNECTOR_FACTORY_KEY;
 import static org.livetribe.slp.settings.Keys.UDP_CONNECTOR_SERVER_FACTORY_KEY;
 import org.testng.annotations.Test;
@@ -36,22 +42,32 @@ import org.livetribe.slp.SLPError;
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceInfo;
 import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.ServiceURL;
 import org.livetribe.slp.sa.ServiceAgentClient;
+import org.livetribe.slp.sa.ServiceBatchEvent;
+import org.livetribe.slp.sa.ServiceBatchListener;
 import org.livetribe.slp.sa.ServiceEvent;
 import org.livetribe.slp.sa.ServiceListener;
 import org.livetribe.slp.settings.Factories;
 import org.livetribe.slp.settings.MapSettings;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.AttributeProjection;
 import org.livetribe.slp.spi.MulticastDASrvRqstPerformer;
+import org.livetribe.slp.spi.ResultVersion;
+import org.livetribe.slp.spi.ServiceJournal;
 import org.livetribe.slp.spi.msg.DAAdvert;
 import org.livetribe.slp.spi.msg.Message;
+import org.livetribe.slp.spi.msg.ResultVersionExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.net.MessageEvent;
 import org.livetribe.slp.spi.net.MessageListener;
+import org.livetribe.slp.spi.net.NetUtils;
+import org.livetribe.slp.spi.net.TCPConnector;
 import org.livetribe.slp.spi.net.UDPConnector;
 import org.livetribe.slp.spi.net.UDPConnectorServer;
 import org.livetribe.slp.spi.ua.MulticastSrvRqstPerformer;
+import org.livetribe.slp.spi.ua.UnicastSrvRqstPerformer;
 
 
 /**
@@ -378,6 +394,72 @@ public class StandardDirectoryAgentServerTest
         }
     }
 
+    @Test
+    public void testUDPNotModifiedSrvRply() throws Exception
+    {
+        testNotModifiedSrvRply(false);
+    }
+
+    @Test
+    public void testTCPNotModifiedSrvRply() throws Exception
+    {
+        testNotModifiedSrvRply(true);
+    }
+
+    private void testNotModifiedSrvRply(boolean preferTCP) throws Exception
+    {
+        Settings settings = newSettings();
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(settings);
+        da.start();
+        try
+        {
+            ServiceAgentClient registrar = SLP.newServiceAgentClient(settings);
+            for (int i = 0; i < 2; ++i)
+            {
+                ServiceURL serviceURL = new ServiceURL("service:jmx:rmi://host" + i + "/jndi/rmi");
+                registrar.register(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(load=" + i + ")")));
+            }
+
+            UDPConnector.Factory udpFactory = Factories.newInstance(settings, UDP_CONNECTOR_FACTORY_KEY);
+            TCPConnector.Factory tcpFactory = Factories.newInstance(settings, TCP_CONNECTOR_FACTORY_KEY);
+            UnicastSrvRqstPerformer srvRqstPerformer = new UnicastSrvRqstPerformer(udpFactory.newUDPConnector(settings), tcpFactory.newTCPConnector(settings), settings);
+            InetSocketAddress address = new InetSocketAddress(NetUtils.getLoopbackAddress(), settings.get(PORT_KEY));
+            ServiceType serviceType = new ServiceType("service:jmx:rmi");
+
+            SrvRply srvRply = srvRqstPerformer.perform(address, preferTCP, serviceType, null, Scopes.DEFAULT, null, null, AttributeProjection.ALL, ResultVersion.NONE);
+            assert srvRply.getURLEntries().size() == 2;
+            ResultVersionExtension resultVersion = ResultVersionExtension.findFirst(srvRply.getExtensions());
+            assert resultVersion != null;
+            assert !resultVersion.isNotModified();
+            long version = resultVersion.getVersion();
+
+            // Same result, the reply has no URL entries
+            srvRply = srvRqstPerformer.perform(address, preferTCP, serviceType, null, Scopes.DEFAULT, null, null, AttributeProjection.ALL, version);
+            assert srvRply.getSLPError() == SLPError.NO_ERROR;
+            assert srvRply.getURLEntries().isEmpty();
+            resultVersion = ResultVersionExtension.findFirst(srvRply.getExtensions());
+            assert resultVersion.isNotModified();
+            assert resultVersion.getVersion() == version;
+
+            // Different result, the reply has the URL entries and a new version
+            registrar.addAttributes(new ServiceURL("service:jmx:rmi://host0/jndi/rmi"), Locale.ENGLISH.getLanguage(), Attributes.from("(load=5)"));
+            srvRply = srvRqstPerformer.perform(address, preferTCP, serviceType, null, Scopes.DEFAULT, null, null, AttributeProjection.ALL, version);
+            assert srvRply.getURLEntries().size() == 2;
+            resultVersion = ResultVersionExtension.findFirst(srvRply.getExtensions());
+            assert !resultVersion.isNotModified();
+            assert resultVersion.getVersion() != version;
+
+            // Requests without the extension are replied as usual
+            srvRply = srvRqstPerformer.perform(address, preferTCP, serviceType, null, Scopes.DEFAULT, null);
+            assert srvRply.getURLEntries().size() == 2;
+            assert ResultVersionExtension.findFirst(srvRply.getExtensions()) == null;
+        }
+        finally
+        {
+            da.stop();
+        }
+    }
+
     @Test
     public void testUDPServiceRegistration() throws Exception
     {
@@ -686,4 +768,353 @@ public class StandardDirectoryAgentServerTest
             da.stop();
         }
     }
+
+    @Test
+    public void testImportServices() throws Exception
+    {
+        importServices(false);
+    }
+
+    @Test
+    public void testImportServicesWithSingleWriter() throws Exception
+    {
+        importServices(true);
+    }
+
+    private void importServices(final boolean singleWriter) throws Exception
+    {
+        final AtomicInteger batchCount = new AtomicInteger();
+        final AtomicInteger addedCount = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        ServiceBatchListener listener = new ServiceBatchListener()
+        {
+            public void servicesChanged(ServiceBatchEvent event)
+            {
+                // With the single writer, the services are imported by the writer thread
+                if ((Thread.currentThread() == caller) == singleWriter) return;
+                batchCount.incrementAndGet();
+                addedCount.addAndGet(event.getAdded().size());
+            }
+
+            public void serviceAdded(ServiceEvent event)
+            {
+                assert false;
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                assert false;
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                assert false;
+            }
+        };
+
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo://host1", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1)"));
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo://host2", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=2)"));
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:foo://host3", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope2"), Attributes.from("(a=3)"));
+        for (ServiceInfo service : Arrays.asList(service1, service2, service3)) service.setRegistered(true);
+        File file = File.createTempFile("slp-", ".snapshot");
+        try
+        {
+            ServiceInfoSnapshot.write(file, Arrays.asList(service1, service2, service3));
+
+            Settings daSettings = newSettings();
+            daSettings.put(DA_SINGLE_WRITER_ENABLED_KEY, singleWriter);
+            StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(daSettings);
+            da.setScopes(Scopes.from("scope1"));
+            da.addServiceListener(listener);
+            da.start();
+            try
+            {
+                // Services whose scopes are not supported by the directory agent are not imported
+                assert da.importServices(file) == 2;
+                assert da.getServices().size() == 2;
+                assert batchCount.get() == 1;
+                assert addedCount.get() == 2;
+            }
+            finally
+            {
+                da.stop();
+            }
+        }
+        finally
+        {
+            assert file.delete();
+        }
+    }
+
+    @Test
+    public void testRecoverPersistedServices() throws Exception
+    {
+        recoverPersistedServices(false);
+    }
+
+    @Test
+    public void testServiceChangesSince() throws Exception
+    {
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(newSettings());
+        da.start();
+        try
+        {
+            ServiceJournal.Delta delta = da.getServiceChangesSince(0);
+            assert !delta.isSnapshot();
+            assert delta.getChanges().isEmpty();
+
+            ServiceAgentClient registrar = SLP.newServiceAgentClient(newSettings());
+            ServiceURL serviceURL = new ServiceURL("service:jmx:rmi:///jndi/rmi:///jmxrmi");
+            registrar.register(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)")));
+            registrar.addAttributes(serviceURL, Locale.ENGLISH.getLanguage(), Attributes.from("(b=2)"));
+
+            delta = da.getServiceChangesSince(delta.getSequence());
+            assert delta.getChanges().size() == 2;
+            assert delta.getChanges().get(0).getType() == ServiceJournal.Type.ADDED;
+            assert delta.getChanges().get(1).getType() == ServiceJournal.Type.UPDATED;
+
+            registrar.deregister(serviceURL, Locale.ENGLISH.getLanguage());
+            delta = da.getServiceChangesSince(delta.getSequence());
+            assert delta.getChanges().size() == 1;
+            assert delta.getChanges().get(0).getType() == ServiceJournal.Type.REMOVED;
+        }
+        finally
+        {
+            da.stop();
+        }
+    }
+
+    @Test
+    public void testReRegistrationRenewsService() throws Exception
+    {
+        final AtomicInteger eventCount = new AtomicInteger(0);
+        ServiceListener listener = new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                eventCount.incrementAndGet();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                eventCount.incrementAndGet();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                eventCount.incrementAndGet();
+            }
+        };
+
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(newSettings());
+        da.addServiceListener(listener);
+        da.start();
+        try
+        {
+            ServiceAgentClient registrar = SLP.newServiceAgentClient(newSettings());
+            ServiceURL serviceURL = new ServiceURL("service:jmx:rmi:///jndi/rmi:///jmxrmi");
+            ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+            registrar.register(service);
+            assert eventCount.get() == 1;
+            long sequence = da.getServiceChangesSince(0).getSequence();
+            long registrationTime = da.getServices().get(0).getRegistrationTime();
+            Thread.sleep(20);
+
+            registrar.register(service);
+            assert eventCount.get() == 1;
+            assert da.getServices().size() == 1;
+            assert da.getServices().get(0).getRegistrationTime() > registrationTime;
+            // Renewals are not recorded in the journal by default
+            assert da.getServiceChangesSince(sequence).getChanges().isEmpty();
+
+            // A re-registration with different attributes is a regular registration
+            registrar.register(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=2)")));
+            assert eventCount.get() == 2;
+        }
+        finally
+        {
+            da.removeServiceListener(listener);
+            da.stop();
+        }
+    }
+
+    @Test
+    public void testRecoverPersistedServicesWithSingleWriter() throws Exception
+    {
+        recoverPersistedServices(true);
+    }
+
+    @Test
+    public void testPersistedChangesNotifyUnlocked() throws Exception
+    {
+        persistedChangesNotifyUnlocked(false);
+    }
+
+    @Test
+    public void testSingleWriterChangesNotifyUnlocked() throws Exception
+    {
+        persistedChangesNotifyUnlocked(true);
+    }
+
+    @Test
+    public void testSingleWriterListenerRegisters() throws Exception
+    {
+        Settings daSettings = newSettings();
+        daSettings.put(DA_SINGLE_WRITER_ENABLED_KEY, true);
+        final StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(daSettings);
+        final ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo://host1", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+        final ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo://host2", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=2)"));
+        da.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                // The listener is notified by the writer thread, that must not wait for itself
+                if (event.getCurrentService().getKey().equals(service1.getKey())) da.cacheService(service2, false);
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        });
+        da.start();
+        try
+        {
+            da.cacheService(service1, false);
+            assert da.getServices().size() == 2;
+        }
+        finally
+        {
+            da.stop();
+        }
+    }
+
+    private void persistedChangesNotifyUnlocked(boolean singleWriter) throws Exception
+    {
+        File directory = File.createTempFile("slp-", ".da");
+        assert directory.delete();
+        Settings daSettings = newSettings();
+        daSettings.put(DA_PERSISTENCE_DIRECTORY_KEY, directory.getAbsolutePath());
+        daSettings.put(DA_SINGLE_WRITER_ENABLED_KEY, singleWriter);
+        try
+        {
+            final StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(daSettings);
+            final AtomicInteger notified = new AtomicInteger();
+            final AtomicBoolean failure = new AtomicBoolean();
+            da.addServiceListener(new ServiceListener()
+            {
+                public void serviceAdded(ServiceEvent event)
+                {
+                    verify();
+                }
+
+                public void serviceUpdated(ServiceEvent event)
+                {
+                    verify();
+                }
+
+                public void serviceRemoved(ServiceEvent event)
+                {
+                    verify();
+                }
+
+                private void verify()
+                {
+                    // Another thread can read the services while the listener is notified
+                    Thread reader = new Thread()
+                    {
+                        public void run()
+                        {
+                            da.getServices();
+                        }
+                    };
+                    reader.start();
+                    try
+                    {
+                        reader.join(5000);
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (reader.isAlive()) failure.set(true);
+                    notified.incrementAndGet();
+                }
+            });
+            da.start();
+            try
+            {
+                ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo://host", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+                da.cacheService(service, false);
+                da.cacheService(new ServiceInfo(service.getServiceURL(), service.getLanguage(), Scopes.DEFAULT, Attributes.from("(b=2)")), true);
+                da.uncacheService(service, false);
+                assert notified.get() == 3;
+                assert !failure.get();
+            }
+            finally
+            {
+                da.stop();
+            }
+        }
+        finally
+        {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+
+    private void recoverPersistedServices(boolean singleWriter) throws Exception
+    {
+        File directory = File.createTempFile("slp-", ".da");
+        assert directory.delete();
+        Settings daSettings = newSettings();
+        daSettings.put(DA_PERSISTENCE_DIRECTORY_KEY, directory.getAbsolutePath());
+        daSettings.put(DA_SINGLE_WRITER_ENABLED_KEY, singleWriter);
+        try
+        {
+            StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(daSettings);
+            da.start();
+            ServiceURL serviceURL = new ServiceURL("service:jmx:rmi:///jndi/rmi:///jmxrmi", 60);
+            ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+            try
+            {
+                ServiceAgentClient registrar = SLP.newServiceAgentClient(newSettings());
+                registrar.register(service);
+                registrar.addAttributes(service.getServiceURL(), service.getLanguage(), Attributes.from("(b=2)"));
+                registrar.register(new ServiceInfo(new ServiceURL("foo://bar", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+                registrar.deregister(new ServiceURL("foo://bar"), Locale.ENGLISH.getLanguage());
+                assert da.getServices().size() == 1;
+            }
+            finally
+            {
+                da.stop();
+            }
+
+            da = StandardDirectoryAgentServer.newInstance(daSettings);
+            da.start();
+            try
+            {
+                List<ServiceInfo> services = da.getServices();
+                assert services.size() == 1;
+                ServiceInfo recovered = services.get(0);
+                assert recovered.getKey().equals(service.getKey());
+                assert recovered.getAttributes().equals(Attributes.from("(a=1),(b=2)"));
+                assert recovered.getServiceURL().getLifetime() <= 60;
+            }
+            finally
+            {
+                da.stop();
+            }
+        }
+        finally
+        {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
 }
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.sa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.spi.ServiceInfoCache;
+
+
+/**
+ *
+ */
+public class AsynchronousServiceListenerTest
+{
+    private ServiceInfo newServiceInfo(String url, String attributes) throws Exception
+    {
+        return new ServiceInfo(new ServiceURL(url), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from(attributes));
+    }
+
+    @Test
+    public void testDeliveryDoesNotBlockCaller() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch delivered = new CountDownLatch(3);
+        AsynchronousServiceListener listener = new AsynchronousServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                await(release);
+                events.add("added " + event.getCurrentService().getServiceURL());
+                delivered.countDown();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                events.add("updated " + event.getCurrentService().getServiceURL());
+                delivered.countDown();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                events.add("removed " + event.getPreviousService().getServiceURL());
+                delivered.countDown();
+            }
+        }, 16);
+        try
+        {
+            ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+            cache.addServiceListener(listener);
+
+            ServiceInfo service = newServiceInfo("service:foo://host", "(a=1)");
+            cache.put(service);
+            // Wait for the delivery of the addition to start, so that the update is not conflated with it
+            Thread.sleep(100);
+            cache.addAttributes(service.getKey(), Attributes.from("(b=2)"));
+            cache.remove(service.getKey());
+            // The listener is blocked, but the modifications complete
+            assert cache.getSize() == 0;
+            Thread.sleep(100);
+            assert listener.getPendingCount() > 0;
+            assert listener.getLag() > 0;
+
+            release.countDown();
+            assert delivered.await(5, TimeUnit.SECONDS);
+            assert events.size() == 3;
+            assert events.get(0).startsWith("added");
+            assert events.get(1).startsWith("updated");
+            assert events.get(2).startsWith("removed");
+            assert listener.getDeliveredCount() == 3;
+            assert listener.getPendingCount() == 0;
+            assert listener.getLag() == 0;
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testUpdatesAreConflated() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ServiceEvent> additions = Collections.synchronizedList(new ArrayList<ServiceEvent>());
+        final List<ServiceEvent> updates = Collections.synchronizedList(new ArrayList<ServiceEvent>());
+        final CountDownLatch delivered = new CountDownLatch(3);
+        AsynchronousServiceListener listener = new AsynchronousServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                await(release);
+                additions.add(event);
+                delivered.countDown();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                updates.add(event);
+                delivered.countDown();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        }, 16);
+        try
+        {
+            ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+            cache.addServiceListener(listener);
+
+            // The delivery thread blocks on the first addition, so that the following events are queued
+            ServiceInfo blocker = newServiceInfo("service:foo://blocker", "");
+            cache.put(blocker);
+            Thread.sleep(100);
+
+            ServiceInfo service = newServiceInfo("service:foo://host", "(a=1)");
+            cache.put(service);
+            cache.addAttributes(service.getKey(), Attributes.from("(b=2)"));
+            ServiceInfo current = cache.addAttributes(service.getKey(), Attributes.from("(c=3)")).getCurrent();
+            ServiceInfo other = newServiceInfo("service:foo://other", "(a=1)");
+            cache.put(other);
+            cache.addAttributes(other.getKey(), Attributes.from("(b=2)"));
+            assert listener.getConflatedCount() == 3;
+
+            release.countDown();
+            assert delivered.await(5, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            // Updates are conflated with the queued additions, so no update is delivered
+            assert updates.isEmpty();
+            assert listener.getDeliveredCount() == 3;
+            assert additions.get(1).getPreviousService() == null;
+            assert additions.get(1).getCurrentService() == current;
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testConflatedUpdateSpansQueuedUpdates() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ServiceEvent> updates = Collections.synchronizedList(new ArrayList<ServiceEvent>());
+        final CountDownLatch delivered = new CountDownLatch(2);
+        AsynchronousServiceListener listener = new AsynchronousServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                await(release);
+                delivered.countDown();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                updates.add(event);
+                delivered.countDown();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        }, 16);
+        try
+        {
+            ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+            ServiceInfo service = newServiceInfo("service:foo://host", "(a=1)");
+            cache.put(service);
+            cache.addServiceListener(listener);
+
+            ServiceInfo blocker = newServiceInfo("service:foo://blocker", "");
+            cache.put(blocker);
+            Thread.sleep(100);
+
+            ServiceInfo previous = cache.get(service.getKey());
+            cache.addAttributes(service.getKey(), Attributes.from("(b=2)"));
+            ServiceInfo current = cache.addAttributes(service.getKey(), Attributes.from("(c=3)")).getCurrent();
+            assert listener.getConflatedCount() == 1;
+
+            release.countDown();
+            assert delivered.await(5, TimeUnit.SECONDS);
+            assert updates.size() == 1;
+            assert updates.get(0).getPreviousService() == previous;
+            assert updates.get(0).getCurrentService() == current;
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testBatchChangesAreDeliveredInOrder() throws Exception
+    {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch delivered = new CountDownLatch(3);
+        AsynchronousServiceListener listener = new AsynchronousServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                events.add("added " + event.getCurrentService().getServiceURL());
+                delivered.countDown();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                events.add("updated " + event.getCurrentService().getServiceURL());
+                delivered.countDown();
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                events.add("removed " + event.getPreviousService().getServiceURL());
+                delivered.countDown();
+            }
+        }, 16);
+        try
+        {
+            ServiceInfo service1 = newServiceInfo("service:foo://host1", "(a=1)");
+            ServiceInfo service2 = newServiceInfo("service:foo://host2", "(a=1)");
+            List<ServiceBatchEvent.Change> changes = new ArrayList<ServiceBatchEvent.Change>();
+            changes.add(new ServiceBatchEvent.Change(ServiceBatchEvent.Type.REMOVED, new ServiceEvent(this, service1, null)));
+            changes.add(new ServiceBatchEvent.Change(ServiceBatchEvent.Type.ADDED, new ServiceEvent(this, null, service1)));
+            changes.add(new ServiceBatchEvent.Change(ServiceBatchEvent.Type.ADDED, new ServiceEvent(this, null, service2)));
+            listener.servicesChanged(new ServiceBatchEvent(this, changes));
+
+            assert delivered.await(5, TimeUnit.SECONDS);
+            assert events.size() == 3;
+            assert events.get(0).equals("removed " + service1.getServiceURL());
+            assert events.get(1).equals("added " + service1.getServiceURL());
+            assert events.get(2).equals("added " + service2.getServiceURL());
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testRejectedDeliveryIsScheduledAgain() throws Exception
+    {
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        Executor executor = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                if (reject.getAndSet(false)) throw new RejectedExecutionException();
+                new Thread(command).start();
+            }
+        };
+        final CountDownLatch delivered = new CountDownLatch(2);
+        AsynchronousServiceListener listener = new AsynchronousServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                delivered.countDown();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        }, 16, executor);
+        try
+        {
+            ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+            cache.addServiceListener(listener);
+
+            cache.put(newServiceInfo("service:foo://host1", "(a=1)"));
+            assert listener.getPendingCount() == 1;
+            // The rejected delivery does not prevent the next event from scheduling it again
+            cache.put(newServiceInfo("service:foo://host2", "(a=1)"));
+            assert delivered.await(5, TimeUnit.SECONDS);
+            assert listener.getDeliveredCount() == 2;
+        }
+        finally
+        {
+            listener.close();
+        }
+    }
+
+    private void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
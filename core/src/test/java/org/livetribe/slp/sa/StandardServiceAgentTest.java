@@ -22,6 +22,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.livetribe.slp.settings.Keys.PORT_KEY;
 import static org.livetribe.slp.settings.Keys.SA_UNICAST_PREFER_TCP;
+import static org.livetribe.slp.settings.Keys.SERVICE_STORE_JOURNAL_RENEWALS_KEY;
 import org.testng.annotations.Test;
 
 import org.livetribe.slp.Attributes;
@@ -36,6 +37,7 @@ import org.livetribe.slp.da.DirectoryAgentInfo;
 import org.livetribe.slp.da.StandardDirectoryAgentServer;
 import org.livetribe.slp.settings.MapSettings;
 import org.livetribe.slp.settings.Settings;
+import org.livetribe.slp.spi.ServiceJournal;
 import org.livetribe.slp.ua.UserAgent;
 import org.livetribe.slp.ua.UserAgentClient;
 
@@ -354,7 +356,9 @@ public class StandardServiceAgentTest
     @Test
     public void testRenewalWithDA() throws Exception
     {
-        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(newSettings());
+        Settings daSettings = newSettings();
+        daSettings.put(SERVICE_STORE_JOURNAL_RENEWALS_KEY, true);
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(daSettings);
         da.start();
         try
         {
@@ -369,51 +373,38 @@ public class StandardServiceAgentTest
                 ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
                 sa.register(service);
 
-                // Add the listener for renewals
-                final AtomicInteger renewalCount = new AtomicInteger(0);
-                ServiceListener listener = new ServiceListener()
-                {
-                    public void serviceAdded(ServiceEvent event)
-                    {
-                        renewalCount.incrementAndGet();
-                    }
-
-                    public void serviceUpdated(ServiceEvent event)
-                    {
-                    }
-
-                    public void serviceRemoved(ServiceEvent event)
-                    {
-                    }
-                };
-                da.addServiceListener(listener);
+                // Unchanged re-registrations are renewals, recorded in the journal of the DA
+                long sequence = da.getServiceChangesSince(0).getSequence();
 
                 // Sleep for the renewal to happen
                 Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime));
-                assert renewalCount.get() == 1;
+                ServiceJournal.Delta delta = da.getServiceChangesSince(sequence);
+                assert countRenewals(delta) == 1;
 
                 // Update the service; this should cancel the previous renewal and schedule a new one
-                renewalCount.set(0);
+                sequence = delta.getSequence();
                 sa.addAttributes(service.getServiceURL(), service.getLanguage(), Attributes.from("(a=1,2)"));
 
                 // Sleep for the renewal to happen
                 Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime));
-                assert renewalCount.get() == 1;
+                delta = da.getServiceChangesSince(sequence);
+                assert countRenewals(delta) == 1;
 
                 // Update again
-                renewalCount.set(0);
+                sequence = delta.getSequence();
                 sa.removeAttributes(service.getServiceURL(), service.getLanguage(), Attributes.from("a"));
 
                 // Sleep for the renewal to happen
                 Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime));
-                assert renewalCount.get() == 1;
+                delta = da.getServiceChangesSince(sequence);
+                assert countRenewals(delta) == 1;
 
                 // Remove the service
-                renewalCount.set(0);
+                sequence = delta.getSequence();
                 sa.deregister(service.getServiceURL(), service.getLanguage());
                 // Sleep for the renewal period and check it has been cancelled
                 Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime));
-                assert renewalCount.get() == 0;
+                assert countRenewals(da.getServiceChangesSince(sequence)) == 0;
             }
             finally
             {
@@ -426,6 +417,14 @@ public class StandardServiceAgentTest
         }
     }
 
+    private int countRenewals(ServiceJournal.Delta delta)
+    {
+        int result = 0;
+        for (ServiceJournal.Change change : delta.getChanges())
+            if (change.getType() == ServiceJournal.Type.RENEWED) ++result;
+        return result;
+    }
+
     @Test
     public void testRenewalWithoutDA() throws Exception
     {
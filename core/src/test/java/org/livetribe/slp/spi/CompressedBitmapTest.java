@@ -0,0 +1,128 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.testng.annotations.Test;
+
+
+/**
+ *
+ */
+public class CompressedBitmapTest
+{
+    private void assertSame(CompressedBitmap bitmap, SortedSet<Integer> expected)
+    {
+        assert bitmap.getCardinality() == expected.size();
+        assert bitmap.isEmpty() == expected.isEmpty();
+        int[] values = bitmap.toArray();
+        assert values.length == expected.size();
+        int i = 0;
+        for (Integer value : expected)
+        {
+            assert values[i++] == value;
+            assert bitmap.contains(value);
+        }
+    }
+
+    @Test
+    public void testAddRemove() throws Exception
+    {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assert bitmap.isEmpty();
+        assert bitmap.add(3);
+        assert !bitmap.add(3);
+        assert bitmap.add(70000);
+        assert bitmap.contains(3);
+        assert bitmap.contains(70000);
+        assert !bitmap.contains(4);
+        assert bitmap.getCardinality() == 2;
+        assert bitmap.remove(3);
+        assert !bitmap.remove(3);
+        assert !bitmap.contains(3);
+        assert bitmap.remove(70000);
+        assert bitmap.isEmpty();
+    }
+
+    @Test
+    public void testDenseChunks() throws Exception
+    {
+        // More than 4096 values in the same chunk are stored in a bitmap, and back in an array when removed
+        CompressedBitmap bitmap = new CompressedBitmap();
+        SortedSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < 10000; ++i)
+        {
+            bitmap.add(i * 3);
+            expected.add(i * 3);
+        }
+        assertSame(bitmap, expected);
+        for (int i = 0; i < 10000; i += 2)
+        {
+            bitmap.remove(i * 3);
+            expected.remove(i * 3);
+        }
+        assertSame(bitmap, expected);
+    }
+
+    @Test
+    public void testOperations() throws Exception
+    {
+        Random random = new Random(17);
+        for (int round = 0; round < 20; ++round)
+        {
+            CompressedBitmap bitmap1 = new CompressedBitmap();
+            CompressedBitmap bitmap2 = new CompressedBitmap();
+            SortedSet<Integer> set1 = new TreeSet<Integer>();
+            SortedSet<Integer> set2 = new TreeSet<Integer>();
+            // Alternate sparse and dense sets, over few chunks
+            int count1 = round % 2 == 0 ? 100 : 20000;
+            int count2 = round % 3 == 0 ? 20000 : 300;
+            for (int i = 0; i < count1; ++i)
+            {
+                int value = random.nextInt(200000);
+                bitmap1.add(value);
+                set1.add(value);
+            }
+            for (int i = 0; i < count2; ++i)
+            {
+                int value = random.nextInt(200000);
+                bitmap2.add(value);
+                set2.add(value);
+            }
+
+            SortedSet<Integer> and = new TreeSet<Integer>(set1);
+            and.retainAll(set2);
+            assertSame(bitmap1.and(bitmap2), and);
+            assertSame(bitmap2.and(bitmap1), and);
+
+            SortedSet<Integer> or = new TreeSet<Integer>(set1);
+            or.addAll(set2);
+            assertSame(bitmap1.or(bitmap2), or);
+            assertSame(bitmap2.or(bitmap1), or);
+
+            SortedSet<Integer> andNot = new TreeSet<Integer>(set1);
+            andNot.removeAll(set2);
+            assertSame(bitmap1.andNot(bitmap2), andNot);
+
+            // Operands are not modified
+            assertSame(bitmap1, set1);
+            assertSame(bitmap2, set2);
+        }
+    }
+}
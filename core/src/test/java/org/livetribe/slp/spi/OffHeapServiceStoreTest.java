@@ -0,0 +1,112 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.spi.filter.FilterParser;
+import org.livetribe.slp.spi.msg.URLEntry;
+
+
+/**
+ *
+ */
+public class OffHeapServiceStoreTest extends ServiceStoreTest
+{
+    protected ServiceStore<ServiceInfo> newServiceStore(ServiceJournal journal)
+    {
+        return new OffHeapServiceStore(1024 * 1024, journal);
+    }
+
+    protected boolean same(ServiceInfo actual, ServiceInfo expected)
+    {
+        if (actual == null || expected == null) return actual == expected;
+        if (!actual.getKey().equals(expected.getKey())) return false;
+        if (actual.getServiceType() == null ? expected.getServiceType() != null : !actual.getServiceType().equals(expected.getServiceType()))
+            return false;
+        if (actual.getServiceURL().getLifetime() != expected.getServiceURL().getLifetime()) return false;
+        if (actual.getScopes() == null ? expected.getScopes() != null : !actual.getScopes().equals(expected.getScopes()))
+            return false;
+        return actual.getAttributes() == null ? expected.getAttributes() == null : actual.getAttributes().equals(expected.getAttributes());
+    }
+
+    @Test
+    public void testStoredServiceInfo() throws Exception
+    {
+        OffHeapServiceStore store = new OffHeapServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://host/path;a=(b)", 60);
+        ServiceInfo service = new ServiceInfo(new ServiceType("service:baz"), serviceURL, Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(attr=1),tag"));
+        store.put(service);
+
+        ServiceInfo stored = store.get(service.getKey());
+        assert same(stored, service);
+        assert stored.isRegistered();
+        assert stored.getRegistrationTime() == service.getRegistrationTime();
+
+        URLEntry urlEntry = new URLEntry();
+        urlEntry.setURL(serviceURL.getURL());
+        urlEntry.setLifetime(serviceURL.getLifetime());
+        assert Arrays.equals(stored.getURLEntryBytes(), urlEntry.serialize());
+        assert service.getURLEntryBytes() == null;
+    }
+
+    @Test
+    public void testCompaction() throws Exception
+    {
+        OffHeapServiceStore store = new OffHeapServiceStore(4096);
+
+        int count = 2000;
+        ServiceInfo[] services = new ServiceInfo[count];
+        for (int i = 0; i < count; ++i)
+        {
+            ServiceURL serviceURL = new ServiceURL("service:foo:bar://host" + i, ServiceURL.LIFETIME_PERMANENT);
+            services[i] = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.from("scope" + (i % 3)), Attributes.from("(id=" + i + ")"));
+            store.put(services[i]);
+        }
+        long allocated = store.getAllocatedBytes();
+
+        // Remove most of the services, then replace the others several times
+        for (int i = 0; i < count; ++i)
+        {
+            if (i % 10 != 0) assert same(store.remove(services[i].getKey()).getPrevious(), services[i]);
+        }
+        for (int j = 0; j < 5; ++j)
+        {
+            for (int i = 0; i < count; i += 10) store.put(services[i]);
+        }
+
+        assert store.getSize() == count / 10;
+        assert store.getAllocatedBytes() < allocated;
+        for (int i = 0; i < count; ++i)
+        {
+            ServiceInfo stored = store.get(services[i].getKey());
+            if (i % 10 == 0)
+                assert same(stored, services[i]);
+            else
+                assert stored == null;
+        }
+        assert store.match(null, null, Scopes.from("scope1"), new FilterParser().parse("(id=10)")).size() == 1;
+    }
+}
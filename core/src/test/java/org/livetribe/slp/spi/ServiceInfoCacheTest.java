@@ -15,151 +15,259 @@
  */
 package org.livetribe.slp.spi;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.annotations.Test;
 
 import org.livetribe.slp.Attributes;
-import org.livetribe.slp.SLPError;
 import org.livetribe.slp.Scopes;
 import org.livetribe.slp.ServiceInfo;
-import org.livetribe.slp.ServiceLocationException;
-import org.livetribe.slp.ServiceType;
 import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.spi.filter.Filter;
+import org.livetribe.slp.spi.filter.FilterParser;
 
 
 /**
  *
  */
-public class ServiceInfoCacheTest
+public class ServiceInfoCacheTest extends ServiceStoreTest
 {
+    protected ServiceStore<ServiceInfo> newServiceStore(ServiceJournal journal)
+    {
+        return new ServiceInfoCache<ServiceInfo>(journal);
+    }
+
+    protected ServiceStore<ServiceInfo> newIndexedServiceStore()
+    {
+        return newIndexedServiceStore(0, 16);
+    }
+
+    private ServiceInfoCache<ServiceInfo> newIndexedServiceStore(int services)
+    {
+        return newIndexedServiceStore(services, 0);
+    }
+
+    private ServiceInfoCache<ServiceInfo> newIndexedServiceStore(int services, int lowCardinality)
+    {
+        // Sample every query, and evaluate the indexes every 4 queries
+        ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>(null, new AttributeIndexes(1, 4, 10, 60, 16, lowCardinality));
+        for (int i = 0; i < services; ++i)
+        {
+            Attributes attributes = Attributes.from("(id=" + i + "),(name=host" + i + "),(load=" + (i % 5) + "),(healthy=" + (i % 4 != 0) + ")");
+            cache.put(new ServiceInfo(new ServiceURL("service:foo://host" + i), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, attributes));
+        }
+        return cache;
+    }
+
+    private AttributeIndexes.IndexStatistics indexFor(ServiceInfoCache<ServiceInfo> cache, String tag, AttributeIndexes.Kind kind)
+    {
+        for (AttributeIndexes.IndexStatistics index : cache.getAttributeIndexStatistics().getIndexes())
+        {
+            if (index.getTag().equals(tag) && index.getKind() == kind) return index;
+        }
+        return null;
+    }
+
     @Test
-    public void testPut() throws Exception
+    public void testAttributeIndexes() throws Exception
     {
-        ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+        ServiceInfoCache<ServiceInfo> cache = newIndexedServiceStore(20);
+        FilterParser parser = new FilterParser();
+        Filter equality = parser.parse("(id=3)");
+        Filter range = parser.parse("(load>=3)");
+        Filter prefix = parser.parse("(name=host1*)");
 
-        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz1");
-        Scopes scopes = Scopes.from("scope1");
-        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, null);
-        ServiceInfoCache.Result<ServiceInfo> result = cache.put(serviceInfo1);
-
-        assert result.getPrevious() == null;
-        assert cache.getSize() == 1;
-        ServiceInfo serviceInfo = result.getCurrent();
-        assert serviceInfo == serviceInfo1;
-
-        // Different language
-        ServiceInfo serviceInfo2 = new ServiceInfo(serviceInfo1.getServiceURL(), Locale.GERMAN.getLanguage(), serviceInfo1.getScopes(), serviceInfo1.getAttributes());
-        result = cache.put(serviceInfo2);
-
-        assert result.getPrevious() == null;
-        assert cache.getSize() == 2;
-        serviceInfo = result.getCurrent();
-        assert serviceInfo == serviceInfo2;
-
-        // Replace an existing service
-        Attributes attributes = Attributes.from("(attr=sict1)");
-        ServiceInfo serviceInfo3 = new ServiceInfo(serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), attributes);
-        result = cache.put(serviceInfo3);
-
-        assert result.getPrevious() == serviceInfo1;
-        assert cache.getSize() == 2;
-        serviceInfo = result.getCurrent();
-        assert serviceInfo == serviceInfo3;
-
-        // Wrong registration: same ServiceURL, different ServiceType
-        ServiceType serviceType = new ServiceType("service:bar:baz");
-        ServiceInfo serviceInfo4 = new ServiceInfo(serviceType, serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), serviceInfo1.getAttributes());
-        try
+        for (int i = 0; i < 8; ++i)
         {
-            cache.put(serviceInfo4);
-            assert false;
+            assert cache.match(null, null, null, equality).size() == 1;
+            assert cache.match(null, null, null, range).size() == 8;
+            assert cache.match(null, null, null, prefix).size() == 11;
         }
-        catch (ServiceLocationException x)
+
+        AttributeIndexes.IndexStatistics equalityIndex = indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY);
+        assert equalityIndex != null;
+        assert equalityIndex.getSize() == 20;
+        assert equalityIndex.getHits() > 0;
+        assert equalityIndex.getHitRate() > 0;
+        assert indexFor(cache, "load", AttributeIndexes.Kind.RANGE) != null;
+        assert indexFor(cache, "name", AttributeIndexes.Kind.PREFIX) != null;
+
+        for (AttributeIndexes.TagStatistics tag : cache.getAttributeIndexStatistics().getTags())
         {
-            assert x.getSLPError() == SLPError.INVALID_REGISTRATION;
+            if ("id".equals(tag.getTag()))
+            {
+                assert tag.getCardinality() == 20;
+                assert Math.abs(tag.getSelectivity(AttributeIndexes.Kind.EQUALITY) - 1D / 20) < 1E-9;
+                assert tag.getSelectivity(AttributeIndexes.Kind.RANGE) < 0;
+            }
         }
+
+        // Indexed queries return the same results of scans
+        assert cache.match(null, null, null, parser.parse("(&(id=3)(load=3))")).size() == 1;
+        assert cache.match(null, null, null, parser.parse("(&(id=3)(load=4))")).isEmpty();
+        assert cache.match(null, null, null, parser.parse("(|(id=3)(id=4))")).size() == 2;
+        assert cache.match(null, null, null, parser.parse("(load<=1)")).size() == 8;
+        assert cache.match(null, null, null, parser.parse("(name=host1*)")).size() == 11;
+        assert cache.match(null, null, null, parser.parse("(name=host19*)")).size() == 1;
+        assert cache.match(null, null, Scopes.from("other"), equality).isEmpty();
     }
 
     @Test
-    public void testUpdateAdd() throws Exception
+    public void testAttributeIndexesBuiltInBatches() throws Exception
     {
-        ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+        int services = AttributeIndexes.BUILD_BATCH + 1000;
+        ServiceInfoCache<ServiceInfo> cache = newIndexedServiceStore(services);
+        FilterParser parser = new FilterParser();
+        for (int i = 0; i < 4; ++i) assert cache.match(null, null, null, parser.parse("(id=3)")).size() == 1;
+
+        // Only the first batch of services has been indexed, the index does not serve queries yet
+        AttributeIndexes.IndexStatistics index = indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY);
+        assert index != null;
+        assert !index.isBuilt();
+        assert index.getSize() == AttributeIndexes.BUILD_BATCH;
 
-        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
-        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
-        Scopes scopes = Scopes.from("scope1");
-        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
-        cache.put(serviceInfo1);
-
-        Attributes attributes2 = Attributes.from("(attr=sict2),(another=1)");
-        ServiceInfo serviceInfo2 = new ServiceInfo(serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), attributes2);
-        ServiceInfoCache.Result<ServiceInfo> result = cache.addAttributes(serviceInfo1.getKey(), attributes2);
-
-        assert result.getPrevious() == serviceInfo1;
-        assert cache.getSize() == 1;
-        ServiceInfo merged = result.getCurrent();
-        assert merged != null;
-        Attributes mergedAttributes = attributes1.union(attributes2);
-        assert merged.getAttributes().equals(mergedAttributes);
+        // Changes to services both already indexed and not yet indexed
+        ServiceInfo indexed = cache.match(null, null, null, parser.parse("(id=3)")).get(0);
+        cache.addAttributes(indexed.getKey(), Attributes.from("(id=-3)"));
+        ServiceInfo notIndexed = cache.match(null, null, null, parser.parse("(id=" + (services - 1) + ")")).get(0);
+        cache.addAttributes(notIndexed.getKey(), Attributes.from("(id=-1)"));
+        cache.remove(cache.match(null, null, null, parser.parse("(id=4)")).get(0).getKey());
+
+        index = indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY);
+        assert index.isBuilt();
+        assert index.getSize() == services - 1;
+        assert cache.match(null, null, null, parser.parse("(id=3)")).isEmpty();
+        assert cache.match(null, null, null, parser.parse("(id=-3)")).size() == 1;
+        assert cache.match(null, null, null, parser.parse("(id=" + (services - 1) + ")")).isEmpty();
+        assert cache.match(null, null, null, parser.parse("(id=-1)")).size() == 1;
+        assert cache.match(null, null, null, parser.parse("(id=4)")).isEmpty();
+        assert indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY).getHits() > 0;
     }
 
     @Test
-    public void testUpdateRemove() throws Exception
+    public void testAttributeIndexesFollowUpdates() throws Exception
     {
-        ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+        ServiceInfoCache<ServiceInfo> cache = newIndexedServiceStore(20);
+        FilterParser parser = new FilterParser();
+        for (int i = 0; i < 8; ++i) cache.match(null, null, null, parser.parse("(id=" + i + ")"));
+        assert indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY) != null;
+
+        ServiceInfo service = cache.match(null, null, null, parser.parse("(id=5)")).get(0);
+        cache.addAttributes(service.getKey(), Attributes.from("(id=100)"));
+        assert cache.match(null, null, null, parser.parse("(id=5)")).isEmpty();
+        List<ServiceInfo> result = cache.match(null, null, null, parser.parse("(id=100)"));
+        assert result.size() == 1;
+        assert result.get(0).getKey().equals(service.getKey());
+
+        cache.remove(service.getKey());
+        assert cache.match(null, null, null, parser.parse("(id=100)")).isEmpty();
+        assert indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY).getSize() == 19;
 
-        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
-        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
-        Scopes scopes = Scopes.from("scope1");
-        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
-        cache.put(serviceInfo1);
-
-        Attributes attributes2 = Attributes.from("tag");
-        ServiceInfoCache.Result<ServiceInfo> result = cache.removeAttributes(serviceInfo1.getKey(), attributes2);
-
-        assert result.getPrevious() == serviceInfo1;
-        assert cache.getSize() == 1;
-        ServiceInfo merged = result.getCurrent();
-        assert merged != null;
-        Attributes mergedAttributes = attributes1.complement(attributes2);
-        assert merged.getAttributes().equals(mergedAttributes);
+        ServiceInfo other = new ServiceInfo(new ServiceURL("service:foo://other"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(id=100)"));
+        cache.put(other);
+        assert cache.match(null, null, null, parser.parse("(id=100)")).size() == 1;
     }
 
     @Test
-    public void testRemove() throws Exception
+    public void testAttributeIndexesAreDropped() throws Exception
+    {
+        ServiceInfoCache<ServiceInfo> cache = newIndexedServiceStore(20);
+        FilterParser parser = new FilterParser();
+        for (int i = 0; i < 8; ++i) cache.match(null, null, null, parser.parse("(id=" + i + ")"));
+        assert indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY) != null;
+
+        // Not selective enough to be indexed
+        for (int i = 0; i < 8; ++i) cache.match(null, null, null, parser.parse("(load<=3)"));
+        assert indexFor(cache, "id", AttributeIndexes.Kind.EQUALITY) == null;
+        assert indexFor(cache, "load", AttributeIndexes.Kind.RANGE) == null;
+        assert cache.getAttributeIndexStatistics().getIndexes().isEmpty();
+    }
+
+    @Test
+    public void testLowCardinalityAttributeIndexes() throws Exception
+    {
+        ServiceInfoCache<ServiceInfo> cache = newIndexedServiceStore(20, 8);
+        FilterParser parser = new FilterParser();
+        Filter healthy = parser.parse("(healthy=true)");
+        Filter load = parser.parse("(load<=1)");
+        for (int i = 0; i < 8; ++i)
+        {
+            assert cache.match(null, null, null, healthy).size() == 15;
+            assert cache.match(null, null, null, load).size() == 8;
+        }
+        // Not selective, but indexed because of their few values
+        assert indexFor(cache, "healthy", AttributeIndexes.Kind.EQUALITY) != null;
+        assert indexFor(cache, "load", AttributeIndexes.Kind.RANGE) != null;
+
+        long hits = indexFor(cache, "healthy", AttributeIndexes.Kind.EQUALITY).getHits();
+        assert cache.match(null, null, null, parser.parse("(!(healthy=true))")).size() == 5;
+        assert cache.match(null, null, null, parser.parse("(&(healthy=true)(load<=1))")).size() == 6;
+        assert cache.match(null, null, null, parser.parse("(&(healthy=true)(!(load<=1)))")).size() == 9;
+        assert cache.match(null, null, null, parser.parse("(|(!(healthy=true))(load<=1))")).size() == 11;
+        assert cache.match(null, null, null, parser.parse("(|(healthy=false)(load=4))")).size() == 8;
+        assert cache.match(null, null, null, parser.parse("(&(healthy=true)(name=host1*))")).size() == 9;
+        assert indexFor(cache, "healthy", AttributeIndexes.Kind.EQUALITY).getHits() > hits;
+
+        // Counts use the indexes as well
+        assert cache.count(null, null, null, parser.parse("(&(healthy=true)(load<=1))"), Integer.MAX_VALUE) == 6;
+        assert cache.count(null, null, null, parser.parse("(!(healthy=true))"), 1) == 1;
+
+        ServiceInfo service = cache.match(null, null, null, parser.parse("(id=4)")).get(0);
+        cache.remove(service.getKey());
+        assert cache.match(null, null, null, parser.parse("(!(healthy=true))")).size() == 4;
+        cache.put(new ServiceInfo(new ServiceURL("service:foo://other"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(healthy=false)")));
+        assert cache.match(null, null, null, parser.parse("(!(healthy=true))")).size() == 5;
+    }
+
+    @Test
+    public void testNoAttributeIndexes() throws Exception
     {
         ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+        assert cache.getAttributeIndexStatistics() == null;
+    }
 
-        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
-        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
-        Scopes scopes = Scopes.from("scope1");
-        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
-        cache.put(serviceInfo1);
+    @Test
+    public void testPutAllChecksServicesOnce() throws Exception
+    {
+        final AtomicInteger checks = new AtomicInteger();
+        ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>()
+        {
+            protected void check(ServiceInfo service)
+            {
+                checks.incrementAndGet();
+                super.check(service);
+            }
+        };
 
-        ServiceInfoCache.Result<ServiceInfo> result = cache.remove(serviceInfo1.getKey());
-        assert result.getPrevious() == serviceInfo1;
-        assert result.getCurrent() == null;
-        assert cache.getSize() == 0;
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 10; ++i)
+        {
+            ServiceURL serviceURL = new ServiceURL("service:foo:bar://host" + i);
+            services.add(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+        }
+        assert cache.putAll(services).size() == services.size();
+        assert cache.getSize() == services.size();
+        assert checks.get() == services.size();
     }
 
     @Test
-    public void testMatchExpired() throws Exception
+    public void testOnlyStoredScopesAreAssignedIds() throws Exception
     {
         ServiceInfoCache<ServiceInfo> cache = new ServiceInfoCache<ServiceInfo>();
+        Scopes stored = Scopes.from("testOnlyStoredScopesAreAssignedIds1");
+        Scopes queried = Scopes.from("testOnlyStoredScopesAreAssignedIds2");
 
-        int lifetime = 1;
-        ServiceURL serviceURL = new ServiceURL("service:abstract:concrete://testMatchExpired", lifetime);
-        ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://host");
+        ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), stored, Attributes.NONE);
         cache.put(service);
+        assert stored.getScopeIds()[0] >= 0;
 
-        // Let the service expire
-        Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime) + 500);
-
-        // Be sure match() does not return the expired service
-        List<ServiceInfo> results = cache.match(serviceURL.getServiceType(), null, Scopes.NONE, null);
-        assert results.isEmpty();
+        assert cache.match(null, null, queried, null).isEmpty();
+        assert cache.count(null, null, queried, null, Integer.MAX_VALUE) == 0;
+        assert queried.getScopeIds()[0] == -1;
+        assert cache.match(null, null, Scopes.from("testOnlyStoredScopesAreAssignedIds1"), null).size() == 1;
     }
 }
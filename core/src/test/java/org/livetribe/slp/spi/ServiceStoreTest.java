@@ -0,0 +1,940 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.SLPError;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceLocationException;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceBatchEvent;
+import org.livetribe.slp.sa.ServiceBatchListener;
+import org.livetribe.slp.sa.ServiceEvent;
+import org.livetribe.slp.sa.ServiceListener;
+import org.livetribe.slp.spi.filter.FilterParser;
+
+
+/**
+ * Conformance tests for {@link ServiceStore} implementations.
+ */
+public abstract class ServiceStoreTest
+{
+    /**
+     * @return a new, empty, ServiceStore to test
+     */
+    protected ServiceStore<ServiceInfo> newServiceStore()
+    {
+        return newServiceStore(null);
+    }
+
+    /**
+     * @param journal the journal where the store records changes, or null
+     * @return a new, empty, ServiceStore to test
+     */
+    protected abstract ServiceStore<ServiceInfo> newServiceStore(ServiceJournal journal);
+
+    /**
+     * @return a new, empty, ServiceStore to test that builds its attribute indexes, if any, as soon as possible;
+     *         by default the same as {@link #newServiceStore()}
+     */
+    protected ServiceStore<ServiceInfo> newIndexedServiceStore()
+    {
+        return newServiceStore();
+    }
+
+    /**
+     * Compares a service returned by the store with the expected one; by default services must be the same instance,
+     * stores that do not keep service instances may override to compare the services' content.
+     *
+     * @param actual   the service returned by the store
+     * @param expected the expected service
+     * @return whether the given services are the same
+     */
+    protected boolean same(ServiceInfo actual, ServiceInfo expected)
+    {
+        return actual == expected;
+    }
+
+    @Test
+    public void testPut() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz1");
+        Scopes scopes = Scopes.from("scope1");
+        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, null);
+        ServiceStore.Result<ServiceInfo> result = cache.put(serviceInfo1);
+
+        assert result.getPrevious() == null;
+        assert cache.getSize() == 1;
+        ServiceInfo serviceInfo = result.getCurrent();
+        assert serviceInfo == serviceInfo1;
+
+        // Different language
+        ServiceInfo serviceInfo2 = new ServiceInfo(serviceInfo1.getServiceURL(), Locale.GERMAN.getLanguage(), serviceInfo1.getScopes(), serviceInfo1.getAttributes());
+        result = cache.put(serviceInfo2);
+
+        assert result.getPrevious() == null;
+        assert cache.getSize() == 2;
+        serviceInfo = result.getCurrent();
+        assert serviceInfo == serviceInfo2;
+
+        // Replace an existing service
+        Attributes attributes = Attributes.from("(attr=sict1)");
+        ServiceInfo serviceInfo3 = new ServiceInfo(serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), attributes);
+        result = cache.put(serviceInfo3);
+
+        assert same(result.getPrevious(), serviceInfo1);
+        assert cache.getSize() == 2;
+        serviceInfo = result.getCurrent();
+        assert serviceInfo == serviceInfo3;
+
+        // Wrong registration: same ServiceURL, different ServiceType
+        ServiceType serviceType = new ServiceType("service:bar:baz");
+        ServiceInfo serviceInfo4 = new ServiceInfo(serviceType, serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), serviceInfo1.getAttributes());
+        try
+        {
+            cache.put(serviceInfo4);
+            assert false;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.INVALID_REGISTRATION;
+        }
+    }
+
+    @Test
+    public void testUpdateAdd() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
+        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
+        Scopes scopes = Scopes.from("scope1");
+        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
+        cache.put(serviceInfo1);
+
+        Attributes attributes2 = Attributes.from("(attr=sict2),(another=1)");
+        ServiceInfo serviceInfo2 = new ServiceInfo(serviceInfo1.getServiceURL(), serviceInfo1.getLanguage(), serviceInfo1.getScopes(), attributes2);
+        ServiceStore.Result<ServiceInfo> result = cache.addAttributes(serviceInfo1.getKey(), attributes2);
+
+        assert same(result.getPrevious(), serviceInfo1);
+        assert cache.getSize() == 1;
+        ServiceInfo merged = result.getCurrent();
+        assert merged != null;
+        Attributes mergedAttributes = attributes1.union(attributes2);
+        assert merged.getAttributes().equals(mergedAttributes);
+    }
+
+    @Test
+    public void testUpdateRemove() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
+        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
+        Scopes scopes = Scopes.from("scope1");
+        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
+        cache.put(serviceInfo1);
+
+        Attributes attributes2 = Attributes.from("tag");
+        ServiceStore.Result<ServiceInfo> result = cache.removeAttributes(serviceInfo1.getKey(), attributes2);
+
+        assert same(result.getPrevious(), serviceInfo1);
+        assert cache.getSize() == 1;
+        ServiceInfo merged = result.getCurrent();
+        assert merged != null;
+        Attributes mergedAttributes = attributes1.complement(attributes2);
+        assert merged.getAttributes().equals(mergedAttributes);
+    }
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz2");
+        Attributes attributes1 = Attributes.from("(attr=sict1),tag");
+        Scopes scopes = Scopes.from("scope1");
+        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), scopes, attributes1);
+        cache.put(serviceInfo1);
+
+        ServiceStore.Result<ServiceInfo> result = cache.remove(serviceInfo1.getKey());
+        assert same(result.getPrevious(), serviceInfo1);
+        assert result.getCurrent() == null;
+        assert cache.getSize() == 0;
+    }
+
+    @Test
+    public void testKeyLock() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz3");
+        ServiceInfo serviceInfo1 = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(attr=value)"));
+        cache.lock(serviceInfo1.getKey());
+        try
+        {
+            cache.lock(serviceInfo1.getKey());
+            try
+            {
+                cache.put(serviceInfo1);
+            }
+            finally
+            {
+                cache.unlock(serviceInfo1.getKey());
+            }
+            assert same(cache.get(serviceInfo1.getKey()), serviceInfo1);
+            cache.remove(serviceInfo1.getKey());
+        }
+        finally
+        {
+            cache.unlock(serviceInfo1.getKey());
+        }
+        assert cache.getSize() == 0;
+    }
+
+    @Test
+    public void testBatchDefersNotifications() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        final AtomicInteger added = new AtomicInteger();
+        cache.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                added.incrementAndGet();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        });
+
+        ServiceInfo serviceInfo = new ServiceInfo(new ServiceURL("service:foo:bar://baz4"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        cache.beginBatch();
+        try
+        {
+            cache.lock(serviceInfo.getKey());
+            try
+            {
+                cache.put(serviceInfo);
+            }
+            finally
+            {
+                cache.unlock(serviceInfo.getKey());
+            }
+            assert added.get() == 0;
+        }
+        finally
+        {
+            cache.endBatch();
+        }
+        assert added.get() == 1;
+    }
+
+    @Test
+    public void testMatchExpired() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        int lifetime = 1;
+        ServiceURL serviceURL = new ServiceURL("service:abstract:concrete://testMatchExpired", lifetime);
+        ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        cache.put(service);
+
+        // Let the service expire
+        Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime) + 500);
+
+        // Be sure match() does not return the expired service
+        List<ServiceInfo> results = cache.match(serviceURL.getServiceType(), null, Scopes.NONE, null);
+        assert results.isEmpty();
+    }
+
+    @Test
+    public void testUpdateNotExisting() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://baz3");
+        ServiceInfo serviceInfo = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        try
+        {
+            cache.addAttributes(serviceInfo.getKey(), Attributes.from("(attr=1)"));
+            assert false;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.INVALID_UPDATE;
+        }
+
+        // Removing a service that does not exist does nothing
+        ServiceStore.Result<ServiceInfo> result = cache.remove(serviceInfo.getKey());
+        assert result.getPrevious() == null;
+        assert result.getCurrent() == null;
+        assert cache.getSize() == 0;
+    }
+
+    @Test
+    public void testMatch() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo:bar://host1"), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(attr=1)"));
+        cache.put(service1);
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo:baz://host2"), Locale.ENGLISH.getLanguage(), Scopes.from("scope2"), Attributes.from("(attr=2)"));
+        cache.put(service2);
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:foo:bar://host3"), Locale.ITALIAN.getLanguage(), Scopes.from("scope1", "scope2"), Attributes.from("(attr=3)"));
+        cache.put(service3);
+
+        assert cache.match(null, null, null, null).size() == 3;
+        assert cache.match(new ServiceType("service:foo"), null, null, null).size() == 3;
+        assert cache.match(new ServiceType("service:foo:bar"), null, null, null).size() == 2;
+        assert cache.match(null, Locale.ITALIAN.getLanguage(), null, null).size() == 1;
+        assert cache.match(null, null, Scopes.from("scope2"), null).size() == 2;
+
+        FilterParser parser = new FilterParser();
+        List<ServiceInfo> result = cache.match(new ServiceType("service:foo:bar"), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), parser.parse("(attr>=1)"));
+        assert result.size() == 1;
+        assert same(result.get(0), service1);
+        assert cache.match(null, null, null, parser.parse("(attr>=2)")).size() == 2;
+        assert cache.match(null, null, null, parser.parse("(attr=4)")).isEmpty();
+    }
+
+    @Test
+    public void testPurge() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        int lifetime = 1;
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo:bar://testPurge1", lifetime), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        cache.put(service1);
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo:bar://testPurge2", ServiceURL.LIFETIME_PERMANENT), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        cache.put(service2);
+
+        assert cache.purge().isEmpty();
+
+        // Let the first service expire
+        Thread.sleep(TimeUnit.SECONDS.toMillis(lifetime) + 500);
+
+        List<ServiceInfo> purged = cache.purge();
+        assert purged.size() == 1;
+        assert same(purged.get(0), service1);
+        assert cache.getSize() == 1;
+        assert cache.get(service1.getKey()) == null;
+        assert same(cache.get(service2.getKey()), service2);
+        assert cache.getServiceInfos().size() == 1;
+    }
+
+    @Test
+    public void testListeners() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        final List<ServiceEvent> added = new ArrayList<ServiceEvent>();
+        final List<ServiceEvent> updated = new ArrayList<ServiceEvent>();
+        final List<ServiceEvent> removed = new ArrayList<ServiceEvent>();
+        ServiceListener listener = new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                added.add(event);
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                updated.add(event);
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                removed.add(event);
+            }
+        };
+        cache.addServiceListener(listener);
+
+        ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo:bar://testListeners"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(attr=1)"));
+        cache.put(service);
+        assert added.size() == 1;
+        assert added.get(0).getPreviousService() == null;
+        assert added.get(0).getCurrentService() == service;
+
+        ServiceInfo current = cache.addAttributes(service.getKey(), Attributes.from("(another=2)")).getCurrent();
+        assert updated.size() == 1;
+        assert same(updated.get(0).getPreviousService(), service);
+        assert updated.get(0).getCurrentService() == current;
+
+        cache.remove(service.getKey());
+        assert removed.size() == 1;
+        assert same(removed.get(0).getPreviousService(), current);
+        assert removed.get(0).getCurrentService() == null;
+
+        cache.removeServiceListener(listener);
+        cache.put(service);
+        assert added.size() == 1;
+    }
+
+    @Test
+    public void testPutAll() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo:bar://host1"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo:bar://host2"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        List<ServiceStore.Result<ServiceInfo>> results = cache.putAll(Arrays.asList(service1, service2));
+        assert results.size() == 2;
+        assert results.get(0).getPrevious() == null;
+        assert results.get(1).getCurrent() == service2;
+        assert cache.getSize() == 2;
+
+        // A batch with an invalid service is not applied at all
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:foo:bar://host3"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        ServiceInfo conflicting = new ServiceInfo(new ServiceType("service:baz"), new ServiceURL("service:foo:bar://host1"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        try
+        {
+            cache.putAll(Arrays.asList(service3, conflicting));
+            assert false;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.INVALID_REGISTRATION;
+        }
+        assert cache.getSize() == 2;
+        assert cache.get(service3.getKey()) == null;
+    }
+
+    @Test
+    public void testUpdateAll() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo:bar://host1"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo:bar://host2"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=2)"));
+        cache.putAll(Arrays.asList(service1, service2));
+
+        ServiceInfo update1 = new ServiceInfo(service1.getServiceURL(), service1.getLanguage(), Scopes.DEFAULT, Attributes.from("(b=1)"));
+        ServiceInfo update2 = new ServiceInfo(service2.getServiceURL(), service2.getLanguage(), Scopes.DEFAULT, Attributes.from("(b=2)"));
+        List<ServiceStore.Result<ServiceInfo>> results = cache.updateAll(Arrays.asList(update1, update2));
+        assert results.size() == 2;
+        assert results.get(0).getCurrent().getAttributes().equals(Attributes.from("(a=1),(b=1)"));
+        assert cache.get(service2.getKey()).getAttributes().equals(Attributes.from("(a=2),(b=2)"));
+
+        // A batch with a service that does not exist is not applied at all
+        ServiceInfo missing = new ServiceInfo(new ServiceURL("service:foo:bar://host3"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(c=3)"));
+        ServiceInfo update3 = new ServiceInfo(service1.getServiceURL(), service1.getLanguage(), Scopes.DEFAULT, Attributes.from("(c=1)"));
+        try
+        {
+            cache.updateAll(Arrays.asList(update3, missing));
+            assert false;
+        }
+        catch (ServiceLocationException x)
+        {
+            assert x.getSLPError() == SLPError.INVALID_UPDATE;
+        }
+        assert cache.get(service1.getKey()).getAttributes().equals(Attributes.from("(a=1),(b=1)"));
+    }
+
+    @Test
+    public void testRemoveAll() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:foo:bar://host1"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:foo:bar://host2"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:foo:bar://host3"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        cache.putAll(Arrays.asList(service1, service2));
+
+        List<ServiceStore.Result<ServiceInfo>> results = cache.removeAll(Arrays.asList(service1.getKey(), service3.getKey()));
+        assert results.size() == 2;
+        assert same(results.get(0).getPrevious(), service1);
+        assert results.get(1).getPrevious() == null;
+        assert cache.getSize() == 1;
+        assert same(cache.get(service2.getKey()), service2);
+    }
+
+    @Test
+    public void testBatchListeners() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+
+        final List<ServiceBatchEvent> batches = new ArrayList<ServiceBatchEvent>();
+        final List<ServiceEvent> single = new ArrayList<ServiceEvent>();
+        cache.addServiceListener(new ServiceBatchListener()
+        {
+            public void servicesChanged(ServiceBatchEvent event)
+            {
+                batches.add(event);
+            }
+
+            public void serviceAdded(ServiceEvent event)
+            {
+                single.add(event);
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                single.add(event);
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                single.add(event);
+            }
+        });
+        final List<ServiceEvent> added = new ArrayList<ServiceEvent>();
+        final List<ServiceEvent> removed = new ArrayList<ServiceEvent>();
+        cache.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                added.add(event);
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                removed.add(event);
+            }
+        });
+
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        List<ServiceInfo.Key> keys = new ArrayList<ServiceInfo.Key>();
+        for (int i = 0; i < 10; ++i)
+        {
+            ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo:bar://host" + i), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+            services.add(service);
+            keys.add(service.getKey());
+        }
+        cache.putAll(services);
+        assert batches.size() == 1;
+        assert batches.get(0).getSource() == cache;
+        assert batches.get(0).getAdded().size() == services.size();
+        assert batches.get(0).getRemoved().isEmpty();
+        List<ServiceBatchEvent.Change> changes = batches.get(0).getChanges();
+        for (int i = 0; i < services.size(); ++i)
+        {
+            assert changes.get(i).getType() == ServiceBatchEvent.Type.ADDED;
+            assert changes.get(i).getEvent().getCurrentService().getKey().equals(keys.get(i));
+        }
+        assert single.isEmpty();
+        assert added.size() == services.size();
+
+        cache.removeAll(keys);
+        assert batches.size() == 2;
+        assert batches.get(1).getRemoved().size() == services.size();
+        assert removed.size() == services.size();
+
+        // Modifications of single services are notified one by one
+        cache.put(services.get(0));
+        assert batches.size() == 2;
+        assert single.size() == 1;
+
+        // Purges are notified in a single batch
+        cache.put(new ServiceInfo(new ServiceURL("service:foo:bar://expiring1", 1), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+        cache.put(new ServiceInfo(new ServiceURL("service:foo:bar://expiring2", 1), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+        TimeUnit.MILLISECONDS.sleep(1500);
+        assert cache.purge().size() == 2;
+        assert batches.size() == 3;
+        assert batches.get(2).getRemoved().size() == 2;
+    }
+
+    @Test
+    public void testJournal() throws Exception
+    {
+        ServiceJournal journal = new ServiceJournal(4);
+        ServiceStore<ServiceInfo> cache = newServiceStore(journal);
+        assert cache.getServiceJournal() == journal;
+        assert journal.changesSince(0, cache).getChanges().isEmpty();
+
+        ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo:bar://testJournal"), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+        cache.put(service);
+        ServiceInfo updated = cache.addAttributes(service.getKey(), Attributes.from("(b=2)")).getCurrent();
+        cache.remove(service.getKey());
+        // Removing a service that does not exist is not a change
+        cache.remove(service.getKey());
+
+        ServiceJournal.Delta delta = journal.changesSince(0, cache);
+        assert !delta.isSnapshot();
+        assert delta.getSequence() == 3;
+        List<ServiceJournal.Change> changes = delta.getChanges();
+        assert changes.size() == 3;
+        assert changes.get(0).getSequence() == 1;
+        assert changes.get(0).getType() == ServiceJournal.Type.ADDED;
+        assert changes.get(0).getPrevious() == null;
+        assert changes.get(0).getCurrent() == service;
+        assert changes.get(1).getType() == ServiceJournal.Type.UPDATED;
+        assert changes.get(1).getCurrent().getAttributes().equals(updated.getAttributes());
+        assert changes.get(2).getType() == ServiceJournal.Type.REMOVED;
+        assert changes.get(2).getCurrent() == null;
+
+        delta = journal.changesSince(2, cache);
+        assert delta.getChanges().size() == 1;
+        assert journal.changesSince(3, cache).getChanges().isEmpty();
+
+        // Changes that fell off the journal are replaced by a snapshot
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 3; ++i)
+            services.add(new ServiceInfo(new ServiceURL("service:foo:bar://host" + i), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+        cache.putAll(services);
+        assert journal.getSequence() == 6;
+        delta = journal.changesSince(2, cache);
+        assert !delta.isSnapshot();
+        assert delta.getChanges().size() == 4;
+        delta = journal.changesSince(1, cache);
+        assert delta.isSnapshot();
+        assert delta.getSequence() == 6;
+        assert delta.getServices().size() == 3;
+
+        // Sequence numbers from the future cannot be trusted
+        assert journal.changesSince(7, cache).isSnapshot();
+    }
+
+    @Test
+    public void testRenew() throws Exception
+    {
+        ServiceJournal journal = new ServiceJournal(16, true);
+        ServiceStore<ServiceInfo> cache = newServiceStore(journal);
+
+        ServiceURL serviceURL = new ServiceURL("service:foo:bar://testRenew", 60);
+        ServiceInfo service = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1),tag"));
+        assert cache.renew(service) == null;
+        assert cache.getSize() == 0;
+
+        cache.put(service);
+        long registrationTime = cache.get(service.getKey()).getRegistrationTime();
+        final List<ServiceEvent> events = new ArrayList<ServiceEvent>();
+        cache.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                events.add(event);
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+                events.add(event);
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+                events.add(event);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(20);
+
+        // Same content in different instances
+        ServiceInfo renewal = new ServiceInfo(new ServiceURL("service:foo:bar://testRenew", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1),tag"));
+        ServiceInfo renewed = cache.renew(renewal);
+        assert same(renewed, service);
+        assert cache.get(service.getKey()).getRegistrationTime() > registrationTime;
+        assert cache.getSize() == 1;
+        assert events.isEmpty();
+        ServiceJournal.Change change = journal.changesSince(journal.getSequence() - 1).getChanges().get(0);
+        assert change.getType() == ServiceJournal.Type.RENEWED;
+
+        // Different content is not a renewal
+        assert cache.renew(new ServiceInfo(new ServiceURL("service:foo:bar://testRenew", 30), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1),tag"))) == null;
+        assert cache.renew(new ServiceInfo(new ServiceURL("service:foo:bar://testRenew", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope2"), Attributes.from("(a=1),tag"))) == null;
+        assert cache.renew(new ServiceInfo(new ServiceURL("service:foo:bar://testRenew", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=2),tag"))) == null;
+        assert cache.renew(new ServiceInfo(new ServiceURL("service:foo:bar://testRenew", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.NONE)) == null;
+        assert cache.renew(new ServiceInfo(new ServiceType("service:foo:baz"), new ServiceURL("service:foo:bar://testRenew", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1),tag"))) == null;
+        assert events.isEmpty();
+        assert same(cache.get(service.getKey()), service);
+    }
+
+    @Test
+    public void testRenewNotJournaledByDefault() throws Exception
+    {
+        ServiceJournal journal = new ServiceJournal(16);
+        ServiceStore<ServiceInfo> cache = newServiceStore(journal);
+
+        ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo:bar://testRenewNotJournaled", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+        cache.put(service);
+        long sequence = journal.getSequence();
+        ServiceInfo renewal = new ServiceInfo(new ServiceURL("service:foo:bar://testRenewNotJournaled", 60), Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=1)"));
+        assert cache.renew(renewal) != null;
+        // Renewals would evict the other changes from the journal
+        assert journal.getSequence() == sequence;
+    }
+
+    @Test
+    public void testMatchServiceTypes() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, null).isEmpty();
+
+        ServiceType jmx = new ServiceType("service:jmx:rmi");
+        ServiceType mx4j = new ServiceType("service:jmx:rmi.mx4j");
+        String language = Locale.ENGLISH.getLanguage();
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:jmx:rmi://host1"), language, Scopes.from("scope1"), Attributes.NONE);
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:jmx:rmi://host2"), language, Scopes.from("scope2"), Attributes.NONE);
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:jmx:rmi.mx4j://host3"), language, Scopes.from("scope1"), Attributes.NONE);
+        cache.putAll(Arrays.asList(service1, service2, service3));
+
+        // Service types are not repeated for each service
+        List<ServiceType> serviceTypes = cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, null);
+        assert serviceTypes.size() == 2;
+        assert serviceTypes.contains(jmx);
+        assert serviceTypes.contains(mx4j);
+
+        assert cache.matchServiceTypes(ServiceType.DEFAULT_NAMING_AUTHORITY, null).equals(Arrays.asList(jmx));
+        assert cache.matchServiceTypes("mx4j", null).equals(Arrays.asList(mx4j));
+        assert cache.matchServiceTypes("sun", null).isEmpty();
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, Scopes.from("scope2")).equals(Arrays.asList(jmx));
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, Scopes.from("scope3")).isEmpty();
+
+        // Replacing a service with a service in other scopes
+        cache.put(new ServiceInfo(service2.getServiceURL(), language, Scopes.from("scope3"), Attributes.NONE));
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, Scopes.from("scope2")).isEmpty();
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, Scopes.from("scope3")).equals(Arrays.asList(jmx));
+
+        // The service type is present as long as one of its services is
+        cache.remove(service1.getKey());
+        assert cache.matchServiceTypes(ServiceType.DEFAULT_NAMING_AUTHORITY, null).equals(Arrays.asList(jmx));
+        cache.remove(service2.getKey());
+        assert cache.matchServiceTypes(ServiceType.DEFAULT_NAMING_AUTHORITY, null).isEmpty();
+
+        // Updates do not modify service types
+        cache.addAttributes(service3.getKey(), Attributes.from("(a=1)"));
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, null).equals(Arrays.asList(mx4j));
+        cache.remove(service3.getKey());
+        assert cache.matchServiceTypes(ServiceType.ANY_NAMING_AUTHORITY, null).isEmpty();
+    }
+
+    @Test
+    public void testMatchAttributes() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        ServiceType jmx = new ServiceType("service:jmx");
+        assert cache.matchAttributes(jmx, null, null, null).isEmpty();
+
+        String language = Locale.ENGLISH.getLanguage();
+        ServiceInfo service1 = new ServiceInfo(new ServiceURL("service:jmx:rmi://host1"), language, Scopes.from("scope1"), Attributes.from("(a=1),(b=foo)"));
+        ServiceInfo service2 = new ServiceInfo(new ServiceURL("service:jmx:iiop://host2"), language, Scopes.from("scope1"), Attributes.from("(a=1,2)"));
+        ServiceInfo service3 = new ServiceInfo(new ServiceURL("service:jmx:rmi://host3"), language, Scopes.from("scope2"), Attributes.from("(a=3)"));
+        ServiceInfo service4 = new ServiceInfo(new ServiceURL("service:jmx:rmi://host4"), Locale.ITALIAN.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=4)"));
+        ServiceInfo service5 = new ServiceInfo(new ServiceURL("service:ftp://host5"), language, Scopes.from("scope1"), Attributes.from("(a=5)"));
+        cache.putAll(Arrays.asList(service1, service2, service3, service4, service5));
+
+        Attributes attributes = cache.matchAttributes(jmx, language, null, null);
+        assert Arrays.equals(new Object[]{1, 2, 3}, sorted(attributes.valueFor("a").getValues()));
+        assert attributes.containsTag("b");
+        attributes = cache.matchAttributes(jmx, language, Scopes.from("scope1"), Attributes.fromTags("a"));
+        assert attributes.getSize() == 1;
+        assert Arrays.equals(new Object[]{1, 2}, sorted(attributes.valueFor("a").getValues()));
+        attributes = cache.matchAttributes(new ServiceType("service:jmx:rmi"), null, null, Attributes.fromTags("a"));
+        assert Arrays.equals(new Object[]{1, 3, 4}, sorted(attributes.valueFor("a").getValues()));
+
+        // Updates and removals are reflected
+        cache.addAttributes(service3.getKey(), Attributes.from("(c=true)"));
+        cache.removeAttributes(service1.getKey(), Attributes.fromTags("b"));
+        attributes = cache.matchAttributes(jmx, language, null, null);
+        assert !attributes.containsTag("b");
+        assert attributes.containsTag("c");
+        cache.remove(service2.getKey());
+        cache.remove(service3.getKey());
+        attributes = cache.matchAttributes(jmx, language, null, null);
+        assert attributes.getSize() == 1;
+        assert attributes.valueFor("a").getValue().equals(1);
+        assert !attributes.valueFor("a").isMultiValued();
+    }
+
+    private Object[] sorted(Object[] values)
+    {
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Test
+    public void testMatchServiceURL() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        ServiceURL serviceURL = new ServiceURL("service:jmx:rmi://host1", 60);
+        assert cache.match(serviceURL, null, null).isEmpty();
+
+        ServiceInfo english = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=1)"));
+        ServiceInfo italian = new ServiceInfo(serviceURL, Locale.ITALIAN.getLanguage(), Scopes.from("scope2"), Attributes.from("(a=2)"));
+        ServiceInfo other = new ServiceInfo(new ServiceURL("service:jmx:rmi://host2", 60), Locale.ENGLISH.getLanguage(), Scopes.from("scope1"), Attributes.from("(a=3)"));
+        cache.putAll(Arrays.asList(english, italian, other));
+
+        assert cache.match(serviceURL, null, null).size() == 2;
+        List<ServiceInfo> result = cache.match(serviceURL, Locale.ITALIAN.getLanguage(), null);
+        assert result.size() == 1;
+        assert same(result.get(0), italian);
+        result = cache.match(serviceURL, null, Scopes.from("scope1"));
+        assert result.size() == 1;
+        assert same(result.get(0), english);
+        assert cache.match(serviceURL, Locale.ITALIAN.getLanguage(), Scopes.from("scope1")).isEmpty();
+        assert cache.match(new ServiceURL("service:jmx:rmi://host3"), null, null).isEmpty();
+
+        cache.addAttributes(english.getKey(), Attributes.from("(b=true)"));
+        result = cache.match(serviceURL, Locale.ENGLISH.getLanguage(), null);
+        assert result.get(0).getAttributes().containsTag("b");
+
+        cache.remove(english.getKey());
+        result = cache.match(serviceURL, null, null);
+        assert result.size() == 1;
+        assert same(result.get(0), italian);
+        cache.remove(italian.getKey());
+        assert cache.match(serviceURL, null, null).isEmpty();
+    }
+
+    @Test
+    public void testMatchScopes() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        String language = Locale.ENGLISH.getLanguage();
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 20; ++i)
+            services.add(new ServiceInfo(new ServiceURL("service:foo://host" + i), language, Scopes.from("scope" + (i % 4)), Attributes.NONE));
+        ServiceInfo multiple = new ServiceInfo(new ServiceURL("service:foo://multiple"), language, Scopes.from("scope1", "scope2"), Attributes.NONE);
+        services.add(multiple);
+        ServiceInfo any = new ServiceInfo(new ServiceURL("service:foo://any"), language, Scopes.ANY, Attributes.NONE);
+        services.add(any);
+        cache.putAll(services);
+
+        assert cache.match(null, null, null, null).size() == 22;
+        assert cache.match(null, null, Scopes.NONE, null).size() == 22;
+        assert cache.match(null, null, Scopes.from("scope0"), null).size() == 6;
+        assert cache.match(null, null, Scopes.from("scope1"), null).size() == 7;
+        List<ServiceInfo> result = cache.match(null, null, Scopes.from("scope1", "scope2"), null);
+        assert result.size() == 2;
+        assert cache.match(null, null, Scopes.from("scope9"), null).size() == 1;
+        assert cache.match(null, null, Scopes.ANY, null).size() == 1;
+
+        // Changes of scopes move services to other partitions
+        cache.put(new ServiceInfo(multiple.getServiceURL(), language, Scopes.from("scope3"), Attributes.NONE));
+        assert cache.match(null, null, Scopes.from("scope1", "scope2"), null).size() == 1;
+        assert cache.match(null, null, Scopes.from("scope3"), null).size() == 7;
+        cache.addAttributes(multiple.getKey(), Attributes.from("(a=1)"));
+        result = cache.match(null, null, Scopes.from("scope3"), new FilterParser().parse("(a=1)"));
+        assert result.size() == 1;
+        cache.remove(multiple.getKey());
+        cache.remove(any.getKey());
+        assert cache.match(null, null, Scopes.from("scope3"), null).size() == 5;
+        assert cache.match(null, null, Scopes.from("scope9"), null).isEmpty();
+    }
+
+    @Test
+    public void testMatchWithResultLimit() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        String language = Locale.ENGLISH.getLanguage();
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 20; ++i)
+            services.add(new ServiceInfo(new ServiceURL("service:foo://host" + i), language, Scopes.DEFAULT, Attributes.from("(load=" + ((i * 7) % 20) + "),(even=" + (i % 2 == 0) + ")")));
+        services.add(new ServiceInfo(new ServiceURL("service:foo://unloaded"), language, Scopes.DEFAULT, Attributes.from("(even=true)")));
+        cache.putAll(services);
+
+        List<ServiceInfo> result = cache.match(null, null, null, null, new ResultLimit(3, "load", true));
+        assert result.size() == 3;
+        for (int i = 0; i < 3; ++i) assert result.get(i).getAttributes().valueFor("load").getIntegerValue(0) == i;
+
+        result = cache.match(null, null, null, null, new ResultLimit(2, "load", false));
+        assert result.size() == 2;
+        assert result.get(0).getAttributes().valueFor("load").getIntegerValue(0) == 19;
+        assert result.get(1).getAttributes().valueFor("load").getIntegerValue(0) == 18;
+
+        // The limit applies to the services that match the filter
+        result = cache.match(null, null, null, new FilterParser().parse("(even=true)"), new ResultLimit(4, "load", true));
+        assert result.size() == 4;
+        for (int i = 0; i < 4; ++i) assert result.get(i).getAttributes().valueFor("load").getIntegerValue(0) == 2 * i;
+
+        // Services without the order attribute come last
+        result = cache.match(null, null, null, null, new ResultLimit(21, "load", false));
+        assert result.size() == 21;
+        assert !result.get(20).getAttributes().containsTag("load");
+
+        // Without order, the services are selected randomly
+        assert cache.match(null, null, null, null, new ResultLimit(5)).size() == 5;
+        assert cache.match(null, null, null, null, new ResultLimit(100)).size() == 21;
+        assert cache.match(null, null, Scopes.from("other"), null, new ResultLimit(5)).isEmpty();
+        assert cache.match(null, null, null, null, null).size() == 21;
+    }
+
+    @Test
+    public void testCount() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newServiceStore();
+        String language = Locale.ENGLISH.getLanguage();
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 20; ++i)
+            services.add(new ServiceInfo(new ServiceURL("service:foo://host" + i), language, Scopes.from("scope" + (i % 2)), Attributes.from("(load=" + (i % 5) + ")")));
+        cache.putAll(services);
+
+        FilterParser parser = new FilterParser();
+        assert cache.count(null, null, null, null, Integer.MAX_VALUE) == 20;
+        assert cache.count(new ServiceType("service:foo"), language, null, null, Integer.MAX_VALUE) == 20;
+        assert cache.count(new ServiceType("service:bar"), null, null, null, Integer.MAX_VALUE) == 0;
+        assert cache.count(null, null, Scopes.from("scope1"), null, Integer.MAX_VALUE) == 10;
+        assert cache.count(null, null, null, parser.parse("(load<=1)"), Integer.MAX_VALUE) == 8;
+        assert cache.count(null, null, Scopes.from("scope0"), parser.parse("(load=0)"), Integer.MAX_VALUE) == 2;
+
+        // Counting stops at the maximum
+        assert cache.count(null, null, null, null, 7) == 7;
+        assert cache.count(null, null, null, parser.parse("(load=3)"), 1) == 1;
+        assert cache.count(null, null, null, parser.parse("(load=5)"), 1) == 0;
+
+        cache.remove(services.get(0).getKey());
+        assert cache.count(null, null, null, null, Integer.MAX_VALUE) == 19;
+    }
+
+    @Test
+    public void testFilteredQueriesWithNullAttributes() throws Exception
+    {
+        ServiceStore<ServiceInfo> cache = newIndexedServiceStore();
+        String language = Locale.ENGLISH.getLanguage();
+        for (int i = 0; i < 10; ++i)
+            cache.put(new ServiceInfo(new ServiceURL("service:foo://host" + i), language, Scopes.DEFAULT, Attributes.from("(load=" + i + "),(healthy=" + (i % 2 == 0) + ")")));
+        ServiceInfo service = new ServiceInfo(new ServiceURL("service:foo://none"), language, Scopes.DEFAULT, null);
+        cache.put(service);
+
+        // Enough queries to sample the comparisons and to build and use the indexes
+        FilterParser parser = new FilterParser();
+        for (int i = 0; i < 20; ++i)
+        {
+            assert cache.match(null, null, null, parser.parse("(load=3)")).size() == 1;
+            assert cache.match(null, null, null, parser.parse("(healthy=true)")).size() == 5;
+            assert cache.match(null, null, null, parser.parse("(!(load=3))")).size() == 10;
+            assert cache.count(null, null, null, parser.parse("(load<=4)"), Integer.MAX_VALUE) == 5;
+        }
+
+        // Services without attributes are indexed when updated or removed
+        cache.addAttributes(service.getKey(), Attributes.from("(load=3)"));
+        assert cache.match(null, null, null, parser.parse("(load=3)")).size() == 2;
+        cache.remove(service.getKey());
+        assert cache.match(null, null, null, parser.parse("(load=3)")).size() == 1;
+        assert cache.match(null, null, null, parser.parse("(!(load=3))")).size() == 9;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.sa.ServiceEvent;
+import org.livetribe.slp.sa.ServiceListener;
+
+
+/**
+ *
+ */
+public class ShardedServiceStoreTest extends ServiceStoreTest
+{
+    protected ServiceStore<ServiceInfo> newServiceStore(ServiceJournal journal)
+    {
+        return new ShardedServiceStore<ServiceInfo>(4, journal);
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception
+    {
+        final ShardedServiceStore<ServiceInfo> store = new ShardedServiceStore<ServiceInfo>(6);
+        assert store.getShardCount() == 8;
+
+        final AtomicInteger added = new AtomicInteger();
+        store.addServiceListener(new ServiceListener()
+        {
+            public void serviceAdded(ServiceEvent event)
+            {
+                assert event.getSource() == store;
+                added.incrementAndGet();
+            }
+
+            public void serviceUpdated(ServiceEvent event)
+            {
+            }
+
+            public void serviceRemoved(ServiceEvent event)
+            {
+            }
+        });
+
+        int threads = 4;
+        final int count = 1000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i)
+        {
+            final int thread = i;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < count; ++j)
+                        {
+                            ServiceURL serviceURL = new ServiceURL("service:foo:bar://host" + thread + "-" + j);
+                            store.put(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+                        }
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        assert latch.await(30, TimeUnit.SECONDS);
+
+        assert store.getSize() == threads * count;
+        assert added.get() == threads * count;
+        assert store.match(null, null, Scopes.DEFAULT, null).size() == threads * count;
+    }
+
+    @Test
+    public void testLockBlocksModifications() throws Exception
+    {
+        final ShardedServiceStore<ServiceInfo> store = new ShardedServiceStore<ServiceInfo>(4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                ServiceURL serviceURL = new ServiceURL("service:foo:bar://host");
+                store.put(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE));
+                latch.countDown();
+            }
+        };
+
+        store.lock();
+        try
+        {
+            thread.start();
+            assert !latch.await(500, TimeUnit.MILLISECONDS);
+            assert store.getSize() == 0;
+        }
+        finally
+        {
+            store.unlock();
+        }
+        assert latch.await(5, TimeUnit.SECONDS);
+        assert store.getSize() == 1;
+    }
+
+    @Test
+    public void testKeyLockBlocksOnlyItsShard() throws Exception
+    {
+        final ShardedServiceStore<ServiceInfo> store = new ShardedServiceStore<ServiceInfo>(4);
+        int count = 16;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final ServiceInfo[] services = new ServiceInfo[count];
+        for (int i = 0; i < count; ++i)
+        {
+            ServiceURL serviceURL = new ServiceURL("service:foo:bar://host" + i);
+            services[i] = new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.NONE);
+        }
+
+        store.lock(services[0].getKey());
+        try
+        {
+            for (final ServiceInfo service : services)
+            {
+                new Thread()
+                {
+                    public void run()
+                    {
+                        store.put(service);
+                        latch.countDown();
+                    }
+                }.start();
+            }
+            // The services of the other shards are put while the shard of the first service is locked
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getSize() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assert store.getSize() > 0;
+            assert !latch.await(500, TimeUnit.MILLISECONDS);
+            assert store.get(services[0].getKey()) == null;
+        }
+        finally
+        {
+            store.unlock(services[0].getKey());
+        }
+        assert latch.await(5, TimeUnit.SECONDS);
+        assert store.getSize() == count;
+    }
+}
@@ -87,6 +87,25 @@ public class FilterTest
         assert filter.matches(attributes);
     }
 
+    @Test
+    public void testMatchWildcardAnchoring() throws Exception
+    {
+        Attributes attributes = Attributes.from("(name=prod-main-db)");
+        FilterParser parser = new FilterParser();
+
+        assert parser.parse("(name=*prod*db*)").matches(attributes);
+        assert parser.parse("(name=prod*db)").matches(attributes);
+        assert parser.parse("(name=PROD*)").matches(attributes);
+        assert parser.parse("(name=*db)").matches(attributes);
+        assert parser.parse("(name=*main*)").matches(attributes);
+        assert parser.parse("(name=p*-*-*b)").matches(attributes);
+
+        assert !parser.parse("(name=main*)").matches(attributes);
+        assert !parser.parse("(name=*main)").matches(attributes);
+        assert !parser.parse("(name=*db*prod*)").matches(attributes);
+        assert !parser.parse("(name=prod-main*main-db)").matches(attributes);
+    }
+
     @Test
     public void testMatchSingleLong() throws Exception
     {
@@ -233,7 +252,7 @@ public class FilterTest
                 .matches(attributes);
 
         assert parser
-                .parse("(msg=*()\\")
+                .parse("(msg=*()\\)")
                 .matches(attributes);
 
         //Test rfc2608.txt reserved characters ( minus rfc2254 reserved ones )
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.ServiceType;
+
+
+/**
+ *
+ */
+public class MatchCountExtensionTest
+{
+    @Test
+    public void testMatchCountExtension() throws Exception
+    {
+        MatchCountExtension original = new MatchCountExtension(false, 100000);
+
+        byte[] bytes = original.serialize();
+        MatchCountExtension deserialized = (MatchCountExtension)Extension.deserialize(bytes);
+
+        assert !deserialized.isExists();
+        assert deserialized.getCount() == 100000;
+        assert original.equals(deserialized);
+    }
+
+    @Test
+    public void testMessageWithMatchCountExtension() throws Exception
+    {
+        SrvRqst srvRqst = new SrvRqst();
+        srvRqst.setServiceType(new ServiceType("service:type"));
+        srvRqst.addExtension(new MatchCountExtension(true, 0));
+
+        SrvRqst deserializedSrvRqst = (SrvRqst)Message.deserialize(srvRqst.serialize());
+        MatchCountExtension extension = MatchCountExtension.findFirst(deserializedSrvRqst.getExtensions());
+        assert extension != null;
+        assert extension.isExists();
+
+        SrvRply srvRply = new SrvRply();
+        srvRply.addExtension(new MatchCountExtension(true, 1));
+
+        SrvRply deserializedSrvRply = (SrvRply)Message.deserialize(srvRply.serialize());
+        assert deserializedSrvRply.getURLEntries().isEmpty();
+        extension = MatchCountExtension.findFirst(deserializedSrvRply.getExtensions());
+        assert extension != null;
+        assert extension.getCount() == 1;
+    }
+}
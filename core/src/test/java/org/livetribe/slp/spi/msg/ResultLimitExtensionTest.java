@@ -0,0 +1,63 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.spi.ResultLimit;
+
+
+/**
+ *
+ */
+public class ResultLimitExtensionTest
+{
+    @Test
+    public void testResultLimitExtension() throws Exception
+    {
+        ResultLimitExtension original = new ResultLimitExtension(3, "load", false);
+
+        byte[] bytes = original.serialize();
+        ResultLimitExtension deserialized = (ResultLimitExtension)Extension.deserialize(bytes);
+
+        assert deserialized.getMaxResults() == 3;
+        assert "load".equals(deserialized.getOrderTag());
+        assert !deserialized.isAscending();
+        assert original.equals(deserialized);
+    }
+
+    @Test
+    public void testMessageWithResultLimitExtension() throws Exception
+    {
+        SrvRqst original = new SrvRqst();
+        original.setServiceType(new ServiceType("service:type"));
+        original.addExtension(new LanguageExtension());
+        original.addExtension(new ResultLimitExtension(10, null, true));
+
+        byte[] bytes = original.serialize();
+        SrvRqst deserialized = (SrvRqst)Message.deserialize(bytes);
+        assert deserialized.getExtensions().size() == 2;
+        ResultLimitExtension extension = ResultLimitExtension.findFirst(deserialized.getExtensions());
+        assert extension != null;
+        assert extension.getOrderTag() == null;
+
+        ResultLimit limit = ResultLimit.from(deserialized.getExtensions());
+        assert limit.equals(new ResultLimit(10));
+
+        assert ResultLimit.from(new SrvRqst().getExtensions()) == null;
+    }
+}
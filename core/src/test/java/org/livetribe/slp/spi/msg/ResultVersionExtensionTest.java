@@ -0,0 +1,93 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.Scopes;
+import org.livetribe.slp.ServiceInfo;
+import org.livetribe.slp.ServiceType;
+import org.livetribe.slp.ServiceURL;
+import org.livetribe.slp.spi.ResultVersion;
+
+
+/**
+ *
+ */
+public class ResultVersionExtensionTest
+{
+    @Test
+    public void testResultVersionExtension() throws Exception
+    {
+        ResultVersionExtension original = new ResultVersionExtension(0xFEDCBA9876543210L, true);
+
+        byte[] bytes = original.serialize();
+        ResultVersionExtension deserialized = (ResultVersionExtension)Extension.deserialize(bytes);
+
+        assert deserialized.getVersion() == 0xFEDCBA9876543210L;
+        assert deserialized.isNotModified();
+        assert original.equals(deserialized);
+    }
+
+    @Test
+    public void testMessageWithResultVersionExtension() throws Exception
+    {
+        SrvRqst srvRqst = new SrvRqst();
+        srvRqst.setServiceType(new ServiceType("service:type"));
+        srvRqst.addExtension(new ResultVersionExtension(ResultVersion.NONE, false));
+
+        SrvRqst deserializedSrvRqst = (SrvRqst)Message.deserialize(srvRqst.serialize());
+        ResultVersionExtension extension = ResultVersionExtension.findFirst(deserializedSrvRqst.getExtensions());
+        assert extension != null;
+        assert extension.getVersion() == ResultVersion.NONE;
+        assert !extension.isNotModified();
+    }
+
+    @Test
+    public void testResultVersion() throws Exception
+    {
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        for (int i = 0; i < 3; ++i)
+        {
+            ServiceURL serviceURL = new ServiceURL("service:type://host" + i);
+            services.add(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, Attributes.from("(a=" + i + ")")));
+        }
+        long version = ResultVersion.of(services);
+        assert version != ResultVersion.NONE;
+        assert ResultVersion.of(new ArrayList<ServiceInfo>()) != ResultVersion.NONE;
+
+        // The order of the services does not matter
+        List<ServiceInfo> reversed = new ArrayList<ServiceInfo>(services);
+        Collections.reverse(reversed);
+        assert ResultVersion.of(reversed) == version;
+
+        // Any change of the content does
+        List<ServiceInfo> modified = new ArrayList<ServiceInfo>(services);
+        ServiceInfo service = modified.get(1);
+        modified.set(1, new ServiceInfo(service.getServiceURL(), service.getLanguage(), service.getScopes(), Attributes.from("(a=4)")));
+        assert ResultVersion.of(modified) != version;
+        modified.set(1, new ServiceInfo(service.getServiceURL(), service.getLanguage(), Scopes.from("scope"), service.getAttributes()));
+        assert ResultVersion.of(modified) != version;
+        modified.remove(1);
+        assert ResultVersion.of(modified) != version;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2006-2011 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.livetribe.slp.spi.msg;
+
+import org.testng.annotations.Test;
+
+import org.livetribe.slp.Attributes;
+import org.livetribe.slp.ServiceType;
+
+
+/**
+ *
+ */
+public class TagListExtensionTest
+{
+    @Test
+    public void testTagListExtension() throws Exception
+    {
+        TagListExtension original = new TagListExtension(Attributes.fromTags("load,host*"));
+
+        byte[] bytes = original.serialize();
+        TagListExtension deserialized = (TagListExtension)Extension.deserialize(bytes);
+
+        assert original.getTags().equals(deserialized.getTags());
+        assert original.equals(deserialized);
+    }
+
+    @Test
+    public void testMessageWithTagListExtension() throws Exception
+    {
+        SrvRqst original = new SrvRqst();
+        original.setServiceType(new ServiceType("service:type"));
+        original.addExtension(new AttributeListExtension());
+        original.addExtension(new TagListExtension(Attributes.fromTags("a")));
+
+        byte[] bytes = original.serialize();
+        SrvRqst deserialized = (SrvRqst)Message.deserialize(bytes);
+        assert deserialized.getExtensions().size() == 2;
+        assert AttributeListExtension.findFirst(deserialized.getExtensions()) != null;
+        TagListExtension extension = TagListExtension.findFirst(deserialized.getExtensions());
+        assert extension != null;
+        assert extension.getTags().equals(Attributes.fromTags("a"));
+    }
+}
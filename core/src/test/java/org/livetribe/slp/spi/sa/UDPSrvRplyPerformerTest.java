@@ -34,6 +34,7 @@ import org.livetribe.slp.spi.msg.Message;
 import org.livetribe.slp.spi.msg.ScopeListExtension;
 import org.livetribe.slp.spi.msg.SrvRply;
 import org.livetribe.slp.spi.msg.SrvRqst;
+import org.livetribe.slp.spi.msg.TagListExtension;
 import org.livetribe.slp.spi.net.NetUtils;
 
 
@@ -77,4 +78,43 @@ public class UDPSrvRplyPerformerTest
         assert srvRply.get().isOverflow();
         assert srvRply.get().getURLEntries().size() < count;
     }
+
+    @Test
+    public void testTagList()
+    {
+        final AtomicReference<SrvRply> srvRply = new AtomicReference<SrvRply>();
+        UDPSrvRplyPerformer performer = new UDPSrvRplyPerformer(null, null)
+        {
+            @Override
+            protected void send(InetSocketAddress localAddress, InetSocketAddress remoteAddress, byte[] bytes)
+            {
+                srvRply.set((SrvRply)Message.deserialize(bytes));
+            }
+        };
+
+        String language = Locale.ENGLISH.getLanguage();
+        ServiceAgentInfo serviceAgent = ServiceAgentInfo.from(UUID.randomUUID().toString(), NetUtils.getLocalhost().getHostAddress(), Scopes.DEFAULT, Attributes.NONE, language);
+        SrvRqst srvRqst = new SrvRqst();
+        srvRqst.setXID(Message.newXID());
+        srvRqst.setLanguage(language);
+        srvRqst.addExtension(new AttributeListExtension());
+
+        ServiceURL serviceURL = new ServiceURL("service:jmx:rmi:///jndi/jmxrmi");
+        ServiceInfo service = new ServiceInfo(serviceURL, language, Scopes.DEFAULT, Attributes.from("(a=1,2),(b=true),(c=string),(d=\\FF\\00),e,(vendor=LiveTribe),(version=2.1.0),(description=a long description of the service that is not needed to choose it)"));
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        int count = 50;
+        for (int i = 0; i < count; ++i) services.add(service);
+        performer.perform(null, null, serviceAgent, srvRqst, services);
+        int allAttributesCount = srvRply.get().getURLEntries().size();
+
+        srvRqst.addExtension(new TagListExtension(Attributes.fromTags("a")));
+        performer.perform(null, null, serviceAgent, srvRqst, services);
+
+        // Many more URLEntries fit the srvRply with only the requested attributes
+        assert srvRply.get().getURLEntries().size() > 2 * allAttributesCount;
+        List<AttributeListExtension> attributesExtensions = AttributeListExtension.findAll(srvRply.get().getExtensions());
+        assert attributesExtensions.size() == srvRply.get().getURLEntries().size();
+        for (AttributeListExtension attributesExtension : attributesExtensions)
+            assert attributesExtension.getAttributes().equals(Attributes.from("(a=1,2)"));
+    }
 }
@@ -268,4 +268,81 @@ public class StandardUserAgentClientTest
             da.stop();
         }
     }
+
+    @Test
+    public void testCountServices()
+    {
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(newSettings());
+        da.start();
+        try
+        {
+            ServiceAgentClient sa = SLP.newServiceAgentClient(newSettings());
+            for (int i = 0; i < 5; ++i)
+            {
+                ServiceURL serviceURL = new ServiceURL("service:jmx:rmi://host" + i + "/jndi/rmi");
+                Attributes attributes = Attributes.from("(load=" + i + ")");
+                sa.register(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, attributes));
+            }
+
+            StandardUserAgentClient ua = StandardUserAgentClient.newInstance(newSettings());
+            ua.init();
+
+            ServiceType serviceType = new ServiceType("service:jmx:rmi");
+            assert ua.countServices(serviceType, null, Scopes.DEFAULT, null) == 5;
+            assert ua.countServices(serviceType, null, Scopes.DEFAULT, "(load<=2)") == 3;
+            assert ua.countServices(serviceType, null, Scopes.DEFAULT, "(load>=5)") == 0;
+            assert ua.hasServices(serviceType, null, Scopes.DEFAULT, "(load=4)");
+            assert !ua.hasServices(serviceType, null, Scopes.DEFAULT, "(load=5)");
+            assert !ua.hasServices(new ServiceType("service:foo"), null, Scopes.DEFAULT, null);
+        }
+        finally
+        {
+            da.stop();
+        }
+    }
+
+    @Test
+    public void testFindServicesRepeatedly()
+    {
+        StandardDirectoryAgentServer da = StandardDirectoryAgentServer.newInstance(newSettings());
+        da.start();
+        try
+        {
+            ServiceAgentClient sa = SLP.newServiceAgentClient(newSettings());
+            for (int i = 0; i < 3; ++i)
+            {
+                ServiceURL serviceURL = new ServiceURL("service:jmx:rmi://host" + i + "/jndi/rmi");
+                Attributes attributes = Attributes.from("(load=" + i + ")");
+                sa.register(new ServiceInfo(serviceURL, Locale.ENGLISH.getLanguage(), Scopes.DEFAULT, attributes));
+            }
+
+            StandardUserAgentClient ua = StandardUserAgentClient.newInstance(newSettings());
+            ua.init();
+
+            ServiceType serviceType = new ServiceType("service:jmx:rmi");
+            List<ServiceInfo> services = ua.findServices(serviceType, null, Scopes.DEFAULT, "(load<=1)");
+            assert services.size() == 2;
+
+            // The directory agent replies that the result has not been modified
+            List<ServiceInfo> cached = ua.findServices(serviceType, null, Scopes.DEFAULT, "(load<=1)");
+            assert cached.size() == 2;
+            assert cached.containsAll(services);
+            for (ServiceInfo service : cached) assert service.getAttributes() != null;
+
+            ServiceURL serviceURL = new ServiceURL("service:jmx:rmi://host2/jndi/rmi");
+            sa.addAttributes(serviceURL, Locale.ENGLISH.getLanguage(), Attributes.from("(load=1)"));
+            services = ua.findServices(serviceType, null, Scopes.DEFAULT, "(load<=1)");
+            assert services.size() == 3;
+
+            sa.deregister(serviceURL, Locale.ENGLISH.getLanguage());
+            services = ua.findServices(serviceType, null, Scopes.DEFAULT, "(load<=1)");
+            assert services.size() == 2;
+            services = ua.findServices(serviceType, null, Scopes.DEFAULT, "(load<=1)");
+            assert services.size() == 2;
+        }
+        finally
+        {
+            da.stop();
+        }
+    }
 }